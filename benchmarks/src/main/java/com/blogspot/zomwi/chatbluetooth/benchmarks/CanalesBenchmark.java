@@ -0,0 +1,129 @@
+package com.blogspot.zomwi.chatbluetooth.benchmarks;
+
+import java.io.InputStream;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.blogspot.zomwi.chatbluetooth.OyenteServicioChat;
+import com.blogspot.zomwi.chatbluetooth.ServicioChat;
+import com.blogspot.zomwi.chatbluetooth.conexion.BufferArrendado;
+import com.blogspot.zomwi.chatbluetooth.conexion.PoliticaColaLlena;
+import com.blogspot.zomwi.chatbluetooth.transferencia.Transferencia;
+import com.blogspot.zomwi.chatbluetooth.transporte.TransporteMemoria;
+
+/**
+ * Latencia de un mensaje de chat, desde escribir() hasta que el otro extremo
+ * lo entrega al oyente, con y sin una transferencia de archivo ocupando la
+ * conexion al mismo tiempo.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CanalesBenchmark {
+
+	@Param( { "false", "true" })
+	public boolean masivo;
+
+	private ServicioChat emisor;
+	private ServicioChat receptor;
+	private OyenteCola oyenteReceptor;
+	private Transferencia transferencia;
+	private byte[] mensaje;
+
+	@Setup(Level.Trial)
+	public void conectar() throws Exception {
+		TransporteMemoria.Red red = new TransporteMemoria.Red();
+		oyenteReceptor = new OyenteCola();
+		receptor = new ServicioChat(new TransporteMemoria(red, "receptor"),
+				oyenteReceptor);
+		emisor = new ServicioChat(new TransporteMemoria(red, "emisor"),
+				new OyenteCola());
+		receptor.iniciar();
+		emisor.conectar("receptor");
+		while (emisor.getEstado() != ServicioChat.ESTADO_CONECTADO
+				|| receptor.getEstado() != ServicioChat.ESTADO_CONECTADO) {
+			Thread.sleep(5);
+		}
+		mensaje = Datos.mensaje(64);
+		if (masivo) {
+			// El receptor no tiene directorio de recepcion, asi que descarta
+			// los bloques despues de leerlos y nunca toca el disco
+			transferencia = emisor.enviarFlujo("receptor", new FlujoInfinito(),
+					"masivo.bin", -1);
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void detener() {
+		if (transferencia != null) {
+			transferencia.cancelar();
+		}
+		emisor.cerrar(1000);
+		receptor.cerrar(1000);
+	}
+
+	@Benchmark
+	public BufferArrendado mensajeChat() throws InterruptedException {
+		emisor.escribir(mensaje, PoliticaColaLlena.BLOQUEAR, null);
+		BufferArrendado recibido = oyenteReceptor.recibidos.take();
+		recibido.liberar();
+		return recibido;
+	}
+
+	/**
+	 * Un flujo de ceros que no termina
+	 */
+	private static class FlujoInfinito extends InputStream {
+
+		@Override
+		public int read() {
+			return 0;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			return len;
+		}
+	}
+
+	/**
+	 * Deja los mensajes recibidos en una cola
+	 */
+	private static class OyenteCola implements OyenteServicioChat {
+
+		final LinkedBlockingQueue<BufferArrendado> recibidos = new LinkedBlockingQueue<BufferArrendado>();
+
+		public void estadoCambiado(int estado) {
+		}
+
+		public void mensajeLeido(BufferArrendado mensaje) {
+			recibidos.add(mensaje);
+		}
+
+		public void mensajeEscrito(byte[] mensaje) {
+		}
+
+		public void dispositivoConectado(String nombre) {
+		}
+
+		public void aviso(String texto) {
+		}
+	}
+}
@@ -0,0 +1,66 @@
+package com.blogspot.zomwi.chatbluetooth.benchmarks;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.blogspot.zomwi.chatbluetooth.protocolo.CodificadorTramas;
+import com.blogspot.zomwi.chatbluetooth.protocolo.Trama;
+
+/**
+ * Codificacion de un mensaje saliente: los bytes del texto como en
+ * PrincipalActivity.enviarMensaje y la trama que escribe el hilo escritor.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodificacionBenchmark {
+
+	@Param({ "16", "128", "1024" })
+	public int longitud;
+
+	private String mensaje;
+	private CodificadorTramas codificador;
+
+	@Setup
+	public void preparar() {
+		mensaje = new String(Datos.mensaje(longitud));
+		codificador = new CodificadorTramas(new OutputStream() {
+
+			@Override
+			public void write(int b) {
+			}
+
+			@Override
+			public void write(byte[] b, int offset, int cantidad) {
+			}
+		});
+	}
+
+	@Benchmark
+	public byte[] obtenerBytes() {
+		return mensaje.getBytes();
+	}
+
+	@Benchmark
+	public int codificarTrama() throws IOException {
+		byte[] enviar = mensaje.getBytes();
+		return codificador.escribir(Trama.TIPO_MENSAJE, enviar, 0,
+				enviar.length);
+	}
+}
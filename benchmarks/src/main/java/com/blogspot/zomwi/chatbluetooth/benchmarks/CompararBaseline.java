@@ -0,0 +1,95 @@
+package com.blogspot.zomwi.chatbluetooth.benchmarks;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compara un resultado de JMH en CSV (-rf csv) contra la baseline guardada en
+ * el repositorio y termina con codigo 1 si algun benchmark empeoro mas que la
+ * tolerancia.
+ *
+ * Uso: CompararBaseline baseline.csv resultados.csv [tolerancia %]
+ */
+public class CompararBaseline {
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.err.println("Uso: CompararBaseline baseline.csv resultados.csv [tolerancia %]");
+			System.exit(2);
+		}
+		double tolerancia = args.length > 2 ? Double.parseDouble(args[2]) : 10;
+		Map<String, double[]> baseline = leer(args[0]);
+		Map<String, double[]> resultados = leer(args[1]);
+
+		int regresiones = 0;
+		for (Map.Entry<String, double[]> entrada : resultados.entrySet()) {
+			double[] anterior = baseline.get(entrada.getKey());
+			if (anterior == null) {
+				System.out.println("NUEVO      " + entrada.getKey());
+				continue;
+			}
+			double[] actual = entrada.getValue();
+			// En Throughput mas es mejor, en AverageTime menos es mejor
+			double cambio = (actual[0] - anterior[0]) / anterior[0] * 100;
+			double empeoro = actual[1] > 0 ? -cambio : cambio;
+			String marca = empeoro > tolerancia ? "REGRESION " : "ok        ";
+			if (empeoro > tolerancia) {
+				regresiones++;
+			}
+			System.out.println(marca + entrada.getKey()
+					+ String.format(" %.2f -> %.2f (%+.1f%%)", anterior[0],
+							actual[0], cambio));
+		}
+		System.exit(regresiones > 0 ? 1 : 0);
+	}
+
+	/**
+	 * @return Por cada benchmark y parametros, el puntaje y 1 si es de
+	 *         throughput o 0 si es de tiempo promedio
+	 */
+	private static Map<String, double[]> leer(String archivo)
+			throws IOException {
+		Map<String, double[]> puntajes = new LinkedHashMap<String, double[]>();
+		BufferedReader lector = new BufferedReader(new FileReader(archivo));
+		try {
+			List<String> cabecera = separar(lector.readLine());
+			int columnaModo = cabecera.indexOf("Mode");
+			int columnaHilos = cabecera.indexOf("Threads");
+			int columnaPuntaje = cabecera.indexOf("Score");
+			String linea;
+			while ((linea = lector.readLine()) != null) {
+				List<String> campos = separar(linea);
+				StringBuilder clave = new StringBuilder(campos.get(0));
+				clave.append(" t=").append(campos.get(columnaHilos));
+				for (int i = 0; i < cabecera.size(); i++) {
+					if (cabecera.get(i).startsWith("Param: ")
+							&& i < campos.size() && campos.get(i).length() > 0) {
+						clave.append(' ').append(cabecera.get(i).substring(7))
+								.append('=').append(campos.get(i));
+					}
+				}
+				double puntaje = Double.parseDouble(campos.get(columnaPuntaje));
+				double throughput = "thrpt".equals(campos.get(columnaModo)) ? 1
+						: 0;
+				puntajes.put(clave.toString(), new double[] { puntaje,
+						throughput });
+			}
+		} finally {
+			lector.close();
+		}
+		return puntajes;
+	}
+
+	private static List<String> separar(String linea) {
+		List<String> campos = new ArrayList<String>();
+		for (String campo : linea.split(",", -1)) {
+			campos.add(campo.replace("\"", "").trim());
+		}
+		return campos;
+	}
+}
@@ -0,0 +1,62 @@
+package com.blogspot.zomwi.chatbluetooth.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.blogspot.zomwi.chatbluetooth.protocolo.CompresionTramas;
+
+/**
+ * El costo de CPU de comprimir y descomprimir la carga de una trama con
+ * CompresionTramas, por longitud de mensaje.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompresionBenchmark {
+
+	@Param({ "32", "128", "1024" })
+	public int longitud;
+
+	private CompresionTramas emisor;
+	private CompresionTramas receptor;
+	private byte[] mensaje;
+	private byte[] comprimido;
+	private byte[] destino;
+
+	@Setup
+	public void preparar() {
+		emisor = new CompresionTramas(0);
+		receptor = new CompresionTramas(0);
+		mensaje = Datos.mensaje(longitud);
+		int bytes = emisor.comprimir(mensaje, 0, mensaje.length);
+		comprimido = new byte[bytes];
+		System.arraycopy(emisor.getSalida(), 0, comprimido, 0, bytes);
+		destino = new byte[longitud];
+	}
+
+	@Benchmark
+	public int comprimir() {
+		return emisor.comprimir(mensaje, 0, mensaje.length);
+	}
+
+	@Benchmark
+	public int descomprimir() throws IOException {
+		return receptor.descomprimir(comprimido, 0, comprimido.length,
+				destino);
+	}
+}
@@ -0,0 +1,113 @@
+package com.blogspot.zomwi.chatbluetooth.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.blogspot.zomwi.chatbluetooth.OyenteServicioChat;
+import com.blogspot.zomwi.chatbluetooth.ServicioChat;
+import com.blogspot.zomwi.chatbluetooth.conexion.BufferArrendado;
+import com.blogspot.zomwi.chatbluetooth.conexion.Envio;
+import com.blogspot.zomwi.chatbluetooth.conexion.PoliticaColaLlena;
+import com.blogspot.zomwi.chatbluetooth.transporte.TransporteMemoria;
+
+/**
+ * Un concentrador recibiendo de 1, 4 y 7 dispositivos por TransporteMemoria,
+ * leyendo con un hilo por conexion (lectores = 0) o con un solo
+ * LectorMultiplexado (lectores = 1). Los dispositivos escriben por turno con
+ * PoliticaColaLlena.BLOQUEAR, asi que el ritmo lo marca la lectura del
+ * concentrador.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConcentradorBenchmark {
+
+	@Param({ "1", "4", "7" })
+	public int dispositivos;
+
+	@Param({ "0", "1" })
+	public int lectores;
+
+	private ServicioChat concentrador;
+	private ServicioChat[] emisores;
+	private byte[] mensaje;
+	private int turno;
+
+	@Setup(Level.Trial)
+	public void conectar() throws InterruptedException {
+		TransporteMemoria.Red red = new TransporteMemoria.Red();
+		concentrador = new ServicioChat(new TransporteMemoria(red,
+				"concentrador"), new OyenteDescartar());
+		concentrador.setMaximoConexiones(ServicioChat.MAXIMO_PICONET);
+		concentrador.setLectoresMultiplexados(lectores);
+		concentrador.iniciar();
+		emisores = new ServicioChat[dispositivos];
+		for (int i = 0; i < dispositivos; i++) {
+			emisores[i] = new ServicioChat(new TransporteMemoria(red, "emisor"
+					+ i), new OyenteDescartar());
+			emisores[i].conectar("concentrador");
+		}
+		while (concentrador.getDireccionesConectadas().size() < dispositivos) {
+			Thread.sleep(5);
+		}
+		for (ServicioChat emisor : emisores) {
+			while (emisor.getEstado() != ServicioChat.ESTADO_CONECTADO) {
+				Thread.sleep(5);
+			}
+		}
+		mensaje = Datos.mensaje(64);
+	}
+
+	@TearDown(Level.Trial)
+	public void detener() {
+		for (ServicioChat emisor : emisores) {
+			emisor.cerrar(1000);
+		}
+		concentrador.cerrar(1000);
+	}
+
+	@Benchmark
+	public Envio recibir() {
+		ServicioChat emisor = emisores[turno];
+		turno = (turno + 1) % emisores.length;
+		return emisor.escribir(mensaje, PoliticaColaLlena.BLOQUEAR, null);
+	}
+
+	/**
+	 * Consume los eventos sin hacer nada, salvo devolver los buffers al pool
+	 */
+	private static class OyenteDescartar implements OyenteServicioChat {
+
+		public void estadoCambiado(int estado) {
+		}
+
+		public void mensajeLeido(BufferArrendado mensaje) {
+			mensaje.liberar();
+		}
+
+		public void mensajeEscrito(byte[] mensaje) {
+		}
+
+		public void dispositivoConectado(String nombre) {
+		}
+
+		public void aviso(String texto) {
+		}
+	}
+}
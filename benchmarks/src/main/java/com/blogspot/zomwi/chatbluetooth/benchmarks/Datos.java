@@ -0,0 +1,48 @@
+package com.blogspot.zomwi.chatbluetooth.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import com.blogspot.zomwi.chatbluetooth.protocolo.CodificadorTramas;
+import com.blogspot.zomwi.chatbluetooth.protocolo.Trama;
+
+/**
+ * Datos de prueba comunes a los benchmarks
+ */
+final class Datos {
+
+	private static final String TEXTO = "Hola, este es un mensaje de chat de prueba. ";
+
+	private Datos() {
+	}
+
+	/**
+	 * @param longitud
+	 *            La longitud en bytes
+	 * @return Un mensaje de texto ASCII de la longitud dada
+	 */
+	static byte[] mensaje(int longitud) {
+		byte[] mensaje = new byte[longitud];
+		for (int i = 0; i < longitud; i++) {
+			mensaje[i] = (byte) TEXTO.charAt(i % TEXTO.length());
+		}
+		return mensaje;
+	}
+
+	/**
+	 * @param cantidad
+	 *            La cantidad de tramas
+	 * @param longitud
+	 *            La longitud de la carga de cada trama
+	 * @return Los bytes de las tramas codificadas una detras de otra
+	 */
+	static byte[] tramas(int cantidad, int longitud) throws IOException {
+		ByteArrayOutputStream salida = new ByteArrayOutputStream();
+		CodificadorTramas codificador = new CodificadorTramas(salida);
+		byte[] mensaje = mensaje(longitud);
+		for (int i = 0; i < cantidad; i++) {
+			codificador.escribir(Trama.TIPO_MENSAJE, mensaje, 0, longitud);
+		}
+		return salida.toByteArray();
+	}
+}
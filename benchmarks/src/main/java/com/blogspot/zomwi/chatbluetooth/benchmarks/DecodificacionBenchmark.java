@@ -0,0 +1,50 @@
+package com.blogspot.zomwi.chatbluetooth.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Conversion de los bytes recibidos a la linea que muestra la conversacion,
+ * como en el caso MENSAJE_LOTE del controlador de PrincipalActivity.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DecodificacionBenchmark {
+
+	@Param({ "16", "128", "1024" })
+	public int longitud;
+
+	private byte[] buffer;
+	private String nombreDispositivo = "Telefono de prueba";
+
+	@Setup
+	public void preparar() {
+		buffer = Datos.mensaje(longitud);
+	}
+
+	@Benchmark
+	public String decodificar() {
+		return new String(buffer, 0, longitud);
+	}
+
+	@Benchmark
+	public String decodificarYFormatear() {
+		String mensajeLeer = new String(buffer, 0, longitud);
+		return nombreDispositivo + ":  " + mensajeLeer;
+	}
+}
@@ -0,0 +1,61 @@
+package com.blogspot.zomwi.chatbluetooth.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.blogspot.zomwi.chatbluetooth.conexion.HistogramaLatencia;
+
+/**
+ * HistogramaLatencia.registrar() desde un hilo y desde cuatro hilos que
+ * comparten el histograma, como las conexiones de un concentrador. Con -prof
+ * gc se comprueba que registrar no asigna memoria.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HistogramaBenchmark {
+
+	private final HistogramaLatencia histograma = new HistogramaLatencia();
+
+	/**
+	 * Tiempos variados entre 0 y unos 16 ms, propios de cada hilo
+	 */
+	@State(Scope.Thread)
+	public static class Tiempos {
+
+		long valor = System.identityHashCode(this) | 1;
+
+		long siguiente() {
+			long x = valor;
+			x ^= x << 13;
+			x ^= x >>> 7;
+			x ^= x << 17;
+			valor = x;
+			return x & 0xFFFFFF;
+		}
+	}
+
+	@Benchmark
+	public void registrar(Tiempos tiempos) {
+		histograma.registrar(tiempos.siguiente());
+	}
+
+	@Benchmark
+	@Threads(4)
+	public void registrarContencion(Tiempos tiempos) {
+		histograma.registrar(tiempos.siguiente());
+	}
+}
@@ -0,0 +1,126 @@
+package com.blogspot.zomwi.chatbluetooth.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.blogspot.zomwi.chatbluetooth.historial.HistorialMensajes;
+import com.blogspot.zomwi.chatbluetooth.historial.MensajeGuardado;
+
+/**
+ * HistorialMensajes: agregar un mensaje de 64 bytes, y leer los ultimos 100
+ * de un historial con 300.000 mensajes, con el historial ya abierto y
+ * abriendolo desde cero como al iniciar la aplicacion.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HistorialBenchmark {
+
+	private static final int MENSAJES_GUARDADOS = 300000;
+	private static final int ULTIMOS = 100;
+
+	/**
+	 * Un historial vacio por iteracion, para que no crezca sin limite
+	 */
+	@State(Scope.Thread)
+	public static class Escritura {
+
+		File directorio;
+		HistorialMensajes historial;
+		byte[] mensaje;
+
+		@Setup(Level.Iteration)
+		public void abrir() throws IOException {
+			directorio = crearDirectorio();
+			historial = new HistorialMensajes(directorio);
+			mensaje = Datos.mensaje(64);
+		}
+
+		@TearDown(Level.Iteration)
+		public void borrar() throws IOException {
+			historial.cerrar();
+			borrarDirectorio(directorio);
+		}
+	}
+
+	/**
+	 * Un historial con MENSAJES_GUARDADOS mensajes
+	 */
+	@State(Scope.Benchmark)
+	public static class Lleno {
+
+		File directorio;
+		HistorialMensajes historial;
+
+		@Setup(Level.Trial)
+		public void llenar() throws IOException {
+			directorio = crearDirectorio();
+			historial = new HistorialMensajes(directorio);
+			byte[] mensaje = Datos.mensaje(64);
+			for (int i = 0; i < MENSAJES_GUARDADOS; i++) {
+				historial.agregar(i, i % 2 == 0, "remitente", mensaje, 0,
+						mensaje.length);
+			}
+		}
+
+		@TearDown(Level.Trial)
+		public void borrar() throws IOException {
+			historial.cerrar();
+			borrarDirectorio(directorio);
+		}
+	}
+
+	@Benchmark
+	public long agregar(Escritura escritura) throws IOException {
+		return escritura.historial.agregar(0, false, "remitente",
+				escritura.mensaje, 0, escritura.mensaje.length);
+	}
+
+	@Benchmark
+	public MensajeGuardado[] leerUltimos(Lleno lleno) throws IOException {
+		return lleno.historial.leerUltimos(ULTIMOS);
+	}
+
+	@Benchmark
+	public MensajeGuardado[] abrirYLeerUltimos(Lleno lleno)
+			throws IOException {
+		HistorialMensajes historial = new HistorialMensajes(lleno.directorio);
+		try {
+			return historial.leerUltimos(ULTIMOS);
+		} finally {
+			historial.cerrar();
+		}
+	}
+
+	private static File crearDirectorio() throws IOException {
+		File directorio = File.createTempFile("historial", "");
+		directorio.delete();
+		return directorio;
+	}
+
+	private static void borrarDirectorio(File directorio) {
+		File[] archivos = directorio.listFiles();
+		if (archivos != null) {
+			for (File archivo : archivos) {
+				archivo.delete();
+			}
+		}
+		directorio.delete();
+	}
+}
@@ -0,0 +1,78 @@
+package com.blogspot.zomwi.chatbluetooth.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.blogspot.zomwi.chatbluetooth.conexion.BufferArrendado;
+import com.blogspot.zomwi.chatbluetooth.conexion.PoolBuffers;
+import com.blogspot.zomwi.chatbluetooth.protocolo.DecodificadorTramas;
+import com.blogspot.zomwi.chatbluetooth.protocolo.OyenteTramas;
+
+/**
+ * El ciclo de lectura de HiloConectado sobre un flujo en memoria: read(),
+ * reconstruccion de tramas, copia a un buffer del pool y liberacion por el
+ * consumidor. Cada operacion es un mensaje.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LecturaBenchmark {
+
+	private static final int MENSAJES = 1000;
+
+	@Param({ "16", "128", "1024" })
+	public int longitud;
+
+	private byte[] tramas;
+	private byte[] buffer;
+	private PoolBuffers pool;
+	private DecodificadorTramas decodificador;
+	private int recibidos;
+
+	@Setup
+	public void preparar() throws IOException {
+		tramas = Datos.tramas(MENSAJES, longitud);
+		buffer = new byte[4096];
+		pool = new PoolBuffers(32, 1024);
+		decodificador = new DecodificadorTramas(new OyenteTramas() {
+
+			public void tramaRecibida(int tipo, int banderas, int secuencia,
+					byte[] carga, int offset, int longitud) {
+				BufferArrendado mensaje = pool.arrendar(longitud);
+				mensaje.copiar(carga, offset, longitud);
+				recibidos++;
+				mensaje.liberar();
+			}
+		});
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(MENSAJES)
+	public int leer() throws IOException {
+		InputStream flujoEntrada = new ByteArrayInputStream(tramas);
+		int bytes;
+		recibidos = 0;
+		while ((bytes = flujoEntrada.read(buffer)) > 0) {
+			decodificador.alimentar(buffer, 0, bytes);
+		}
+		return recibidos;
+	}
+}
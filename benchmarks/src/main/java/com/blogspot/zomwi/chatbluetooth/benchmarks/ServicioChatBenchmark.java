@@ -0,0 +1,98 @@
+package com.blogspot.zomwi.chatbluetooth.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.blogspot.zomwi.chatbluetooth.OyenteServicioChat;
+import com.blogspot.zomwi.chatbluetooth.ServicioChat;
+import com.blogspot.zomwi.chatbluetooth.conexion.BufferArrendado;
+import com.blogspot.zomwi.chatbluetooth.conexion.Envio;
+import com.blogspot.zomwi.chatbluetooth.conexion.PoliticaColaLlena;
+import com.blogspot.zomwi.chatbluetooth.transporte.TransporteMemoria;
+
+/**
+ * ServicioChat.escribir() de punta a punta entre dos servicios conectados por
+ * TransporteMemoria: encolado, hilo escritor, socket, HiloConectado y oyente.
+ * Se mide con uno y con cuatro hilos escribiendo a la vez.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ServicioChatBenchmark {
+
+	private ServicioChat emisor;
+	private ServicioChat receptor;
+	private byte[] mensaje;
+
+	@Setup(Level.Trial)
+	public void conectar() throws InterruptedException {
+		TransporteMemoria.Red red = new TransporteMemoria.Red();
+		receptor = new ServicioChat(new TransporteMemoria(red, "receptor"),
+				new OyenteDescartar());
+		emisor = new ServicioChat(new TransporteMemoria(red, "emisor"),
+				new OyenteDescartar());
+		receptor.iniciar();
+		emisor.conectar("receptor");
+		while (emisor.getEstado() != ServicioChat.ESTADO_CONECTADO
+				|| receptor.getEstado() != ServicioChat.ESTADO_CONECTADO) {
+			Thread.sleep(5);
+		}
+		mensaje = Datos.mensaje(64);
+	}
+
+	@TearDown(Level.Trial)
+	public void detener() {
+		emisor.cerrar(1000);
+		receptor.cerrar(1000);
+	}
+
+	@Benchmark
+	@Threads(1)
+	public Envio escribir() {
+		return emisor.escribir(mensaje, PoliticaColaLlena.BLOQUEAR, null);
+	}
+
+	@Benchmark
+	@Threads(4)
+	public Envio escribirContencion() {
+		return emisor.escribir(mensaje, PoliticaColaLlena.BLOQUEAR, null);
+	}
+
+	/**
+	 * Consume los eventos sin hacer nada, salvo devolver los buffers al pool
+	 */
+	private static class OyenteDescartar implements OyenteServicioChat {
+
+		public void estadoCambiado(int estado) {
+		}
+
+		public void mensajeLeido(BufferArrendado mensaje) {
+			mensaje.liberar();
+		}
+
+		public void mensajeEscrito(byte[] mensaje) {
+		}
+
+		public void dispositivoConectado(String nombre) {
+		}
+
+		public void aviso(String texto) {
+		}
+	}
+}
@@ -22,7 +22,9 @@ public final class R {
         public static final int lista_conversacion=0x7f060005;
         public static final int lista_dispositivos_vinculados=0x7f060001;
         public static final int lista_nuevos_dispositivos=0x7f060003;
+        public static final int metricas=0x7f06000d;
         public static final int texto_dispositivos_vinculados=0x7f060000;
+        public static final int texto_metricas=0x7f06000c;
         public static final int texto_nuevos_dispositivos=0x7f060002;
         public static final int texto_titulo_derecha=0x7f060009;
         public static final int texto_titulo_izquierda=0x7f060008;
@@ -31,8 +33,9 @@ public final class R {
         public static final int lista_dispositivos=0x7f030000;
         public static final int main=0x7f030001;
         public static final int mensaje=0x7f030002;
-        public static final int nombre_dispositivo=0x7f030003;
-        public static final int titulo_personalizado=0x7f030004;
+        public static final int metricas=0x7f030003;
+        public static final int nombre_dispositivo=0x7f030004;
+        public static final int titulo_personalizado=0x7f030005;
     }
     public static final class menu {
         public static final int menu=0x7f050000;
@@ -52,12 +55,17 @@ public final class R {
         public static final int descubrible=0x7f04000e;
         public static final int dispositivos_vinculados=0x7f040006;
         public static final int enviar=0x7f04000c;
+        /**  Conversacion 
+         */
+        public static final int mensaje_no_enviado=0x7f04000f;
+        public static final int metricas=0x7f040010;
         public static final int no_conectado=0x7f040003;
         /**  PrincipalActivity 
          */
         public static final int no_conectado_dispositivo=0x7f040000;
         public static final int no_dispositivos=0x7f040009;
         public static final int otros_dispositivos=0x7f040007;
+        public static final int otros_dispositivos_por_senal=0x7f040011;
         public static final int seleccione_dispositivo=0x7f04000b;
     }
 }
@@ -0,0 +1,80 @@
+package com.blogspot.zomwi.chatbluetooth;
+
+import java.io.UnsupportedEncodingException;
+
+import com.blogspot.zomwi.chatbluetooth.historial.InstantaneaConversacion;
+import com.blogspot.zomwi.chatbluetooth.historial.MensajeGuardado;
+
+import android.content.Context;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.TextView;
+
+/**
+ * Adaptador de la lista de la conversacion sobre las instantaneas que publica
+ * el OyenteControlador. El texto de cada fila se decodifica y se arma solo
+ * cuando la fila se muestra.
+ *
+ * El modelo lo llena el hilo de trabajo del ServicioConexiones, y solo ese
+ * hilo toca el disco. La instantanea, y con ella la cantidad de filas, solo
+ * cambia en actualizar(), desde el hilo de la interfaz, como espera la
+ * ListView. Una fila que no esta en la instantanea se muestra vacia y se
+ * pide al hilo de trabajo, que avisa cuando la cargo.
+ */
+public class AdaptadorConversacion extends BaseAdapter {
+
+	private final LayoutInflater inflador;
+	private final OyenteControlador oyente;
+	private InstantaneaConversacion instantanea;
+
+	public AdaptadorConversacion(Context contexto, OyenteControlador oyente) {
+		inflador = LayoutInflater.from(contexto);
+		this.oyente = oyente;
+		instantanea = oyente.getInstantanea();
+	}
+
+	/**
+	 * Mostrar la ultima instantanea publicada. Se llama una vez por lote o
+	 * por pagina cargada
+	 */
+	public void actualizar() {
+		instantanea = oyente.getInstantanea();
+		notifyDataSetChanged();
+	}
+
+	public int getCount() {
+		return instantanea.getCantidad();
+	}
+
+	public Object getItem(int posicion) {
+		return instantanea.getMensaje(posicion);
+	}
+
+	public long getItemId(int posicion) {
+		return posicion;
+	}
+
+	public View getView(int posicion, View vista, ViewGroup padre) {
+		TextView texto = (TextView) vista;
+		if (texto == null) {
+			texto = (TextView) inflador.inflate(R.layout.mensaje, padre, false);
+		}
+		MensajeGuardado mensaje = instantanea.getMensaje(posicion);
+		if (mensaje == null) {
+			oyente.pedirFila(posicion);
+		}
+		texto.setText(mensaje != null ? formatear(mensaje) : "");
+		return texto;
+	}
+
+	private static String formatear(MensajeGuardado mensaje) {
+		String remitente = mensaje.enviado ? "Yo" : mensaje.remitente;
+		try {
+			return remitente + ":  " + new String(mensaje.texto, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			return remitente + ":  ";
+		}
+	}
+}
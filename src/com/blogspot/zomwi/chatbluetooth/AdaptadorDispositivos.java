@@ -0,0 +1,220 @@
+package com.blogspot.zomwi.chatbluetooth;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import com.blogspot.zomwi.chatbluetooth.dispositivos.Dispositivo;
+
+import android.content.Context;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.TextView;
+
+/**
+ * Adaptador de una lista de dispositivos. Cada fila es un Dispositivo, asi que
+ * quien recibe el clic obtiene la direccion con getItem() sin leer el texto de
+ * la fila. La lista se puede ordenar y filtrar por intensidad de senal o por
+ * antiguedad sin tocar los dispositivos.
+ */
+public class AdaptadorDispositivos extends BaseAdapter {
+
+	private static final long MINUTO = 60 * 1000;
+	private static final long HORA = 60 * MINUTO;
+	private static final long DIA = 24 * HORA;
+
+	private final LayoutInflater inflador;
+	// Todos los dispositivos y los que pasan el filtro, en orden
+	private final List<Dispositivo> todos = new ArrayList<Dispositivo>();
+	private final List<Dispositivo> visibles = new ArrayList<Dispositivo>();
+
+	private Comparator<Dispositivo> orden = Dispositivo.POR_RECIENTES;
+	private short rssiMinimo = Dispositivo.SIN_RSSI;
+	private long vistosDesde = 0;
+	// Lo que se muestra si no hay dispositivos, null para nada
+	private String vacio;
+
+	// Reutilizado al armar el texto de cada fila
+	private final StringBuilder texto = new StringBuilder(64);
+
+	public AdaptadorDispositivos(Context contexto) {
+		inflador = LayoutInflater.from(contexto);
+	}
+
+	/**
+	 * Reemplazar todos los dispositivos
+	 *
+	 * @param dispositivos
+	 *            Los dispositivos, en cualquier orden
+	 */
+	public void setDispositivos(List<Dispositivo> dispositivos) {
+		todos.clear();
+		todos.addAll(dispositivos);
+		aplicar();
+	}
+
+	/**
+	 * Agregar un dispositivo o reemplazar el que tiene su misma direccion
+	 *
+	 * @param dispositivo
+	 *            El dispositivo actualizado
+	 */
+	public void actualizar(Dispositivo dispositivo) {
+		int indice = indice(todos, dispositivo.getDireccion());
+		if (indice >= 0) {
+			todos.set(indice, dispositivo);
+		} else {
+			todos.add(dispositivo);
+		}
+		aplicar();
+	}
+
+	/**
+	 * Quitar un dispositivo
+	 *
+	 * @param direccion
+	 *            Su direccion MAC
+	 */
+	public void quitar(String direccion) {
+		int indice = indice(todos, direccion);
+		if (indice >= 0) {
+			todos.remove(indice);
+			aplicar();
+		}
+	}
+
+	/**
+	 * @param orden
+	 *            Como ordenar la lista, por ejemplo Dispositivo.POR_SENAL
+	 */
+	public void setOrden(Comparator<Dispositivo> orden) {
+		this.orden = orden;
+		aplicar();
+	}
+
+	public Comparator<Dispositivo> getOrden() {
+		return orden;
+	}
+
+	/**
+	 * Mostrar solo algunos dispositivos
+	 *
+	 * @param rssiMinimo
+	 *            La senal minima en dBm, Dispositivo.SIN_RSSI para todos
+	 * @param vistosDesde
+	 *            Solo los vistos desde este momento, 0 para todos
+	 */
+	public void filtrar(short rssiMinimo, long vistosDesde) {
+		this.rssiMinimo = rssiMinimo;
+		this.vistosDesde = vistosDesde;
+		aplicar();
+	}
+
+	/**
+	 * @param vacio
+	 *            El texto de la fila que se muestra cuando no hay
+	 *            dispositivos, null para no mostrar nada
+	 */
+	public void setVacio(String vacio) {
+		this.vacio = vacio;
+		notifyDataSetChanged();
+	}
+
+	/**
+	 * @return La cantidad de dispositivos mostrados
+	 */
+	public int getCantidad() {
+		return visibles.size();
+	}
+
+	private void aplicar() {
+		visibles.clear();
+		for (int i = 0; i < todos.size(); i++) {
+			Dispositivo dispositivo = todos.get(i);
+			if (dispositivo.getRssi() >= rssiMinimo
+					&& dispositivo.getUltimaVez() >= vistosDesde) {
+				visibles.add(dispositivo);
+			}
+		}
+		Collections.sort(visibles, orden);
+		notifyDataSetChanged();
+	}
+
+	private static int indice(List<Dispositivo> lista, String direccion) {
+		for (int i = 0; i < lista.size(); i++) {
+			if (lista.get(i).getDireccion().equals(direccion)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	public int getCount() {
+		if (visibles.isEmpty() && vacio != null) {
+			return 1;
+		}
+		return visibles.size();
+	}
+
+	/**
+	 * @return El Dispositivo de la fila, null en la fila de lista vacia
+	 */
+	public Object getItem(int posicion) {
+		return posicion < visibles.size() ? visibles.get(posicion) : null;
+	}
+
+	public long getItemId(int posicion) {
+		return posicion;
+	}
+
+	@Override
+	public boolean areAllItemsEnabled() {
+		return false;
+	}
+
+	@Override
+	public boolean isEnabled(int posicion) {
+		return posicion < visibles.size();
+	}
+
+	public View getView(int posicion, View vista, ViewGroup padre) {
+		TextView fila = (TextView) vista;
+		if (fila == null) {
+			fila = (TextView) inflador.inflate(R.layout.nombre_dispositivo,
+					padre, false);
+		}
+		if (posicion < visibles.size()) {
+			formatear(visibles.get(posicion), System.currentTimeMillis());
+			fila.setText(texto);
+		} else {
+			fila.setText(vacio);
+		}
+		return fila;
+	}
+
+	private void formatear(Dispositivo dispositivo, long ahora) {
+		texto.setLength(0);
+		String nombre = dispositivo.getNombre();
+		texto.append(nombre != null ? nombre : dispositivo.getDireccion());
+		texto.append('\n').append(dispositivo.getDireccion());
+		if (dispositivo.getRssi() != Dispositivo.SIN_RSSI) {
+			texto.append("   ").append(dispositivo.getRssi()).append(" dBm");
+		}
+		if (dispositivo.getUltimaVez() > 0) {
+			long antiguedad = Math.max(ahora - dispositivo.getUltimaVez(), 0);
+			texto.append("   ");
+			if (antiguedad < MINUTO) {
+				texto.append("ahora");
+			} else if (antiguedad < HORA) {
+				texto.append("hace ").append(antiguedad / MINUTO).append(" min");
+			} else if (antiguedad < DIA) {
+				texto.append("hace ").append(antiguedad / HORA).append(" h");
+			} else {
+				texto.append("hace ").append(antiguedad / DIA).append(" d");
+			}
+		}
+	}
+}
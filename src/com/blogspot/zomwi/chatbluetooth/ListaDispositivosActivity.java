@@ -1,6 +1,11 @@
 package com.blogspot.zomwi.chatbluetooth;
 
-import java.util.Set;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import android.app.Activity;
 import android.bluetooth.BluetoothAdapter;
@@ -15,26 +20,39 @@ import android.view.View.OnClickListener;
 import android.view.Window;
 import android.widget.AdapterView;
 import android.widget.AdapterView.OnItemClickListener;
-import android.widget.ArrayAdapter;
 import android.widget.Button;
 import android.widget.ListView;
 import android.widget.TextView;
 
+import com.blogspot.zomwi.chatbluetooth.dispositivos.Dispositivo;
+import com.blogspot.zomwi.chatbluetooth.dispositivos.RegistroDispositivos;
+
 /**
  * Esta Activity se presenta como un cuadro de dialogo. En ella se muestan todos
  * los dispositivos vinculados y los dispositivos detectados en area despues del
  * descubrimiento. Cuando un dispositivo es elegido por el usuario, la direccion
  * MAC del dispositivo se envia de vuelta a la PrincipalActivity
+ *
+ * Los dispositivos vistos en busquedas anteriores se muestran al abrir, desde
+ * el RegistroDispositivos, mientras una busqueda nueva los actualiza.
  */
 public class ListaDispositivosActivity extends Activity {
 
 	// Retorna un extra del Intent
 	public static String EXTRA_DIRECCION_DISPOSITIVO = "direccion_dispositivo";
 
+	// Los dispositivos que se guardan entre aperturas
+	private static final int DISPOSITIVOS_GUARDADOS = 64;
+
+	// Compartido entre aperturas para no volver a leer el archivo
+	private static RegistroDispositivos registro;
+
 	// Campos miembro
 	private BluetoothAdapter bluetoothAdapter;
-	private ArrayAdapter<String> dispositivosVinculadosArrayAdapter;
-	private ArrayAdapter<String> nuevosDispositivosArrayAdapter;
+	private AdaptadorDispositivos dispositivosVinculadosAdaptador;
+	private AdaptadorDispositivos nuevosDispositivosAdaptador;
+	// Cuando empezo la ultima busqueda, de System.currentTimeMillis()
+	private long inicioBusqueda;
 
 	@Override
 	protected void onCreate(Bundle savedInstanceState) {
@@ -58,26 +76,36 @@ public class ListaDispositivosActivity extends Activity {
 			}
 		});
 
-		// Iniciar los ArrayAdapter's de las ListView's. Uno para los
+		// Iniciar los adaptadores de las ListView's. Uno para los
 		// dispositivos vinculados y otro para los dispositivos descubiertos.
-		dispositivosVinculadosArrayAdapter = new ArrayAdapter<String>(this,
-				R.layout.nombre_dispositivo);
-		nuevosDispositivosArrayAdapter = new ArrayAdapter<String>(this,
-				R.layout.nombre_dispositivo);
+		dispositivosVinculadosAdaptador = new AdaptadorDispositivos(this);
+		dispositivosVinculadosAdaptador.setVacio(getResources().getText(
+				R.string.no_dispositivos).toString());
+		nuevosDispositivosAdaptador = new AdaptadorDispositivos(this);
 
 		// Buscar y configurar el ListView de dispositivos vinculados
 		ListView listaDispositivosVinculados = (ListView) findViewById(R.id.lista_dispositivos_vinculados);
 		listaDispositivosVinculados
-				.setAdapter(dispositivosVinculadosArrayAdapter);
+				.setAdapter(dispositivosVinculadosAdaptador);
 		listaDispositivosVinculados
 				.setOnItemClickListener(dispositivosClickListener);
 
 		// Buscar y configurar el ListView de los nuevos dispositivos
 		ListView listaNuevosDispositivos = (ListView) findViewById(R.id.lista_nuevos_dispositivos);
-		listaNuevosDispositivos.setAdapter(nuevosDispositivosArrayAdapter);
+		listaNuevosDispositivos.setAdapter(nuevosDispositivosAdaptador);
 		listaNuevosDispositivos
 				.setOnItemClickListener(dispositivosClickListener);
 
+		// Tocar el titulo alterna entre los mas recientes primero y los de
+		// mejor senal en esta busqueda primero
+		findViewById(R.id.texto_nuevos_dispositivos).setOnClickListener(
+				new OnClickListener() {
+
+					public void onClick(View view) {
+						alternarOrden((TextView) view);
+					}
+				});
+
 		// Registrar transmiciones cuando un dispositivo se encuentra
 		IntentFilter filter = new IntentFilter(BluetoothDevice.ACTION_FOUND);
 		this.registerReceiver(receptor, filter);
@@ -89,22 +117,89 @@ public class ListaDispositivosActivity extends Activity {
 		// Obtener el local BluetoothAdapter
 		bluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
 
-		// Obtener un conjunto de dispositivos vinculados en ese momento
-		Set<BluetoothDevice> dispositivosVinculados = bluetoothAdapter
-				.getBondedDevices();
+		// Actualizar los vinculados del registro con los que el sistema tiene
+		// vinculados en ese momento
+		Map<String, String> vinculados = new HashMap<String, String>();
+		for (BluetoothDevice dispositivo : bluetoothAdapter.getBondedDevices()) {
+			vinculados.put(dispositivo.getAddress(), dispositivo.getName());
+		}
+		obtenerRegistro().vinculados(vinculados);
+
+		// Mostrar lo que ya se conoce y buscar en segundo plano
+		mostrarDispositivos();
+		descubrirDispositivos();
+		botonBuscar.setVisibility(View.GONE);
+	}
+
+	/**
+	 * @return El registro de dispositivos, se carga la primera vez
+	 */
+	private RegistroDispositivos obtenerRegistro() {
+		if (registro == null) {
+			registro = new RegistroDispositivos(new File(getFilesDir(),
+					"dispositivos"), DISPOSITIVOS_GUARDADOS);
+		}
+		return registro;
+	}
+
+	/**
+	 * Llenar las listas con los dispositivos del registro, los vinculados en
+	 * una y los demas en otra
+	 */
+	private void mostrarDispositivos() {
+		List<Dispositivo> vinculados = new ArrayList<Dispositivo>();
+		List<Dispositivo> otros = new ArrayList<Dispositivo>();
+		for (Dispositivo dispositivo : registro.getDispositivos()) {
+			if (dispositivo.isVinculado()) {
+				vinculados.add(dispositivo);
+			} else {
+				otros.add(dispositivo);
+			}
+		}
+		dispositivosVinculadosAdaptador.setDispositivos(vinculados);
+		nuevosDispositivosAdaptador.setDispositivos(otros);
 
-		// Si hay dispositivos vinculados, adicionamos cada uno al ArrayAdapter
-		if (dispositivosVinculados.size() > 0) {
+		if (!vinculados.isEmpty()) {
 			findViewById(R.id.texto_dispositivos_vinculados).setVisibility(
 					View.VISIBLE);
-			for (BluetoothDevice dispositivo : dispositivosVinculados) {
-				dispositivosVinculadosArrayAdapter.add(dispositivo.getName()
-						+ "\n" + dispositivo.getAddress());
-			}
+		}
+		if (!otros.isEmpty()) {
+			findViewById(R.id.texto_nuevos_dispositivos).setVisibility(
+					View.VISIBLE);
+		}
+	}
+
+	/**
+	 * Alternar el orden de los otros dispositivos. Por senal solo se muestran
+	 * los vistos en la ultima busqueda, la senal de los demas ya no vale
+	 *
+	 * @param titulo
+	 *            El titulo de la lista, muestra el orden
+	 */
+	private void alternarOrden(TextView titulo) {
+		if (nuevosDispositivosAdaptador.getOrden() == Dispositivo.POR_SENAL) {
+			nuevosDispositivosAdaptador.filtrar(Dispositivo.SIN_RSSI, 0);
+			nuevosDispositivosAdaptador.setOrden(Dispositivo.POR_RECIENTES);
+			titulo.setText(R.string.otros_dispositivos);
 		} else {
-			String noDispositivos = getResources().getText(
-					R.string.no_dispositivos).toString();
-			dispositivosVinculadosArrayAdapter.add(noDispositivos);
+			nuevosDispositivosAdaptador.filtrar(Dispositivo.SIN_RSSI,
+					inicioBusqueda);
+			nuevosDispositivosAdaptador.setOrden(Dispositivo.POR_SENAL);
+			titulo.setText(R.string.otros_dispositivos_por_senal);
+		}
+	}
+
+	/**
+	 * @return El estado de vinculacion del registro para uno de BluetoothDevice
+	 */
+	private static int vinculo(int estado) {
+		switch (estado) {
+		case BluetoothDevice.BOND_BONDED:
+			return Dispositivo.VINCULADO;
+		case BluetoothDevice.BOND_BONDING:
+			return Dispositivo.VINCULANDO;
+		default:
+			return Dispositivo.SIN_VINCULO;
 		}
 	}
 
@@ -117,6 +212,12 @@ public class ListaDispositivosActivity extends Activity {
 		}
 		// Cancelar el registro de los oyentes de las transmisiones
 		this.unregisterReceiver(receptor);
+		// Guardar los dispositivos vistos para la proxima vez
+		try {
+			registro.guardar();
+		} catch (IOException e) {
+			// Solo se pierde la cache, la proxima busqueda la rehace
+		}
 	}
 
 	/**
@@ -124,6 +225,8 @@ public class ListaDispositivosActivity extends Activity {
 	 */
 	private void descubrirDispositivos() {
 		// Indicar la exploracion en el titulo
+		inicioBusqueda = System.currentTimeMillis();
+		nuevosDispositivosAdaptador.setVacio(null);
 		setProgressBarIndeterminateVisibility(true);
 		setTitle(R.string.buscando);
 
@@ -143,20 +246,23 @@ public class ListaDispositivosActivity extends Activity {
 	// El oyente de todos los eventos clic sobre una ListView
 	private OnItemClickListener dispositivosClickListener = new OnItemClickListener() {
 
-		public void onItemClick(AdapterView<?> av, View view, int arg2,
-				long arg3) {
+		public void onItemClick(AdapterView<?> av, View view, int posicion,
+				long id) {
+			// La fila de lista vacia no tiene dispositivo
+			Dispositivo dispositivo = (Dispositivo) av
+					.getItemAtPosition(posicion);
+			if (dispositivo == null) {
+				return;
+			}
+
 			// Cancelar el descubrimiento porque es costoso y ademas estamos a
 			// punto de conectar
 			bluetoothAdapter.cancelDiscovery();
 
-			// Obtenemos la direccion MAC del dispositivo, el cual es lso
-			// ultimos 17 caracteres en la View
-			String informacion = ((TextView) view).getText().toString();
-			String direccion = informacion.substring(informacion.length() - 17);
-
 			// Crear un Intent resultado y incluir la direccion MAC
 			Intent intent = new Intent();
-			intent.putExtra(EXTRA_DIRECCION_DISPOSITIVO, direccion);
+			intent.putExtra(EXTRA_DIRECCION_DISPOSITIVO, dispositivo
+					.getDireccion());
 
 			// Colocar el resultado y finalizar esta Activity
 			setResult(Activity.RESULT_OK, intent);
@@ -177,10 +283,23 @@ public class ListaDispositivosActivity extends Activity {
 				// Obtener el objeto BluetoothDevice del Intent
 				BluetoothDevice dispositivo = intent
 						.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
-				// Si ya esta vinculado, saltar, porque ya se ha listado
-				if (dispositivo.getBondState() != BluetoothDevice.BOND_BONDED) {
-					nuevosDispositivosArrayAdapter.add(dispositivo.getName()
-							+ "\n" + dispositivo.getAddress());
+				short rssi = intent.getShortExtra(BluetoothDevice.EXTRA_RSSI,
+						Dispositivo.SIN_RSSI);
+				// Combinarlo con lo que ya se sabia; un dispositivo se anuncia
+				// varias veces en una busqueda pero solo ocupa una fila
+				Dispositivo anterior = registro.getDispositivo(dispositivo
+						.getAddress());
+				Dispositivo actual = registro.visto(dispositivo.getAddress(),
+						dispositivo.getName(), rssi, vinculo(dispositivo
+								.getBondState()), System.currentTimeMillis());
+				if (anterior != null
+						&& anterior.isVinculado() != actual.isVinculado()) {
+					// Cambia de lista
+					mostrarDispositivos();
+				} else if (actual.isVinculado()) {
+					dispositivosVinculadosAdaptador.actualizar(actual);
+				} else {
+					nuevosDispositivosAdaptador.actualizar(actual);
 				}
 			} else {
 				// Cuando el descubrimiento se halla terminado, cambiar el
@@ -188,11 +307,10 @@ public class ListaDispositivosActivity extends Activity {
 				if (BluetoothAdapter.ACTION_DISCOVERY_FINISHED.equals(accion)) {
 					setProgressBarIndeterminateVisibility(false);
 					setTitle(R.string.seleccione_dispositivo);
-					if (nuevosDispositivosArrayAdapter.getCount() == 0) {
-						String noDispositivos = getResources().getText(
-								R.string.no_dispositivos).toString();
-						dispositivosVinculadosArrayAdapter.add(noDispositivos);
-					}
+					nuevosDispositivosAdaptador.setVacio(getResources()
+							.getText(R.string.no_dispositivos).toString());
+					// Permitir buscar otra vez
+					findViewById(R.id.boton_buscar).setVisibility(View.VISIBLE);
 				}
 			}
 		}
@@ -0,0 +1,277 @@
+package com.blogspot.zomwi.chatbluetooth;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.blogspot.zomwi.chatbluetooth.conexion.AgrupadorEntregas;
+import com.blogspot.zomwi.chatbluetooth.conexion.BufferArrendado;
+import com.blogspot.zomwi.chatbluetooth.historial.InstantaneaConversacion;
+import com.blogspot.zomwi.chatbluetooth.historial.ModeloConversacion;
+import com.blogspot.zomwi.chatbluetooth.transferencia.OyenteTransferencia;
+import com.blogspot.zomwi.chatbluetooth.transferencia.Transferencia;
+
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+
+/**
+ * Recibe los eventos de ServicioChat dentro del ServicioConexiones y los pasa
+ * al Handler de la PrincipalActivity como los mensajes MENSAJE_* de siempre,
+ * si hay una actividad enlazada.
+ *
+ * Los mensajes leidos y escritos no dependen de la actividad: se juntan en un
+ * AgrupadorEntregas y una vez por intervalo el hilo de trabajo del servicio
+ * agrega el lote al ModeloConversacion, y al historial, y solo despues avisa a
+ * la actividad con un MENSAJE_LOTE para que actualice la lista.
+ *
+ * La actividad nunca toca el modelo, que lee y escribe en disco: despues de
+ * cada cambio el hilo de trabajo publica una InstantaneaConversacion, y las
+ * filas que no estan en ella se piden con pedirFila().
+ *
+ * Las transferencias de archivos terminadas o fallidas se avisan con un
+ * MENSAJE_TOAST; el avance no se muestra.
+ */
+public class OyenteControlador implements OyenteServicioChat,
+		OyenteTransferencia {
+
+	// Un cuadro de la pantalla a 60 Hz, en milisegundos
+	public static final int INTERVALO_PREDETERMINADO = 16;
+
+	// Mensajes del hilo de trabajo
+	private static final int GUARDAR_LOTE = 1;
+	private static final int CARGAR_FILA = 2;
+
+	private final int intervalo;
+	private final AgrupadorEntregas<Object> agrupador = new AgrupadorEntregas<Object>();
+	// Usados solo en el hilo de trabajo
+	private final List<Object> lote = new ArrayList<Object>();
+	private ModeloConversacion modelo;
+	private final Handler trabajo;
+	// Lo que muestra la actividad, publicado por el hilo de trabajo
+	private volatile InstantaneaConversacion instantanea = InstantaneaConversacion.VACIA;
+
+	// El controlador de la actividad enlazada, null si no hay
+	private volatile Handler controlador;
+	// Lo ultimo que paso, para la actividad que se enlace despues
+	private volatile int estado = ServicioChat.ESTADO_NINGUNO;
+	private volatile String nombreConectado;
+
+	/**
+	 * @param hiloTrabajo
+	 *            El looper del hilo en el que se agregan
+	 */
+	public OyenteControlador(Looper hiloTrabajo) {
+		this(hiloTrabajo, INTERVALO_PREDETERMINADO);
+	}
+
+	/**
+	 * @param hiloTrabajo
+	 *            El looper del hilo en el que se agregan
+	 * @param intervalo
+	 *            Cuanto se espera desde el primer mensaje de un lote hasta
+	 *            guardarlo, en milisegundos. Con 0 se guarda en la proxima
+	 *            vuelta del looper
+	 */
+	public OyenteControlador(Looper hiloTrabajo, int intervalo) {
+		this.intervalo = intervalo;
+		trabajo = new Handler(hiloTrabajo) {
+
+			@Override
+			public void handleMessage(Message mensaje) {
+				switch (mensaje.what) {
+				case GUARDAR_LOTE:
+					guardarLote();
+					break;
+				case CARGAR_FILA:
+					if (modelo.cargarAlrededor(mensaje.arg1)) {
+						publicar();
+					}
+					break;
+				}
+			}
+		};
+	}
+
+	/**
+	 * Empezar a guardar en el modelo. Se llama en el hilo de trabajo antes de
+	 * que lleguen mensajes
+	 *
+	 * @param modelo
+	 *            Donde se agregan los mensajes leidos y escritos
+	 */
+	public void setModelo(ModeloConversacion modelo) {
+		this.modelo = modelo;
+		publicar();
+	}
+
+	/**
+	 * @return Lo ultimo publicado de la conversacion, se puede leer desde
+	 *         cualquier hilo
+	 */
+	public InstantaneaConversacion getInstantanea() {
+		return instantanea;
+	}
+
+	/**
+	 * Pedir que se carguen los mensajes alrededor de una fila que no esta en
+	 * la instantanea. Cuando esten se avisa con un MENSAJE_LOTE. Solo cuenta
+	 * el ultimo pedido
+	 *
+	 * @param posicion
+	 *            La fila, 0 es el mensaje mas viejo
+	 */
+	public void pedirFila(int posicion) {
+		trabajo.removeMessages(CARGAR_FILA);
+		trabajo.obtainMessage(CARGAR_FILA, posicion, 0).sendToTarget();
+	}
+
+	/**
+	 * Cambiar la actividad a la que se pasan los eventos. La nueva recibe de
+	 * inmediato el estado actual
+	 *
+	 * @param controlador
+	 *            Un controlador para enviar mensajes de regreso a la actividad
+	 *            de la interfaz de usuario, null cuando no hay ninguna
+	 */
+	public void setControlador(Handler controlador) {
+		this.controlador = controlador;
+		if (controlador != null) {
+			controlador.obtainMessage(PrincipalActivity.MENSAJE_CAMBIO_ESTADO,
+					estado, -1).sendToTarget();
+		}
+	}
+
+	/**
+	 * @return El agrupador de los lotes y sus metricas
+	 */
+	public AgrupadorEntregas<Object> getAgrupador() {
+		return agrupador;
+	}
+
+	/**
+	 * @return El ultimo estado del ServicioChat
+	 */
+	public int getEstado() {
+		return estado;
+	}
+
+	/**
+	 * @return El nombre del ultimo dispositivo conectado, null si ninguno
+	 */
+	public String getNombreConectado() {
+		return nombreConectado;
+	}
+
+	public void estadoCambiado(int estado) {
+		this.estado = estado;
+		Handler actual = controlador;
+		if (actual != null) {
+			actual.obtainMessage(PrincipalActivity.MENSAJE_CAMBIO_ESTADO,
+					estado, -1).sendToTarget();
+		}
+	}
+
+	public void mensajeLeido(BufferArrendado mensaje) {
+		entregar(mensaje);
+	}
+
+	public void mensajeEscrito(byte[] mensaje) {
+		entregar(mensaje);
+	}
+
+	private void entregar(Object elemento) {
+		// Solo el primero del lote programa el guardado
+		if (agrupador.agregar(elemento)) {
+			trabajo.sendEmptyMessageDelayed(GUARDAR_LOTE, intervalo);
+		}
+	}
+
+	/**
+	 * Guardar ya el lote que esperaba su intervalo, sin esperar al looper. Se
+	 * llama en el hilo de trabajo al cerrar, despues de detener el
+	 * ServicioChat y antes de cerrar el historial, porque al terminar el
+	 * looper se pierden los mensajes que tenia programados
+	 */
+	public void guardarPendientes() {
+		trabajo.removeMessages(GUARDAR_LOTE);
+		trabajo.removeMessages(CARGAR_FILA);
+		guardarLote();
+	}
+
+	/**
+	 * Agregar a la conversacion todos los mensajes leidos y escritos desde el
+	 * ultimo lote y avisar a la actividad una sola vez
+	 */
+	private void guardarLote() {
+		agrupador.tomar(lote);
+		for (Object elemento : lote) {
+			if (elemento instanceof BufferArrendado) {
+				BufferArrendado leerBuffer = (BufferArrendado) elemento;
+				// Copiar los bytes validos a la conversacion y devolver el
+				// buffer
+				modelo.agregar(false, leerBuffer.remitente, leerBuffer.datos,
+						0, leerBuffer.longitud);
+				leerBuffer.liberar();
+			} else {
+				byte[] escribirBuffer = (byte[]) elemento;
+				modelo.agregar(true, null, escribirBuffer, 0,
+						escribirBuffer.length);
+			}
+		}
+		lote.clear();
+		publicar();
+	}
+
+	/**
+	 * Publicar una instantanea nueva del modelo y avisar a la actividad
+	 */
+	private void publicar() {
+		instantanea = modelo.crearInstantanea();
+		Handler actual = controlador;
+		if (actual != null) {
+			actual.sendEmptyMessage(PrincipalActivity.MENSAJE_LOTE);
+		}
+	}
+
+	public void dispositivoConectado(String nombre) {
+		nombreConectado = nombre;
+		Handler actual = controlador;
+		if (actual == null) {
+			return;
+		}
+		Message mensaje = actual
+				.obtainMessage(PrincipalActivity.MENSAJE_NOMBRE_DISPOSITIVO);
+		Bundle bundle = new Bundle();
+		bundle.putString(PrincipalActivity.NOMBRE_DISPOSITIVO, nombre);
+		mensaje.setData(bundle);
+		actual.sendMessage(mensaje);
+	}
+
+	public void aviso(String texto) {
+		Handler actual = controlador;
+		if (actual == null) {
+			return;
+		}
+		Message mensaje = actual.obtainMessage(PrincipalActivity.MENSAJE_TOAST);
+		Bundle bundle = new Bundle();
+		bundle.putString(PrincipalActivity.TOAST, texto);
+		mensaje.setData(bundle);
+		actual.sendMessage(mensaje);
+	}
+
+	public void progreso(Transferencia transferencia) {
+	}
+
+	public void transferenciaCompletada(Transferencia transferencia) {
+		aviso((transferencia.enviada ? "Archivo enviado: "
+				: "Archivo recibido: ") + transferencia.nombre);
+	}
+
+	public void transferenciaFallida(Transferencia transferencia,
+			IOException causa) {
+		aviso("Fallo la transferencia de " + transferencia.nombre + ": "
+				+ causa.getMessage());
+	}
+}
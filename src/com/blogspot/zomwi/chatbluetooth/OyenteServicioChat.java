@@ -0,0 +1,46 @@
+package com.blogspot.zomwi.chatbluetooth;
+
+import com.blogspot.zomwi.chatbluetooth.conexion.BufferArrendado;
+
+/**
+ * Recibe los eventos de ServicioChat. Los metodos se llaman desde los hilos de
+ * conexion, asi que una implementacion para la interfaz grafica debe pasarlos
+ * a su hilo, como hace OyenteControlador.
+ */
+public interface OyenteServicioChat {
+
+	/**
+	 * @param estado
+	 *            El nuevo estado, uno de ServicioChat.ESTADO_*
+	 */
+	void estadoCambiado(int estado);
+
+	/**
+	 * Se recibio un mensaje completo. El oyente debe liberar el buffer cuando
+	 * termine de usarlo
+	 * 
+	 * @param mensaje
+	 *            Los bytes del mensaje
+	 */
+	void mensajeLeido(BufferArrendado mensaje);
+
+	/**
+	 * Un mensaje propio se escribio en la conexion
+	 * 
+	 * @param mensaje
+	 *            Los bytes del mensaje
+	 */
+	void mensajeEscrito(byte[] mensaje);
+
+	/**
+	 * @param nombre
+	 *            El nombre del dispositivo con el que se establecio la conexion
+	 */
+	void dispositivoConectado(String nombre);
+
+	/**
+	 * @param texto
+	 *            Un aviso para mostrar al usuario
+	 */
+	void aviso(String texto);
+}
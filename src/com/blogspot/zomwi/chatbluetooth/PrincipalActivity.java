@@ -1,11 +1,23 @@
 package com.blogspot.zomwi.chatbluetooth;
 
+import com.blogspot.zomwi.chatbluetooth.conexion.Envio;
+import com.blogspot.zomwi.chatbluetooth.conexion.HistogramaLatencia;
+import com.blogspot.zomwi.chatbluetooth.conexion.InstantaneaConexion;
+import com.blogspot.zomwi.chatbluetooth.conexion.InstantaneaMetricas;
+import com.blogspot.zomwi.chatbluetooth.transporte.TransporteRfcomm;
+
 import android.app.Activity;
+import android.app.AlertDialog;
+import android.app.Dialog;
 import android.bluetooth.BluetoothAdapter;
-import android.bluetooth.BluetoothDevice;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.DialogInterface;
 import android.content.Intent;
+import android.content.ServiceConnection;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.IBinder;
 import android.os.Message;
 import android.view.KeyEvent;
 import android.view.Menu;
@@ -15,7 +27,6 @@ import android.view.View;
 import android.view.View.OnClickListener;
 import android.view.Window;
 import android.view.inputmethod.EditorInfo;
-import android.widget.ArrayAdapter;
 import android.widget.Button;
 import android.widget.EditText;
 import android.widget.ListView;
@@ -26,8 +37,7 @@ public class PrincipalActivity extends Activity {
 
 	// Tipos de mensajes enviados desde el controlador ServicioChat
 	public static final int MENSAJE_CAMBIO_ESTADO = 1;
-	public static final int MENSAJE_LEER = 2;
-	public static final int MENSAJE_ESCRIBIR = 3;
+	public static final int MENSAJE_LOTE = 2;
 	public static final int MENSAJE_NOMBRE_DISPOSITIVO = 4;
 	public static final int MENSAJE_TOAST = 5;
 
@@ -39,6 +49,10 @@ public class PrincipalActivity extends Activity {
 	private static final int PETICION_CONECTAR_DISPOSITIVO = 1;
 	private static final int PETICION_HABILITAR_BLUETOOTH = 2;
 
+	// Dialogo de depuracion con las metricas de las conexiones
+	private static final int DIALOGO_METRICAS = 1;
+	private static final long PERIODO_METRICAS = 1000;
+
 	// Controles
 	private TextView textoTitulo;
 	private ListView listaConversacion;
@@ -47,14 +61,24 @@ public class PrincipalActivity extends Activity {
 
 	// Nombre del dispositivo conectado
 	private String nombreDispositivoConectado = null;
-	// ArrayAdapter para el hilo de la conversacion
-	private ArrayAdapter<String> conversacionArrayAdapter;
+	// Adaptador para el hilo de la conversacion
+	private AdaptadorConversacion conversacionAdaptador;
 	// StringBuffer para los mensajes salientes
 	private StringBuffer stringBuffer;
 	// BluetoothAdapter local
 	private BluetoothAdapter bluetoothAdapter = null;
-	// Objeto ServivioChat
+	// El servicio que mantiene las conexiones, null si no estamos enlazados
+	private ServicioConexiones servicio = null;
+	// Objeto ServivioChat del servicio
 	private ServicioChat servicioChat = null;
+	// Por donde conecta el ServicioChat
+	private TransporteRfcomm transporte = null;
+	// Si se pidio enlazar con el servicio
+	private boolean enlazando = false;
+	// Dispositivo elegido antes de enlazarnos, se conecta al enlazar
+	private String direccionPendiente = null;
+	// Texto del dialogo de metricas
+	private TextView textoMetricas;
 
 	@Override
 	public void onCreate(Bundle savedInstanceState) {
@@ -94,35 +118,54 @@ public class PrincipalActivity extends Activity {
 			Intent intent = new Intent(BluetoothAdapter.ACTION_REQUEST_ENABLE);
 			startActivityForResult(intent, PETICION_HABILITAR_BLUETOOTH);
 		} else {
-			// En otro caso, configuramos una sesion de chat
-			if (servicioChat == null) {
-				configurarChat();
-			}
+			// En otro caso, nos enlazamos con el servicio de conexiones
+			enlazarServicio();
 		}
 	}
 
 	@Override
 	public synchronized void onResume() {
 		super.onResume();
-		// La razon de esta verificacion en onResume() se debe al caso en
-		// el que el Bluetooth no se activa durante el onStart(), porque se hizo
-		// una pausa, para permitir que onResume() llame de nuevo al
-		// ACTION_REQUEST_ENABLE
-		if (servicioChat != null) {
-			// Solo si el estado ESTADO_NINGUNO, sabemos que no hemos empezado
-			if (servicioChat.getEstado() == ServicioChat.ESTADO_NINGUNO) {
-				// Iniciamos el ServicioChat
-				servicioChat.iniciar();
-			}
+	}
+
+	/**
+	 * Arrancar el ServicioConexiones, si no estaba corriendo, y enlazarnos con
+	 * el. configurarChat() sera llamado cuando se conecte
+	 */
+	private void enlazarServicio() {
+		if (enlazando) {
+			return;
 		}
+		Intent intent = new Intent(this, ServicioConexiones.class);
+		// Arrancado, y no solo enlazado, para que siga vivo sin la actividad
+		startService(intent);
+		enlazando = bindService(intent, conexionServicio,
+				Context.BIND_AUTO_CREATE);
 	}
 
+	// Recibe el servicio cuando termina de enlazarse
+	private final ServiceConnection conexionServicio = new ServiceConnection() {
+
+		public void onServiceConnected(ComponentName nombre, IBinder enlace) {
+			servicio = ((ServicioConexiones.Enlace) enlace).getServicio();
+			configurarChat();
+		}
+
+		public void onServiceDisconnected(ComponentName nombre) {
+			// El proceso del servicio murio, bindService lo volvera a crear
+			servicio = null;
+			servicioChat = null;
+			transporte = null;
+		}
+	};
+
 	private void configurarChat() {
-		// Inicializar el ArrayAdapter para el hilo de la conversacion
-		conversacionArrayAdapter = new ArrayAdapter<String>(this,
-				R.layout.mensaje);
+		// Inicializar el adaptador para el hilo de la conversacion, con la
+		// conversacion que mantiene el servicio
+		conversacionAdaptador = new AdaptadorConversacion(this, servicio
+				.getOyente());
 		listaConversacion = (ListView) findViewById(R.id.lista_conversacion);
-		listaConversacion.setAdapter(conversacionArrayAdapter);
+		listaConversacion.setAdapter(conversacionAdaptador);
 
 		// Inicializar la caja de escritura para detectar el teclado
 		cajaTexto = (EditText) findViewById(R.id.caja_texto);
@@ -139,10 +182,21 @@ public class PrincipalActivity extends Activity {
 				enviarMensaje(mensaje);
 			}
 		});
-		// Inicializar el ServicioChat para realizar conexiones Bluetooth
-		servicioChat = new ServicioChat(this, controlador);
 		// Inicializar el buffer para los mensajes salientes
 		stringBuffer = new StringBuffer("");
+
+		// Tomar el ServicioChat del servicio y recibir sus eventos
+		servicioChat = servicio.getServicioChat();
+		transporte = servicio.getTransporte();
+		OyenteControlador oyente = servicio.getOyente();
+		nombreDispositivoConectado = oyente.getNombreConectado();
+		oyente.setControlador(controlador);
+		// Iniciamos el ServicioChat si no habia empezado
+		servicio.iniciar();
+		if (direccionPendiente != null) {
+			servicioChat.conectar(direccionPendiente);
+			direccionPendiente = null;
+		}
 	}
 
 	@Override
@@ -153,14 +207,31 @@ public class PrincipalActivity extends Activity {
 	@Override
 	public void onStop() {
 		super.onStop();
+		// Las conexiones siguen en el servicio, solo dejamos de recibir sus
+		// eventos
+		if (servicio != null) {
+			servicio.getOyente().setControlador(null);
+		}
+		if (enlazando) {
+			unbindService(conexionServicio);
+			enlazando = false;
+		}
+		servicio = null;
+		servicioChat = null;
+		transporte = null;
+		// Los mensajes pendientes eran para la actividad enlazada
+		controlador.removeMessages(MENSAJE_CAMBIO_ESTADO);
+		controlador.removeMessages(MENSAJE_LOTE);
+		controlador.removeCallbacks(actualizarMetricas);
 	}
 
 	@Override
 	public void onDestroy() {
 		super.onDestroy();
-		// Detener el servicio de Bluetooth
-		if (servicioChat != null) {
-			servicioChat.detener();
+		// Detener el servicio de Bluetooth solo si el usuario sale de la
+		// aplicacion, no cuando se recrea la actividad
+		if (isFinishing()) {
+			stopService(new Intent(this, ServicioConexiones.class));
 		}
 	}
 
@@ -182,7 +253,8 @@ public class PrincipalActivity extends Activity {
 	private void enviarMensaje(String mensaje) {
 		// Comprobamos que en realidad estamos conectados, antes de hacer
 		// cualquier cosa
-		if (servicioChat.getEstado() != ServicioChat.ESTADO_CONECTADO) {
+		if (servicioChat == null
+				|| servicioChat.getEstado() != ServicioChat.ESTADO_CONECTADO) {
 			Toast.makeText(this, R.string.no_conectado_dispositivo,
 					Toast.LENGTH_LONG).show();
 			return;
@@ -190,9 +262,15 @@ public class PrincipalActivity extends Activity {
 		// Comprobamos que hay algo para enviar
 		if (mensaje.length() > 0) {
 			// Obtenemos los bytes del mensaje y le decimos al ServicioChat que
-			// escriba
+			// lo encole, el envio real ocurre en el hilo escritor
 			byte[] enviar = mensaje.getBytes();
-			servicioChat.escribir(enviar);
+			Envio envio = servicioChat.escribir(enviar);
+			if (envio.isFallido()) {
+				// La cola de envio esta llena, conservamos el texto
+				Toast.makeText(this, R.string.mensaje_no_enviado,
+						Toast.LENGTH_SHORT).show();
+				return;
+			}
 			// Restablecer el StringBuffer a cero y despejar la caja de texto
 			stringBuffer.setLength(0);
 			cajaTexto.setText(stringBuffer);
@@ -226,7 +304,6 @@ public class PrincipalActivity extends Activity {
 				case ServicioChat.ESTADO_CONECTADO:
 					textoTitulo.setText(R.string.conectado);
 					textoTitulo.append(nombreDispositivoConectado);
-					conversacionArrayAdapter.clear();
 					break;
 
 				case ServicioChat.ESTADO_CONECTANDO:
@@ -239,19 +316,12 @@ public class PrincipalActivity extends Activity {
 				}
 				break;
 
-			case MENSAJE_ESCRIBIR:
-				byte[] escribirBuffer = (byte[]) mensaje.obj;
-				// Construir una cadena para el buffer
-				String mensajeEscribir = new String(escribirBuffer);
-				conversacionArrayAdapter.add("Yo:  " + mensajeEscribir);
-				break;
-
-			case MENSAJE_LEER:
-				byte[] leerBuffer = (byte[]) mensaje.obj;
-				// Contruir una cadena desde bytes validos
-				String mensajeLeer = new String(leerBuffer, 0, mensaje.arg1);
-				conversacionArrayAdapter.add(nombreDispositivoConectado + ":  "
-						+ mensajeLeer);
+			case MENSAJE_LOTE:
+				// El servicio ya agrego el lote a la conversacion o cargo las
+				// filas pedidas, solo falta mostrar su ultima instantanea
+				if (conversacionAdaptador != null) {
+					conversacionAdaptador.actualizar();
+				}
 				break;
 
 			case MENSAJE_NOMBRE_DISPOSITIVO:
@@ -280,11 +350,13 @@ public class PrincipalActivity extends Activity {
 				// Obtenemos la direccion MAC del dispositivo
 				String direccion = data.getExtras().getString(
 						ListaDispositivosActivity.EXTRA_DIRECCION_DISPOSITIVO);
-				// Obtenemos el objeto BluetoothDevice
-				BluetoothDevice dispositivo = bluetoothAdapter
-						.getRemoteDevice(direccion);
-				// Intentar conectar al dispositivo
-				servicioChat.conectar(dispositivo);
+				// Intentar conectar al dispositivo. El resultado llega antes
+				// de onStart(), asi que puede que aun no estemos enlazados
+				if (servicioChat != null) {
+					servicioChat.conectar(direccion);
+				} else {
+					direccionPendiente = direccion;
+				}
 			}
 			break;
 		case PETICION_HABILITAR_BLUETOOTH:
@@ -292,7 +364,7 @@ public class PrincipalActivity extends Activity {
 			if (resultCode == Activity.RESULT_OK) {
 				// Bluetooth esta habilitado, por lo que hay que establecer una
 				// sesion chat
-				configurarChat();
+				enlazarServicio();
 			} else {
 				// El usuario no ha habilitado el Bluetooth, o ha ocurrido un
 				// error
@@ -325,8 +397,105 @@ public class PrincipalActivity extends Activity {
 			// Asegurando de que el dispositivo sea reconocible para los demas
 			asegurarDescubrimiento();
 			return true;
+		case R.id.metricas:
+			showDialog(DIALOGO_METRICAS);
+			return true;
 		}
 		return false;
 	}
 
+	@Override
+	protected Dialog onCreateDialog(int id) {
+		if (id != DIALOGO_METRICAS) {
+			return null;
+		}
+		View vista = getLayoutInflater().inflate(R.layout.metricas, null);
+		textoMetricas = (TextView) vista.findViewById(R.id.texto_metricas);
+		AlertDialog dialogo = new AlertDialog.Builder(this)
+				.setTitle(R.string.metricas).setView(vista).create();
+		dialogo.setOnDismissListener(new DialogInterface.OnDismissListener() {
+
+			public void onDismiss(DialogInterface dialog) {
+				controlador.removeCallbacks(actualizarMetricas);
+			}
+		});
+		return dialogo;
+	}
+
+	@Override
+	protected void onPrepareDialog(int id, Dialog dialog) {
+		if (id == DIALOGO_METRICAS) {
+			controlador.removeCallbacks(actualizarMetricas);
+			controlador.post(actualizarMetricas);
+		}
+	}
+
+	// Refresca el dialogo de metricas cada PERIODO_METRICAS mientras se ve
+	private final Runnable actualizarMetricas = new Runnable() {
+
+		public void run() {
+			if (servicioChat == null) {
+				return;
+			}
+			textoMetricas.setText(formatearMetricas(servicioChat.getMetricas(),
+					transporte));
+			controlador.postDelayed(this, PERIODO_METRICAS);
+		}
+	};
+
+	/**
+	 * @return Las metricas como texto para el dialogo de depuracion
+	 */
+	private static String formatearMetricas(InstantaneaMetricas metricas,
+			TransporteRfcomm transporte) {
+		StringBuilder texto = new StringBuilder();
+		for (InstantaneaConexion conexion : metricas.conexiones) {
+			texto.append(conexion.nombre).append(" (")
+					.append(conexion.direccion).append(")\n");
+			texto.append(String.format(
+					"  entrada %.0f B/s %.1f msj/s, total %d B %d msj\n",
+					conexion.bytesRecibidosPorSegundo,
+					conexion.mensajesRecibidosPorSegundo,
+					conexion.bytesRecibidos, conexion.mensajesRecibidos));
+			texto.append(String.format(
+					"  salida %.0f B/s %.1f msj/s, total %d B %d msj\n",
+					conexion.bytesEnviadosPorSegundo,
+					conexion.mensajesEnviadosPorSegundo,
+					conexion.bytesEnviados, conexion.mensajesEnviados));
+			texto.append(String.format(
+					"  cola %d, sin confirmar %d, rtt %.1f ms, latido %.1f ms\n",
+					conexion.profundidadCola, conexion.sinConfirmar,
+					conexion.rtt / 1e6, conexion.rttLatidos / 1e6));
+			texto.append(String.format(
+					"  conexion %.0f ms, conectado hace %d s\n\n",
+					conexion.tiempoConexion / 1e6,
+					conexion.duracion / 1000000000L));
+		}
+		if (metricas.conexiones.isEmpty()) {
+			texto.append("Sin conexiones\n\n");
+		}
+		texto.append(String.format(
+				"Perdidas %d, reconexiones %d, reanudadas %d, abandonadas %d\n\n",
+				metricas.perdidas, metricas.intentosReconexion,
+				metricas.reanudadas, metricas.abandonadas));
+		agregarHistograma(texto, "Latencia", metricas.latencia);
+		agregarHistograma(texto, "Escritura", metricas.escrituras);
+		texto.append('\n');
+		agregarHistograma(texto, "Conexion en frio", transporte
+				.getConexionesFrias());
+		agregarHistograma(texto, "Conexion con canal", transporte
+				.getConexionesTibias());
+		agregarHistograma(texto, "Conexion precalentada", transporte
+				.getConexionesPrecalentadas());
+		return texto.toString();
+	}
+
+	private static void agregarHistograma(StringBuilder texto, String nombre,
+			HistogramaLatencia.Resumen resumen) {
+		texto.append(String.format(
+				"%s (%d): p50 %.2f ms, p99 %.2f ms, p999 %.2f ms, max %.2f ms\n",
+				nombre, resumen.cantidad, resumen.p50 / 1e6, resumen.p99 / 1e6,
+				resumen.p999 / 1e6, resumen.maximo / 1e6));
+	}
+
 }
\ No newline at end of file
@@ -1,41 +1,240 @@
 package com.blogspot.zomwi.chatbluetooth;
 
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.UUID;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import android.bluetooth.BluetoothAdapter;
-import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothServerSocket;
-import android.bluetooth.BluetoothSocket;
-import android.content.Context;
-import android.os.Bundle;
-import android.os.Handler;
-import android.os.Message;
+import com.blogspot.zomwi.chatbluetooth.conexion.BufferArrendado;
+import com.blogspot.zomwi.chatbluetooth.conexion.Canal;
+import com.blogspot.zomwi.chatbluetooth.conexion.ColaEnvio;
+import com.blogspot.zomwi.chatbluetooth.conexion.ConfiguracionLotes;
+import com.blogspot.zomwi.chatbluetooth.conexion.DetectorLatidos;
+import com.blogspot.zomwi.chatbluetooth.conexion.DevolucionCreditos;
+import com.blogspot.zomwi.chatbluetooth.conexion.Difusion;
+import com.blogspot.zomwi.chatbluetooth.conexion.Envio;
+import com.blogspot.zomwi.chatbluetooth.conexion.EscritorLotes;
+import com.blogspot.zomwi.chatbluetooth.conexion.HistogramaLatencia;
+import com.blogspot.zomwi.chatbluetooth.conexion.InstantaneaConexion;
+import com.blogspot.zomwi.chatbluetooth.conexion.InstantaneaMetricas;
+import com.blogspot.zomwi.chatbluetooth.conexion.LectorMultiplexado;
+import com.blogspot.zomwi.chatbluetooth.conexion.MaquinaEstados;
+import com.blogspot.zomwi.chatbluetooth.conexion.MetricasConexion;
+import com.blogspot.zomwi.chatbluetooth.conexion.MetricasReconexion;
+import com.blogspot.zomwi.chatbluetooth.conexion.OyenteLectura;
+import com.blogspot.zomwi.chatbluetooth.conexion.OyenteEnvio;
+import com.blogspot.zomwi.chatbluetooth.conexion.OyenteEstado;
+import com.blogspot.zomwi.chatbluetooth.conexion.PoliticaColaLlena;
+import com.blogspot.zomwi.chatbluetooth.conexion.PoolBuffers;
+import com.blogspot.zomwi.chatbluetooth.conexion.RetrocesoExponencial;
+import com.blogspot.zomwi.chatbluetooth.conexion.Sesion;
+import com.blogspot.zomwi.chatbluetooth.hilos.HiloAceptar;
+import com.blogspot.zomwi.chatbluetooth.hilos.HiloConectado;
+import com.blogspot.zomwi.chatbluetooth.hilos.HiloConectar;
+import com.blogspot.zomwi.chatbluetooth.hilos.MotorHilos;
+import com.blogspot.zomwi.chatbluetooth.hilos.OyenteAceptar;
+import com.blogspot.zomwi.chatbluetooth.hilos.OyenteConectar;
+import com.blogspot.zomwi.chatbluetooth.hilos.Tarea;
+import com.blogspot.zomwi.chatbluetooth.protocolo.CodificadorTramas;
+import com.blogspot.zomwi.chatbluetooth.protocolo.CompresionTramas;
+import com.blogspot.zomwi.chatbluetooth.protocolo.DecodificadorTramas;
+import com.blogspot.zomwi.chatbluetooth.protocolo.OyenteTramas;
+import com.blogspot.zomwi.chatbluetooth.protocolo.Trama;
+import com.blogspot.zomwi.chatbluetooth.transferencia.DestinoTramas;
+import com.blogspot.zomwi.chatbluetooth.transferencia.EmisorArchivo;
+import com.blogspot.zomwi.chatbluetooth.transferencia.OyenteTransferencia;
+import com.blogspot.zomwi.chatbluetooth.transferencia.ReceptorArchivos;
+import com.blogspot.zomwi.chatbluetooth.transferencia.Transferencia;
+import com.blogspot.zomwi.chatbluetooth.transporte.CanalTransporte;
+import com.blogspot.zomwi.chatbluetooth.transporte.CarreraConexion;
+import com.blogspot.zomwi.chatbluetooth.transporte.IntentoConexion;
+import com.blogspot.zomwi.chatbluetooth.transporte.ServidorTransporte;
+import com.blogspot.zomwi.chatbluetooth.transporte.Transporte;
 
 /**
  * Esta clase hace todo el trabajo para la creacin y gestin de las conexiones
- * Bluetooth con otros dispositivos. Tiene un hilo que escucha las conexiones
- * entrantes, un hilo para conectar con un dispositivo y un hilo para realizar
- * las transmisiones de datos cuando se conecta.
+ * Bluetooth con otros dispositivos. Tiene una tarea que escucha las conexiones
+ * entrantes, una tarea para conectar con un dispositivo y tareas para realizar
+ * las transmisiones de datos cuando se conecta. Las tareas corren en los hilos
+ * de un MotorHilos, que se reutilizan de una conexion a otra; cerrar() los
+ * termina.
+ * 
+ * Las conexiones se abren a traves de un Transporte, asi que el mismo motor
+ * funciona sobre RFCOMM, en memoria o sobre TCP local.
+ * 
+ * Por defecto hay una sola conexion a la vez. En modo concentrador
+ * (setMaximoConexiones mayor que 1) se mantienen varias conexiones, una por
+ * direccion, y se sigue escuchando mientras haya lugar para mas.
+ * 
+ * Con conectarAlguno se llama a varios dispositivos a la vez y se queda con
+ * el primero que conecte.
+ * 
+ * Si se pierde una conexion que abrimos nosotros, se vuelve a llamar al
+ * dispositivo con esperas crecientes. Al reconectar se reanuda la Sesion: lo
+ * que el otro extremo no llego a recibir se reenvia y los duplicados se
+ * descartan.
+ * 
+ * Con sesion el otro extremo confirma los mensajes que recibe. Solo se dejan
+ * setVentanaMensajes mensajes sin confirmar. El enlace ya es confiable, asi
+ * que nada se retransmite mientras vive: si la confirmacion tarda mas que la
+ * espera estimada a partir del tiempo de ida y vuelta varias veces seguidas,
+ * la conexion se da por perdida y lo que faltaba se reenvia al reanudar.
+ * 
+ * Cuando una conexion queda en silencio se envian latidos, y si no se lee
+ * nada durante varios intervalos se da por perdida sin esperar a que falle
+ * la lectura del socket.
+ * 
+ * El estado vive en una MaquinaEstados con las transiciones de TRANSICIONES.
+ * getEstado() y escribir() no toman el monitor; el monitor solo protege los
+ * hilos y el registro de conexiones. escribir() tampoco toma ningun otro lock
+ * mientras haya lugar en la cola, y a un solo destino solo crea el Envio.
  */
 public class ServicioChat {
 
-	// Nombre para el registro SDP cuando creamos el socket servidor
-	private static final String NOMBRE = "ChatBluetooth";
-
-	// Unico UUID para esta aplicacion
-	private static final UUID MI_UUID = UUID
-			.fromString("fa87c0d0-afac-11de-8a39-0800200c9a66");
-
 	// Campos miembros
-	private final BluetoothAdapter bluetoothAdapter;
-	private final Handler controlador;
+	private final Transporte transporte;
+	private final OyenteServicioChat oyente;
+	private final PoolBuffers poolRecepcion;
+	private final MotorHilos motor = new MotorHilos("ServicioChat");
+	private final Aceptador aceptador = new Aceptador();
+	private final Conectador conectador = new Conectador();
 	private HiloConectar hiloConectar;
-	private HiloConectado hiloConectado;
 	private HiloAceptar hiloAceptar;
-	private int estado;
+	private final MaquinaEstados estado = new MaquinaEstados(ESTADO_NINGUNO,
+			TRANSICIONES);
+	private volatile int maximoConexiones = 1;
+
+	// Hilos de lectura compartidos entre las conexiones. Con 0 cada conexion
+	// lee en su propia tarea HiloConectado
+	private int lectoresMultiplexados = 0;
+	private LectorMultiplexado[] lectores;
+
+	// Las conexiones activas por direccion del dispositivo remoto. El arreglo
+	// es una copia para recorrerla en escribir() sin tomar el monitor
+	private final ConcurrentHashMap<String, Conexion> conexiones = new ConcurrentHashMap<String, Conexion>();
+	private static final Conexion[] SIN_CONEXIONES = new Conexion[0];
+	private volatile Conexion[] conexionesActivas = SIN_CONEXIONES;
+	// El eco de los mensajes escritos sin oyente propio, compartido para no
+	// crear uno por mensaje
+	private final Eco eco = new Eco(null);
+	private int capacidadColaEnvio = CAPACIDAD_COLA_ENVIO;
+	private volatile PoliticaColaLlena politicaColaLlena = PoliticaColaLlena.FALLAR;
+	private ConfiguracionLotes configuracionLotes = ConfiguracionLotes.SIN_ESPERA;
+	private boolean ofrecerCompresion = false;
+	private int umbralCompresion = UMBRAL_COMPRESION;
+
+	// Transferencias de archivos
+	private volatile OyenteTransferencia oyenteTransferencia;
+	private volatile File directorioRecepcion;
+	private final AtomicInteger siguienteTransferencia = new AtomicInteger();
+
+	// Sesiones con las otras instancias, para reanudar al reconectar. Se
+	// guardan las usadas mas recientemente
+	private final long instancia;
+	private final Map<Long, Sesion> sesiones = new LinkedHashMap<Long, Sesion>(
+			16, 0.75f, true) {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Long, Sesion> mayor) {
+			return size() > MAXIMO_SESIONES;
+		}
+	};
+
+	// Reconexion automatica de las conexiones salientes
+	private final ConcurrentHashMap<String, HiloReconectar> reconexiones = new ConcurrentHashMap<String, HiloReconectar>();
+	private final MetricasReconexion metricasReconexion = new MetricasReconexion();
+	private final Random azar = new Random();
+	private boolean reconexionAutomatica = true;
+	private int maximoIntentosReconexion = MAXIMO_INTENTOS_RECONEXION;
+
+	// Las conexiones salientes y los intentos de la ultima
+	private long esperaIntentoConexion = ESPERA_INTENTO_CONEXION;
+	private int intentosParalelos = INTENTOS_PARALELOS;
+	private volatile List<IntentoConexion> intentosConexion = Collections
+			.emptyList();
+
+	// Confirmaciones de los mensajes. El temporizador revisa las esperas de
+	// todas las conexiones
+	private volatile int ventanaMensajes = VENTANA_MENSAJES;
+	private Timer temporizador;
+
+	// Latidos en las conexiones en silencio
+	private long intervaloLatidos = INTERVALO_LATIDOS;
+	private int latidosPerdidos = LATIDOS_PERDIDOS;
+
+	// Latencia de punta a punta de los mensajes y duracion de las escrituras
+	// de todas las conexiones
+	private final HistogramaLatencia latencias = new HistogramaLatencia();
+	private final HistogramaLatencia escrituras = new HistogramaLatencia();
+
+	// Lo que lee de una vez cada conexion que lee en su propia tarea
+	private static final int TAMANO_LECTURA = 4096;
+
+	// Buffers para los mensajes recibidos
+	private static final int TAMANO_POOL_RECEPCION = 32;
+	private static final int TAMANO_BUFFER_RECEPCION = 1024;
+
+	// Cantidad maxima de envios en espera por conexion
+	private static final int CAPACIDAD_COLA_ENVIO = 64;
+
+	// Los mensajes mas cortos que esto no se comprimen. Por debajo el ahorro en
+	// el aire no paga el costo de reiniciar el diccionario en cada trama
+	private static final int UMBRAL_COMPRESION = 128;
+
+	// Una piconet Bluetooth admite hasta 7 esclavos activos
+	public static final int MAXIMO_PICONET = 7;
+
+	// Sesiones que se recuerdan
+	private static final int MAXIMO_SESIONES = 2 * MAXIMO_PICONET;
+
+	// Esperas entre intentos de reconexion, en milisegundos
+	private static final long ESPERA_INICIAL_RECONEXION = 500;
+	private static final long ESPERA_MAXIMA_RECONEXION = 30000;
+	private static final int MAXIMO_INTENTOS_RECONEXION = 10;
+
+	// Tiempo maximo de cada intento de conexion saliente, en milisegundos, y
+	// cuantos dispositivos se llaman a la vez. El page timeout de Bluetooth
+	// es de unos 5 segundos y despues viene la busqueda SDP
+	private static final long ESPERA_INTENTO_CONEXION = 12000;
+	private static final int INTENTOS_PARALELOS = 3;
+
+	// Mensajes sin confirmar por conexion. Una lectura de 4 KB puede traer
+	// cientos de mensajes cortos, con menos el escritor espera confirmaciones
+	// en los enlaces rapidos
+	private static final int VENTANA_MENSAJES = Sesion.RETENCION;
+
+	// Cada cuanto se revisan las confirmaciones vencidas, en milisegundos
+	private static final long PERIODO_TEMPORIZADOR = 100;
+
+	// Vencimientos seguidos sin confirmacion antes de dar la conexion por
+	// perdida. Cada uno duplica la espera, asi que son varios segundos
+	private static final int MAXIMO_VENCIMIENTOS = 4;
+
+	// Silencio antes de enviar un latido, en milisegundos, y los intervalos
+	// en silencio antes de dar la conexion por perdida. El supervision
+	// timeout de Bluetooth suele ser de 20 segundos
+	private static final long INTERVALO_LATIDOS = 2000;
+	private static final int LATIDOS_PERDIDOS = 3;
+
+	// Lo que se espera la primera trama valida del otro extremo antes de
+	// avisar al transporte que el canal pudo llevar a otro servicio, en
+	// milisegundos
+	private static final long ESPERA_PRIMERA_TRAMA = 5000;
 
 	// Constantes que indican el estado de la conexion actual
 	public static final int ESTADO_NINGUNO = 0; // no estamos haciendo nada
@@ -46,39 +245,476 @@ public class ServicioChat {
 	public static final int ESTADO_CONECTADO = 3; // ahora esta conectado a un
 													// dispositivo remoto
 
+	// Los estados a los que se puede pasar desde cada estado. Despues de
+	// detener() no se conecta nada hasta iniciar() o conectar()
+	private static final int[][] TRANSICIONES = {
+			// ESTADO_NINGUNO
+			{ ESTADO_ESCUCHANDO, ESTADO_CONECTANDO },
+			// ESTADO_ESCUCHANDO
+			{ ESTADO_NINGUNO, ESTADO_CONECTANDO, ESTADO_CONECTADO },
+			// ESTADO_CONECTANDO
+			{ ESTADO_NINGUNO, ESTADO_ESCUCHANDO, ESTADO_CONECTADO },
+			// ESTADO_CONECTADO
+			{ ESTADO_NINGUNO, ESTADO_ESCUCHANDO, ESTADO_CONECTANDO } };
+
 	/**
 	 * Constructor. Prepara una nueva sesion BluetoothChat
 	 * 
-	 * @param context
-	 *            El contexto de la Activity de la interfaz de usuario
-	 * @param controlador
-	 *            Un controlador para enviar mensajes de regreso a la actividad
-	 *            de la interfaz de usuario
+	 * @param transporte
+	 *            El medio por el que se abren las conexiones
+	 * @param oyente
+	 *            Quien recibe los eventos, por ejemplo un OyenteControlador
+	 *            que los envia de regreso a la actividad de la interfaz de
+	 *            usuario
+	 */
+	public ServicioChat(Transporte transporte, OyenteServicioChat oyente) {
+		this.transporte = transporte;
+		this.oyente = oyente;
+		// Dar cada nuevo estado a la PrincipalActivity para actualizar
+		estado.agregarOyente(new OyenteEstado() {
+
+			public void estadoCambiado(int anterior, int nuevo) {
+				ServicioChat.this.oyente.estadoCambiado(nuevo);
+			}
+		});
+		poolRecepcion = new PoolBuffers(TAMANO_POOL_RECEPCION,
+				TAMANO_BUFFER_RECEPCION);
+		instancia = azar.nextLong();
+	}
+
+	/**
+	 * @return estado de la conexion actual. No toma el monitor
+	 */
+	public int getEstado() {
+		return estado.getEstado();
+	}
+
+	/**
+	 * @param oyente
+	 *            Quien recibe tambien las transiciones de estado, con el estado
+	 *            anterior
+	 */
+	public void agregarOyenteEstado(OyenteEstado oyente) {
+		estado.agregarOyente(oyente);
+	}
+
+	/**
+	 * @param oyente
+	 *            Un oyente agregado con agregarOyenteEstado
+	 */
+	public void quitarOyenteEstado(OyenteEstado oyente) {
+		estado.quitarOyente(oyente);
+	}
+
+	/**
+	 * @return Cuantas transiciones de estado se rechazaron por no estar
+	 *         permitidas, por ejemplo una conexion que termino despues de
+	 *         detener()
+	 */
+	public long getTransicionesRechazadas() {
+		return estado.getRechazadas();
+	}
+
+	/**
+	 * Cambiar la cantidad de conexiones simultaneas. Con 1 (por defecto) una
+	 * conexion nueva reemplaza a la anterior; con mas el servicio funciona
+	 * como concentrador
+	 * 
+	 * @param maximo
+	 *            Entre 1 y MAXIMO_PICONET
+	 */
+	public synchronized void setMaximoConexiones(int maximo) {
+		if (maximo < 1 || maximo > MAXIMO_PICONET) {
+			throw new IllegalArgumentException("Maximo de conexiones invalido: "
+					+ maximo);
+		}
+		maximoConexiones = maximo;
+	}
+
+	/**
+	 * Leer todas las conexiones con una cantidad fija de hilos en lugar de un
+	 * hilo por conexion. Se aplica a las conexiones que se abran despues de
+	 * detener() o antes de la primera
+	 * 
+	 * @param hilos
+	 *            Cuantos hilos de lectura compartir, 0 para un hilo por
+	 *            conexion
+	 */
+	public synchronized void setLectoresMultiplexados(int hilos) {
+		if (hilos < 0) {
+			throw new IllegalArgumentException("Cantidad de hilos invalida: "
+					+ hilos);
+		}
+		lectoresMultiplexados = hilos;
+	}
+
+	/**
+	 * @return El lector compartido con menos conexiones, o null si cada
+	 *         conexion lee en su propio hilo. Tambien null si el motor no
+	 *         tiene hilos para los lectores, y se vuelve a probar con la
+	 *         siguiente conexion
+	 */
+	private synchronized LectorMultiplexado elegirLector() {
+		if (lectoresMultiplexados == 0 && lectores == null) {
+			return null;
+		}
+		if (lectores == null) {
+			LectorMultiplexado[] nuevos = new LectorMultiplexado[lectoresMultiplexados];
+			for (int i = 0; i < nuevos.length; i++) {
+				nuevos[i] = new LectorMultiplexado("LectorMultiplexado-" + i,
+						TAMANO_LECTURA);
+				try {
+					motor.ejecutar(nuevos[i]);
+				} catch (RejectedExecutionException ex) {
+					for (int j = 0; j < i; j++) {
+						nuevos[j].cancelar();
+					}
+					return null;
+				}
+			}
+			lectores = nuevos;
+		}
+		LectorMultiplexado elegido = lectores[0];
+		for (LectorMultiplexado lector : lectores) {
+			if (lector.getConexiones() < elegido.getConexiones()) {
+				elegido = lector;
+			}
+		}
+		return elegido;
+	}
+
+	/**
+	 * @return Las direcciones de los dispositivos conectados
+	 */
+	public List<String> getDireccionesConectadas() {
+		List<String> direcciones = new ArrayList<String>();
+		for (Conexion conexion : conexionesActivas) {
+			direcciones.add(conexion.direccion);
+		}
+		return direcciones;
+	}
+
+	/**
+	 * @param direccion
+	 *            La direccion de un dispositivo conectado
+	 * @return El nombre del dispositivo, o null si no esta conectado
+	 */
+	public String getNombreConectado(String direccion) {
+		Conexion conexion = conexiones.get(direccion);
+		return conexion != null ? conexion.nombre : null;
+	}
+
+	/**
+	 * @return El pool de los buffers que se entregan con mensajeLeido
+	 */
+	public PoolBuffers getPoolRecepcion() {
+		return poolRecepcion;
+	}
+
+	/**
+	 * Cambiar la capacidad de la cola de envio. Se aplica a las conexiones
+	 * nuevas
+	 * 
+	 * @param capacidad
+	 *            La cantidad maxima de envios en espera por canal
+	 */
+	public synchronized void setCapacidadColaEnvio(int capacidad) {
+		capacidadColaEnvio = capacidad;
+	}
+
+	/**
+	 * Cambiar lo que hace escribir(byte[]) cuando la cola de envio esta llena
+	 * 
+	 * @param politica
+	 *            La politica por defecto
+	 */
+	public synchronized void setPoliticaColaLlena(PoliticaColaLlena politica) {
+		politicaColaLlena = politica;
+	}
+
+	/**
+	 * Cambiar como se agrupan los envios en una sola escritura. Se aplica
+	 * tambien a la conexion actual desde su siguiente lote
+	 * 
+	 * @param configuracion
+	 *            La ventana de espera y el tamano maximo de cada lote
+	 */
+	public synchronized void setConfiguracionLotes(
+			ConfiguracionLotes configuracion) {
+		configuracionLotes = configuracion;
+		for (Conexion conexion : conexionesActivas) {
+			conexion.escritorLotes.setConfiguracion(configuracion);
+		}
+	}
+
+	/**
+	 * Ofrecer o no compresion a los dispositivos que se conecten despues. Solo
+	 * se comprime si los dos extremos la ofrecen. Por defecto no se ofrece
+	 * 
+	 * @param habilitada
+	 *            true para ofrecer compresion
+	 */
+	public synchronized void setCompresion(boolean habilitada) {
+		ofrecerCompresion = habilitada;
+	}
+
+	/**
+	 * Cambiar la longitud minima de los mensajes que se comprimen, para las
+	 * conexiones que se abran despues
+	 * 
+	 * @param bytes
+	 *            Los mensajes mas cortos se envian sin comprimir
+	 */
+	public synchronized void setUmbralCompresion(int bytes) {
+		umbralCompresion = bytes;
+	}
+
+	/**
+	 * @param direccion
+	 *            La direccion de un dispositivo conectado
+	 * @return La compresion de esa conexion, con sus metricas, o null si no
+	 *         esta conectado o no se ofrecio compresion
+	 */
+	public CompresionTramas getCompresion(String direccion) {
+		Conexion conexion = conexiones.get(direccion);
+		return conexion != null ? conexion.compresion : null;
+	}
+
+	/**
+	 * Cambiar quien recibe el avance de las transferencias de archivos
+	 * 
+	 * @param oyente
+	 *            El oyente, puede ser null
+	 */
+	public void setOyenteTransferencia(OyenteTransferencia oyente) {
+		oyenteTransferencia = oyente;
+	}
+
+	/**
+	 * Cambiar donde se guardan los archivos recibidos por las conexiones que
+	 * se abran despues
+	 * 
+	 * @param directorio
+	 *            El directorio, o null (por defecto) para no aceptar archivos
+	 */
+	public void setDirectorioRecepcion(File directorio) {
+		directorioRecepcion = directorio;
+	}
+
+	/**
+	 * Enviar un archivo a un dispositivo conectado. El archivo se lee y se
+	 * envia por partes en una tarea del motor, intercalado con los mensajes
+	 * 
+	 * @param direccion
+	 *            La direccion del dispositivo
+	 * @param archivo
+	 *            El archivo a enviar
+	 * @return La transferencia, para seguir su avance o cancelarla
+	 * @throws IOException
+	 *             Si el dispositivo no esta conectado, no se puede abrir el
+	 *             archivo o no hay hilos libres
+	 */
+	public Transferencia enviarArchivo(String direccion, File archivo)
+			throws IOException {
+		Conexion conexion = getConexion(direccion);
+		return enviar(conexion, new FileInputStream(archivo),
+				archivo.getName(), archivo.length());
+	}
+
+	/**
+	 * Enviar el contenido de un flujo a un dispositivo conectado, como un
+	 * archivo con el nombre dado
+	 * 
+	 * @param direccion
+	 *            La direccion del dispositivo
+	 * @param flujo
+	 *            De donde se leen los datos, se cierra al terminar
+	 * @param nombre
+	 *            El nombre del archivo para el otro extremo
+	 * @param tamano
+	 *            La cantidad de bytes del flujo, -1 si no se conoce
+	 * @return La transferencia, para seguir su avance o cancelarla
+	 * @throws IOException
+	 *             Si el dispositivo no esta conectado o no hay hilos libres
+	 */
+	public Transferencia enviarFlujo(String direccion, InputStream flujo,
+			String nombre, long tamano) throws IOException {
+		return enviar(getConexion(direccion), flujo, nombre, tamano);
+	}
+
+	private Conexion getConexion(String direccion) throws IOException {
+		Conexion conexion = conexiones.get(direccion);
+		if (conexion == null) {
+			throw new IOException("No conectado");
+		}
+		return conexion;
+	}
+
+	private Transferencia enviar(Conexion conexion, InputStream flujo,
+			String nombre, long tamano) throws IOException {
+		EmisorArchivo emisor = new EmisorArchivo(siguienteTransferencia
+				.incrementAndGet(), nombre, tamano, conexion.direccion, flujo,
+				conexion, oyenteTransferencia);
+		try {
+			motor.ejecutar(emisor);
+		} catch (RejectedExecutionException ex) {
+			try {
+				flujo.close();
+			} catch (IOException e) {
+			}
+			throw new IOException("No hay hilos libres para enviar");
+		}
+		return emisor.getTransferencia();
+	}
+
+	/**
+	 * Volver a llamar o no a los dispositivos con los que se abrio una
+	 * conexion saliente cuando esa conexion se pierde. Por defecto si
+	 * 
+	 * @param habilitada
+	 *            true para reconectar
+	 */
+	public synchronized void setReconexionAutomatica(boolean habilitada) {
+		reconexionAutomatica = habilitada;
+		if (!habilitada) {
+			cancelarReconexiones();
+		}
+	}
+
+	/**
+	 * Cambiar cuantas veces se intenta reconectar antes de abandonar
+	 * 
+	 * @param intentos
+	 *            La cantidad de intentos
 	 */
-	public ServicioChat(Context context, Handler controlador) {
-		bluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
-		estado = ESTADO_NINGUNO;
-		this.controlador = controlador;
+	public synchronized void setMaximoIntentosReconexion(int intentos) {
+		maximoIntentosReconexion = intentos;
 	}
 
 	/**
-	 * Establecer el estado actual de la conexion de chat
+	 * Cambiar como se llama a los dispositivos en las conexiones salientes
 	 * 
-	 * @param estado
-	 *            Un entero que define el estado de la conexion actual
+	 * @param milisegundos
+	 *            El tiempo maximo de cada intento
+	 * @param paralelos
+	 *            Los dispositivos que se llaman a la vez en conectarAlguno
+	 */
+	public synchronized void setIntentosConexion(long milisegundos,
+			int paralelos) {
+		if (milisegundos <= 0 || paralelos < 1) {
+			throw new IllegalArgumentException("Intentos invalidos: "
+					+ milisegundos + " ms, " + paralelos);
+		}
+		esperaIntentoConexion = milisegundos;
+		intentosParalelos = paralelos;
+	}
+
+	/**
+	 * @return El resultado y la duracion de cada intento de la ultima conexion
+	 *         saliente terminada
+	 */
+	public List<IntentoConexion> getIntentosConexion() {
+		return intentosConexion;
+	}
+
+	/**
+	 * Cambiar cuantos mensajes pueden quedar sin confirmar en cada conexion.
+	 * Se aplica tambien a las conexiones actuales
+	 * 
+	 * @param ventana
+	 *            Entre 1 y Sesion.RETENCION
+	 */
+	public synchronized void setVentanaMensajes(int ventana) {
+		if (ventana < 1 || ventana > Sesion.RETENCION) {
+			throw new IllegalArgumentException("Ventana invalida: " + ventana);
+		}
+		ventanaMensajes = ventana;
+		for (Conexion conexion : conexionesActivas) {
+			Sesion sesion = conexion.sesion;
+			if (sesion != null) {
+				conexion.colaEnvio.limitarVentana(sesion, ventana);
+			}
+		}
+	}
+
+	/**
+	 * Cambiar los latidos de las conexiones que se abran despues
+	 * 
+	 * @param milisegundos
+	 *            El silencio antes de enviar un latido, 0 para no enviarlos
+	 * @param perdidos
+	 *            Los intervalos en silencio antes de dar la conexion por
+	 *            perdida, al menos 2
+	 */
+	public synchronized void setLatidos(long milisegundos, int perdidos) {
+		if (milisegundos < 0 || perdidos < 2) {
+			throw new IllegalArgumentException("Latidos invalidos: "
+					+ milisegundos + " ms, " + perdidos);
+		}
+		intervaloLatidos = milisegundos;
+		latidosPerdidos = perdidos;
+	}
+
+	/**
+	 * @return Las perdidas, los intentos de reconexion y el tiempo de
+	 *         recuperacion
+	 */
+	public MetricasReconexion getMetricasReconexion() {
+		return metricasReconexion;
+	}
+
+	/**
+	 * Tomar una instantanea de las metricas de todas las conexiones. Las
+	 * tasas por segundo de cada conexion se calculan desde la instantanea
+	 * anterior
+	 * 
+	 * @return El trafico, las colas, los tiempos de conexion, las
+	 *         reconexiones y los histogramas de latencia
+	 */
+	public InstantaneaMetricas getMetricas() {
+		Conexion[] activas = conexionesActivas;
+		List<InstantaneaConexion> instantaneas = new ArrayList<InstantaneaConexion>(
+				activas.length);
+		for (Conexion conexion : activas) {
+			instantaneas.add(conexion.metricas.instantanea(conexion.direccion,
+					conexion.nombre, conexion.colaEnvio.getProfundidad(),
+					conexion.sesion, conexion.latidos));
+		}
+		return new InstantaneaMetricas(instantaneas, metricasReconexion,
+				latencias.resumir(), escrituras.resumir());
+	}
+
+	/**
+	 * @param direccion
+	 *            La direccion de un dispositivo conectado
+	 * @return La sesion con ese dispositivo, o null si no esta conectado o no
+	 *         soporta sesiones
+	 */
+	public Sesion getSesion(String direccion) {
+		Conexion conexion = conexiones.get(direccion);
+		return conexion != null ? conexion.sesion : null;
+	}
+
+	/**
+	 * @return La cantidad de envios esperando en las colas de todas las
+	 *         conexiones
 	 */
-	private synchronized void setEstado(int estado) {
-		this.estado = estado;
-		// Dar el nuevo estado a la PrincipalActivity para actualizar
-		controlador.obtainMessage(PrincipalActivity.MENSAJE_CAMBIO_ESTADO,
-				estado, -1).sendToTarget();
+	public int getProfundidadColaEnvio() {
+		int profundidad = 0;
+		for (Conexion conexion : conexionesActivas) {
+			profundidad += conexion.colaEnvio.getProfundidad();
+		}
+		return profundidad;
 	}
 
 	/**
-	 * @return estado de la conexion actual
+	 * @param direccion
+	 *            La direccion de un dispositivo conectado
+	 * @return La cantidad de envios esperando en la cola de esa conexion
 	 */
-	public synchronized int getEstado() {
-		return estado;
+	public int getProfundidadColaEnvio(String direccion) {
+		Conexion conexion = conexiones.get(direccion);
+		return conexion != null ? conexion.colaEnvio.getProfundidad() : 0;
 	}
 
 	/**
@@ -92,118 +728,384 @@ public class ServicioChat {
 			hiloConectar.cancelar();
 			hiloConectar = null;
 		}
+		cancelarReconexiones();
 		// Cancelar cualquier subproceso actualmente en ejecucion
-		if (hiloConectado != null) {
-			hiloConectado.cancelar();
-			hiloConectado = null;
+		cancelarConexiones();
+		// Pasar a escuchar antes de iniciar el hilo, que mira el estado sin
+		// tomar el monitor
+		estado.pasar(ESTADO_ESCUCHANDO);
+		// Iniciar la tarea para escuchar en el servidor del transporte
+		if (hiloAceptar == null) {
+			escuchar();
 		}
-		// Iniciar el hilo para escuchar en un BluetoothServerSocket
-		if (hiloAceptar != null) {
-			hiloAceptar = new HiloAceptar();
-			hiloAceptar.start();
+	}
+
+	/**
+	 * Abrir un servidor en el transporte y empezar a aceptar en el. Si no se
+	 * puede escuchar, solo se podra conectar
+	 */
+	private synchronized void escuchar() {
+		ServidorTransporte servidor;
+		try {
+			servidor = transporte.escuchar();
+		} catch (IOException e) {
+			return;
+		}
+		hiloAceptar = new HiloAceptar(servidor, aceptador);
+		try {
+			motor.ejecutar(hiloAceptar);
+		} catch (RejectedExecutionException ex) {
+			// Sin hilos libres, o el motor se cerro
+			hiloAceptar = null;
+			try {
+				servidor.cerrar();
+			} catch (IOException e) {
+			}
 		}
-		setEstado(ESTADO_ESCUCHANDO);
 	}
 
-	public synchronized void conectar(BluetoothDevice dispositivo) {
+	/**
+	 * Iniciar el HiloConectar para conectarse con un dispositivo remoto
+	 * 
+	 * @param direccion
+	 *            La direccion del dispositivo en el transporte
+	 */
+	public synchronized void conectar(String direccion) {
+		conectarAlguno(Collections.singletonList(direccion));
+	}
+
+	/**
+	 * Conectarse con el primero que conteste de varios dispositivos. Se llaman
+	 * a la vez, hasta setIntentosConexion, y los demas intentos se cancelan
+	 * cuando uno conecta
+	 * 
+	 * @param direcciones
+	 *            Las direcciones de los dispositivos, en orden de preferencia
+	 */
+	public synchronized void conectarAlguno(List<String> direcciones) {
 		// Cancelar cualquier hilo tratando de hacer una conexion
-		if (estado == ESTADO_CONECTANDO) {
-			if (hiloConectar != null) {
-				hiloConectar.cancelar();
-				hiloConectar = null;
-			}
+		if (hiloConectar != null) {
+			hiloConectar.cancelar();
+			hiloConectar = null;
 		}
 		// Cancelar cualquier subproceso actualmente en ejecucion de una
-		// conexion
-		if (hiloConectado != null) {
-			hiloConectado.cancelar();
-			hiloConectado = null;
+		// conexion, salvo en modo concentrador
+		if (maximoConexiones == 1) {
+			cancelarConexiones();
+			cancelarReconexiones();
+		} else {
+			for (String direccion : direcciones) {
+				cancelarReconexion(direccion);
+			}
+		}
+		// Iniciar el hilo para conectarse con los dispositivos dados
+		hiloConectar = new HiloConectar(new CarreraConexion(transporte,
+				direcciones, esperaIntentoConexion, intentosParalelos, motor),
+				conectador);
+		try {
+			motor.ejecutar(hiloConectar);
+		} catch (RejectedExecutionException ex) {
+			// Como un intento fallido, salvo que despues de cerrar() no se
+			// vuelve a escuchar
+			hiloConectar = null;
+			if (conexiones.isEmpty() && !motor.isDetenido()) {
+				iniciar();
+			}
+			conexionErronea();
+			return;
+		}
+		if (conexiones.isEmpty()) {
+			estado.pasar(ESTADO_CONECTANDO);
 		}
-		// Iniciar el hilo para conectarse con el dispositivo dado
-		hiloConectar = new HiloConectar(dispositivo); // ---------------
-		hiloConectar.start();
-		setEstado(ESTADO_CONECTANDO);
 	}
 
 	/**
 	 * Iniciar el ContectandoThread para comenzar a gestionar una conexion
 	 * Bluetooth
 	 * 
-	 * @param socket
-	 * @param dispositivo
+	 * @param canal
+	 *            El canal ya conectado con el dispositivo remoto
 	 */
-	public synchronized void conectado(BluetoothSocket socket,
-			BluetoothDevice dispositivo) {
+	public synchronized void conectado(CanalTransporte canal) {
+		conectado(canal, false, 0);
+	}
+
+	/**
+	 * Empezar a gestionar una conexion
+	 * 
+	 * @param canal
+	 *            El canal ya conectado con el dispositivo remoto
+	 * @param saliente
+	 *            true si la abrimos nosotros, y hay que reconectarla si se
+	 *            pierde
+	 * @param tiempoConexion
+	 *            Los nanosegundos que tardo en conectar, 0 si fue entrante
+	 */
+	private synchronized void conectado(CanalTransporte canal,
+			boolean saliente, long tiempoConexion) {
+		// Una conexion que termina despues de detener() no se usa
+		if (!estado.admite(ESTADO_CONECTADO)) {
+			try {
+				canal.cerrar();
+			} catch (IOException e) {
+			}
+			return;
+		}
+		// Ya no hace falta reconectar con este dispositivo
+		cancelarReconexion(canal.getDireccion());
 		// Cancelar el hilo que conecta la conexion
 		if (hiloConectar != null) {
 			hiloConectar.cancelar();
 			hiloConectar = null;
 		}
 		// Cancelar cualquier subproceso actualmente en ejecucion de una
-		// conexion
-		if (hiloConectado != null) {
-			hiloConectado.cancelar();
-			hiloConectado = null;
+		// conexion. En modo concentrador solo se reemplaza una conexion
+		// anterior con el mismo dispositivo
+		if (maximoConexiones == 1) {
+			cancelarConexiones();
+		} else {
+			Conexion anterior = conexiones.get(canal.getDireccion());
+			if (anterior != null) {
+				quitarConexion(anterior);
+				anterior.cancelar();
+			}
 		}
-		// Cancelar el hilo de aceptar, porque lo unico que queremos es conectar
-		// el dispositivo
-		if (hiloAceptar != null) {
+		// Iniciar el hilo para administrar la conexion y realizar las
+		// transmisiones
+		Conexion nueva = new Conexion(canal, saliente,
+				tiempoConexion);
+		// Lo primero que se envia son las capacidades de este extremo
+		nueva.negociar();
+		conexiones.put(nueva.direccion, nueva);
+		actualizarConexionesActivas();
+		if (!nueva.iniciar(elegirLector())) {
+			// Ya se dio por perdida
+			return;
+		}
+		if (temporizador == null) {
+			temporizador = new Timer("Temporizador", true);
+			temporizador.schedule(new RevisarConexiones(),
+					PERIODO_TEMPORIZADOR, PERIODO_TEMPORIZADOR);
+		}
+
+		// Cancelar el hilo de aceptar si ya no hay lugar para mas conexiones
+		if (conexiones.size() >= maximoConexiones && hiloAceptar != null) {
 			hiloAceptar.cancelar();
 			hiloAceptar = null;
 		}
-		// Iniciar el hilo para administrar la conexion y realizar las
-		// transmisiones
-		hiloConectado = new HiloConectado(socket); // ------------------
-		hiloConectado.start();
 
 		// Enviar el nombre del dispositivo conectado de regreso a la Actividad
 		// de interfaz de usuario
-		Message mensaje = controlador
-				.obtainMessage(PrincipalActivity.MENSAJE_NOMBRE_DISPOSITIVO);
-		Bundle bundle = new Bundle();
-		bundle.putString(PrincipalActivity.NOMBRE_DISPOSITIVO,
-				dispositivo.getName());
-		mensaje.setData(bundle);
-		controlador.sendMessage(mensaje);
-		setEstado(ESTADO_CONECTADO);
+		oyente.dispositivoConectado(canal.getNombre());
+		estado.pasar(ESTADO_CONECTADO);
 	}
 
 	/**
-	 * Detener todos los hilos
+	 * Detener todas las tareas. Los hilos del motor quedan libres para cuando
+	 * se vuelva a iniciar
 	 */
 	public synchronized void detener() {
 		if (hiloConectar != null) {
 			hiloConectar.cancelar();
 			hiloConectar = null;
 		}
-		if (hiloConectado != null) {
-			hiloConectado.cancelar();
-			hiloConectado = null;
-		}
+		cancelarReconexiones();
+		cancelarConexiones();
 		if (hiloAceptar != null) {
 			hiloAceptar.cancelar();
 			hiloAceptar = null;
 		}
-		setEstado(ESTADO_NINGUNO);
+		if (lectores != null) {
+			for (LectorMultiplexado lector : lectores) {
+				lector.cancelar();
+			}
+			lectores = null;
+		}
+		if (temporizador != null) {
+			temporizador.cancel();
+			temporizador = null;
+		}
+		estado.pasar(ESTADO_NINGUNO);
 	}
 
 	/**
-	 * Escribir al HiloConectado de una sincronizada
+	 * Detener todo y terminar los hilos del motor. Despues ya no se puede
+	 * iniciar ni conectar
+	 * 
+	 * @param milisegundos
+	 *            Lo maximo que se espera a que terminen los hilos
+	 * @return true si todos los hilos terminaron a tiempo
+	 */
+	public boolean cerrar(long milisegundos) {
+		detener();
+		return motor.detener(milisegundos);
+	}
+
+	/**
+	 * @return El motor en el que corren las tareas, para sus metricas
+	 */
+	public MotorHilos getMotor() {
+		return motor;
+	}
+
+	/**
+	 * Cancelar y quitar del registro todas las conexiones
+	 */
+	private synchronized void cancelarConexiones() {
+		for (Conexion conexion : conexionesActivas) {
+			conexion.cancelar();
+		}
+		conexiones.clear();
+		actualizarConexionesActivas();
+	}
+
+	/**
+	 * Cancelar todos los intentos de reconexion en curso
+	 */
+	private synchronized void cancelarReconexiones() {
+		for (HiloReconectar reconexion : reconexiones.values()) {
+			reconexion.cancelar();
+		}
+		reconexiones.clear();
+	}
+
+	private synchronized void cancelarReconexion(String direccion) {
+		HiloReconectar reconexion = reconexiones.remove(direccion);
+		if (reconexion != null) {
+			reconexion.cancelar();
+		}
+	}
+
+	/**
+	 * @param instanciaRemota
+	 *            El identificador de la instancia del otro extremo
+	 * @return La sesion con esa instancia, nueva si no se conocia
+	 */
+	private Sesion obtenerSesion(long instanciaRemota) {
+		synchronized (sesiones) {
+			Sesion sesion = sesiones.get(instanciaRemota);
+			if (sesion == null) {
+				sesion = new Sesion(instanciaRemota, latencias);
+				sesiones.put(instanciaRemota, sesion);
+			}
+			return sesion;
+		}
+	}
+
+	/**
+	 * Quitar una conexion del registro si sigue registrada
+	 * 
+	 * @return true si la conexion estaba registrada
+	 */
+	private synchronized boolean quitarConexion(Conexion conexion) {
+		if (!conexiones.remove(conexion.direccion, conexion)) {
+			return false;
+		}
+		actualizarConexionesActivas();
+		return true;
+	}
+
+	private synchronized void actualizarConexionesActivas() {
+		conexionesActivas = conexiones.values().toArray(
+				new Conexion[conexiones.size()]);
+	}
+
+	/**
+	 * Encolar un mensaje para la conexion. No bloquea salvo que la
+	 * politica por defecto sea BLOQUEAR
 	 * 
 	 * @param out
 	 *            Los bytes para escribir
+	 * @return El envio, para consultar o esperar su resultado
 	 */
-	public void escribir(byte[] out) {
-		// Creando un objeto temporal
-		HiloConectado r;
-		// Sincronizar una copia de HiloConectado
-		synchronized (this) {
-			if (estado != ESTADO_CONECTADO)
-				return;
-			r = hiloConectado;
+	public Envio escribir(byte[] out) {
+		return escribir(out, politicaColaLlena, null);
+	}
+
+	/**
+	 * Encolar un mensaje para la conexion. En modo concentrador el
+	 * mensaje se envia a todos los dispositivos conectados
+	 * 
+	 * @param out
+	 *            Los bytes para escribir
+	 * @param politica
+	 *            Lo que se hace si la cola de envio esta llena
+	 * @param oyente
+	 *            Quien recibe el resultado del envio, puede ser null
+	 * @return El envio, para consultar o esperar su resultado
+	 */
+	public Envio escribir(byte[] out, PoliticaColaLlena politica,
+			OyenteEnvio oyente) {
+		return escribir(conexionesActivas, out, politica, oyente);
+	}
+
+	/**
+	 * Encolar un mensaje para un solo dispositivo conectado
+	 * 
+	 * @param direccion
+	 *            La direccion del dispositivo
+	 * @param out
+	 *            Los bytes para escribir
+	 * @param politica
+	 *            Lo que se hace si la cola de envio esta llena
+	 * @param oyente
+	 *            Quien recibe el resultado del envio, puede ser null
+	 * @return El envio, para consultar o esperar su resultado
+	 */
+	public Envio escribir(String direccion, byte[] out,
+			PoliticaColaLlena politica, OyenteEnvio oyente) {
+		Conexion conexion = conexiones.get(direccion);
+		return escribir(SIN_CONEXIONES, conexion, out, politica, oyente);
+	}
+
+	private Envio escribir(Conexion[] destinos, byte[] out,
+			PoliticaColaLlena politica, OyenteEnvio oyente) {
+		return escribir(destinos, destinos.length == 1 ? destinos[0] : null,
+				out, politica, oyente);
+	}
+
+	/**
+	 * Crear el envio y encolarlo sin tomar ningun lock. Con un solo destino
+	 * el envio es lo unico que se crea
+	 * 
+	 * @param destinos
+	 *            Las conexiones, si es una difusion
+	 * @param unico
+	 *            La conexion si hay una sola, o null
+	 */
+	private Envio escribir(Conexion[] destinos, Conexion unico, byte[] out,
+			PoliticaColaLlena politica, OyenteEnvio oyente) {
+		// El eco a la interfaz se hace una sola vez, cuando termina el envio
+		Envio envio = new Envio(Trama.TIPO_MENSAJE, out,
+				oyente != null ? new Eco(oyente) : eco);
+		if (out.length > Trama.LONGITUD_MAXIMA_CARGA) {
+			envio.fallar(new IOException("Mensaje demasiado largo"));
+			return envio;
+		}
+		if (unico == null && destinos.length == 0) {
+			envio.fallar(new IOException("No conectado"));
+			return envio;
+		}
+		// Encolar sin mantener el monitor, los hilos escritores hacen el resto
+		if (unico != null) {
+			encolar(unico, envio, politica);
+		} else {
+			Difusion difusion = new Difusion(envio, destinos.length);
+			for (Conexion conexion : destinos) {
+				encolar(conexion, difusion.crearParte(), politica);
+			}
+		}
+		return envio;
+	}
+
+	private void encolar(Conexion conexion, Envio envio,
+			PoliticaColaLlena politica) {
+		try {
+			conexion.colaEnvio.encolar(envio, politica);
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			envio.fallar(new IOException("Envio interrumpido"));
 		}
-		// Realizar una escritura sincronizada
-		r.escribir(out);
 	}
 
 	/**
@@ -211,153 +1113,290 @@ public class ServicioChat {
 	 * PrincipalActivity
 	 */
 	private void conexionErronea() {
-		setEstado(ESTADO_ESCUCHANDO);
 		// Enviar mensaje de fallo a la PrincipalActivity
-		Message mensaje = controlador
-				.obtainMessage(PrincipalActivity.MENSAJE_TOAST);
-		Bundle bundle = new Bundle();
-		bundle.putString(PrincipalActivity.TOAST,
-				"La conexion al dispositivo fallo");
-		mensaje.setData(bundle);
-		controlador.sendMessage(mensaje);
+		oyente.aviso("La conexion al dispositivo fallo");
 	}
 
-	private void conexionPerdida() {
-		setEstado(ESTADO_ESCUCHANDO);
+	/**
+	 * Indica que se perdio una conexion. Si fue cancelada a proposito ya no
+	 * esta registrada y no se avisa nada
+	 * 
+	 * @param conexion
+	 *            La conexion perdida
+	 */
+	private void conexionPerdida(Conexion conexion) {
+		boolean reconectar;
+		synchronized (this) {
+			if (!quitarConexion(conexion)) {
+				return;
+			}
+			// Detener su escritor y cerrar sus transferencias
+			conexion.cancelar();
+			// Perdida o con un error de protocolo antes de la primera trama
+			// valida: el canal pudo llevar a otro servicio
+			if (conexion.leyendo && !conexion.tramaValida) {
+				conexion.socket.protocoloDesconocido();
+			}
+			metricasReconexion.perdida();
+			if (conexion.sesion != null) {
+				conexion.sesion.perdida();
+			}
+			// Volver a llamar si la conexion era nuestra
+			reconectar = conexion.saliente && reconexionAutomatica
+					&& estado.getEstado() != ESTADO_NINGUNO
+					&& !reconexiones.containsKey(conexion.direccion);
+			if (reconectar) {
+				HiloReconectar reconexion = new HiloReconectar(
+						conexion.direccion);
+				reconexiones.put(conexion.direccion, reconexion);
+				try {
+					motor.ejecutar(reconexion);
+				} catch (RejectedExecutionException ex) {
+					reconexiones.remove(conexion.direccion);
+					reconectar = false;
+				}
+			}
+			if (conexiones.isEmpty()) {
+				estado.pasar(reconexiones.isEmpty() ? ESTADO_ESCUCHANDO
+						: ESTADO_CONECTANDO);
+			}
+			// Volver a escuchar si hay lugar para otra conexion
+			if (hiloAceptar == null && estado.getEstado() != ESTADO_NINGUNO) {
+				escuchar();
+			}
+		}
 		// Enviar mensaje de fallo a la PrincipalActivity
-		Message mensaje = controlador
-				.obtainMessage(PrincipalActivity.MENSAJE_TOAST);
-		Bundle bundle = new Bundle();
-		bundle.putString(PrincipalActivity.TOAST,
-				"La conexion al dispositivo ha sido perdida");
-		mensaje.setData(bundle);
-		controlador.sendMessage(mensaje);
+		oyente.aviso(reconectar ? "La conexion al dispositivo ha sido perdida, reconectando"
+				: "La conexion al dispositivo ha sido perdida");
 	}
 
-	// ***********************************************************************************
 	/**
-	 * Este hilo se ejecuta mientras la escucha de las conexiones entrantes. Se
-	 * comporta como un cliente al lado del servidor. Se ejecuta hasta que la
-	 * conexion es aceptada (o hasta que se cancele).
+	 * @return true si se puede aceptar otra conexion. No toma el monitor
 	 */
-	private class HiloAceptar extends Thread {
+	private boolean hayLugar() {
+		return estado.getEstado() != ESTADO_NINGUNO
+				&& conexiones.size() < maximoConexiones;
+	}
 
-		private final BluetoothServerSocket serverSocket;
+	/**
+	 * Tarea periodica del temporizador que revisa las confirmaciones y los
+	 * latidos de cada conexion
+	 */
+	private class RevisarConexiones extends TimerTask {
 
-		public HiloAceptar() {
-			BluetoothServerSocket temporal = null;
-			// Crear un nuevo SocketServer que escucha
-			try {
-				temporal = bluetoothAdapter.listenUsingRfcommWithServiceRecord(
-						NOMBRE, MI_UUID);
-			} catch (IOException e) {
+		public void run() {
+			long ahora = System.nanoTime();
+			for (Conexion conexion : conexionesActivas) {
+				conexion.revisarPrimeraTrama(ahora);
+				conexion.revisarConfirmaciones(ahora);
+				conexion.revisarLatidos(ahora);
 			}
-			serverSocket = temporal;
 		}
+	}
 
-		public void run() {
-			setName("HiloAceptar");
-			BluetoothSocket socket = null;
+	/**
+	 * Hace el eco de los mensajes propios a la interfaz y pasa el resultado
+	 * al oyente de quien escribio
+	 */
+	private class Eco implements OyenteEnvio {
 
-			// Escucha el socket servidor si no estamos conectamos
-			while (estado != ESTADO_CONECTADO) {
-				try {
-					// Se trata de un bloqueo de llamadas y solo devolvera un
-					// conexion con exito o una excepcion.
-					socket = serverSocket.accept();
-				} catch (IOException e) {
-					break;
-				}
+		private final OyenteEnvio siguiente;
 
-				// Si la conexion fue aceptada
-				if (socket != null) {
-					synchronized (ServicioChat.this) {
-						switch (estado) {
-						case ESTADO_ESCUCHANDO:
-						case ESTADO_CONECTANDO:
-							// Situacion normal. Iniciar el hilo conectado.
-							conectado(socket, socket.getRemoteDevice());
-							break;
-						case ESTADO_NINGUNO:
-						case ESTADO_CONECTADO:
-							// No esta listo o ya esta conectado. Terminar nuevo
-							// socket.
-							try {
-								socket.close();
-							} catch (IOException e) {
-							}
-							break;
-						}
-					}
-				}
+		Eco(OyenteEnvio siguiente) {
+			this.siguiente = siguiente;
+		}
+
+		public void envioCompletado(Envio envio) {
+			// Compartir el mensaje enviado por la PrincipalActivity
+			oyente.mensajeEscrito(envio.carga);
+			if (siguiente != null) {
+				siguiente.envioCompletado(envio);
 			}
 		}
 
-		public void cancelar() {
+		public void envioFallido(Envio envio, IOException causa) {
+			if (siguiente != null) {
+				siguiente.envioFallido(envio, causa);
+			}
+		}
+	}
+
+	// ***********************************************************************************
+	/**
+	 * Recibe las conexiones entrantes del HiloAceptar, que se ejecuta mientras
+	 * haya lugar para mas conexiones (o hasta que se cancele).
+	 */
+	private class Aceptador implements OyenteAceptar {
+
+		public boolean hayLugar() {
+			return ServicioChat.this.hayLugar();
+		}
+
+		public void aceptado(HiloAceptar hilo, CanalTransporte socket) {
+			synchronized (ServicioChat.this) {
+				switch (estado.getEstado()) {
+				case ESTADO_ESCUCHANDO:
+				case ESTADO_CONECTANDO:
+					// Situacion normal. Iniciar la conexion.
+					conectado(socket);
+					return;
+				case ESTADO_CONECTADO:
+					// En modo concentrador se aceptan mas conexiones
+					if (conexiones.size() < maximoConexiones) {
+						conectado(socket);
+						return;
+					}
+				}
+			}
+			// No esta listo o ya esta conectado. Terminar nuevo socket.
 			try {
-				serverSocket.close();
+				socket.cerrar();
 			} catch (IOException e) {
 			}
 		}
+
+		public void aceptarTerminado(HiloAceptar hilo) {
+			// Ya no hay lugar, dejar de escuchar hasta que se pierda una
+			// conexion
+			synchronized (ServicioChat.this) {
+				if (hiloAceptar == hilo) {
+					hiloAceptar = null;
+				}
+			}
+		}
 	}
 
 	// **********************************************************************************
 	/**
-	 * Este hilo se ejecuta al intentar realizar una conexion de salida con un
-	 * dispositivo. Se ejecuta directamente a traves de: la conexion se realiza
-	 * correctamente bien o no.
+	 * Recibe el resultado del HiloConectar, que intenta realizar una conexion
+	 * de salida con uno o varios dispositivos.
 	 */
-	private class HiloConectar extends Thread {
+	private class Conectador implements OyenteConectar {
 
-		private BluetoothSocket socket;
-		private BluetoothDevice dispositivo;
+		public void conectado(HiloConectar hilo, CanalTransporte socket,
+				long nanos) {
+			synchronized (ServicioChat.this) {
+				// Una conexion pedida antes, que se cancelo o se reemplazo
+				// por otra mientras ganaba su carrera, no se usa
+				if (hiloConectar != hilo) {
+					try {
+						socket.cerrar();
+					} catch (IOException e) {
+					}
+					return;
+				}
+				intentosConexion = hilo.getCarrera().getIntentos();
+				// Restablecer el HiloConectar, ya hemos terminado
+				hiloConectar = null;
+				// Iniciar la conexion, salvo que se haya detenido el
+				// servicio mientras tanto
+				ServicioChat.this.conectado(socket, true, nanos);
+			}
+		}
 
-		public HiloConectar(BluetoothDevice dispositivo) {
-			this.dispositivo = dispositivo;
-			BluetoothSocket temporal = null;
-			// Obtener un BluetoothSocket para una conexion con el
-			// BluetoothDevice dado.
-			try {
-				temporal = dispositivo
-						.createRfcommSocketToServiceRecord(MI_UUID);
-			} catch (IOException ex) {
+		public void conexionFallida(HiloConectar hilo, IOException causa) {
+			intentosConexion = hilo.getCarrera().getIntentos();
+			synchronized (ServicioChat.this) {
+				// Si se cancelo, quien lo cancelo ya cambio el estado
+				if (hiloConectar != hilo) {
+					return;
+				}
+				hiloConectar = null;
+				// Volver a escuchar si no quedo ninguna conexion
+				if (conexiones.isEmpty()) {
+					iniciar();
+				}
 			}
-			socket = temporal;
+			conexionErronea();
 		}
+	}
 
-		public void run() {
-			setName("HiloConectar");
-			// Siempre cancelar el descubirmiento, ya que se ralentizar la
-			// conexin.
-			bluetoothAdapter.cancelDiscovery();
+	// ************************************************************************
 
-			// Establezca una conexion a la BluetoothSocket.
-			try {
-				// Este es un bloque de llamadas y solo devolvera una conexion
-				// con exito o una excepcion
-				socket.connect();
-			} catch (IOException ex) {
-				conexionErronea();
-				// Cerrar socket
-				try {
-					socket.close();
-				} catch (IOException ex2) {
+	/**
+	 * Esta tarea vuelve a llamar a un dispositivo cuya conexion saliente se
+	 * perdio, esperando cada vez mas entre intentos, hasta conectar, agotar
+	 * los intentos o ser cancelada.
+	 */
+	private class HiloReconectar extends Tarea {
+
+		private final String direccion;
+		private final RetrocesoExponencial retroceso = new RetrocesoExponencial(
+				ESPERA_INICIAL_RECONEXION, ESPERA_MAXIMA_RECONEXION, azar);
+		private CanalTransporte socket;
+
+		public HiloReconectar(String direccion) {
+			super("HiloReconectar");
+			this.direccion = direccion;
+		}
 
+		@Override
+		protected void ejecutar() {
+			int maximo;
+			synchronized (ServicioChat.this) {
+				maximo = maximoIntentosReconexion;
+			}
+			while (!isCancelada() && retroceso.getIntentos() < maximo) {
+				try {
+					Thread.sleep(retroceso.siguiente());
+				} catch (InterruptedException ex) {
+					return;
+				}
+				metricasReconexion.intento();
+				CanalTransporte intento;
+				long inicio = System.nanoTime();
+				try {
+					intento = transporte.crearCanal(direccion);
+					synchronized (this) {
+						if (isCancelada()) {
+							cerrar(intento);
+							return;
+						}
+						socket = intento;
+					}
+					intento.conectar();
+				} catch (IOException ex) {
+					cancelarSocket();
+					continue;
+				}
+				synchronized (ServicioChat.this) {
+					// Pudo cancelarse mientras conectaba
+					if (!reconexiones.remove(direccion, this)) {
+						cancelarSocket();
+						return;
+					}
+					conectado(intento, true, System.nanoTime() - inicio);
 				}
-				ServicioChat.this.iniciar();
 				return;
 			}
-			// Restablecer el HiloConectar, ya hemos terminado
 			synchronized (ServicioChat.this) {
-				hiloConectar = null;
+				if (!reconexiones.remove(direccion, this)) {
+					return;
+				}
+				metricasReconexion.abandonada();
+				if (conexiones.isEmpty()) {
+					estado.pasar(ESTADO_ESCUCHANDO);
+				}
 			}
-			// Iniciar el hilo conectado
-			conectado(socket, dispositivo);
+			oyente.aviso("No se pudo reconectar con el dispositivo");
 		}
 
-		public void cancelar() {
+		@Override
+		protected void alCancelar() {
+			cancelarSocket();
+		}
+
+		private synchronized void cancelarSocket() {
+			if (socket == null) {
+				return;
+			}
+			cerrar(socket);
+			socket = null;
+		}
+
+		private void cerrar(CanalTransporte canal) {
 			try {
-				socket.close();
+				canal.cerrar();
 			} catch (IOException e) {
 			}
 		}
@@ -366,69 +1405,445 @@ public class ServicioChat {
 	// ************************************************************************
 
 	/**
-	 * Este hilo se ejecuta durante la conexin con un dispositivo remoto. Se
-	 * ocupa de todas las transmisiones entrantes y salientes.
+	 * Una conexion con un dispositivo remoto. Se ocupa de todas las
+	 * transmisiones entrantes y salientes: lee en una tarea HiloConectado o en
+	 * un LectorMultiplexado, y escribe en su HiloEscritor.
 	 */
-	private class HiloConectado extends Thread {
+	private class Conexion implements OyenteTramas,
+			OyenteLectura, DestinoTramas {
 
-		private BluetoothSocket socket;
+		private CanalTransporte socket;
+		private final String direccion;
+		private final String nombre;
 		private InputStream flujoEntrada;
 		private OutputStream flujoSalida;
+		private CodificadorTramas codificador;
+		private final ColaEnvio colaEnvio;
+		private final EscritorLotes escritorLotes;
+		private final HiloEscritor hiloEscritor;
+		// Las tramas se reconstruyen a partir de lo que se lee
+		private final DecodificadorTramas decodificador = new DecodificadorTramas(
+				this);
+		private LectorMultiplexado lector;
+		// La tarea que lee, si no hay lector compartido
+		private volatile HiloConectado lectura;
+		// Compresion ofrecida al otro extremo, null si no se ofrecio
+		private final CompresionTramas compresion;
+		private final ReceptorArchivos receptorArchivos;
+		// Creditos de lo recibido, si el otro extremo los respeta
+		private final DevolucionCreditos devolucionCreditos = new DevolucionCreditos();
+		private boolean devolverCreditos;
+		// Si la abrimos nosotros, para reconectarla
+		private final boolean saliente;
+		// La sesion con el otro extremo, cuando se conoce su instancia
+		private volatile Sesion sesion;
+		// Si ya se reanudo la sesion y los mensajes esperan confirmacion
+		private volatile boolean reanudada;
+		// Si llegaron mensajes que todavia no se confirmaron. Solo lo usa
+		// quien lee
+		private boolean confirmacionPendiente;
+		private final MetricasConexion metricas;
+		// Null si no se envian latidos
+		private final DetectorLatidos latidos;
+		// Si ya llego una trama valida, prueba de que del otro lado esta el
+		// chat y no otro servicio en el mismo canal
+		private final long creada = System.nanoTime();
+		// Si ya se empezo a leer, para no culpar al canal si no se pudo
+		private volatile boolean leyendo;
+		private volatile boolean tramaValida;
+		private boolean protocoloAvisado;
 
-		public HiloConectado(BluetoothSocket socket) {
+		public Conexion(CanalTransporte socket, boolean saliente,
+				long tiempoConexion) {
 			this.socket = socket;
+			this.saliente = saliente;
+			direccion = socket.getDireccion();
+			nombre = socket.getNombre();
 			InputStream flujoEntradaTemporal = null;
 			OutputStream flujoSalidaTemporal = null;
-			// Obtener los flujos de entrada y salida del BluetoothSocket
+			// Obtener los flujos de entrada y salida del canal
 			try {
-				flujoEntradaTemporal = socket.getInputStream();
-				flujoSalidaTemporal = socket.getOutputStream();
+				flujoEntradaTemporal = socket.getFlujoEntrada();
+				flujoSalidaTemporal = socket.getFlujoSalida();
 			} catch (IOException ex) {
 
 			}
 			flujoEntrada = flujoEntradaTemporal;
 			flujoSalida = flujoSalidaTemporal;
+			codificador = new CodificadorTramas(flujoSalida);
+			colaEnvio = new ColaEnvio(capacidadColaEnvio);
+			escritorLotes = new EscritorLotes(colaEnvio, codificador,
+					configuracionLotes);
+			hiloEscritor = new HiloEscritor(this);
+			compresion = ofrecerCompresion ? new CompresionTramas(
+					umbralCompresion) : null;
+			receptorArchivos = new ReceptorArchivos(directorioRecepcion,
+					direccion, oyenteTransferencia);
+			metricas = new MetricasConexion(tiempoConexion, escrituras);
+			latidos = intervaloLatidos > 0 ? new DetectorLatidos(
+					TimeUnit.MILLISECONDS.toNanos(intervaloLatidos),
+					latidosPerdidos) : null;
+			escritorLotes.setMetricas(metricas);
+			// Los mensajes esperan hasta saber si hay que reanudar una sesion
+			colaEnvio.pausar(Canal.CHAT);
 		}
 
-		public void run() {
-			byte[] buffer = new byte[1024];
-			int bytes;
-			// Seguimos escuchando el InputStream mientras esta conectado
-			while (true) {
+		/**
+		 * Encolar las tramas con las capacidades y la instancia de este
+		 * extremo, antes que cualquier mensaje
+		 */
+		void negociar() {
+			byte[] capacidades = {
+					(byte) (compresion != null ? Trama.CODEC_DEFLATE : 0),
+					(byte) (Trama.CAPACIDAD_CREDITOS | Trama.CAPACIDAD_SESION
+							| Trama.CAPACIDAD_LATIDOS) };
+			encolar(this, new Envio(Trama.TIPO_CAPACIDADES, capacidades, null),
+					PoliticaColaLlena.BLOQUEAR);
+			encolar(this, new Envio(Trama.TIPO_SESION, Sesion
+					.crearCargaSesion(instancia), null),
+					PoliticaColaLlena.BLOQUEAR);
+		}
+
+		/**
+		 * Empezar a atender la conexion
+		 * 
+		 * @param lector
+		 *            El lector compartido que lee esta conexion, o null para
+		 *            leer en su propia tarea
+		 * @return false si no se pudo, sin flujo de entrada o sin hilos
+		 *         libres en el motor. La conexion ya se dio por perdida
+		 */
+		boolean iniciar(LectorMultiplexado lector) {
+			this.lector = lector;
+			try {
+				motor.ejecutar(hiloEscritor);
+				if (flujoEntrada == null) {
+					conexionPerdida(this);
+					return false;
+				}
+				leyendo = true;
+				if (lector != null) {
+					lector.registrar(flujoEntrada, this);
+					return true;
+				}
+				lectura = new HiloConectado(flujoEntrada, this, TAMANO_LECTURA);
+				motor.ejecutar(lectura);
+				return true;
+			} catch (RejectedExecutionException ex) {
+				// Se quita de las conexiones y se cierra el canal
+				leyendo = false;
+				conexionPerdida(this);
+				return false;
+			}
+		}
+
+		/**
+		 * Se llama desde el LectorMultiplexado o el HiloConectado con lo que
+		 * se leyo
+		 */
+		public void datosLeidos(byte[] datos, int offset, int cantidad)
+				throws IOException {
+			metricas.leido(cantidad);
+			if (latidos != null) {
+				latidos.leido(System.nanoTime());
+			}
+			decodificador.alimentar(datos, offset, cantidad);
+			confirmarRecibidos();
+		}
+
+		/**
+		 * Confirmar con una sola trama todos los mensajes de la ultima
+		 * lectura
+		 */
+		private void confirmarRecibidos() {
+			if (!confirmacionPendiente) {
+				return;
+			}
+			confirmacionPendiente = false;
+			encolar(this, new Envio(Trama.TIPO_CONFIRMACION, Sesion
+					.crearCargaNumero(sesion.getUltimoRecibido()), null),
+					PoliticaColaLlena.BLOQUEAR);
+		}
+
+		/**
+		 * Enviar un latido si la conexion esta en silencio, o darla por
+		 * perdida si ya no contesta. Lo llama el temporizador
+		 * 
+		 * @param ahora
+		 *            El momento actual, de System.nanoTime()
+		 */
+		void revisarLatidos(long ahora) {
+			if (latidos == null) {
+				return;
+			}
+			switch (latidos.revisar(ahora)) {
+			case DetectorLatidos.ENVIAR:
+				encolar(this, new Envio(Trama.TIPO_LATIDO, DetectorLatidos
+						.crearCarga(ahora), null), PoliticaColaLlena.BLOQUEAR);
+				break;
+			case DetectorLatidos.MUERTA:
+				conexionPerdida(this);
+				break;
+			}
+		}
+
+		/**
+		 * Avisar al transporte, una vez, si el otro extremo no mando ninguna
+		 * trama valida a tiempo. La conexion sigue, pero la proxima vez se
+		 * buscara el servicio. Lo llama el temporizador
+		 * 
+		 * @param ahora
+		 *            El momento actual, de System.nanoTime()
+		 */
+		void revisarPrimeraTrama(long ahora) {
+			if (tramaValida || protocoloAvisado
+					|| ahora - creada < TimeUnit.MILLISECONDS
+							.toNanos(ESPERA_PRIMERA_TRAMA)) {
+				return;
+			}
+			protocoloAvisado = true;
+			socket.protocoloDesconocido();
+		}
+
+		/**
+		 * Dar la conexion por perdida si las confirmaciones se demoran mas de
+		 * lo esperado varias veces seguidas. Lo llama el temporizador
+		 * 
+		 * @param ahora
+		 *            El momento actual, de System.nanoTime()
+		 */
+		void revisarConfirmaciones(long ahora) {
+			Sesion actual = sesion;
+			if (actual == null || !reanudada) {
+				return;
+			}
+			if (actual.vencido(ahora)
+					&& actual.getVencimientosSeguidos() > MAXIMO_VENCIMIENTOS) {
+				// El otro extremo no contesta, reconectar y reanudar
+				conexionPerdida(this);
+			}
+		}
+
+		public void lecturaPerdida(IOException causa) {
+			conexionPerdida(this);
+		}
+
+		/**
+		 * Se llama una vez por cada trama completa recibida
+		 */
+		public void tramaRecibida(int tipo, int banderas, int secuencia,
+				byte[] carga, int offset, int longitud) throws IOException {
+			tramaValida = true;
+			switch (tipo) {
+			case Trama.TIPO_CAPACIDADES:
+				// Comprimir solo si el otro extremo sabe descomprimir
+				if (compresion != null && longitud > 0
+						&& (carga[offset] & Trama.CODEC_DEFLATE) != 0) {
+					escritorLotes.setCompresion(compresion);
+				}
+				int otras = longitud > 1 ? carga[offset + 1] : 0;
+				if ((otras & Trama.CAPACIDAD_CREDITOS) != 0) {
+					devolverCreditos = true;
+					colaEnvio.habilitarCreditos();
+				}
+				if ((otras & Trama.CAPACIDAD_LATIDOS) != 0 && latidos != null) {
+					latidos.habilitar();
+				}
+				if ((otras & Trama.CAPACIDAD_SESION) == 0) {
+					// Un extremo sin sesiones, los mensajes salen sin esperar
+					colaEnvio.reanudar(Canal.CHAT, new ArrayList<Envio>());
+				}
+				return;
+			case Trama.TIPO_SESION:
+				// Contestar con lo ultimo que recibimos de esa instancia
+				sesion = obtenerSesion(Sesion.leerInstancia(carga, offset,
+						longitud));
+				escritorLotes.setSesion(sesion);
+				colaEnvio.limitarVentana(sesion, ventanaMensajes);
+				encolar(this, new Envio(Trama.TIPO_REANUDAR, Sesion
+						.crearCargaNumero(sesion.getUltimoRecibido()), null),
+						PoliticaColaLlena.BLOQUEAR);
+				return;
+			case Trama.TIPO_REANUDAR:
+				if (sesion == null) {
+					throw new IOException("Reanudacion sin sesion");
+				}
+				// Reenviar lo que no llego antes que los mensajes nuevos
+				List<Envio> reenvios = sesion.reanudar(Sesion.leerNumero(carga,
+						offset, longitud));
+				colaEnvio.reanudar(Canal.CHAT, reenvios);
+				reanudada = true;
+				long recuperacion = sesion.reanudada();
+				if (recuperacion >= 0) {
+					metricasReconexion.reanudada(recuperacion, reenvios.size());
+				}
+				return;
+			case Trama.TIPO_CONFIRMACION:
+				if (sesion == null) {
+					throw new IOException("Confirmacion sin sesion");
+				}
+				int confirmado = Sesion.leerNumero(carga, offset, longitud);
+				if (sesion.confirmar(confirmado) > 0) {
+					colaEnvio.ventanaLiberada();
+				}
+				return;
+			case Trama.TIPO_LATIDO:
+				// Devolver la misma marca para que el otro mida la demora
+				encolar(this, new Envio(Trama.TIPO_LATIDO_RESPUESTA,
+						DetectorLatidos.crearCarga(DetectorLatidos.leerMarca(
+								carga, offset, longitud)), null),
+						PoliticaColaLlena.BLOQUEAR);
+				return;
+			case Trama.TIPO_LATIDO_RESPUESTA:
+				if (latidos != null) {
+					latidos.respondido(DetectorLatidos.leerMarca(carga, offset,
+							longitud));
+				}
+				return;
+			case Trama.TIPO_CREDITO:
+				colaEnvio.sumarCreditos(DevolucionCreditos.leerCanal(carga,
+						offset, longitud), DevolucionCreditos.leerCantidad(
+						carga, offset));
+				return;
+			case Trama.TIPO_MENSAJE:
+				// Con sesion la secuencia es el numero del mensaje, y lo que
+				// ya llego antes de reconectar se descarta
+				if (sesion == null || sesion.recibido(secuencia)) {
+					metricas.mensajeRecibido();
+					mensajeRecibido(banderas, carga, offset, longitud);
+				}
+				// Los duplicados tambien se confirman, pudo perderse la
+				// confirmacion anterior
+				if (sesion != null) {
+					confirmacionPendiente = true;
+				}
+				break;
+			case Trama.TIPO_ARCHIVO_INICIO:
+			case Trama.TIPO_ARCHIVO_BLOQUE:
+			case Trama.TIPO_ARCHIVO_FIN:
+				receptorArchivos.tramaRecibida(tipo, carga, offset, longitud);
+				break;
+			default:
+				return;
+			}
+			// La trama ya se proceso, devolver su credito
+			if (devolverCreditos) {
+				byte[] credito = devolucionCreditos.procesada(Canal
+						.deTipo(tipo));
+				if (credito != null) {
+					encolar(this, new Envio(Trama.TIPO_CREDITO, credito, null),
+							PoliticaColaLlena.BLOQUEAR);
+				}
+			}
+		}
+
+		private void mensajeRecibido(int banderas, byte[] carga, int offset,
+				int longitud) throws IOException {
+			// Copiar el mensaje a un buffer prestado porque el decodificador
+			// reutiliza el arreglo. El receptor lo libera al decodificarlo.
+			BufferArrendado mensaje;
+			if ((banderas & Trama.BANDERA_COMPRIMIDA) != 0) {
+				if (compresion == null) {
+					throw new IOException("Trama comprimida sin negociar");
+				}
+				mensaje = poolRecepcion.arrendar(CompresionTramas
+						.leerLongitudOriginal(carga, offset, longitud));
 				try {
-					// Leer desde el InputStream
-					bytes = flujoEntrada.read(buffer);
-					// Enviar los bytes obtenidos a la actividad de interfaz
-					// grafica
-					controlador.obtainMessage(PrincipalActivity.MENSAJE_LEER, bytes, -1, buffer)
-							.sendToTarget();
+					mensaje.longitud = compresion.descomprimir(carga, offset,
+							longitud, mensaje.datos);
 				} catch (IOException ex) {
-					conexionPerdida();
-					break;
+					mensaje.liberar();
+					throw ex;
 				}
+			} else {
+				mensaje = poolRecepcion.arrendar(longitud);
+				mensaje.copiar(carga, offset, longitud);
 			}
+			mensaje.remitente = nombre;
+			// Enviar el mensaje completo a la actividad de interfaz grafica
+			oyente.mensajeLeido(mensaje);
 		}
 
 		/**
-		 * Escribir al flujo de salida conectado
-		 * @param buffer
-		 *            Los bytes para escribir
+		 * Escribir el siguiente lote de envios al flujo de salida conectado.
+		 * Solo lo llama el HiloEscritor
+		 * 
+		 * @throws IOException
+		 *             Si falla la escritura en el socket
+		 * @throws InterruptedException
+		 *             Si se interrumpe la espera de envios
 		 */
-		public void escribir(byte[] buffer) {
-			try {
-				flujoSalida.write(buffer);
-				// Compartir el mensaje enviado por la PrincipalActivity
-				controlador.obtainMessage(PrincipalActivity.MENSAJE_ESCRIBIR, -1, -1, buffer).sendToTarget();
-			} catch (IOException ex) {
-
+		void escribirLote() throws IOException, InterruptedException {
+			escritorLotes.escribirLote();
+			// La respuesta suele llegar pronto, que el lector compartido no
+			// este en su espera mas larga
+			if (lector != null) {
+				lector.despertar();
 			}
 		}
 
+		/**
+		 * Encolar una trama de archivo, esperando si la cola esta llena. No
+		 * hace eco en la interfaz
+		 */
+		public Envio enviar(int tipo, byte[] carga) {
+			Envio envio = new Envio(tipo, carga, null);
+			encolar(this, envio, PoliticaColaLlena.BLOQUEAR);
+			return envio;
+		}
+
 		public void cancelar() {
+			hiloEscritor.cancelar();
+			receptorArchivos.cerrar(new IOException("Conexion cerrada"));
+			if (lector != null) {
+				lector.quitar(this);
+			}
+			if (lectura != null) {
+				lectura.cancelar();
+			}
+			if (compresion != null) {
+				compresion.cerrar();
+			}
 			try {
-				socket.close();
+				socket.cerrar();
 			} catch (IOException e) {
 			}
 		}
 	}
+
+	// ************************************************************************
+
+	/**
+	 * Esta tarea vacia la cola de envio de una conexion, agrupando los envios
+	 * en lotes. Asi las escrituras bloqueantes en el socket nunca ocurren en el
+	 * hilo de quien escribe.
+	 */
+	private class HiloEscritor extends Tarea {
+
+		private final Conexion conexion;
+
+		public HiloEscritor(Conexion conexion) {
+			super("HiloEscritor");
+			this.conexion = conexion;
+		}
+
+		@Override
+		protected void ejecutar() {
+			while (!isCancelada()) {
+				try {
+					conexion.escribirLote();
+				} catch (InterruptedException ex) {
+					break;
+				} catch (IOException ex) {
+					// Igual que si fallara la lectura. Con un lector
+					// compartido quitar la conexion no avisa nada, asi que
+					// cerrar el socket no basta
+					conexionPerdida(conexion);
+					break;
+				}
+			}
+			conexion.escritorLotes.cerrar(new IOException("Conexion cerrada"));
+			conexion.colaEnvio.cerrar(new IOException("Conexion cerrada"));
+		}
+	}
 }
@@ -0,0 +1,229 @@
+package com.blogspot.zomwi.chatbluetooth;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.blogspot.zomwi.chatbluetooth.historial.HistorialMensajes;
+import com.blogspot.zomwi.chatbluetooth.historial.ModeloConversacion;
+import com.blogspot.zomwi.chatbluetooth.transporte.TransporteRfcomm;
+
+import android.app.Notification;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.content.Intent;
+import android.os.Binder;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.IBinder;
+
+/**
+ * Servicio de Android que mantiene el ServicioChat, sus conexiones y la
+ * conversacion mientras las actividades van y vienen. Las actividades se
+ * enlazan con bindService() y reciben los eventos en su Handler a traves del
+ * OyenteControlador; sin actividad enlazada los mensajes se siguen guardando
+ * en el historial.
+ *
+ * Tiene su propio hilo de trabajo, donde se guardan los mensajes y se inicia
+ * el ServicioChat, asi nada de eso ocurre en el hilo de la interfaz. Mientras
+ * hay una conexion el servicio pasa a primer plano, para que el sistema no lo
+ * mate con la actividad en segundo plano.
+ */
+public class ServicioConexiones extends Service {
+
+	// Cuantos mensajes de la conversacion se guardan en memoria
+	private static final int VENTANA_CONVERSACION = 200;
+
+	// Lo que se espera a que terminen los hilos del ServicioChat al
+	// destruir el servicio, en milisegundos
+	private static final long ESPERA_CIERRE = 2000;
+
+	// Identificador de la notificacion de primer plano
+	private static final int NOTIFICACION_CONECTADO = 1;
+
+	private final IBinder enlace = new Enlace();
+
+	private HandlerThread hiloTrabajo;
+	private Handler trabajo;
+	private TransporteRfcomm transporte;
+	private ServicioChat servicioChat;
+	private OyenteControlador oyente;
+	// Usados solo en el hilo de trabajo
+	private HistorialMensajes historial;
+	private boolean primerPlano;
+
+	/**
+	 * Lo que reciben las actividades al enlazarse
+	 */
+	public class Enlace extends Binder {
+
+		public ServicioConexiones getServicio() {
+			return ServicioConexiones.this;
+		}
+	}
+
+	@Override
+	public void onCreate() {
+		super.onCreate();
+		hiloTrabajo = new HandlerThread("ServicioConexiones");
+		hiloTrabajo.start();
+		trabajo = new Handler(hiloTrabajo.getLooper());
+
+		oyente = new OyenteControlador(hiloTrabajo.getLooper()) {
+
+			@Override
+			public void estadoCambiado(int estado) {
+				super.estadoCambiado(estado);
+				trabajo.post(actualizarPrimerPlano);
+			}
+		};
+		// Abrir el historial y leer los ultimos mensajes fuera del hilo de la
+		// interfaz, antes que cualquier otro trabajo
+		trabajo.post(new Runnable() {
+
+			public void run() {
+				abrirHistorial();
+				oyente.setModelo(new ModeloConversacion(historial,
+						VENTANA_CONVERSACION));
+			}
+		});
+
+		// Inicializar el ServicioChat para realizar conexiones Bluetooth
+		transporte = new TransporteRfcomm(BluetoothAdapter.getDefaultAdapter(),
+				new File(getFilesDir(), "servicios"));
+		servicioChat = new ServicioChat(transporte, oyente);
+		transporte.setMotor(servicioChat.getMotor());
+		// Los archivos recibidos se guardan en el almacenamiento privado
+		servicioChat.setOyenteTransferencia(oyente);
+		servicioChat.setDirectorioRecepcion(getDir("recibidos", MODE_PRIVATE));
+	}
+
+	@Override
+	public int onStartCommand(Intent intent, int flags, int startId) {
+		// Sigue corriendo hasta que la actividad lo detenga
+		return START_STICKY;
+	}
+
+	@Override
+	public IBinder onBind(Intent intent) {
+		return enlace;
+	}
+
+	@Override
+	public void onDestroy() {
+		super.onDestroy();
+		// Detener el servicio de Bluetooth. A sus hilos se los espera en el
+		// hilo de trabajo y no en el de la interfaz, y el historial se cierra
+		// despues de guardar los ultimos lotes
+		servicioChat.detener();
+		trabajo.post(new Runnable() {
+
+			public void run() {
+				servicioChat.cerrar(ESPERA_CIERRE);
+				transporte.liberar();
+				// El GUARDAR_LOTE programado se descartaria al terminar el
+				// looper, con sus mensajes y sus buffers
+				oyente.guardarPendientes();
+				if (historial != null) {
+					try {
+						historial.cerrar();
+					} catch (IOException e) {
+					}
+					historial = null;
+				}
+				hiloTrabajo.quit();
+			}
+		});
+		stopForeground(true);
+	}
+
+	/**
+	 * Empezar a escuchar si el ServicioChat no habia empezado, y preparar en
+	 * segundo plano las conexiones con los dispositivos vinculados. El
+	 * Bluetooth debe estar activado
+	 */
+	public void iniciar() {
+		trabajo.post(new Runnable() {
+
+			public void run() {
+				// Solo si el estado ESTADO_NINGUNO, sabemos que no hemos
+				// empezado
+				if (servicioChat.getEstado() != ServicioChat.ESTADO_NINGUNO) {
+					return;
+				}
+				servicioChat.iniciar();
+				List<String> vinculados = new ArrayList<String>();
+				for (BluetoothDevice dispositivo : BluetoothAdapter
+						.getDefaultAdapter().getBondedDevices()) {
+					vinculados.add(dispositivo.getAddress());
+				}
+				transporte.precalentar(vinculados);
+			}
+		});
+	}
+
+	/**
+	 * @return El motor de conexiones
+	 */
+	public ServicioChat getServicioChat() {
+		return servicioChat;
+	}
+
+	/**
+	 * @return El transporte del ServicioChat, con sus metricas de conexion
+	 */
+	public TransporteRfcomm getTransporte() {
+		return transporte;
+	}
+
+	/**
+	 * @return Quien pasa los eventos a la actividad enlazada y publica la
+	 *         conversacion
+	 */
+	public OyenteControlador getOyente() {
+		return oyente;
+	}
+
+	/**
+	 * Abrir el historial de la conversacion
+	 */
+	private void abrirHistorial() {
+		try {
+			historial = new HistorialMensajes(getDir("historial",
+					MODE_PRIVATE));
+		} catch (IOException e) {
+			// Seguimos sin historial, solo en memoria
+			historial = null;
+		}
+	}
+
+	// Pasar a primer plano mientras haya una conexion
+	private final Runnable actualizarPrimerPlano = new Runnable() {
+
+		public void run() {
+			boolean conectado = oyente.getEstado() == ServicioChat.ESTADO_CONECTADO;
+			if (conectado == primerPlano) {
+				return;
+			}
+			primerPlano = conectado;
+			if (!conectado) {
+				stopForeground(true);
+				return;
+			}
+			CharSequence texto = getText(R.string.conectado)
+					+ oyente.getNombreConectado();
+			Notification notificacion = new Notification(R.drawable.ic_launcher,
+					texto, System.currentTimeMillis());
+			PendingIntent abrir = PendingIntent.getActivity(
+					ServicioConexiones.this, 0, new Intent(
+							ServicioConexiones.this, PrincipalActivity.class),
+					0);
+			notificacion.setLatestEventInfo(ServicioConexiones.this,
+					getText(R.string.app_name), texto, abrir);
+			startForeground(NOTIFICACION_CONECTADO, notificacion);
+		}
+	};
+}
@@ -0,0 +1,103 @@
+package com.blogspot.zomwi.chatbluetooth.conexion;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Junta los elementos que llegan desde los hilos de conexion para que la
+ * interfaz los tome todos juntos en una sola pasada, en el orden en que
+ * llegaron. Solo el primer elemento de cada lote pide una publicacion, asi
+ * que el hilo de la interfaz recibe un aviso por lote y no uno por mensaje.
+ *
+ * Lleva la cuenta del tamano de los lotes y de la latencia desde que llega el
+ * primer elemento de un lote hasta que se toma.
+ *
+ * @param <T>
+ *            El tipo de los elementos
+ */
+public class AgrupadorEntregas<T> {
+
+	private List<T> pendientes = new ArrayList<T>();
+	private long llegadaPrimero;
+
+	// Metricas
+	private long lotes;
+	private long elementos;
+	private int tamanoMaximo;
+	private long latenciaTotal;
+	private long latenciaMaxima;
+
+	/**
+	 * Agregar un elemento al lote en curso
+	 *
+	 * @param elemento
+	 *            El elemento
+	 * @return true si es el primero del lote, y hay que pedir la publicacion
+	 */
+	public synchronized boolean agregar(T elemento) {
+		pendientes.add(elemento);
+		if (pendientes.size() == 1) {
+			llegadaPrimero = System.nanoTime();
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Tomar todo el lote en curso
+	 *
+	 * @param destino
+	 *            Donde se agregan los elementos
+	 * @return Cuantos elementos se tomaron
+	 */
+	public synchronized int tomar(List<T> destino) {
+		int cantidad = pendientes.size();
+		if (cantidad == 0) {
+			return 0;
+		}
+		destino.addAll(pendientes);
+		pendientes.clear();
+		long latencia = System.nanoTime() - llegadaPrimero;
+		lotes++;
+		elementos += cantidad;
+		tamanoMaximo = Math.max(tamanoMaximo, cantidad);
+		latenciaTotal += latencia;
+		latenciaMaxima = Math.max(latenciaMaxima, latencia);
+		return cantidad;
+	}
+
+	/**
+	 * @return Cuantos lotes se tomaron
+	 */
+	public synchronized long getLotes() {
+		return lotes;
+	}
+
+	/**
+	 * @return El tamano promedio de los lotes
+	 */
+	public synchronized double getTamanoPromedio() {
+		return lotes == 0 ? 0 : (double) elementos / lotes;
+	}
+
+	/**
+	 * @return El lote mas grande
+	 */
+	public synchronized int getTamanoMaximo() {
+		return tamanoMaximo;
+	}
+
+	/**
+	 * @return La latencia promedio de entrega en nanosegundos
+	 */
+	public synchronized long getLatenciaPromedio() {
+		return lotes == 0 ? 0 : latenciaTotal / lotes;
+	}
+
+	/**
+	 * @return La latencia maxima de entrega en nanosegundos
+	 */
+	public synchronized long getLatenciaMaxima() {
+		return latenciaMaxima;
+	}
+}
@@ -0,0 +1,64 @@
+package com.blogspot.zomwi.chatbluetooth.conexion;
+
+/**
+ * Un buffer prestado por un PoolBuffers. Quien lo recibe es duenio de el hasta
+ * que llama a liberar(); despues no debe volver a tocar el arreglo.
+ */
+public final class BufferArrendado {
+
+	// Los bytes del buffer, solo los primeros longitud son validos
+	public final byte[] datos;
+	public int longitud;
+
+	// El nombre del dispositivo que envio el mensaje
+	public String remitente;
+
+	private final PoolBuffers pool;
+	// Los buffers mas grandes que el tamano del pool no vuelven a el
+	final boolean desechable;
+	private boolean prestado;
+
+	BufferArrendado(PoolBuffers pool, int tamano, boolean desechable) {
+		this.pool = pool;
+		this.datos = new byte[tamano];
+		this.desechable = desechable;
+	}
+
+	/**
+	 * Copiar los bytes dados al buffer
+	 *
+	 * @param origen
+	 *            El arreglo de origen
+	 * @param offset
+	 *            La posicion inicial en el origen
+	 * @param cantidad
+	 *            La cantidad de bytes a copiar
+	 */
+	public void copiar(byte[] origen, int offset, int cantidad) {
+		System.arraycopy(origen, offset, datos, 0, cantidad);
+		longitud = cantidad;
+	}
+
+	/**
+	 * Devolver el buffer al pool. Solo se puede llamar una vez por prestamo
+	 */
+	public void liberar() {
+		pool.devolver(this);
+	}
+
+	void marcarPrestado() {
+		if (prestado) {
+			throw new IllegalStateException("Buffer ya prestado");
+		}
+		prestado = true;
+	}
+
+	void marcarDevuelto() {
+		if (!prestado) {
+			throw new IllegalStateException("Buffer liberado dos veces");
+		}
+		prestado = false;
+		longitud = 0;
+		remitente = null;
+	}
+}
@@ -0,0 +1,64 @@
+package com.blogspot.zomwi.chatbluetooth.conexion;
+
+import com.blogspot.zomwi.chatbluetooth.protocolo.Trama;
+
+/**
+ * Los canales logicos que comparten el socket de una conexion, en orden de
+ * prioridad. La ColaEnvio siempre entrega primero los envios del canal de
+ * mayor prioridad que tenga creditos.
+ */
+public enum Canal {
+
+	// Capacidades y creditos, sin limite de creditos
+	CONTROL(0, 0),
+
+	// Mensajes de chat
+	CHAT(1, 1024),
+
+	// Bloques de archivos. Pocos creditos para que los bloques en camino no
+	// demoren a los mensajes
+	MASIVO(2, 8);
+
+	// El numero del canal en las tramas TIPO_CREDITO
+	public final int codigo;
+
+	// Tramas que se pueden enviar antes de recibir creditos, 0 sin limite
+	public final int creditosIniciales;
+
+	private Canal(int codigo, int creditosIniciales) {
+		this.codigo = codigo;
+		this.creditosIniciales = creditosIniciales;
+	}
+
+	/**
+	 * @param tipo
+	 *            El tipo de una trama
+	 * @return El canal por el que viajan las tramas de ese tipo
+	 */
+	public static Canal deTipo(int tipo) {
+		switch (tipo) {
+		case Trama.TIPO_MENSAJE:
+			return CHAT;
+		case Trama.TIPO_ARCHIVO_INICIO:
+		case Trama.TIPO_ARCHIVO_BLOQUE:
+		case Trama.TIPO_ARCHIVO_FIN:
+			return MASIVO;
+		default:
+			return CONTROL;
+		}
+	}
+
+	/**
+	 * @param codigo
+	 *            El numero de un canal
+	 * @return El canal, o null si no existe
+	 */
+	public static Canal deCodigo(int codigo) {
+		for (Canal canal : values()) {
+			if (canal.codigo == codigo) {
+				return canal;
+			}
+		}
+		return null;
+	}
+}
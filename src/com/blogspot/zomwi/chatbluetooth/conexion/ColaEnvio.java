@@ -0,0 +1,670 @@
+package com.blogspot.zomwi.chatbluetooth.conexion;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Cola acotada de los envios de una conexion. Quien escribe encola y vuelve de
+ * inmediato; el hilo escritor de la conexion toma los envios y los escribe en
+ * el socket. Cuando la cola esta llena se aplica la PoliticaColaLlena elegida
+ * por quien encola.
+ *
+ * Encolar no toma ningun lock: cada canal tiene una Entrada de varios
+ * productores y un consumidor, el lugar se reserva con compareAndSet y al
+ * escritor dormido se lo despierta con LockSupport.unpark(). Solo BLOQUEAR con
+ * la fila llena toma el cerrojo, para esperar lugar.
+ *
+ * Del lado del escritor, bajo el cerrojo, los envios pasan de la Entrada a la
+ * Fila del canal, y tomar() siempre entrega el envio mas antiguo del canal de
+ * mayor prioridad, asi un mensaje de chat no espera detras de los bloques de
+ * un archivo. La fila de CONTROL no tiene limite.
+ *
+ * Cuando el otro extremo acepta creditos (habilitarCreditos) cada canal con
+ * creditosIniciales solo entrega tantas tramas como creditos le quedan; el
+ * otro extremo los devuelve a medida que procesa lo recibido. Asi se acota lo
+ * que queda en camino por cada canal. Los creditos, la ventana y las pausas
+ * se revisan solo al tomar, nunca al encolar.
+ *
+ * Un canal se puede pausar mientras se reanuda una Sesion, para que los
+ * reenvios salgan antes que los mensajes nuevos. Con limitarVentana los
+ * mensajes nuevos de CHAT esperan mientras la Sesion tenga demasiados sin
+ * confirmar; los reenvios no esperan.
+ */
+public class ColaEnvio {
+
+	private static final Canal[] CANALES = Canal.values();
+
+	// Protege las filas, los creditos, las pausas y la ventana. Lo toman el
+	// escritor y quien cambia esos estados, no quien encola
+	private final ReentrantLock cerrojo = new ReentrantLock();
+	private final Condition[] hayLugar = new Condition[CANALES.length];
+	private final Entrada[] entradas = new Entrada[CANALES.length];
+	private final Fila[] filas = new Fila[CANALES.length];
+	// Envios de cada canal en la entrada o en la fila, para el limite
+	private final AtomicInteger[] encolados = new AtomicInteger[CANALES.length];
+	private final int[] limites = new int[CANALES.length];
+	private final int capacidad;
+	private volatile IOException cerrada;
+
+	// El escritor mientras duerme esperando envios, null si esta despierto
+	private volatile Thread dormido;
+	// Quienes esperan lugar con BLOQUEAR. Protegido por el cerrojo
+	private int bloqueados;
+
+	// Creditos de cada canal. Antes de habilitarlos se cuentan las tramas
+	// entregadas para descontarlas de los iniciales
+	private boolean creditosHabilitados;
+	private final int[] creditos = new int[CANALES.length];
+
+	// Canales que no entregan envios hasta reanudarlos
+	private final boolean[] pausados = new boolean[CANALES.length];
+
+	// Mensajes sin confirmar que se permiten, si hay una sesion
+	private Sesion sesion;
+	private int ventana;
+
+	// Estadisticas
+	private final AtomicLong descartados = new AtomicLong();
+	private final AtomicLong rechazados = new AtomicLong();
+	private volatile long esperasCredito;
+	private volatile long esperasVentana;
+
+	/**
+	 * Constructor
+	 *
+	 * @param capacidad
+	 *            La cantidad maxima de envios en espera de cada canal
+	 */
+	public ColaEnvio(int capacidad) {
+		this.capacidad = capacidad;
+		for (Canal canal : CANALES) {
+			int i = canal.ordinal();
+			limites[i] = canal == Canal.CONTROL ? 0 : capacidad;
+			entradas[i] = new Entrada();
+			filas[i] = new Fila(limites[i]);
+			encolados[i] = new AtomicInteger();
+			hayLugar[i] = cerrojo.newCondition();
+		}
+	}
+
+	/**
+	 * Encolar un envio en la fila de su canal. Sin lock salvo que la fila
+	 * este llena y la politica sea BLOQUEAR
+	 *
+	 * @param envio
+	 *            El envio a encolar
+	 * @param politica
+	 *            Lo que se hace si la fila esta llena
+	 * @return true si el envio quedo en la cola
+	 * @throws InterruptedException
+	 *             Si se interrumpe la espera con BLOQUEAR
+	 */
+	public boolean encolar(Envio envio, PoliticaColaLlena politica)
+			throws InterruptedException {
+		int i = envio.canal.ordinal();
+		boolean reservado = cerrada == null && reservar(i);
+		if (!reservado && cerrada == null
+				&& politica == PoliticaColaLlena.BLOQUEAR) {
+			reservado = esperarLugar(i);
+		}
+		if (reservado) {
+			entradas[i].agregar(envio);
+			if (cerrada != null) {
+				// Se cerro mientras tanto y pudo no verlo, que falle igual
+				vaciar(cerrada);
+			} else {
+				despertar();
+			}
+			return true;
+		}
+		if (cerrada != null) {
+			envio.fallar(cerrada);
+		} else if (politica == PoliticaColaLlena.DESCARTAR) {
+			descartados.incrementAndGet();
+			envio.descartar();
+		} else {
+			rechazados.incrementAndGet();
+			envio.fallar(new IOException("Cola de envio llena"));
+		}
+		return false;
+	}
+
+	/**
+	 * Reservar el lugar de un envio en un canal sin lock
+	 *
+	 * @return false si la fila esta llena
+	 */
+	private boolean reservar(int i) {
+		AtomicInteger contador = encolados[i];
+		if (limites[i] == 0) {
+			contador.incrementAndGet();
+			return true;
+		}
+		while (true) {
+			int actuales = contador.get();
+			if (actuales >= limites[i]) {
+				return false;
+			}
+			if (contador.compareAndSet(actuales, actuales + 1)) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Esperar hasta reservar lugar en un canal o hasta que se cierre la cola
+	 *
+	 * @return true si se reservo el lugar
+	 */
+	private boolean esperarLugar(int i) throws InterruptedException {
+		cerrojo.lock();
+		try {
+			bloqueados++;
+			try {
+				while (cerrada == null) {
+					if (reservar(i)) {
+						return true;
+					}
+					hayLugar[i].await();
+				}
+				return false;
+			} finally {
+				bloqueados--;
+			}
+		} finally {
+			cerrojo.unlock();
+		}
+	}
+
+	/**
+	 * Despertar al escritor si esta dormido esperando envios
+	 */
+	private void despertar() {
+		Thread hilo = dormido;
+		if (hilo != null) {
+			LockSupport.unpark(hilo);
+		}
+	}
+
+	/**
+	 * Tomar el siguiente envio, esperando si la cola esta vacia
+	 *
+	 * @return El siguiente envio
+	 * @throws InterruptedException
+	 *             Si se interrumpe la espera
+	 */
+	public Envio tomar() throws InterruptedException {
+		return tomar(false, 0);
+	}
+
+	/**
+	 * Tomar el siguiente envio, esperando como maximo el tiempo dado
+	 *
+	 * @param espera
+	 *            El tiempo maximo de espera
+	 * @param unidad
+	 *            La unidad del tiempo de espera
+	 * @return El siguiente envio, o null si no llego ninguno
+	 * @throws InterruptedException
+	 *             Si se interrumpe la espera
+	 */
+	public Envio tomar(long espera, TimeUnit unidad)
+			throws InterruptedException {
+		return tomar(true, unidad.toNanos(espera));
+	}
+
+	/**
+	 * Solo lo llama el hilo escritor
+	 */
+	private Envio tomar(boolean conLimite, long nanos)
+			throws InterruptedException {
+		long limite = System.nanoTime() + nanos;
+		Thread actual = Thread.currentThread();
+		while (true) {
+			if (Thread.interrupted()) {
+				throw new InterruptedException();
+			}
+			Envio envio = elegirConCerrojo();
+			if (envio != null) {
+				return envio;
+			}
+			// Avisar que se va a dormir y volver a mirar: quien encole desde
+			// ahora ve al escritor dormido y lo despierta
+			dormido = actual;
+			try {
+				envio = elegirConCerrojo();
+				if (envio != null) {
+					return envio;
+				}
+				if (!conLimite) {
+					LockSupport.park();
+				} else {
+					long resto = limite - System.nanoTime();
+					if (resto <= 0) {
+						return null;
+					}
+					LockSupport.parkNanos(resto);
+				}
+			} finally {
+				dormido = null;
+			}
+		}
+	}
+
+	private Envio elegirConCerrojo() {
+		cerrojo.lock();
+		try {
+			return elegir();
+		} finally {
+			cerrojo.unlock();
+		}
+	}
+
+	/**
+	 * Sacar el envio del canal de mayor prioridad que tenga creditos. Se
+	 * llama con el cerrojo tomado
+	 */
+	private Envio elegir() {
+		boolean sinCreditos = false;
+		for (Canal canal : CANALES) {
+			int i = canal.ordinal();
+			// Pasar a la fila lo que llego a la entrada
+			Envio llegado;
+			while ((llegado = entradas[i].sacar()) != null) {
+				filas[i].agregar(llegado);
+			}
+			if (filas[i].isVacia() || pausados[i]) {
+				continue;
+			}
+			if (canal == Canal.CHAT && ventanaLlena(filas[i].primero())) {
+				esperasVentana++;
+				continue;
+			}
+			if (canal.creditosIniciales > 0) {
+				if (creditosHabilitados && creditos[i] <= 0) {
+					sinCreditos = true;
+					continue;
+				}
+				creditos[i]--;
+			}
+			encolados[i].decrementAndGet();
+			if (bloqueados > 0) {
+				hayLugar[i].signal();
+			}
+			return filas[i].sacar();
+		}
+		if (sinCreditos) {
+			esperasCredito++;
+		}
+		return null;
+	}
+
+	/**
+	 * @return true si el envio es un mensaje nuevo y la sesion ya tiene la
+	 *         ventana llena de mensajes sin confirmar
+	 */
+	private boolean ventanaLlena(Envio envio) {
+		return sesion != null && envio.numero == 0
+				&& sesion.getSinConfirmar() >= ventana;
+	}
+
+	/**
+	 * Limitar los mensajes de chat que quedan sin confirmar
+	 *
+	 * @param sesion
+	 *            La sesion que numera y confirma los mensajes
+	 * @param ventana
+	 *            La cantidad maxima de mensajes sin confirmar, como mucho
+	 *            Sesion.RETENCION
+	 */
+	public void limitarVentana(Sesion sesion, int ventana) {
+		cerrojo.lock();
+		try {
+			this.sesion = sesion;
+			this.ventana = ventana;
+		} finally {
+			cerrojo.unlock();
+		}
+		despertar();
+	}
+
+	/**
+	 * Avisar al escritor que la sesion confirmo mensajes y puede haber lugar
+	 * en la ventana
+	 */
+	public void ventanaLiberada() {
+		despertar();
+	}
+
+	/**
+	 * Dejar de entregar los envios de un canal. Se siguen encolando
+	 *
+	 * @param canal
+	 *            El canal
+	 */
+	public void pausar(Canal canal) {
+		cerrojo.lock();
+		try {
+			pausados[canal.ordinal()] = true;
+		} finally {
+			cerrojo.unlock();
+		}
+	}
+
+	/**
+	 * Volver a entregar los envios de un canal, primero los dados y despues
+	 * los que se encolaron mientras estaba pausado
+	 *
+	 * @param canal
+	 *            El canal
+	 * @param primeros
+	 *            Envios de ese canal que van antes que los encolados, aunque
+	 *            no haya lugar para ellos
+	 */
+	public void reanudar(Canal canal, List<Envio> primeros) {
+		int i = canal.ordinal();
+		cerrojo.lock();
+		try {
+			encolados[i].addAndGet(primeros.size());
+			filas[i].adelantar(primeros);
+			pausados[i] = false;
+		} finally {
+			cerrojo.unlock();
+		}
+		despertar();
+	}
+
+	/**
+	 * Empezar a respetar los creditos, cuando el otro extremo dijo que los
+	 * devuelve. Lo ya entregado se descuenta de los creditos iniciales
+	 */
+	public void habilitarCreditos() {
+		cerrojo.lock();
+		try {
+			if (creditosHabilitados) {
+				return;
+			}
+			creditosHabilitados = true;
+			for (Canal canal : CANALES) {
+				creditos[canal.ordinal()] += canal.creditosIniciales;
+			}
+		} finally {
+			cerrojo.unlock();
+		}
+		despertar();
+	}
+
+	/**
+	 * Sumar los creditos devueltos por el otro extremo
+	 *
+	 * @param canal
+	 *            El canal de los creditos
+	 * @param cantidad
+	 *            La cantidad de tramas que se pueden volver a enviar
+	 */
+	public void sumarCreditos(Canal canal, int cantidad) {
+		cerrojo.lock();
+		try {
+			creditos[canal.ordinal()] += cantidad;
+		} finally {
+			cerrojo.unlock();
+		}
+		despertar();
+	}
+
+	/**
+	 * Devolver el credito de un envio tomado que no se escribio porque fue
+	 * descartado mientras esperaba
+	 *
+	 * @param canal
+	 *            El canal del envio
+	 */
+	void reintegrarCredito(Canal canal) {
+		if (canal.creditosIniciales > 0) {
+			sumarCreditos(canal, 1);
+		}
+	}
+
+	/**
+	 * Cerrar la cola. Los envios pendientes y los que se encolen despues
+	 * fallan con la causa dada
+	 *
+	 * @param causa
+	 *            El motivo del cierre
+	 */
+	public void cerrar(IOException causa) {
+		cerrada = causa;
+		vaciar(causa);
+		despertar();
+	}
+
+	/**
+	 * Hacer fallar todo lo que espera en las entradas y las filas, y
+	 * despertar a quienes esperan lugar
+	 */
+	private void vaciar(IOException causa) {
+		List<Envio> pendientes = new ArrayList<Envio>();
+		cerrojo.lock();
+		try {
+			for (Canal canal : CANALES) {
+				int i = canal.ordinal();
+				int antes = pendientes.size();
+				Envio envio;
+				while ((envio = entradas[i].sacar()) != null) {
+					pendientes.add(envio);
+				}
+				while (!filas[i].isVacia()) {
+					pendientes.add(filas[i].sacar());
+				}
+				// Que la profundidad vuelva a 0
+				encolados[i].addAndGet(antes - pendientes.size());
+				hayLugar[i].signalAll();
+			}
+		} finally {
+			cerrojo.unlock();
+		}
+		for (Envio envio : pendientes) {
+			envio.fallar(causa);
+		}
+	}
+
+	/**
+	 * @return La cantidad de envios esperando en la cola
+	 */
+	public int getProfundidad() {
+		int profundidad = 0;
+		for (AtomicInteger contador : encolados) {
+			profundidad += contador.get();
+		}
+		return profundidad;
+	}
+
+	/**
+	 * @param canal
+	 *            Un canal
+	 * @return La cantidad de envios de ese canal esperando en la cola
+	 */
+	public int getProfundidad(Canal canal) {
+		return encolados[canal.ordinal()].get();
+	}
+
+	/**
+	 * @param canal
+	 *            Un canal
+	 * @return Los creditos que le quedan a ese canal, con sentido solo si
+	 *         tiene creditosIniciales y ya se habilitaron
+	 */
+	public int getCreditos(Canal canal) {
+		cerrojo.lock();
+		try {
+			return creditos[canal.ordinal()];
+		} finally {
+			cerrojo.unlock();
+		}
+	}
+
+	/**
+	 * @return La cantidad maxima de envios en espera de cada canal
+	 */
+	public int getCapacidad() {
+		return capacidad;
+	}
+
+	/**
+	 * @return Los envios descartados por encontrar la cola llena
+	 */
+	public long getDescartados() {
+		return descartados.get();
+	}
+
+	/**
+	 * @return Los envios que fallaron por encontrar la cola llena
+	 */
+	public long getRechazados() {
+		return rechazados.get();
+	}
+
+	/**
+	 * @return Las veces que el escritor encontro envios pero ningun canal con
+	 *         creditos
+	 */
+	public long getEsperasCredito() {
+		return esperasCredito;
+	}
+
+	/**
+	 * @return Las veces que el escritor encontro mensajes de chat pero la
+	 *         ventana de la sesion llena
+	 */
+	public long getEsperasVentana() {
+		return esperasVentana;
+	}
+
+	/**
+	 * Entrada de un canal: una cola de varios productores y un solo
+	 * consumidor sin locks, enlazada por el campo siguienteEnCola de los
+	 * mismos envios, asi encolar no crea ningun nodo. Agregar es un
+	 * getAndSet y una escritura volatil; sacar lo llama solo quien tiene el
+	 * cerrojo de la cola. Un nodo vacio fijo evita que la entrada quede sin
+	 * nodos.
+	 */
+	private static class Entrada {
+
+		private final Envio vacio = new Envio(0, null, null);
+		private final AtomicReference<Envio> ultimo = new AtomicReference<Envio>(
+				vacio);
+		private Envio primero = vacio;
+
+		void agregar(Envio envio) {
+			envio.siguienteEnCola = null;
+			Envio anterior = ultimo.getAndSet(envio);
+			anterior.siguienteEnCola = envio;
+		}
+
+		/**
+		 * @return El envio mas antiguo, o null si no hay ninguno o el unico
+		 *         que hay todavia se esta agregando
+		 */
+		Envio sacar() {
+			Envio cabeza = primero;
+			Envio siguiente = cabeza.siguienteEnCola;
+			if (cabeza == vacio) {
+				if (siguiente == null) {
+					return null;
+				}
+				primero = siguiente;
+				cabeza = siguiente;
+				siguiente = siguiente.siguienteEnCola;
+			}
+			if (siguiente == null) {
+				if (cabeza != ultimo.get()) {
+					// Un productor esta enlazando el siguiente
+					return null;
+				}
+				// Es el ultimo, dejar el vacio detras para poder sacarlo
+				agregar(vacio);
+				siguiente = cabeza.siguienteEnCola;
+				if (siguiente == null) {
+					return null;
+				}
+			}
+			primero = siguiente;
+			// Que un envio ya tomado no mantenga vivos a los siguientes
+			cabeza.siguienteEnCola = null;
+			return cabeza;
+		}
+	}
+
+	/**
+	 * Fila circular de los envios de un canal que ya salieron de la Entrada.
+	 * Se usa con el cerrojo tomado; el limite lo controla encolados
+	 */
+	private static class Fila {
+
+		private Envio[] elementos;
+		private int inicio;
+		private int cantidad;
+
+		/**
+		 * @param limite
+		 *            La cantidad maxima de envios, 0 si no tiene limite
+		 */
+		Fila(int limite) {
+			elementos = new Envio[limite > 0 ? limite : 16];
+		}
+
+		boolean isVacia() {
+			return cantidad == 0;
+		}
+
+		void agregar(Envio envio) {
+			asegurarLugar(cantidad + 1);
+			elementos[(inicio + cantidad) % elementos.length] = envio;
+			cantidad++;
+		}
+
+		/**
+		 * Poner los envios dados al principio, en su orden
+		 */
+		void adelantar(List<Envio> primeros) {
+			asegurarLugar(cantidad + primeros.size());
+			for (int i = primeros.size() - 1; i >= 0; i--) {
+				inicio = (inicio - 1 + elementos.length) % elementos.length;
+				elementos[inicio] = primeros.get(i);
+				cantidad++;
+			}
+		}
+
+		private void asegurarLugar(int necesario) {
+			if (necesario <= elementos.length) {
+				return;
+			}
+			Envio[] nuevos = new Envio[Math.max(necesario, cantidad * 2)];
+			for (int i = 0; i < cantidad; i++) {
+				nuevos[i] = elementos[(inicio + i) % elementos.length];
+			}
+			elementos = nuevos;
+			inicio = 0;
+		}
+
+		Envio primero() {
+			return elementos[inicio];
+		}
+
+		Envio sacar() {
+			Envio envio = elementos[inicio];
+			elementos[inicio] = null;
+			inicio = (inicio + 1) % elementos.length;
+			cantidad--;
+			return envio;
+		}
+	}
+}
@@ -0,0 +1,39 @@
+package com.blogspot.zomwi.chatbluetooth.conexion;
+
+/**
+ * Parametros del agrupamiento de envios del EscritorLotes. Una ventana mayor
+ * agrega hasta esa latencia al primer mensaje de un lote, a cambio de juntar
+ * mas mensajes por cada escritura en el socket.
+ */
+public final class ConfiguracionLotes {
+
+	// No espera: solo junta los envios que ya estaban en la cola
+	public static final ConfiguracionLotes SIN_ESPERA = new ConfiguracionLotes(
+			0, 4096);
+
+	// Espera hasta 5 ms por mas envios, util para trafico en rafagas
+	public static final ConfiguracionLotes RAFAGAS = new ConfiguracionLotes(5,
+			8192);
+
+	// Tiempo maximo que se espera por mas envios despues del primero
+	public final long ventanaMilisegundos;
+
+	// Cantidad de bytes a partir de la cual el lote se escribe sin esperar
+	public final int presupuestoBytes;
+
+	/**
+	 * Constructor
+	 *
+	 * @param ventanaMilisegundos
+	 *            Tiempo maximo de espera por mas envios, 0 para no esperar
+	 * @param presupuestoBytes
+	 *            Tamano maximo en bytes de un lote
+	 */
+	public ConfiguracionLotes(long ventanaMilisegundos, int presupuestoBytes) {
+		if (ventanaMilisegundos < 0 || presupuestoBytes <= 0) {
+			throw new IllegalArgumentException("Configuracion de lotes invalida");
+		}
+		this.ventanaMilisegundos = ventanaMilisegundos;
+		this.presupuestoBytes = presupuestoBytes;
+	}
+}
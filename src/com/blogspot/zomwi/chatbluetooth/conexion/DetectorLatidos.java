@@ -0,0 +1,156 @@
+package com.blogspot.zomwi.chatbluetooth.conexion;
+
+import java.io.IOException;
+
+/**
+ * Detecta que el otro extremo de una conexion dejo de responder sin esperar a
+ * que falle la lectura del socket, que puede tardar mucho despues de que el
+ * dispositivo sale del alcance.
+ *
+ * Cualquier lectura cuenta como senal de vida. Solo cuando no se leyo nada
+ * durante un intervalo se pide un latido, que el otro extremo contesta con la
+ * misma marca de tiempo; asi una conexion ocupada no envia latidos. Si pasan
+ * perdidos intervalos sin leer nada la conexion se da por muerta. Las
+ * respuestas sirven ademas para medir el tiempo de ida y vuelta.
+ */
+public class DetectorLatidos {
+
+	// Lo que indica revisar()
+	public static final int NADA = 0;
+	public static final int ENVIAR = 1;
+	public static final int MUERTA = 2;
+
+	private final long intervalo;
+	private final int perdidos;
+	private final EstimadorRtt rtt = new EstimadorRtt();
+
+	// El otro extremo contesta latidos
+	private volatile boolean habilitado;
+	// Lo escribe solo quien lee la conexion
+	private volatile long ultimaLectura = System.nanoTime();
+	// Lo usa solo el temporizador
+	private long ultimoEnviado;
+
+	// Estadisticas
+	private volatile long enviados;
+	private volatile long respondidos;
+
+	/**
+	 * Constructor
+	 *
+	 * @param intervalo
+	 *            Los nanosegundos sin leer nada antes de enviar un latido
+	 * @param perdidos
+	 *            Los intervalos sin leer nada antes de dar la conexion por
+	 *            muerta
+	 */
+	public DetectorLatidos(long intervalo, int perdidos) {
+		this.intervalo = intervalo;
+		this.perdidos = perdidos;
+	}
+
+	/**
+	 * Empezar a enviar latidos, cuando el otro extremo dijo que los contesta
+	 */
+	public void habilitar() {
+		ultimaLectura = System.nanoTime();
+		habilitado = true;
+	}
+
+	/**
+	 * Anotar que se leyo algo de la conexion. Solo lo llama quien lee
+	 *
+	 * @param ahora
+	 *            El momento de la lectura, de System.nanoTime()
+	 */
+	public void leido(long ahora) {
+		ultimaLectura = ahora;
+	}
+
+	/**
+	 * Decidir si hay que enviar un latido o si la conexion murio. Solo lo
+	 * llama el temporizador
+	 *
+	 * @param ahora
+	 *            El momento actual, de System.nanoTime()
+	 * @return NADA, ENVIAR o MUERTA
+	 */
+	public int revisar(long ahora) {
+		if (!habilitado) {
+			return NADA;
+		}
+		long silencio = ahora - ultimaLectura;
+		if (silencio >= intervalo * perdidos) {
+			return MUERTA;
+		}
+		if (silencio >= intervalo && ahora - ultimoEnviado >= intervalo) {
+			ultimoEnviado = ahora;
+			enviados++;
+			return ENVIAR;
+		}
+		return NADA;
+	}
+
+	/**
+	 * Anotar la respuesta a un latido. Solo lo llama quien lee
+	 *
+	 * @param marca
+	 *            La marca de tiempo que llevaba el latido
+	 */
+	public void respondido(long marca) {
+		respondidos++;
+		rtt.muestra(System.nanoTime() - marca);
+	}
+
+	/**
+	 * @return El tiempo de ida y vuelta medido con los latidos
+	 */
+	public EstimadorRtt getRtt() {
+		return rtt;
+	}
+
+	/**
+	 * @return Los latidos enviados
+	 */
+	public long getEnviados() {
+		return enviados;
+	}
+
+	/**
+	 * @return Los latidos que el otro extremo contesto
+	 */
+	public long getRespondidos() {
+		return respondidos;
+	}
+
+	/**
+	 * @param marca
+	 *            El momento de envio, de System.nanoTime()
+	 * @return La carga de una trama TIPO_LATIDO
+	 */
+	public static byte[] crearCarga(long marca) {
+		byte[] carga = new byte[8];
+		for (int i = 0; i < 8; i++) {
+			carga[i] = (byte) (marca >>> (56 - 8 * i));
+		}
+		return carga;
+	}
+
+	/**
+	 * @return La marca de tiempo de una trama TIPO_LATIDO o
+	 *         TIPO_LATIDO_RESPUESTA
+	 * @throws IOException
+	 *             Si la carga esta mal formada
+	 */
+	public static long leerMarca(byte[] carga, int offset, int longitud)
+			throws IOException {
+		if (longitud < 8) {
+			throw new IOException("Trama de latido incompleta");
+		}
+		long marca = 0;
+		for (int i = 0; i < 8; i++) {
+			marca = (marca << 8) | (carga[offset + i] & 0xFF);
+		}
+		return marca;
+	}
+}
@@ -0,0 +1,80 @@
+package com.blogspot.zomwi.chatbluetooth.conexion;
+
+import java.io.IOException;
+
+import com.blogspot.zomwi.chatbluetooth.protocolo.Trama;
+
+/**
+ * Cuenta las tramas recibidas y procesadas de cada Canal y decide cuando
+ * devolver sus creditos al otro extremo. Los creditos se devuelven de a la
+ * mitad de los iniciales, para no enviar una trama TIPO_CREDITO por cada trama
+ * recibida y sin que el otro extremo llegue a quedarse sin creditos.
+ *
+ * Lo usa un unico hilo, el que procesa las tramas recibidas.
+ */
+public class DevolucionCreditos {
+
+	// Longitud de la carga de una trama TIPO_CREDITO
+	public static final int LONGITUD_CREDITO = 3;
+
+	private final int[] consumidos = new int[Canal.values().length];
+
+	/**
+	 * Contar una trama procesada
+	 *
+	 * @param canal
+	 *            El canal de la trama
+	 * @return La carga de la trama TIPO_CREDITO a enviar, o null si todavia
+	 *         no hace falta
+	 */
+	public byte[] procesada(Canal canal) {
+		if (canal.creditosIniciales == 0) {
+			return null;
+		}
+		int i = canal.ordinal();
+		consumidos[i]++;
+		if (consumidos[i] < Math.max(canal.creditosIniciales / 2, 1)) {
+			return null;
+		}
+		byte[] carga = crearCarga(canal, consumidos[i]);
+		consumidos[i] = 0;
+		return carga;
+	}
+
+	/**
+	 * @param canal
+	 *            El canal de los creditos
+	 * @param cantidad
+	 *            La cantidad de creditos
+	 * @return La carga de una trama TIPO_CREDITO
+	 */
+	public static byte[] crearCarga(Canal canal, int cantidad) {
+		return new byte[] { (byte) canal.codigo, (byte) (cantidad >> 8),
+				(byte) cantidad };
+	}
+
+	/**
+	 * @return El canal de una trama TIPO_CREDITO
+	 * @throws IOException
+	 *             Si la carga esta mal formada
+	 */
+	public static Canal leerCanal(byte[] carga, int offset, int longitud)
+			throws IOException {
+		if (longitud < LONGITUD_CREDITO) {
+			throw new IOException("Trama de creditos incompleta");
+		}
+		Canal canal = Canal.deCodigo(carga[offset] & 0xFF);
+		if (canal == null) {
+			throw new IOException("Canal desconocido: " + (carga[offset] & 0xFF));
+		}
+		return canal;
+	}
+
+	/**
+	 * @return La cantidad de creditos de una trama TIPO_CREDITO ya validada
+	 *         con leerCanal
+	 */
+	public static int leerCantidad(byte[] carga, int offset) {
+		return ((carga[offset + 1] & 0xFF) << 8) | (carga[offset + 2] & 0xFF);
+	}
+}
@@ -0,0 +1,117 @@
+package com.blogspot.zomwi.chatbluetooth.conexion;
+
+import java.io.IOException;
+
+/**
+ * Junta los envios de un mismo mensaje a varias conexiones en un solo Envio.
+ * El Envio total se completa cuando todas las partes terminaron, o falla con
+ * el primer error si alguna parte fallo o se descarto. Descartar el total
+ * descarta las partes que sigan en sus colas.
+ */
+public class Difusion implements OyenteEnvio {
+
+	private final Envio total;
+	// Protegidos por this
+	private final Envio[] partes;
+	private int creadas;
+	private int pendientes;
+	private int sinEntregar;
+	private int secuencia;
+	private IOException error;
+
+	/**
+	 * Constructor
+	 * 
+	 * @param total
+	 *            El envio que representa a todas las partes
+	 * @param partes
+	 *            La cantidad de conexiones a las que se envia
+	 */
+	public Difusion(Envio total, int partes) {
+		this.total = total;
+		this.partes = new Envio[partes];
+		this.pendientes = partes;
+		this.sinEntregar = partes;
+		total.difusion = this;
+	}
+
+	/**
+	 * Crear el envio para una de las conexiones
+	 * 
+	 * @return Un envio con la misma carga que el total
+	 */
+	public Envio crearParte() {
+		Envio parte = new Envio(total.tipo, total.carga, this);
+		synchronized (this) {
+			partes[creadas++] = parte;
+		}
+		if (total.isCancelled()) {
+			// El total se descarto antes de crear todas las partes
+			parte.descartar();
+		}
+		return parte;
+	}
+
+	public void envioCompletado(Envio envio) {
+		terminarParte(envio, null);
+	}
+
+	public void envioFallido(Envio envio, IOException causa) {
+		terminarParte(envio, causa);
+	}
+
+	/**
+	 * Una parte se descarto antes de escribirse, por ejemplo porque su cola
+	 * estaba llena
+	 */
+	void parteDescartada(Envio envio) {
+		terminarParte(envio, new IOException("Envio descartado"));
+	}
+
+	/**
+	 * Descartar las partes que todavia no se escribieron, porque se descarto
+	 * el total
+	 */
+	void descartarPartes() {
+		Envio[] copia;
+		synchronized (this) {
+			copia = new Envio[creadas];
+			System.arraycopy(partes, 0, copia, 0, creadas);
+		}
+		for (Envio parte : copia) {
+			parte.descartar();
+		}
+	}
+
+	/**
+	 * Una parte fue confirmada por su destino. El total se entrega cuando
+	 * todas lo fueron
+	 */
+	void parteEntregada() {
+		synchronized (this) {
+			if (--sinEntregar > 0) {
+				return;
+			}
+		}
+		total.entregar();
+	}
+
+	private void terminarParte(Envio envio, IOException causa) {
+		synchronized (this) {
+			if (causa != null && error == null) {
+				error = causa;
+			}
+			if (causa == null) {
+				secuencia = envio.getSecuencia();
+			}
+			if (--pendientes > 0) {
+				return;
+			}
+		}
+		if (error != null) {
+			total.fallar(error);
+		} else {
+			total.completar(secuencia);
+		}
+	}
+}
@@ -0,0 +1,257 @@
+package com.blogspot.zomwi.chatbluetooth.conexion;
+
+import java.io.IOException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Un mensaje que espera en la ColaEnvio para ser escrito por el hilo escritor.
+ * Funciona como un Future cuyo resultado es el numero de secuencia con el que
+ * se envio la trama, y opcionalmente avisa a un OyenteEnvio.
+ *
+ * Completarse solo significa que la trama se escribio en el socket. Que el
+ * otro extremo la recibio se sabe con isEntregado() o esperarEntrega().
+ *
+ * Es el unico objeto que se crea por mensaje escrito: las esperas usan el
+ * monitor del propio envio, y el envio es tambien el nodo de la fila de
+ * entrada de la ColaEnvio.
+ */
+public class Envio implements Future<Integer> {
+
+	// Estados del envio
+	private static final int PENDIENTE = 0;
+	private static final int COMPLETADO = 1;
+	private static final int FALLIDO = 2;
+	private static final int DESCARTADO = 3;
+
+	// Campos de la trama
+	public final int tipo;
+	public final byte[] carga;
+
+	// El canal logico segun el tipo
+	public final Canal canal;
+
+	// El numero del mensaje en su Sesion, 0 si todavia no se escribio
+	int numero;
+
+	// Cuando se creo, para medir la latencia hasta la confirmacion
+	final long creado = System.nanoTime();
+
+	// El siguiente envio en la entrada de la ColaEnvio
+	volatile Envio siguienteEnCola;
+
+	// Si es el total de una difusion, la que tiene sus partes
+	Difusion difusion;
+
+	private final OyenteEnvio oyente;
+	// Protegidos por this
+	private int estado = PENDIENTE;
+	private boolean entregado;
+	private int secuencia;
+	private IOException error;
+
+	/**
+	 * Constructor
+	 *
+	 * @param tipo
+	 *            El tipo de la trama
+	 * @param carga
+	 *            Los bytes a enviar
+	 * @param oyente
+	 *            Quien recibe el resultado, puede ser null
+	 */
+	public Envio(int tipo, byte[] carga, OyenteEnvio oyente) {
+		this.tipo = tipo;
+		this.carga = carga;
+		this.oyente = oyente;
+		canal = Canal.deTipo(tipo);
+	}
+
+	/**
+	 * Marcar el envio como escrito en el socket
+	 *
+	 * @param secuencia
+	 *            El numero de secuencia asignado a la trama
+	 */
+	public void completar(int secuencia) {
+		synchronized (this) {
+			if (estado != PENDIENTE) {
+				return;
+			}
+			this.secuencia = secuencia;
+			estado = COMPLETADO;
+			notifyAll();
+		}
+		if (oyente != null) {
+			oyente.envioCompletado(this);
+		}
+	}
+
+	/**
+	 * Marcar el envio como fallido
+	 *
+	 * @param causa
+	 *            El motivo del fallo
+	 */
+	public void fallar(IOException causa) {
+		synchronized (this) {
+			if (estado != PENDIENTE) {
+				return;
+			}
+			error = causa;
+			estado = FALLIDO;
+			notifyAll();
+		}
+		if (oyente != null) {
+			oyente.envioFallido(this, causa);
+		}
+	}
+
+	/**
+	 * Descartar el envio sin avisar al oyente. Una parte de una difusion si
+	 * se cuenta en ella, como fallida, y descartar el total de una difusion
+	 * descarta todas sus partes
+	 *
+	 * @return true si el envio aun no se habia escrito
+	 */
+	public boolean descartar() {
+		synchronized (this) {
+			if (estado != PENDIENTE) {
+				return false;
+			}
+			estado = DESCARTADO;
+			notifyAll();
+		}
+		if (oyente instanceof Difusion) {
+			((Difusion) oyente).parteDescartada(this);
+		}
+		if (difusion != null) {
+			difusion.descartarPartes();
+		}
+		return true;
+	}
+
+	/**
+	 * Marcar el envio como recibido por el otro extremo, cuando llega su
+	 * confirmacion
+	 */
+	void entregar() {
+		synchronized (this) {
+			entregado = true;
+			notifyAll();
+		}
+		if (oyente instanceof Difusion) {
+			((Difusion) oyente).parteEntregada();
+		}
+	}
+
+	/**
+	 * @return true si el otro extremo confirmo que recibio el mensaje. Solo
+	 *         los mensajes de chat a extremos con sesion se confirman
+	 */
+	public synchronized boolean isEntregado() {
+		return entregado;
+	}
+
+	/**
+	 * Esperar a que el otro extremo confirme el mensaje
+	 *
+	 * @param espera
+	 *            El tiempo maximo de espera
+	 * @param unidad
+	 *            La unidad del tiempo de espera
+	 * @return true si se confirmo, false si paso el tiempo
+	 * @throws InterruptedException
+	 *             Si se interrumpe la espera
+	 */
+	public synchronized boolean esperarEntrega(long espera, TimeUnit unidad)
+			throws InterruptedException {
+		long limite = System.nanoTime() + unidad.toNanos(espera);
+		while (!entregado) {
+			long resto = limite - System.nanoTime();
+			if (resto <= 0) {
+				return false;
+			}
+			TimeUnit.NANOSECONDS.timedWait(this, resto);
+		}
+		return true;
+	}
+
+	/**
+	 * @return true si el envio sigue esperando en la cola
+	 */
+	public synchronized boolean isPendiente() {
+		return estado == PENDIENTE;
+	}
+
+	/**
+	 * @return true si el envio fallo
+	 */
+	public synchronized boolean isFallido() {
+		return estado == FALLIDO;
+	}
+
+	/**
+	 * @return El numero de secuencia de la trama, valido si se completo
+	 */
+	public synchronized int getSecuencia() {
+		return secuencia;
+	}
+
+	/**
+	 * @return El motivo del fallo, o null si no fallo
+	 */
+	public synchronized IOException getError() {
+		return error;
+	}
+
+	public boolean cancel(boolean interrumpir) {
+		return descartar();
+	}
+
+	public synchronized boolean isCancelled() {
+		return estado == DESCARTADO;
+	}
+
+	public synchronized boolean isDone() {
+		return estado != PENDIENTE;
+	}
+
+	public synchronized Integer get() throws InterruptedException,
+			ExecutionException {
+		while (estado == PENDIENTE) {
+			wait();
+		}
+		return resultado();
+	}
+
+	public synchronized Integer get(long espera, TimeUnit unidad)
+			throws InterruptedException, ExecutionException, TimeoutException {
+		long limite = System.nanoTime() + unidad.toNanos(espera);
+		while (estado == PENDIENTE) {
+			long resto = limite - System.nanoTime();
+			if (resto <= 0) {
+				throw new TimeoutException();
+			}
+			TimeUnit.NANOSECONDS.timedWait(this, resto);
+		}
+		return resultado();
+	}
+
+	/**
+	 * Se llama con el monitor tomado
+	 */
+	private Integer resultado() throws ExecutionException {
+		switch (estado) {
+		case FALLIDO:
+			throw new ExecutionException(error);
+		case DESCARTADO:
+			throw new CancellationException();
+		default:
+			return Integer.valueOf(secuencia);
+		}
+	}
+}
@@ -0,0 +1,266 @@
+package com.blogspot.zomwi.chatbluetooth.conexion;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import com.blogspot.zomwi.chatbluetooth.protocolo.CodificadorTramas;
+import com.blogspot.zomwi.chatbluetooth.protocolo.CompresionTramas;
+import com.blogspot.zomwi.chatbluetooth.protocolo.Trama;
+
+/**
+ * Toma envios de una ColaEnvio y los agrupa en lotes. Todas las tramas de un
+ * lote se escriben en el socket con una sola llamada a write(). Un lote se
+ * cierra cuando pasa la ventana de la ConfiguracionLotes desde el primer envio
+ * o cuando se llena el presupuesto de bytes.
+ *
+ * Los envios llegan de la cola en orden de prioridad de su Canal, asi que un
+ * mensaje de chat entra en el primer lote que se arme despues de encolarlo.
+ *
+ * Si se negocio compresion, la carga de los mensajes se comprime aqui, en el
+ * hilo escritor, antes de agregar la trama.
+ *
+ * Con una Sesion, cada mensaje recibe su numero en la sesion al escribirse y
+ * se envia con ese numero como secuencia de la trama. Si el lote falla, sus
+ * mensajes salen de la sesion al fallar, asi no se reenvian al reanudar.
+ *
+ * Lo usa un unico hilo escritor por conexion.
+ */
+public class EscritorLotes {
+
+	private final ColaEnvio cola;
+	private final CodificadorTramas codificador;
+	private volatile ConfiguracionLotes configuracion;
+	private volatile CompresionTramas compresion;
+	private volatile Sesion sesion;
+	private volatile MetricasConexion metricas;
+
+	// Envios del ultimo lote escrito y sus numeros de secuencia
+	private Envio[] lote = new Envio[16];
+	private int[] secuencias = new int[16];
+	private int cantidad;
+	private int mensajes;
+	// La sesion en la que se registraron mensajes de este lote, o null
+	private Sesion sesionLote;
+
+	// Envio que no cupo en el lote anterior y abre el siguiente
+	private Envio siguiente;
+
+	// Estadisticas
+	private volatile long lotes;
+	private volatile long tramas;
+
+	public EscritorLotes(ColaEnvio cola, CodificadorTramas codificador,
+			ConfiguracionLotes configuracion) {
+		this.cola = cola;
+		this.codificador = codificador;
+		this.configuracion = configuracion;
+	}
+
+	/**
+	 * Esperar el siguiente lote y escribirlo. Los envios del lote se completan
+	 * o fallan antes de volver
+	 *
+	 * @return La cantidad de envios escritos en el lote
+	 * @throws IOException
+	 *             Si falla la escritura en el socket
+	 * @throws InterruptedException
+	 *             Si se interrumpe la espera
+	 */
+	public int escribirLote() throws IOException, InterruptedException {
+		ConfiguracionLotes actual = configuracion;
+		// Soltar los envios del lote anterior
+		for (int i = 0; i < cantidad; i++) {
+			lote[i] = null;
+		}
+		cantidad = 0;
+		mensajes = 0;
+		sesionLote = null;
+		int bytes = 0;
+
+		Envio envio = siguiente != null ? siguiente : cola.tomar();
+		siguiente = null;
+		long limite = System.nanoTime()
+				+ TimeUnit.MILLISECONDS.toNanos(actual.ventanaMilisegundos);
+		while (true) {
+			// El envio pudo ser descartado mientras esperaba
+			if (envio.isPendiente()) {
+				int tamano = Trama.LONGITUD_CABECERA + envio.carga.length;
+				if (cantidad > 0 && bytes + tamano > actual.presupuestoBytes) {
+					// No cabe, abre el siguiente lote
+					siguiente = envio;
+					break;
+				}
+				agregar(envio);
+				bytes += tamano;
+				if (bytes >= actual.presupuestoBytes) {
+					break;
+				}
+			} else {
+				// No se escribe, su credito queda para otra trama
+				cola.reintegrarCredito(envio.canal);
+			}
+			// Esperar por mas envios solo mientras dure la ventana
+			long restante = Math.max(limite - System.nanoTime(), 0);
+			try {
+				envio = cola.tomar(restante, TimeUnit.NANOSECONDS);
+			} catch (InterruptedException ex) {
+				// Escribir lo que ya se junto, la interrupcion se atiende en
+				// la siguiente espera
+				Thread.currentThread().interrupt();
+				break;
+			}
+			if (envio == null) {
+				break;
+			}
+		}
+		if (cantidad == 0) {
+			return 0;
+		}
+
+		MetricasConexion actualMetricas = metricas;
+		int escritos = codificador.getPendientes();
+		long inicio = System.nanoTime();
+		try {
+			codificador.vaciar();
+		} catch (IOException ex) {
+			if (sesionLote != null) {
+				for (int i = cantidad - 1; i >= 0; i--) {
+					sesionLote.retirar(lote[i]);
+				}
+			}
+			for (int i = 0; i < cantidad; i++) {
+				lote[i].fallar(ex);
+			}
+			throw ex;
+		}
+		if (actualMetricas != null) {
+			actualMetricas.escrito(escritos, mensajes, System.nanoTime()
+					- inicio);
+		}
+		lotes++;
+		tramas += cantidad;
+		for (int i = 0; i < cantidad; i++) {
+			lote[i].completar(secuencias[i]);
+		}
+		return cantidad;
+	}
+
+	private void agregar(Envio envio) {
+		if (cantidad == lote.length) {
+			Envio[] nuevoLote = new Envio[cantidad * 2];
+			System.arraycopy(lote, 0, nuevoLote, 0, cantidad);
+			lote = nuevoLote;
+			int[] nuevasSecuencias = new int[cantidad * 2];
+			System.arraycopy(secuencias, 0, nuevasSecuencias, 0, cantidad);
+			secuencias = nuevasSecuencias;
+		}
+		if (envio.tipo == Trama.TIPO_MENSAJE) {
+			secuencias[cantidad] = agregarMensaje(envio);
+			mensajes++;
+		} else {
+			secuencias[cantidad] = codificador.agregar(envio.tipo,
+					envio.carga, 0, envio.carga.length);
+		}
+		lote[cantidad++] = envio;
+	}
+
+	private int agregarMensaje(Envio envio) {
+		Sesion actualSesion = sesion;
+		// Los reenvios ya traen su numero
+		if (actualSesion != null && envio.numero == 0) {
+			envio.numero = actualSesion.registrar(envio);
+			sesionLote = actualSesion;
+		}
+		CompresionTramas actual = compresion;
+		int comprimida = -1;
+		if (actual != null) {
+			comprimida = actual.comprimir(envio.carga, 0, envio.carga.length);
+		}
+		byte[] carga = comprimida >= 0 ? actual.getSalida() : envio.carga;
+		int longitud = comprimida >= 0 ? comprimida : envio.carga.length;
+		int banderas = comprimida >= 0 ? Trama.BANDERA_COMPRIMIDA : 0;
+		if (envio.numero != 0) {
+			return codificador.agregar(envio.tipo, banderas, envio.numero,
+					carga, 0, longitud);
+		}
+		return codificador.agregar(envio.tipo, banderas, carga, 0, longitud);
+	}
+
+	/**
+	 * @param indice
+	 *            La posicion dentro del ultimo lote escrito
+	 * @return El envio en esa posicion
+	 */
+	public Envio getEnvio(int indice) {
+		return lote[indice];
+	}
+
+	/**
+	 * Cambiar la configuracion. Se aplica desde el siguiente lote
+	 *
+	 * @param configuracion
+	 *            La nueva configuracion
+	 */
+	public void setConfiguracion(ConfiguracionLotes configuracion) {
+		this.configuracion = configuracion;
+	}
+
+	/**
+	 * Empezar a comprimir los mensajes, una vez que el otro extremo dijo que
+	 * los sabe descomprimir. Se aplica desde el siguiente envio
+	 *
+	 * @param compresion
+	 *            La compresion de la conexion, o null para no comprimir
+	 */
+	public void setCompresion(CompresionTramas compresion) {
+		this.compresion = compresion;
+	}
+
+	/**
+	 * Numerar los mensajes en la sesion dada. Se llama antes de reanudar el
+	 * canal de chat
+	 *
+	 * @param sesion
+	 *            La sesion con el otro extremo
+	 */
+	public void setSesion(Sesion sesion) {
+		this.sesion = sesion;
+	}
+
+	/**
+	 * Contar lo que se escribe en las metricas dadas
+	 *
+	 * @param metricas
+	 *            Las metricas de la conexion, o null para no contar
+	 */
+	public void setMetricas(MetricasConexion metricas) {
+		this.metricas = metricas;
+	}
+
+	/**
+	 * Fallar el envio que quedo esperando el siguiente lote, si lo hay
+	 *
+	 * @param causa
+	 *            El motivo del fallo
+	 */
+	public void cerrar(IOException causa) {
+		if (siguiente != null) {
+			siguiente.fallar(causa);
+			siguiente = null;
+		}
+	}
+
+	/**
+	 * @return La cantidad de lotes escritos
+	 */
+	public long getLotes() {
+		return lotes;
+	}
+
+	/**
+	 * @return La cantidad de tramas escritas en todos los lotes
+	 */
+	public long getTramas() {
+		return tramas;
+	}
+}
@@ -0,0 +1,82 @@
+package com.blogspot.zomwi.chatbluetooth.conexion;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Estima el tiempo de ida y vuelta de los mensajes a partir de las muestras
+ * que dan las confirmaciones, como TCP: un promedio suavizado, su variacion, y
+ * el tiempo de espera de una confirmacion, que es el promedio mas cuatro
+ * veces la variacion. Cada vencimiento duplica la espera hasta la siguiente
+ * muestra.
+ */
+public class EstimadorRtt {
+
+	// Limites del tiempo de espera de una confirmacion
+	public static final long ESPERA_MINIMA = TimeUnit.MILLISECONDS
+			.toNanos(200);
+	public static final long ESPERA_MAXIMA = TimeUnit.SECONDS.toNanos(10);
+
+	// Espera antes de tener muestras
+	private static final long ESPERA_INICIAL = TimeUnit.SECONDS.toNanos(1);
+
+	private long promedio;
+	private long variacion;
+	private long espera = ESPERA_INICIAL;
+	private long muestras;
+
+	/**
+	 * Agregar una muestra
+	 *
+	 * @param nanos
+	 *            El tiempo entre escribir un mensaje y recibir su
+	 *            confirmacion
+	 */
+	public synchronized void muestra(long nanos) {
+		if (muestras == 0) {
+			promedio = nanos;
+			variacion = nanos / 2;
+		} else {
+			// Pesos de 1/4 para la variacion y 1/8 para el promedio
+			variacion += (Math.abs(promedio - nanos) - variacion) / 4;
+			promedio += (nanos - promedio) / 8;
+		}
+		muestras++;
+		espera = Math.min(Math.max(promedio + 4 * variacion, ESPERA_MINIMA),
+				ESPERA_MAXIMA);
+	}
+
+	/**
+	 * Duplicar la espera despues de un vencimiento
+	 */
+	public synchronized void retroceder() {
+		espera = Math.min(espera * 2, ESPERA_MAXIMA);
+	}
+
+	/**
+	 * @return El tiempo de ida y vuelta promedio en nanosegundos
+	 */
+	public synchronized long getPromedio() {
+		return promedio;
+	}
+
+	/**
+	 * @return La variacion del tiempo de ida y vuelta en nanosegundos
+	 */
+	public synchronized long getVariacion() {
+		return variacion;
+	}
+
+	/**
+	 * @return La espera de una confirmacion en nanosegundos
+	 */
+	public synchronized long getEspera() {
+		return espera;
+	}
+
+	/**
+	 * @return La cantidad de muestras tomadas
+	 */
+	public synchronized long getMuestras() {
+		return muestras;
+	}
+}
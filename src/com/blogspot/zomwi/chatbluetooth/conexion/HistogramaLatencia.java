@@ -0,0 +1,148 @@
+package com.blogspot.zomwi.chatbluetooth.conexion;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histograma de tiempos en nanosegundos que se puede registrar desde varios
+ * hilos sin cerrojos ni asignar memoria.
+ *
+ * Los tiempos se agrupan en cubetas log-lineales: cada potencia de dos se
+ * divide en SUBCUBETAS partes iguales, asi el error de un percentil es como
+ * mucho 1/SUBCUBETAS del valor. Los tiempos mayores que MAXIMO caen en la
+ * ultima cubeta.
+ */
+public class HistogramaLatencia {
+
+	// Bits de la mantisa que distinguen las subcubetas
+	private static final int BITS_SUBCUBETA = 5;
+	private static final int SUBCUBETAS = 1 << BITS_SUBCUBETA;
+
+	// El mayor exponente que se distingue, unos 18 minutos
+	private static final int EXPONENTE_MAXIMO = 40;
+	public static final long MAXIMO = (1L << (EXPONENTE_MAXIMO + 1)) - 1;
+
+	private static final int CUBETAS = (EXPONENTE_MAXIMO - BITS_SUBCUBETA + 2)
+			* SUBCUBETAS;
+
+	private final AtomicLongArray cuentas = new AtomicLongArray(CUBETAS);
+	private final AtomicLong suma = new AtomicLong();
+	private final AtomicLong maximo = new AtomicLong();
+
+	/**
+	 * Registrar un tiempo
+	 *
+	 * @param nanos
+	 *            El tiempo medido, los negativos cuentan como 0
+	 */
+	public void registrar(long nanos) {
+		if (nanos < 0) {
+			nanos = 0;
+		}
+		cuentas.incrementAndGet(cubeta(Math.min(nanos, MAXIMO)));
+		suma.addAndGet(nanos);
+		long actual;
+		while (nanos > (actual = maximo.get())) {
+			if (maximo.compareAndSet(actual, nanos)) {
+				break;
+			}
+		}
+	}
+
+	/**
+	 * @return El indice de la cubeta de un valor entre 0 y MAXIMO
+	 */
+	private static int cubeta(long valor) {
+		if (valor < SUBCUBETAS) {
+			return (int) valor;
+		}
+		int exponente = 63 - Long.numberOfLeadingZeros(valor);
+		int sub = (int) (valor >>> (exponente - BITS_SUBCUBETA))
+				& (SUBCUBETAS - 1);
+		return (exponente - BITS_SUBCUBETA + 1) * SUBCUBETAS + sub;
+	}
+
+	/**
+	 * @return El mayor valor que cae en la cubeta dada
+	 */
+	private static long limiteSuperior(int indice) {
+		if (indice < SUBCUBETAS) {
+			return indice;
+		}
+		int exponente = indice / SUBCUBETAS + BITS_SUBCUBETA - 1;
+		long sub = indice % SUBCUBETAS;
+		return ((SUBCUBETAS + sub + 1) << (exponente - BITS_SUBCUBETA)) - 1;
+	}
+
+	/**
+	 * Calcular los percentiles. Los registros que ocurren mientras tanto
+	 * pueden entrar o no
+	 *
+	 * @return Un resumen de lo registrado hasta ahora
+	 */
+	public Resumen resumir() {
+		long[] copia = new long[CUBETAS];
+		long total = 0;
+		for (int i = 0; i < CUBETAS; i++) {
+			copia[i] = cuentas.get(i);
+			total += copia[i];
+		}
+		long mayor = maximo.get();
+		// La suma puede incluir registros que las cubetas aun no
+		long promedio = total == 0 ? 0 : suma.get() / total;
+		return new Resumen(total, promedio, percentil(copia, total, 0.5,
+				mayor), percentil(copia, total, 0.99, mayor), percentil(
+				copia, total, 0.999, mayor), mayor);
+	}
+
+	private static long percentil(long[] copia, long total, double fraccion,
+			long mayor) {
+		if (total == 0) {
+			return 0;
+		}
+		long buscado = (long) Math.ceil(total * fraccion);
+		long acumulado = 0;
+		for (int i = 0; i < copia.length; i++) {
+			acumulado += copia[i];
+			if (acumulado >= buscado) {
+				// No informar mas que el maximo visto
+				return Math.min(limiteSuperior(i), mayor);
+			}
+		}
+		return mayor;
+	}
+
+	/**
+	 * Volver a empezar. Los registros concurrentes pueden perderse
+	 */
+	public void reiniciar() {
+		for (int i = 0; i < CUBETAS; i++) {
+			cuentas.set(i, 0);
+		}
+		suma.set(0);
+		maximo.set(0);
+	}
+
+	/**
+	 * Los percentiles de un histograma en un momento dado, en nanosegundos
+	 */
+	public static class Resumen {
+
+		public final long cantidad;
+		public final long promedio;
+		public final long p50;
+		public final long p99;
+		public final long p999;
+		public final long maximo;
+
+		Resumen(long cantidad, long promedio, long p50, long p99, long p999,
+				long maximo) {
+			this.cantidad = cantidad;
+			this.promedio = promedio;
+			this.p50 = p50;
+			this.p99 = p99;
+			this.p999 = p999;
+			this.maximo = maximo;
+		}
+	}
+}
@@ -0,0 +1,60 @@
+package com.blogspot.zomwi.chatbluetooth.conexion;
+
+/**
+ * El estado de una conexion en un momento dado. Los tiempos estan en
+ * nanosegundos y las tasas son por segundo desde la instantanea anterior.
+ */
+public class InstantaneaConexion {
+
+	public final String direccion;
+	public final String nombre;
+
+	// Lo que tardo en conectar, 0 si fue entrante
+	public final long tiempoConexion;
+	// Desde que se conecto
+	public final long duracion;
+
+	public final long bytesRecibidos;
+	public final long mensajesRecibidos;
+	public final long bytesEnviados;
+	public final long mensajesEnviados;
+
+	public final double bytesRecibidosPorSegundo;
+	public final double mensajesRecibidosPorSegundo;
+	public final double bytesEnviadosPorSegundo;
+	public final double mensajesEnviadosPorSegundo;
+
+	// Envios esperando en la cola
+	public final int profundidadCola;
+	// Tiempo de ida y vuelta estimado, 0 sin sesion
+	public final long rtt;
+	// Mensajes escritos esperando confirmacion
+	public final int sinConfirmar;
+	// Tiempo de ida y vuelta de los latidos, 0 si no hubo
+	public final long rttLatidos;
+
+	InstantaneaConexion(String direccion, String nombre, long tiempoConexion,
+			long duracion, long bytesRecibidos, long mensajesRecibidos,
+			long bytesEnviados, long mensajesEnviados,
+			double bytesRecibidosPorSegundo,
+			double mensajesRecibidosPorSegundo,
+			double bytesEnviadosPorSegundo, double mensajesEnviadosPorSegundo,
+			int profundidadCola, long rtt, int sinConfirmar, long rttLatidos) {
+		this.direccion = direccion;
+		this.nombre = nombre;
+		this.tiempoConexion = tiempoConexion;
+		this.duracion = duracion;
+		this.bytesRecibidos = bytesRecibidos;
+		this.mensajesRecibidos = mensajesRecibidos;
+		this.bytesEnviados = bytesEnviados;
+		this.mensajesEnviados = mensajesEnviados;
+		this.bytesRecibidosPorSegundo = bytesRecibidosPorSegundo;
+		this.mensajesRecibidosPorSegundo = mensajesRecibidosPorSegundo;
+		this.bytesEnviadosPorSegundo = bytesEnviadosPorSegundo;
+		this.mensajesEnviadosPorSegundo = mensajesEnviadosPorSegundo;
+		this.profundidadCola = profundidadCola;
+		this.rtt = rtt;
+		this.sinConfirmar = sinConfirmar;
+		this.rttLatidos = rttLatidos;
+	}
+}
@@ -0,0 +1,48 @@
+package com.blogspot.zomwi.chatbluetooth.conexion;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Las metricas de todas las conexiones de un ServicioChat en un momento dado.
+ * Los tiempos estan en nanosegundos.
+ */
+public class InstantaneaMetricas {
+
+	// Una por cada conexion activa
+	public final List<InstantaneaConexion> conexiones;
+
+	// Perdidas y reconexiones desde que se creo el servicio
+	public final long perdidas;
+	public final long intentosReconexion;
+	public final long reanudadas;
+	public final long abandonadas;
+
+	// Desde escribir() hasta la confirmacion del otro extremo
+	public final HistogramaLatencia.Resumen latencia;
+	// Duracion de cada llamada a write() en el socket
+	public final HistogramaLatencia.Resumen escrituras;
+
+	public InstantaneaMetricas(List<InstantaneaConexion> conexiones,
+			MetricasReconexion reconexion, HistogramaLatencia.Resumen latencia,
+			HistogramaLatencia.Resumen escrituras) {
+		this.conexiones = Collections.unmodifiableList(conexiones);
+		perdidas = reconexion.getPerdidas();
+		intentosReconexion = reconexion.getIntentos();
+		reanudadas = reconexion.getReanudadas();
+		abandonadas = reconexion.getAbandonadas();
+		this.latencia = latencia;
+		this.escrituras = escrituras;
+	}
+
+	/**
+	 * @return Las profundidades de las colas de envio sumadas
+	 */
+	public int getProfundidadCola() {
+		int profundidad = 0;
+		for (InstantaneaConexion conexion : conexiones) {
+			profundidad += conexion.profundidadCola;
+		}
+		return profundidad;
+	}
+}
@@ -0,0 +1,209 @@
+package com.blogspot.zomwi.chatbluetooth.conexion;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import com.blogspot.zomwi.chatbluetooth.hilos.Tarea;
+
+/**
+ * Una sola tarea que atiende los flujos de entrada de varias conexiones, en vez
+ * de un hilo bloqueado en read() por cada una.
+ *
+ * Los sockets Bluetooth no tienen selectores, asi que la disponibilidad se
+ * consulta con available() y solo se lee lo que ya llego, sin bloquear. Cuando
+ * no hay nada que leer el hilo espera el doble en cada vuelta, hasta
+ * ESPERA_MAXIMA milisegundos, asi una conversacion activa se lee enseguida y
+ * un telefono inactivo solo despierta unas pocas veces por segundo. Sin
+ * conexiones registradas se duerme hasta que se registre una. Despues de
+ * escribir conviene llamar a despertar(), porque la respuesta suele llegar
+ * pronto.
+ *
+ * Una conexion se da por perdida cuando available() o read() fallan. Un flujo
+ * que solo informa el fin con read() devolviendo -1 no se detecta aqui hasta
+ * que falle una escritura.
+ *
+ * Corre en un hilo del MotorHilos, asi que se cancela y se espera como las
+ * demas tareas.
+ */
+public class LectorMultiplexado extends Tarea {
+
+	// Espera maxima entre dos vueltas sin datos, en milisegundos
+	private static final int ESPERA_MAXIMA = 250;
+
+	private final byte[] buffer;
+	private final CopyOnWriteArrayList<Registro> registros = new CopyOnWriteArrayList<Registro>();
+	private final Object monitor = new Object();
+	// Volver a esperar poco, puesto por despertar()
+	private volatile boolean despertado;
+
+	// Metricas
+	private volatile long lecturas;
+	private volatile long esperas;
+
+	/**
+	 * Constructor
+	 *
+	 * @param nombre
+	 *            El nombre de la tarea
+	 * @param tamanoBuffer
+	 *            Lo maximo que se lee de un flujo en cada vuelta
+	 */
+	public LectorMultiplexado(String nombre, int tamanoBuffer) {
+		super(nombre);
+		buffer = new byte[tamanoBuffer];
+	}
+
+	/**
+	 * Empezar a leer un flujo
+	 *
+	 * @param flujo
+	 *            El flujo de entrada de la conexion
+	 * @param oyente
+	 *            Quien recibe los bytes leidos
+	 */
+	public void registrar(InputStream flujo, OyenteLectura oyente) {
+		registros.add(new Registro(flujo, oyente));
+		synchronized (monitor) {
+			monitor.notifyAll();
+		}
+	}
+
+	/**
+	 * Dejar de leer el flujo de un oyente, sin avisarle
+	 *
+	 * @param oyente
+	 *            El oyente con el que se registro el flujo
+	 */
+	public void quitar(OyenteLectura oyente) {
+		for (Registro registro : registros) {
+			if (registro.oyente == oyente) {
+				registros.remove(registro);
+			}
+		}
+	}
+
+	/**
+	 * Volver a consultar los flujos enseguida y con esperas cortas, por
+	 * ejemplo porque se acaba de escribir y se espera una respuesta
+	 */
+	public void despertar() {
+		if (despertado) {
+			return;
+		}
+		despertado = true;
+		synchronized (monitor) {
+			monitor.notifyAll();
+		}
+	}
+
+	/**
+	 * @return La cantidad de flujos registrados
+	 */
+	public int getConexiones() {
+		return registros.size();
+	}
+
+	/**
+	 * @return Cuantas lecturas con datos se hicieron
+	 */
+	public long getLecturas() {
+		return lecturas;
+	}
+
+	/**
+	 * @return Cuantas vueltas terminaron en espera por falta de datos
+	 */
+	public long getEsperas() {
+		return esperas;
+	}
+
+	@Override
+	protected void ejecutar() {
+		int espera = 0;
+		while (!isCancelada()) {
+			boolean leido = false;
+			for (Registro registro : registros) {
+				if (leer(registro)) {
+					leido = true;
+				}
+			}
+			if (leido || despertado) {
+				despertado = false;
+				espera = 0;
+				continue;
+			}
+			// Nada para leer en esta vuelta
+			esperas++;
+			try {
+				synchronized (monitor) {
+					if (isCancelada()) {
+						break;
+					}
+					if (despertado) {
+						continue;
+					}
+					if (registros.isEmpty()) {
+						monitor.wait();
+					} else if (espera == 0) {
+						espera = 1;
+						Thread.yield();
+					} else {
+						monitor.wait(espera);
+						espera = Math.min(espera * 2, ESPERA_MAXIMA);
+					}
+				}
+			} catch (InterruptedException ex) {
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Leer lo disponible de un flujo sin bloquear
+	 *
+	 * @return true si se leyo algo
+	 */
+	private boolean leer(Registro registro) {
+		try {
+			int disponibles = registro.flujo.available();
+			if (disponibles <= 0) {
+				return false;
+			}
+			int bytes = registro.flujo.read(buffer, 0,
+					Math.min(disponibles, buffer.length));
+			if (bytes < 0) {
+				throw new IOException("Fin del flujo de entrada");
+			}
+			lecturas++;
+			registro.oyente.datosLeidos(buffer, 0, bytes);
+			return true;
+		} catch (IOException ex) {
+			if (registros.remove(registro)) {
+				registro.oyente.lecturaPerdida(ex);
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * Despertar la espera. Los flujos registrados no se cierran
+	 */
+	@Override
+	protected void alCancelar() {
+		synchronized (monitor) {
+			monitor.notifyAll();
+		}
+	}
+
+	private static class Registro {
+
+		final InputStream flujo;
+		final OyenteLectura oyente;
+
+		Registro(InputStream flujo, OyenteLectura oyente) {
+			this.flujo = flujo;
+			this.oyente = oyente;
+		}
+	}
+}
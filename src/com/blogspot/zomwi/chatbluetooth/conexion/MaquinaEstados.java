@@ -0,0 +1,207 @@
+package com.blogspot.zomwi.chatbluetooth.conexion;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Un estado entero que solo cambia por las transiciones declaradas en una
+ * tabla. Los cambios se hacen con compareAndSet, sin monitor: leer el estado
+ * es una lectura volatil y una transicion reintenta solo si otro hilo cambio
+ * el estado a la vez. Las transiciones que no estan en la tabla se rechazan y
+ * se cuentan.
+ *
+ * Los oyentes se guardan en un arreglo que se reemplaza entero al agregar o
+ * quitar, asi que avisar no toma ningun lock. Cada transicion se avisa una
+ * vez, desde el hilo que la hizo; si dos hilos cambian el estado a la vez sin
+ * otra sincronizacion los avisos pueden llegar en otro orden, por eso llevan
+ * el estado anterior y el nuevo.
+ */
+public class MaquinaEstados {
+
+	private static final OyenteEstado[] SIN_OYENTES = new OyenteEstado[0];
+
+	// Por cada estado, los estados a los que se puede pasar como bits
+	private final int[] permitidas;
+	private final AtomicInteger estado;
+	private final AtomicReference<OyenteEstado[]> oyentes = new AtomicReference<OyenteEstado[]>(
+			SIN_OYENTES);
+	private final AtomicLong rechazadas = new AtomicLong();
+
+	/**
+	 * Constructor
+	 *
+	 * @param inicial
+	 *            El estado inicial
+	 * @param transiciones
+	 *            En la posicion de cada estado, los estados a los que se puede
+	 *            pasar desde el. Los estados van de 0 a transiciones.length - 1
+	 */
+	public MaquinaEstados(int inicial, int[][] transiciones) {
+		if (transiciones.length > Integer.SIZE) {
+			throw new IllegalArgumentException("Demasiados estados: "
+					+ transiciones.length);
+		}
+		permitidas = new int[transiciones.length];
+		for (int desde = 0; desde < transiciones.length; desde++) {
+			for (int hacia : transiciones[desde]) {
+				validar(hacia);
+				permitidas[desde] |= 1 << hacia;
+			}
+		}
+		validar(inicial);
+		estado = new AtomicInteger(inicial);
+	}
+
+	/**
+	 * @return El estado actual
+	 */
+	public int getEstado() {
+		return estado.get();
+	}
+
+	/**
+	 * @param desde
+	 *            El estado del que se sale
+	 * @param hacia
+	 *            El estado al que se entra
+	 * @return true si la tabla permite pasar de desde a hacia
+	 */
+	public boolean isPermitida(int desde, int hacia) {
+		validar(desde);
+		validar(hacia);
+		return (permitidas[desde] & (1 << hacia)) != 0;
+	}
+
+	/**
+	 * Comprobar antes de preparar una transicion que el estado actual la
+	 * permite. Solo sirve si nadie mas puede cambiar el estado mientras tanto,
+	 * por ejemplo porque todos los que salen del estado actual toman el mismo
+	 * monitor
+	 *
+	 * @param hacia
+	 *            El estado al que se quiere pasar
+	 * @return true si ya se esta en ese estado o la tabla permite pasar a el.
+	 *         Si no, se cuenta como rechazada
+	 */
+	public boolean admite(int hacia) {
+		validar(hacia);
+		int desde = estado.get();
+		if (desde == hacia || (permitidas[desde] & (1 << hacia)) != 0) {
+			return true;
+		}
+		rechazadas.incrementAndGet();
+		return false;
+	}
+
+	/**
+	 * Pasar al estado dado desde el que haya, si la tabla lo permite
+	 *
+	 * @param hacia
+	 *            El nuevo estado
+	 * @return true si hubo transicion. Si ya se estaba en ese estado no hay
+	 *         transicion ni aviso
+	 */
+	public boolean pasar(int hacia) {
+		validar(hacia);
+		while (true) {
+			int desde = estado.get();
+			if (desde == hacia) {
+				return false;
+			}
+			if ((permitidas[desde] & (1 << hacia)) == 0) {
+				rechazadas.incrementAndGet();
+				return false;
+			}
+			if (estado.compareAndSet(desde, hacia)) {
+				avisar(desde, hacia);
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Pasar al estado dado solo si el actual es desde
+	 *
+	 * @param desde
+	 *            El estado que se espera
+	 * @param hacia
+	 *            El nuevo estado
+	 * @return true si hubo transicion
+	 */
+	public boolean cambiar(int desde, int hacia) {
+		if (!isPermitida(desde, hacia)) {
+			rechazadas.incrementAndGet();
+			return false;
+		}
+		if (!estado.compareAndSet(desde, hacia)) {
+			return false;
+		}
+		avisar(desde, hacia);
+		return true;
+	}
+
+	/**
+	 * @return Cuantas transiciones se rechazaron por no estar en la tabla
+	 */
+	public long getRechazadas() {
+		return rechazadas.get();
+	}
+
+	/**
+	 * @param oyente
+	 *            Quien recibe las transiciones desde ahora
+	 */
+	public void agregarOyente(OyenteEstado oyente) {
+		while (true) {
+			OyenteEstado[] actuales = oyentes.get();
+			OyenteEstado[] nuevos = new OyenteEstado[actuales.length + 1];
+			System.arraycopy(actuales, 0, nuevos, 0, actuales.length);
+			nuevos[actuales.length] = oyente;
+			if (oyentes.compareAndSet(actuales, nuevos)) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * @param oyente
+	 *            Un oyente agregado antes
+	 * @return true si estaba agregado
+	 */
+	public boolean quitarOyente(OyenteEstado oyente) {
+		while (true) {
+			OyenteEstado[] actuales = oyentes.get();
+			int posicion = -1;
+			for (int i = 0; i < actuales.length; i++) {
+				if (actuales[i] == oyente) {
+					posicion = i;
+					break;
+				}
+			}
+			if (posicion < 0) {
+				return false;
+			}
+			OyenteEstado[] nuevos = actuales.length == 1 ? SIN_OYENTES
+					: new OyenteEstado[actuales.length - 1];
+			System.arraycopy(actuales, 0, nuevos, 0, posicion);
+			System.arraycopy(actuales, posicion + 1, nuevos, posicion,
+					actuales.length - posicion - 1);
+			if (oyentes.compareAndSet(actuales, nuevos)) {
+				return true;
+			}
+		}
+	}
+
+	private void avisar(int desde, int hacia) {
+		for (OyenteEstado oyente : oyentes.get()) {
+			oyente.estadoCambiado(desde, hacia);
+		}
+	}
+
+	private void validar(int estado) {
+		if (estado < 0 || estado >= permitidas.length) {
+			throw new IllegalArgumentException("Estado desconocido: " + estado);
+		}
+	}
+}
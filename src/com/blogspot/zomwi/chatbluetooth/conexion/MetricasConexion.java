@@ -0,0 +1,121 @@
+package com.blogspot.zomwi.chatbluetooth.conexion;
+
+/**
+ * Los contadores de trafico de una conexion. Lo recibido lo cuenta solo quien
+ * lee la conexion y lo enviado solo su hilo escritor, asi que los contadores
+ * no necesitan operaciones atomicas y registrar no asigna memoria.
+ *
+ * Las tasas por segundo de una InstantaneaConexion se calculan desde la
+ * instantanea anterior de la misma conexion.
+ */
+public class MetricasConexion {
+
+	// El tiempo que tardo en establecerse, 0 si fue entrante
+	private final long tiempoConexion;
+	private final long conectadaDesde = System.nanoTime();
+	// Duracion de las llamadas a write(), compartido entre conexiones
+	private final HistogramaLatencia escrituras;
+
+	private volatile long bytesRecibidos;
+	private volatile long mensajesRecibidos;
+	private volatile long bytesEnviados;
+	private volatile long mensajesEnviados;
+
+	// Los totales de la instantanea anterior
+	private long anterior = conectadaDesde;
+	private long anteriorBytesRecibidos;
+	private long anteriorMensajesRecibidos;
+	private long anteriorBytesEnviados;
+	private long anteriorMensajesEnviados;
+
+	/**
+	 * Constructor
+	 *
+	 * @param tiempoConexion
+	 *            Los nanosegundos que tardo en conectar, 0 si fue entrante
+	 * @param escrituras
+	 *            Donde se registra la duracion de cada write(), puede ser null
+	 */
+	public MetricasConexion(long tiempoConexion, HistogramaLatencia escrituras) {
+		this.tiempoConexion = tiempoConexion;
+		this.escrituras = escrituras;
+	}
+
+	/**
+	 * Contar bytes leidos. Solo lo llama quien lee la conexion
+	 *
+	 * @param bytes
+	 *            La cantidad leida
+	 */
+	public void leido(int bytes) {
+		bytesRecibidos += bytes;
+	}
+
+	/**
+	 * Contar un mensaje de chat recibido. Solo lo llama quien lee la conexion
+	 */
+	public void mensajeRecibido() {
+		mensajesRecibidos++;
+	}
+
+	/**
+	 * Contar un lote escrito. Solo lo llama el hilo escritor
+	 *
+	 * @param bytes
+	 *            Los bytes escritos
+	 * @param mensajes
+	 *            Los mensajes de chat del lote
+	 * @param nanos
+	 *            Lo que tardo la llamada a write()
+	 */
+	public void escrito(int bytes, int mensajes, long nanos) {
+		bytesEnviados += bytes;
+		mensajesEnviados += mensajes;
+		if (escrituras != null) {
+			escrituras.registrar(nanos);
+		}
+	}
+
+	/**
+	 * Tomar una instantanea de la conexion
+	 *
+	 * @param direccion
+	 *            La direccion del otro extremo
+	 * @param nombre
+	 *            El nombre del otro extremo
+	 * @param profundidadCola
+	 *            Los envios esperando en su cola
+	 * @param sesion
+	 *            La sesion con el otro extremo, puede ser null
+	 * @param latidos
+	 *            El detector de latidos de la conexion, puede ser null
+	 * @return Los totales y las tasas desde la instantanea anterior
+	 */
+	public synchronized InstantaneaConexion instantanea(String direccion,
+			String nombre, int profundidadCola, Sesion sesion,
+			DetectorLatidos latidos) {
+		long ahora = System.nanoTime();
+		long bytesEntrada = bytesRecibidos;
+		long mensajesEntrada = mensajesRecibidos;
+		long bytesSalida = bytesEnviados;
+		long mensajesSalida = mensajesEnviados;
+		double segundos = Math.max(ahora - anterior, 1) / 1e9;
+		InstantaneaConexion instantanea = new InstantaneaConexion(direccion,
+				nombre, tiempoConexion, ahora - conectadaDesde, bytesEntrada,
+				mensajesEntrada, bytesSalida, mensajesSalida,
+				(bytesEntrada - anteriorBytesRecibidos) / segundos,
+				(mensajesEntrada - anteriorMensajesRecibidos) / segundos,
+				(bytesSalida - anteriorBytesEnviados) / segundos,
+				(mensajesSalida - anteriorMensajesEnviados) / segundos,
+				profundidadCola, sesion != null ? sesion.getRtt()
+						.getPromedio() : 0, sesion != null ? sesion
+						.getSinConfirmar() : 0, latidos != null ? latidos
+						.getRtt().getPromedio() : 0);
+		anterior = ahora;
+		anteriorBytesRecibidos = bytesEntrada;
+		anteriorMensajesRecibidos = mensajesEntrada;
+		anteriorBytesEnviados = bytesSalida;
+		anteriorMensajesEnviados = mensajesSalida;
+		return instantanea;
+	}
+}
@@ -0,0 +1,113 @@
+package com.blogspot.zomwi.chatbluetooth.conexion;
+
+/**
+ * Cuenta las perdidas de conexion, los intentos de reconexion y el tiempo que
+ * tarda cada sesion en reanudarse, desde que se pierde la conexion hasta que
+ * el otro extremo confirma lo que recibio.
+ */
+public class MetricasReconexion {
+
+	private long perdidas;
+	private long intentos;
+	private long abandonadas;
+	private long reanudadas;
+	private long reenviados;
+	private long tiempoTotal;
+	private long tiempoMaximo;
+	private long tiempoUltimo;
+
+	/**
+	 * Anotar una conexion perdida
+	 */
+	public synchronized void perdida() {
+		perdidas++;
+	}
+
+	/**
+	 * Anotar un intento de reconexion
+	 */
+	public synchronized void intento() {
+		intentos++;
+	}
+
+	/**
+	 * Anotar que se dejo de intentar reconectar
+	 */
+	public synchronized void abandonada() {
+		abandonadas++;
+	}
+
+	/**
+	 * Anotar una sesion reanudada
+	 *
+	 * @param nanos
+	 *            El tiempo desde que se perdio la conexion
+	 * @param mensajes
+	 *            Los mensajes que se reenviaron
+	 */
+	public synchronized void reanudada(long nanos, int mensajes) {
+		reanudadas++;
+		reenviados += mensajes;
+		tiempoTotal += nanos;
+		tiempoUltimo = nanos;
+		if (nanos > tiempoMaximo) {
+			tiempoMaximo = nanos;
+		}
+	}
+
+	/**
+	 * @return Las conexiones perdidas
+	 */
+	public synchronized long getPerdidas() {
+		return perdidas;
+	}
+
+	/**
+	 * @return Los intentos de reconexion, exitosos o no
+	 */
+	public synchronized long getIntentos() {
+		return intentos;
+	}
+
+	/**
+	 * @return Las veces que se agotaron los intentos sin reconectar
+	 */
+	public synchronized long getAbandonadas() {
+		return abandonadas;
+	}
+
+	/**
+	 * @return Las sesiones reanudadas despues de una perdida
+	 */
+	public synchronized long getReanudadas() {
+		return reanudadas;
+	}
+
+	/**
+	 * @return Los mensajes reenviados al reanudar
+	 */
+	public synchronized long getReenviados() {
+		return reenviados;
+	}
+
+	/**
+	 * @return El tiempo promedio de recuperacion en nanosegundos
+	 */
+	public synchronized long getTiempoPromedio() {
+		return reanudadas == 0 ? 0 : tiempoTotal / reanudadas;
+	}
+
+	/**
+	 * @return El tiempo de recuperacion mas largo en nanosegundos
+	 */
+	public synchronized long getTiempoMaximo() {
+		return tiempoMaximo;
+	}
+
+	/**
+	 * @return El tiempo de la ultima recuperacion en nanosegundos
+	 */
+	public synchronized long getTiempoUltimo() {
+		return tiempoUltimo;
+	}
+}
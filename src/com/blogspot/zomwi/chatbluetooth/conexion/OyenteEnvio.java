@@ -0,0 +1,30 @@
+package com.blogspot.zomwi.chatbluetooth.conexion;
+
+import java.io.IOException;
+
+/**
+ * Recibe el resultado de un Envio. Los metodos se llaman desde el hilo
+ * escritor de la conexion (o desde el que encola, si el envio falla al
+ * encolarse), asi que no deben bloquear ni tocar la interfaz grafica
+ * directamente.
+ */
+public interface OyenteEnvio {
+
+	/**
+	 * Los bytes del envio se escribieron en el socket
+	 *
+	 * @param envio
+	 *            El envio completado
+	 */
+	void envioCompletado(Envio envio);
+
+	/**
+	 * El envio no se pudo escribir
+	 *
+	 * @param envio
+	 *            El envio fallido
+	 * @param causa
+	 *            El motivo del fallo
+	 */
+	void envioFallido(Envio envio, IOException causa);
+}
@@ -0,0 +1,17 @@
+package com.blogspot.zomwi.chatbluetooth.conexion;
+
+/**
+ * Recibe las transiciones de una MaquinaEstados. Se llama desde el hilo que
+ * hizo la transicion, asi que no debe bloquear ni tocar la interfaz grafica
+ * directamente.
+ */
+public interface OyenteEstado {
+
+	/**
+	 * @param anterior
+	 *            El estado del que se salio
+	 * @param nuevo
+	 *            El estado al que se entro
+	 */
+	void estadoCambiado(int anterior, int nuevo);
+}
@@ -0,0 +1,35 @@
+package com.blogspot.zomwi.chatbluetooth.conexion;
+
+import java.io.IOException;
+
+/**
+ * Recibe lo que el LectorMultiplexado lee del flujo de entrada de una
+ * conexion.
+ */
+public interface OyenteLectura {
+
+	/**
+	 * Se llama desde el hilo del lector con los bytes leidos. El arreglo es
+	 * del lector y se reutiliza al volver, asi que hay que copiar lo que se
+	 * quiera guardar
+	 *
+	 * @param datos
+	 *            El buffer del lector
+	 * @param offset
+	 *            Donde empiezan los bytes leidos
+	 * @param cantidad
+	 *            Cuantos bytes se leyeron
+	 * @throws IOException
+	 *             Si los datos no son validos; la conexion se da por perdida
+	 */
+	void datosLeidos(byte[] datos, int offset, int cantidad) throws IOException;
+
+	/**
+	 * Se llama una sola vez cuando falla la lectura o termina el flujo. El
+	 * flujo ya no esta registrado en el lector
+	 *
+	 * @param causa
+	 *            El motivo de la perdida
+	 */
+	void lecturaPerdida(IOException causa);
+}
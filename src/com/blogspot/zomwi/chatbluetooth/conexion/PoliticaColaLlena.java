@@ -0,0 +1,17 @@
+package com.blogspot.zomwi.chatbluetooth.conexion;
+
+/**
+ * Lo que hace ColaEnvio cuando se intenta encolar un envio y la cola esta
+ * llena
+ */
+public enum PoliticaColaLlena {
+
+	// Esperar a que haya lugar. No usar desde el hilo de la interfaz grafica
+	BLOQUEAR,
+
+	// Descartar el envio nuevo sin avisar al oyente
+	DESCARTAR,
+
+	// Marcar el envio como fallido y avisar al oyente
+	FALLAR
+}
@@ -0,0 +1,93 @@
+package com.blogspot.zomwi.chatbluetooth.conexion;
+
+/**
+ * Pool de buffers de tamano fijo para el camino de lectura. El hilo lector
+ * arrienda un buffer, copia en el un mensaje y se lo pasa al consumidor, que
+ * lo libera despues de decodificarlo. Asi ningun buffer se comparte entre dos
+ * mensajes y en regimen estable no se reserva memoria por cada lectura.
+ *
+ * Si el pool se queda sin buffers se crea uno nuevo y se cuenta como
+ * agotamiento; al liberarse se queda en el pool si hay lugar.
+ */
+public class PoolBuffers {
+
+	private final int tamano;
+	private final BufferArrendado[] libres;
+	private int cantidadLibres;
+
+	// Estadisticas
+	private int prestados;
+	private long agotamientos;
+	private long sobredimensionados;
+
+	/**
+	 * Constructor
+	 *
+	 * @param capacidad
+	 *            La cantidad maxima de buffers que guarda el pool
+	 * @param tamano
+	 *            El tamano en bytes de cada buffer
+	 */
+	public PoolBuffers(int capacidad, int tamano) {
+		this.tamano = tamano;
+		libres = new BufferArrendado[capacidad];
+		for (int i = 0; i < capacidad; i++) {
+			libres[i] = new BufferArrendado(this, tamano, false);
+		}
+		cantidadLibres = capacidad;
+	}
+
+	/**
+	 * Obtener un buffer con al menos la capacidad pedida
+	 *
+	 * @param longitud
+	 *            La cantidad de bytes que se van a copiar al buffer
+	 * @return Un buffer prestado que se debe liberar
+	 */
+	public synchronized BufferArrendado arrendar(int longitud) {
+		BufferArrendado buffer;
+		if (longitud > tamano) {
+			// No cabe en un buffer del pool, se crea uno que no se reutiliza
+			sobredimensionados++;
+			buffer = new BufferArrendado(this, longitud, true);
+		} else if (cantidadLibres > 0) {
+			buffer = libres[--cantidadLibres];
+			libres[cantidadLibres] = null;
+		} else {
+			agotamientos++;
+			buffer = new BufferArrendado(this, tamano, false);
+		}
+		buffer.marcarPrestado();
+		prestados++;
+		return buffer;
+	}
+
+	synchronized void devolver(BufferArrendado buffer) {
+		buffer.marcarDevuelto();
+		prestados--;
+		if (!buffer.desechable && cantidadLibres < libres.length) {
+			libres[cantidadLibres++] = buffer;
+		}
+	}
+
+	/**
+	 * @return La cantidad de buffers prestados que aun no se liberaron
+	 */
+	public synchronized int getPrestados() {
+		return prestados;
+	}
+
+	/**
+	 * @return Cuantas veces el pool se quedo sin buffers libres
+	 */
+	public synchronized long getAgotamientos() {
+		return agotamientos;
+	}
+
+	/**
+	 * @return Cuantos mensajes no cupieron en un buffer del pool
+	 */
+	public synchronized long getSobredimensionados() {
+		return sobredimensionados;
+	}
+}
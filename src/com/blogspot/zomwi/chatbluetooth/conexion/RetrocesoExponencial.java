@@ -0,0 +1,60 @@
+package com.blogspot.zomwi.chatbluetooth.conexion;
+
+import java.util.Random;
+
+/**
+ * Calcula las esperas entre intentos de reconexion. El techo se duplica en
+ * cada intento hasta el maximo, y la espera es un valor al azar entre la
+ * mitad del techo y el techo, para que varios dispositivos que perdieron la
+ * conexion a la vez no vuelvan a intentar todos juntos.
+ */
+public class RetrocesoExponencial {
+
+	private final long inicial;
+	private final long maximo;
+	private final Random azar;
+	private int intentos;
+
+	/**
+	 * Constructor
+	 *
+	 * @param inicial
+	 *            El techo de la primera espera, en milisegundos
+	 * @param maximo
+	 *            El techo mas alto, en milisegundos
+	 * @param azar
+	 *            De donde sale la variacion de cada espera
+	 */
+	public RetrocesoExponencial(long inicial, long maximo, Random azar) {
+		this.inicial = inicial;
+		this.maximo = maximo;
+		this.azar = azar;
+	}
+
+	/**
+	 * @return La espera antes del siguiente intento, en milisegundos
+	 */
+	public long siguiente() {
+		long techo = inicial << Math.min(intentos, 30);
+		if (techo <= 0 || techo > maximo) {
+			techo = maximo;
+		}
+		intentos++;
+		long mitad = techo / 2;
+		return mitad + (long) (azar.nextDouble() * (techo - mitad + 1));
+	}
+
+	/**
+	 * @return La cantidad de esperas calculadas desde el ultimo reinicio
+	 */
+	public int getIntentos() {
+		return intentos;
+	}
+
+	/**
+	 * Volver a empezar desde la espera inicial
+	 */
+	public void reiniciar() {
+		intentos = 0;
+	}
+}
@@ -0,0 +1,371 @@
+package com.blogspot.zomwi.chatbluetooth.conexion;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.blogspot.zomwi.chatbluetooth.protocolo.Trama;
+
+/**
+ * El estado de la conversacion con otra instancia del chat, que sobrevive a
+ * las conexiones. Numera los mensajes que se escriben, guarda los ultimos
+ * RETENCION sin confirmar para reenviarlos al reanudar, y recuerda el ultimo
+ * mensaje recibido para descartar los duplicados.
+ *
+ * El otro extremo confirma lo recibido con tramas TIPO_CONFIRMACION. Cada
+ * confirmacion marca los envios como entregados y da una muestra al
+ * EstimadorRtt. Si el mensaje mas viejo sin confirmar supera la espera del
+ * estimador no se retransmite nada: el enlace ya entrega en orden y sin
+ * perdidas mientras vive, asi que el vencimiento solo cuenta como indicio de
+ * que el otro extremo no contesta. Lo que falta confirmar se reenvia
+ * unicamente al reanudar la sesion en una conexion nueva.
+ *
+ * Los numeros crecen de a uno y se comparan por diferencia, asi que pueden
+ * dar la vuelta sin problemas.
+ */
+public class Sesion {
+
+	// Mensajes sin confirmar que se guardan para reenviar
+	public static final int RETENCION = 1024;
+
+	// El identificador de la instancia del otro extremo
+	public final long instanciaRemota;
+
+	// Mensajes escritos sin confirmar, en orden, con el momento en que se
+	// escribieron por ultima vez
+	private final int[] numeros = new int[RETENCION];
+	private final Envio[] envios = new Envio[RETENCION];
+	private final long[] escritos = new long[RETENCION];
+	private final boolean[] retransmitidos = new boolean[RETENCION];
+	private int inicio;
+	private int cantidad;
+
+	private final EstimadorRtt rtt = new EstimadorRtt();
+	// Donde se registra cuanto tardo cada mensaje en confirmarse
+	private final HistogramaLatencia latencias;
+	private int vencimientosSeguidos;
+	// Cuando vencio la ultima espera, 0 si no vencio desde la ultima
+	// confirmacion
+	private long ultimoVencimiento;
+
+	private int ultimoEnviado;
+	private int ultimoRecibido;
+
+	// Cuando se perdio la conexion, 0 si no esta perdida
+	private long perdida;
+
+	// Estadisticas
+	private long olvidados;
+	private long duplicados;
+	private long vencimientos;
+
+	/**
+	 * Constructor
+	 *
+	 * @param instanciaRemota
+	 *            El identificador de la instancia del otro extremo
+	 */
+	public Sesion(long instanciaRemota) {
+		this(instanciaRemota, null);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param instanciaRemota
+	 *            El identificador de la instancia del otro extremo
+	 * @param latencias
+	 *            Donde registrar el tiempo desde que se encolo cada mensaje
+	 *            hasta su confirmacion, puede ser null
+	 */
+	public Sesion(long instanciaRemota, HistogramaLatencia latencias) {
+		this.instanciaRemota = instanciaRemota;
+		this.latencias = latencias;
+	}
+
+	/**
+	 * Numerar un mensaje que se esta escribiendo y guardarlo hasta que se
+	 * confirme. Lo llama el hilo escritor
+	 *
+	 * @param envio
+	 *            El envio del mensaje, con la carga sin comprimir
+	 * @return El numero del mensaje en la sesion
+	 */
+	synchronized int registrar(Envio envio) {
+		if (cantidad == RETENCION) {
+			// Ya no se podra reenviar el mas viejo
+			envios[inicio] = null;
+			inicio = (inicio + 1) % RETENCION;
+			cantidad--;
+			olvidados++;
+		}
+		int fin = (inicio + cantidad) % RETENCION;
+		numeros[fin] = ++ultimoEnviado;
+		envios[fin] = envio;
+		escritos[fin] = System.nanoTime();
+		retransmitidos[fin] = false;
+		cantidad++;
+		return ultimoEnviado;
+	}
+
+	/**
+	 * Olvidar un mensaje que fallo al escribirse, para que no se reenvie al
+	 * reanudar: quien lo envio ya lo da por no enviado. Lo llama el hilo
+	 * escritor con los mensajes de un lote fallido, del ultimo al primero. El
+	 * numero no se reutiliza
+	 *
+	 * @param envio
+	 *            El envio registrado
+	 * @return true si era el ultimo registrado y se olvido
+	 */
+	synchronized boolean retirar(Envio envio) {
+		if (cantidad == 0) {
+			return false;
+		}
+		int fin = (inicio + cantidad - 1) % RETENCION;
+		if (envios[fin] != envio) {
+			return false;
+		}
+		envios[fin] = null;
+		cantidad--;
+		return true;
+	}
+
+	/**
+	 * Marcar como entregados los mensajes que el otro extremo ya recibio y
+	 * olvidarlos
+	 *
+	 * @param confirmado
+	 *            El ultimo mensaje recibido por el otro extremo
+	 * @return La cantidad de mensajes confirmados
+	 */
+	public synchronized int confirmar(int confirmado) {
+		int confirmados = 0;
+		long ahora = System.nanoTime();
+		while (cantidad > 0 && numeros[inicio] - confirmado <= 0) {
+			// Solo los mensajes escritos una vez dan una muestra confiable
+			if (numeros[inicio] == confirmado && !retransmitidos[inicio]) {
+				rtt.muestra(ahora - escritos[inicio]);
+			}
+			if (latencias != null) {
+				latencias.registrar(ahora - envios[inicio].creado);
+			}
+			envios[inicio].entregar();
+			envios[inicio] = null;
+			inicio = (inicio + 1) % RETENCION;
+			cantidad--;
+			confirmados++;
+		}
+		if (confirmados > 0) {
+			vencimientosSeguidos = 0;
+			ultimoVencimiento = 0;
+		}
+		return confirmados;
+	}
+
+	/**
+	 * Preparar el reenvio de lo que el otro extremo no recibio
+	 *
+	 * @param confirmado
+	 *            El ultimo mensaje recibido por el otro extremo
+	 * @return Los envios a escribir antes que cualquier mensaje nuevo, con su
+	 *         numero original
+	 */
+	public synchronized List<Envio> reanudar(int confirmado) {
+		confirmar(confirmado);
+		return reenviar();
+	}
+
+	/**
+	 * Revisar si el mensaje mas viejo sin confirmar supero la espera, contada
+	 * desde que se escribio o desde el vencimiento anterior. Cada vencimiento
+	 * duplica la espera siguiente
+	 *
+	 * @param ahora
+	 *            El momento actual, de System.nanoTime()
+	 * @return true si vencio la espera
+	 */
+	public synchronized boolean vencido(long ahora) {
+		if (cantidad == 0) {
+			return false;
+		}
+		long desde = escritos[inicio];
+		if (ultimoVencimiento != 0 && ultimoVencimiento - desde > 0) {
+			desde = ultimoVencimiento;
+		}
+		if (ahora - desde < rtt.getEspera()) {
+			return false;
+		}
+		rtt.retroceder();
+		vencimientosSeguidos++;
+		vencimientos++;
+		ultimoVencimiento = ahora;
+		return true;
+	}
+
+	/**
+	 * Crear envios para volver a escribir todo lo que falta confirmar, con
+	 * sus numeros originales
+	 */
+	private List<Envio> reenviar() {
+		List<Envio> reenvios = new ArrayList<Envio>(cantidad);
+		long ahora = System.nanoTime();
+		for (int i = 0; i < cantidad; i++) {
+			int j = (inicio + i) % RETENCION;
+			Envio envio = new Envio(Trama.TIPO_MENSAJE, envios[j].carga, null);
+			envio.numero = numeros[j];
+			escritos[j] = ahora;
+			retransmitidos[j] = true;
+			reenvios.add(envio);
+		}
+		return reenvios;
+	}
+
+	/**
+	 * Anotar un mensaje recibido
+	 *
+	 * @param numero
+	 *            El numero del mensaje en la sesion
+	 * @return false si es un duplicado y hay que descartarlo
+	 */
+	public synchronized boolean recibido(int numero) {
+		if (numero - ultimoRecibido <= 0) {
+			duplicados++;
+			return false;
+		}
+		ultimoRecibido = numero;
+		return true;
+	}
+
+	/**
+	 * @return El numero del ultimo mensaje recibido
+	 */
+	public synchronized int getUltimoRecibido() {
+		return ultimoRecibido;
+	}
+
+	/**
+	 * @return Las veces seguidas que vencio la espera sin recibir una
+	 *         confirmacion
+	 */
+	public synchronized int getVencimientosSeguidos() {
+		return vencimientosSeguidos;
+	}
+
+	/**
+	 * @return La estimacion del tiempo de ida y vuelta con este extremo
+	 */
+	public EstimadorRtt getRtt() {
+		return rtt;
+	}
+
+	/**
+	 * @return Las veces que vencio la espera de una confirmacion
+	 */
+	public synchronized long getVencimientos() {
+		return vencimientos;
+	}
+
+	/**
+	 * @return La cantidad de mensajes escritos sin confirmar
+	 */
+	public synchronized int getSinConfirmar() {
+		return cantidad;
+	}
+
+	/**
+	 * Anotar que se perdio la conexion, para medir cuanto tarda en volver
+	 */
+	public synchronized void perdida() {
+		if (perdida == 0) {
+			perdida = System.nanoTime();
+		}
+	}
+
+	/**
+	 * Anotar que la sesion se reanudo
+	 *
+	 * @return Los nanosegundos desde que se perdio la conexion, o -1 si no
+	 *         estaba perdida
+	 */
+	public synchronized long reanudada() {
+		if (perdida == 0) {
+			return -1;
+		}
+		long tiempo = System.nanoTime() - perdida;
+		perdida = 0;
+		return tiempo;
+	}
+
+	/**
+	 * @return Los mensajes que salieron de la retencion sin confirmar y ya
+	 *         no se pueden reenviar
+	 */
+	public synchronized long getOlvidados() {
+		return olvidados;
+	}
+
+	/**
+	 * @return Los mensajes recibidos que se descartaron por duplicados
+	 */
+	public synchronized long getDuplicados() {
+		return duplicados;
+	}
+
+	/**
+	 * @param instancia
+	 *            El identificador de la instancia local
+	 * @return La carga de una trama TIPO_SESION
+	 */
+	public static byte[] crearCargaSesion(long instancia) {
+		byte[] carga = new byte[8];
+		for (int i = 0; i < 8; i++) {
+			carga[i] = (byte) (instancia >>> (56 - 8 * i));
+		}
+		return carga;
+	}
+
+	/**
+	 * @return El identificador de instancia de una trama TIPO_SESION
+	 * @throws IOException
+	 *             Si la carga esta mal formada
+	 */
+	public static long leerInstancia(byte[] carga, int offset, int longitud)
+			throws IOException {
+		if (longitud < 8) {
+			throw new IOException("Trama de sesion incompleta");
+		}
+		long instancia = 0;
+		for (int i = 0; i < 8; i++) {
+			instancia = (instancia << 8) | (carga[offset + i] & 0xFF);
+		}
+		return instancia;
+	}
+
+	/**
+	 * @param ultimoRecibido
+	 *            El ultimo mensaje recibido en la sesion
+	 * @return La carga de una trama TIPO_REANUDAR o TIPO_CONFIRMACION
+	 */
+	public static byte[] crearCargaNumero(int ultimoRecibido) {
+		return new byte[] { (byte) (ultimoRecibido >>> 24),
+				(byte) (ultimoRecibido >>> 16), (byte) (ultimoRecibido >>> 8),
+				(byte) ultimoRecibido };
+	}
+
+	/**
+	 * @return El ultimo mensaje recibido de una trama TIPO_REANUDAR o
+	 *         TIPO_CONFIRMACION
+	 * @throws IOException
+	 *             Si la carga esta mal formada
+	 */
+	public static int leerNumero(byte[] carga, int offset, int longitud)
+			throws IOException {
+		if (longitud < 4) {
+			throw new IOException("Trama de confirmacion incompleta");
+		}
+		return ((carga[offset] & 0xFF) << 24)
+				| ((carga[offset + 1] & 0xFF) << 16)
+				| ((carga[offset + 2] & 0xFF) << 8) | (carga[offset + 3] & 0xFF);
+	}
+}
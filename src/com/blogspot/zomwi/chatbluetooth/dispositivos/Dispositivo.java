@@ -0,0 +1,152 @@
+package com.blogspot.zomwi.chatbluetooth.dispositivos;
+
+import java.util.Comparator;
+
+/**
+ * Lo que se sabe de un dispositivo remoto: la ultima vez que se lo vio, con
+ * que intensidad de senal y si esta vinculado. Es inmutable; cada avistamiento
+ * nuevo produce otro Dispositivo que combina los datos con los anteriores.
+ */
+public class Dispositivo {
+
+	// Estados de vinculacion, equivalentes a los BOND_* de BluetoothDevice
+	public static final int SIN_VINCULO = 0;
+	public static final int VINCULANDO = 1;
+	public static final int VINCULADO = 2;
+
+	// Cuando no se conoce la intensidad de la senal
+	public static final short SIN_RSSI = Short.MIN_VALUE;
+
+	// Los mas recientes primero; los nunca vistos al final por direccion
+	public static final Comparator<Dispositivo> POR_RECIENTES = new Comparator<Dispositivo>() {
+
+		public int compare(Dispositivo a, Dispositivo b) {
+			if (a.ultimaVez != b.ultimaVez) {
+				return a.ultimaVez > b.ultimaVez ? -1 : 1;
+			}
+			return a.direccion.compareTo(b.direccion);
+		}
+	};
+
+	// La senal mas fuerte primero; los de senal desconocida al final
+	public static final Comparator<Dispositivo> POR_SENAL = new Comparator<Dispositivo>() {
+
+		public int compare(Dispositivo a, Dispositivo b) {
+			if (a.rssi != b.rssi) {
+				return a.rssi > b.rssi ? -1 : 1;
+			}
+			return POR_RECIENTES.compare(a, b);
+		}
+	};
+
+	private final String direccion;
+	private final String nombre;
+	private final short rssi;
+	private final long ultimaVez;
+	private final int vinculo;
+
+	/**
+	 * Constructor
+	 *
+	 * @param direccion
+	 *            La direccion MAC, identifica al dispositivo
+	 * @param nombre
+	 *            El nombre, null si aun no se conoce
+	 * @param rssi
+	 *            La intensidad de la senal en dBm o SIN_RSSI
+	 * @param ultimaVez
+	 *            Cuando se lo vio por ultima vez, de System.currentTimeMillis(),
+	 *            0 si nunca se lo vio en una busqueda
+	 * @param vinculo
+	 *            SIN_VINCULO, VINCULANDO o VINCULADO
+	 */
+	public Dispositivo(String direccion, String nombre, short rssi,
+			long ultimaVez, int vinculo) {
+		if (direccion == null) {
+			throw new NullPointerException("direccion");
+		}
+		this.direccion = direccion;
+		this.nombre = nombre;
+		this.rssi = rssi;
+		this.ultimaVez = ultimaVez;
+		this.vinculo = vinculo;
+	}
+
+	/**
+	 * Combinar un avistamiento nuevo del mismo dispositivo. Lo que el
+	 * avistamiento no trae, como el nombre que a veces llega despues, se
+	 * conserva de este
+	 *
+	 * @param otro
+	 *            El avistamiento nuevo
+	 * @return El dispositivo combinado, este mismo si no cambio nada
+	 */
+	Dispositivo combinar(Dispositivo otro) {
+		String nombre = otro.nombre != null ? otro.nombre : this.nombre;
+		short rssi = otro.rssi != SIN_RSSI ? otro.rssi : this.rssi;
+		long ultimaVez = Math.max(otro.ultimaVez, this.ultimaVez);
+		if (igual(nombre, this.nombre) && rssi == this.rssi
+				&& ultimaVez == this.ultimaVez && otro.vinculo == vinculo) {
+			return this;
+		}
+		return new Dispositivo(direccion, nombre, rssi, ultimaVez, otro.vinculo);
+	}
+
+	/**
+	 * @return Este dispositivo con otro estado de vinculacion
+	 */
+	Dispositivo conVinculo(int vinculo) {
+		if (vinculo == this.vinculo) {
+			return this;
+		}
+		return new Dispositivo(direccion, nombre, rssi, ultimaVez, vinculo);
+	}
+
+	/**
+	 * @return La direccion MAC
+	 */
+	public String getDireccion() {
+		return direccion;
+	}
+
+	/**
+	 * @return El nombre, null si aun no se conoce
+	 */
+	public String getNombre() {
+		return nombre;
+	}
+
+	/**
+	 * @return La intensidad de la senal en dBm o SIN_RSSI
+	 */
+	public short getRssi() {
+		return rssi;
+	}
+
+	/**
+	 * @return Cuando se lo vio por ultima vez, 0 si nunca
+	 */
+	public long getUltimaVez() {
+		return ultimaVez;
+	}
+
+	/**
+	 * @return SIN_VINCULO, VINCULANDO o VINCULADO
+	 */
+	public int getVinculo() {
+		return vinculo;
+	}
+
+	public boolean isVinculado() {
+		return vinculo == VINCULADO;
+	}
+
+	private static boolean igual(String a, String b) {
+		return a == null ? b == null : a.equals(b);
+	}
+
+	@Override
+	public String toString() {
+		return (nombre != null ? nombre : direccion) + " " + direccion;
+	}
+}
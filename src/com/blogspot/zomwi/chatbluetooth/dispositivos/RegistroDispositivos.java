@@ -0,0 +1,215 @@
+package com.blogspot.zomwi.chatbluetooth.dispositivos;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Los dispositivos remotos conocidos, indexados por direccion. Un dispositivo
+ * que aparece varias veces en una busqueda queda como una sola entrada con los
+ * datos combinados.
+ *
+ * Los vistos recientemente se guardan en un archivo, asi la lista de
+ * dispositivos se puede mostrar al abrirla, antes de que una busqueda nueva los
+ * actualice. Se guardan como mucho capacidad dispositivos, los mas recientes, y
+ * al cargar se descartan los que no se ven desde hace ANTIGUEDAD_MAXIMA.
+ */
+public class RegistroDispositivos {
+
+	// Los dispositivos no vistos en este tiempo no se cargan
+	public static final long ANTIGUEDAD_MAXIMA = 30L * 24 * 60 * 60 * 1000;
+
+	private static final int VERSION_ARCHIVO = 1;
+
+	private final File archivo;
+	private final int capacidad;
+	private final Map<String, Dispositivo> porDireccion = new HashMap<String, Dispositivo>();
+	// Cambios sin guardar
+	private boolean modificado;
+
+	/**
+	 * Constructor. Carga los dispositivos guardados; si el archivo no existe o
+	 * esta danado se empieza vacio
+	 *
+	 * @param archivo
+	 *            Donde se guardan los dispositivos
+	 * @param capacidad
+	 *            Los dispositivos que se guardan como mucho
+	 */
+	public RegistroDispositivos(File archivo, int capacidad) {
+		this.archivo = archivo;
+		this.capacidad = capacidad;
+		try {
+			cargar(System.currentTimeMillis());
+		} catch (IOException e) {
+			porDireccion.clear();
+		}
+	}
+
+	/**
+	 * Anotar un avistamiento
+	 *
+	 * @param direccion
+	 *            La direccion MAC
+	 * @param nombre
+	 *            El nombre, null si aun no se conoce
+	 * @param rssi
+	 *            La intensidad de la senal o Dispositivo.SIN_RSSI
+	 * @param vinculo
+	 *            El estado de vinculacion
+	 * @param ahora
+	 *            El momento del avistamiento, de System.currentTimeMillis()
+	 * @return El dispositivo con los datos combinados
+	 */
+	public synchronized Dispositivo visto(String direccion, String nombre,
+			short rssi, int vinculo, long ahora) {
+		return combinar(new Dispositivo(direccion, nombre, rssi, ahora, vinculo));
+	}
+
+	/**
+	 * Sincronizar los estados de vinculacion con los dispositivos que el
+	 * sistema tiene vinculados. Los que ya no estan vinculados dejan de estarlo
+	 * aqui y los vinculados que no se conocian se agregan sin haberlos visto
+	 *
+	 * @param vinculados
+	 *            Los nombres de los dispositivos vinculados por direccion
+	 */
+	public synchronized void vinculados(Map<String, String> vinculados) {
+		for (Map.Entry<String, Dispositivo> entrada : porDireccion.entrySet()) {
+			Dispositivo dispositivo = entrada.getValue();
+			if (dispositivo.isVinculado()
+					&& !vinculados.containsKey(entrada.getKey())) {
+				entrada.setValue(dispositivo.conVinculo(Dispositivo.SIN_VINCULO));
+				modificado = true;
+			}
+		}
+		for (Map.Entry<String, String> entrada : vinculados.entrySet()) {
+			combinar(new Dispositivo(entrada.getKey(), entrada.getValue(),
+					Dispositivo.SIN_RSSI, 0, Dispositivo.VINCULADO));
+		}
+	}
+
+	private Dispositivo combinar(Dispositivo nuevo) {
+		Dispositivo anterior = porDireccion.get(nuevo.getDireccion());
+		Dispositivo combinado = anterior != null ? anterior.combinar(nuevo)
+				: nuevo;
+		if (combinado != anterior) {
+			porDireccion.put(combinado.getDireccion(), combinado);
+			modificado = true;
+		}
+		return combinado;
+	}
+
+	/**
+	 * @param direccion
+	 *            La direccion MAC
+	 * @return El dispositivo o null si no se conoce
+	 */
+	public synchronized Dispositivo getDispositivo(String direccion) {
+		return porDireccion.get(direccion);
+	}
+
+	/**
+	 * @return Todos los dispositivos, los vistos mas recientemente primero
+	 */
+	public synchronized List<Dispositivo> getDispositivos() {
+		List<Dispositivo> lista = new ArrayList<Dispositivo>(porDireccion
+				.values());
+		Collections.sort(lista, Dispositivo.POR_RECIENTES);
+		return lista;
+	}
+
+	/**
+	 * @return La cantidad de dispositivos conocidos
+	 */
+	public synchronized int getCantidad() {
+		return porDireccion.size();
+	}
+
+	/**
+	 * Guardar los dispositivos mas recientes si hubo cambios. Se escribe un
+	 * archivo temporal y se renombra, asi un fallo a mitad no deja el archivo
+	 * danado
+	 *
+	 * @throws IOException
+	 *             Si no se pudo escribir
+	 */
+	public synchronized void guardar() throws IOException {
+		if (!modificado) {
+			return;
+		}
+		List<Dispositivo> lista = getDispositivos();
+		int cantidad = Math.min(lista.size(), capacidad);
+		File temporal = new File(archivo.getPath() + ".tmp");
+		DataOutputStream salida = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(temporal)));
+		try {
+			salida.writeInt(VERSION_ARCHIVO);
+			salida.writeInt(cantidad);
+			for (int i = 0; i < cantidad; i++) {
+				Dispositivo dispositivo = lista.get(i);
+				salida.writeUTF(dispositivo.getDireccion());
+				salida.writeBoolean(dispositivo.getNombre() != null);
+				if (dispositivo.getNombre() != null) {
+					salida.writeUTF(dispositivo.getNombre());
+				}
+				salida.writeShort(dispositivo.getRssi());
+				salida.writeLong(dispositivo.getUltimaVez());
+				salida.writeByte(dispositivo.getVinculo());
+			}
+		} finally {
+			salida.close();
+		}
+		if (!temporal.renameTo(archivo)) {
+			temporal.delete();
+			throw new IOException("No se pudo reemplazar " + archivo);
+		}
+		modificado = false;
+	}
+
+	private void cargar(long ahora) throws IOException {
+		if (!archivo.exists()) {
+			return;
+		}
+		DataInputStream entrada = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(archivo)));
+		try {
+			if (entrada.readInt() != VERSION_ARCHIVO) {
+				return;
+			}
+			int cantidad = entrada.readInt();
+			for (int i = 0; i < cantidad; i++) {
+				String direccion = entrada.readUTF();
+				String nombre = entrada.readBoolean() ? entrada.readUTF() : null;
+				short rssi = entrada.readShort();
+				long ultimaVez = entrada.readLong();
+				int vinculo = entrada.readByte();
+				porDireccion.put(direccion, new Dispositivo(direccion, nombre,
+						rssi, ultimaVez, vinculo));
+			}
+		} finally {
+			entrada.close();
+		}
+		// Los vinculados se conservan, vinculados() los actualiza
+		for (Iterator<Dispositivo> i = porDireccion.values().iterator(); i
+				.hasNext();) {
+			Dispositivo dispositivo = i.next();
+			if (!dispositivo.isVinculado()
+					&& ahora - dispositivo.getUltimaVez() > ANTIGUEDAD_MAXIMA) {
+				i.remove();
+				modificado = true;
+			}
+		}
+	}
+}
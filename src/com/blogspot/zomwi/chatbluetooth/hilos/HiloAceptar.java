@@ -1,8 +1,63 @@
 package com.blogspot.zomwi.chatbluetooth.hilos;
 
-public class HiloAceptar extends Thread {
+import java.io.IOException;
 
-	public void cancelar() {
+import com.blogspot.zomwi.chatbluetooth.transporte.CanalTransporte;
+import com.blogspot.zomwi.chatbluetooth.transporte.ServidorTransporte;
 
+/**
+ * Escucha las conexiones entrantes de un servidor mientras el oyente tenga
+ * lugar para ellas, y se las pasa una por una. Al terminar cierra el servidor.
+ */
+public class HiloAceptar extends Tarea {
+
+	private final ServidorTransporte servidor;
+	private final OyenteAceptar oyente;
+
+	/**
+	 * Constructor
+	 *
+	 * @param servidor
+	 *            El servidor ya escuchando
+	 * @param oyente
+	 *            Quien recibe las conexiones
+	 */
+	public HiloAceptar(ServidorTransporte servidor, OyenteAceptar oyente) {
+		super("HiloAceptar");
+		this.servidor = servidor;
+		this.oyente = oyente;
+	}
+
+	@Override
+	protected void ejecutar() {
+		// Escucha el servidor mientras haya lugar para conexiones
+		while (!isCancelada() && oyente.hayLugar()) {
+			CanalTransporte canal;
+			try {
+				// Se trata de un bloqueo de llamadas y solo devolvera un
+				// conexion con exito o una excepcion.
+				canal = servidor.aceptar();
+			} catch (IOException e) {
+				break;
+			}
+			if (canal != null) {
+				oyente.aceptado(this, canal);
+			}
+		}
+		cerrarServidor();
+		oyente.aceptarTerminado(this);
+	}
+
+	@Override
+	protected void alCancelar() {
+		// Un aceptar() en curso termina con una excepcion
+		cerrarServidor();
+	}
+
+	private void cerrarServidor() {
+		try {
+			servidor.cerrar();
+		} catch (IOException e) {
+		}
 	}
 }
@@ -1,15 +1,57 @@
 package com.blogspot.zomwi.chatbluetooth.hilos;
 
-import android.bluetooth.BluetoothSocket;
+import java.io.IOException;
+import java.io.InputStream;
 
-public class HiloConectado extends Thread {
+import com.blogspot.zomwi.chatbluetooth.conexion.OyenteLectura;
 
-	public HiloConectado(BluetoothSocket socket) {
-		
+/**
+ * Lee el flujo de entrada de una conexion en su propio hilo, bloqueado en
+ * read(), y pasa lo leido al oyente. Es la alternativa al LectorMultiplexado
+ * cuando hay pocas conexiones. La lectura termina cuando falla o se acaba el
+ * flujo; para cancelarla ademas hay que cerrar el socket, porque read() no
+ * siempre atiende la interrupcion.
+ */
+public class HiloConectado extends Tarea {
+
+	private final InputStream flujoEntrada;
+	private final OyenteLectura oyente;
+	private final int tamanoBuffer;
+
+	/**
+	 * Constructor
+	 *
+	 * @param flujoEntrada
+	 *            El flujo de entrada de la conexion
+	 * @param oyente
+	 *            Quien recibe lo leido y la perdida
+	 * @param tamanoBuffer
+	 *            Lo maximo que se lee de una vez
+	 */
+	public HiloConectado(InputStream flujoEntrada, OyenteLectura oyente,
+			int tamanoBuffer) {
+		super("HiloConectado");
+		this.flujoEntrada = flujoEntrada;
+		this.oyente = oyente;
+		this.tamanoBuffer = tamanoBuffer;
 	}
-	
-	
-	public void cancelar() {
-		
+
+	@Override
+	protected void ejecutar() {
+		// Buffer de lectura propio de esta conexion
+		byte[] buffer = new byte[tamanoBuffer];
+		// Seguimos escuchando el InputStream mientras esta conectado
+		while (!isCancelada()) {
+			try {
+				int bytes = flujoEntrada.read(buffer);
+				if (bytes < 0) {
+					throw new IOException("Fin del flujo de entrada");
+				}
+				oyente.datosLeidos(buffer, 0, bytes);
+			} catch (IOException ex) {
+				oyente.lecturaPerdida(ex);
+				return;
+			}
+		}
 	}
 }
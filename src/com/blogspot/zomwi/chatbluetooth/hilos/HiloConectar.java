@@ -1,14 +1,57 @@
 package com.blogspot.zomwi.chatbluetooth.hilos;
 
-import android.bluetooth.BluetoothDevice;
+import java.io.IOException;
 
-public class HiloConectar extends Thread {
+import com.blogspot.zomwi.chatbluetooth.transporte.CanalTransporte;
+import com.blogspot.zomwi.chatbluetooth.transporte.CarreraConexion;
 
-	public HiloConectar(BluetoothDevice dispositivo) {
-		
+/**
+ * Corre una CarreraConexion y pasa el resultado al oyente. Cancelar la tarea
+ * cancela la carrera.
+ */
+public class HiloConectar extends Tarea {
+
+	private final CarreraConexion carrera;
+	private final OyenteConectar oyente;
+
+	/**
+	 * Constructor
+	 *
+	 * @param carrera
+	 *            La carrera con los candidatos, sin correr
+	 * @param oyente
+	 *            Quien recibe el resultado
+	 */
+	public HiloConectar(CarreraConexion carrera, OyenteConectar oyente) {
+		super("HiloConectar");
+		this.carrera = carrera;
+		this.oyente = oyente;
+	}
+
+	@Override
+	protected void ejecutar() {
+		long inicio = System.nanoTime();
+		CanalTransporte canal;
+		try {
+			// Este es un bloque de llamadas y solo devolvera una conexion
+			// con exito o una excepcion
+			canal = carrera.correr();
+		} catch (IOException ex) {
+			oyente.conexionFallida(this, ex);
+			return;
+		}
+		oyente.conectado(this, canal, System.nanoTime() - inicio);
+	}
+
+	@Override
+	protected void alCancelar() {
+		carrera.cancelar();
 	}
-	
-	public void cancelar() {
 
+	/**
+	 * @return La carrera, para consultar sus intentos
+	 */
+	public CarreraConexion getCarrera() {
+		return carrera;
 	}
 }
@@ -0,0 +1,180 @@
+package com.blogspot.zomwi.chatbluetooth.hilos;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Los hilos en los que corren las tareas de las conexiones. Un hilo que
+ * termina una tarea queda esperando la siguiente, asi que conectar, aceptar y
+ * reconectar una y otra vez no crea un hilo cada vez.
+ *
+ * Las tareas bloquean mientras dura su trabajo, asi que no se encolan: cada
+ * una toma un hilo libre o se crea uno nuevo, hasta el maximo. Los hilos
+ * reservados se mantienen siempre; los demas se terminan despues de
+ * ESPERA_INACTIVO sin trabajo.
+ *
+ * detener() cancela las tareas que estan corriendo y espera a que terminen,
+ * como mucho el tiempo dado. No depende de Android, solo de java.util.
+ */
+public class MotorHilos implements Executor {
+
+	// Los hilos que no se terminan aunque esten libres
+	public static final int HILOS_RESERVADOS = 2;
+
+	// Siete conexiones con lector y escritor, mas escuchar, conectar,
+	// reconectar, precalentar y los envios de archivos
+	public static final int HILOS_MAXIMOS = 32;
+
+	// Cuanto espera un hilo libre no reservado antes de terminar, en
+	// milisegundos
+	public static final long ESPERA_INACTIVO = 30000;
+
+	private final ThreadPoolExecutor ejecutor;
+	private final ConcurrentHashMap<Tarea, Boolean> activas = new ConcurrentHashMap<Tarea, Boolean>();
+	private final AtomicInteger hilosCreados = new AtomicInteger();
+
+	/**
+	 * Constructor con HILOS_RESERVADOS y HILOS_MAXIMOS
+	 *
+	 * @param nombre
+	 *            El prefijo del nombre de los hilos
+	 */
+	public MotorHilos(String nombre) {
+		this(nombre, HILOS_RESERVADOS, HILOS_MAXIMOS);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param nombre
+	 *            El prefijo del nombre de los hilos
+	 * @param reservados
+	 *            Los hilos que se mantienen aunque esten libres
+	 * @param maximo
+	 *            Las tareas que pueden correr a la vez
+	 */
+	public MotorHilos(final String nombre, int reservados, int maximo) {
+		ejecutor = new ThreadPoolExecutor(reservados, maximo,
+				ESPERA_INACTIVO, TimeUnit.MILLISECONDS,
+				new SynchronousQueue<Runnable>(), new ThreadFactory() {
+
+					public Thread newThread(Runnable trabajo) {
+						Thread hilo = new Thread(trabajo, nombre + "-"
+								+ hilosCreados.incrementAndGet());
+						hilo.setDaemon(true);
+						return hilo;
+					}
+				});
+	}
+
+	/**
+	 * Correr una tarea en un hilo libre
+	 *
+	 * @param tarea
+	 *            La tarea, que no debe haber corrido antes
+	 * @throws RejectedExecutionException
+	 *             Si el motor se detuvo o ya corren HILOS_MAXIMOS tareas
+	 */
+	public void ejecutar(final Tarea tarea) {
+		activas.put(tarea, Boolean.TRUE);
+		try {
+			ejecutor.execute(new Runnable() {
+
+				public void run() {
+					try {
+						tarea.run();
+					} finally {
+						activas.remove(tarea);
+					}
+				}
+			});
+		} catch (RejectedExecutionException ex) {
+			activas.remove(tarea);
+			throw ex;
+		}
+	}
+
+	/**
+	 * Correr un trabajo cualquiera en un hilo libre. Las Tarea se registran
+	 * como con ejecutar(), los demas trabajos no se cancelan al detener
+	 *
+	 * @param trabajo
+	 *            El trabajo
+	 * @throws RejectedExecutionException
+	 *             Si el motor se detuvo o ya corren HILOS_MAXIMOS tareas
+	 */
+	public void execute(Runnable trabajo) {
+		if (trabajo instanceof Tarea) {
+			ejecutar((Tarea) trabajo);
+		} else {
+			ejecutor.execute(trabajo);
+		}
+	}
+
+	/**
+	 * Detener el motor. Ya no acepta tareas, cancela las que estan corriendo y
+	 * espera a que terminen. Si no terminan a tiempo se interrumpen sus hilos
+	 * y se deja de esperar
+	 *
+	 * @param milisegundos
+	 *            Lo maximo que se espera
+	 * @return true si todos los hilos terminaron a tiempo
+	 */
+	public boolean detener(long milisegundos) {
+		ejecutor.shutdown();
+		for (Tarea tarea : activas.keySet()) {
+			tarea.cancelar();
+		}
+		try {
+			if (ejecutor.awaitTermination(milisegundos, TimeUnit.MILLISECONDS)) {
+				return true;
+			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+		ejecutor.shutdownNow();
+		return false;
+	}
+
+	/**
+	 * @return true si se llamo a detener()
+	 */
+	public boolean isDetenido() {
+		return ejecutor.isShutdown();
+	}
+
+	/**
+	 * @return Las tareas que estan corriendo
+	 */
+	public int getTareasActivas() {
+		return activas.size();
+	}
+
+	/**
+	 * @return Las tareas y trabajos que ya terminaron
+	 */
+	public long getTareasTerminadas() {
+		return ejecutor.getCompletedTaskCount();
+	}
+
+	/**
+	 * @return Los hilos vivos, ocupados o libres
+	 */
+	public int getHilosVivos() {
+		return ejecutor.getPoolSize();
+	}
+
+	/**
+	 * @return Los hilos creados desde el principio. Si es mucho menor que las
+	 *         tareas terminadas, los hilos se estan reutilizando
+	 */
+	public int getHilosCreados() {
+		return hilosCreados.get();
+	}
+}
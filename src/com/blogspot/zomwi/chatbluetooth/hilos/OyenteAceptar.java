@@ -0,0 +1,35 @@
+package com.blogspot.zomwi.chatbluetooth.hilos;
+
+import com.blogspot.zomwi.chatbluetooth.transporte.CanalTransporte;
+
+/**
+ * Decide si un HiloAceptar sigue escuchando y recibe las conexiones que
+ * acepta. Los metodos se llaman desde el hilo de la tarea.
+ */
+public interface OyenteAceptar {
+
+	/**
+	 * @return true si se puede aceptar otra conexion. Se consulta antes de
+	 *         cada espera, asi que no debe bloquear
+	 */
+	boolean hayLugar();
+
+	/**
+	 * Llego una conexion. Si no se quiere hay que cerrarla
+	 *
+	 * @param hilo
+	 *            La tarea que la acepto
+	 * @param canal
+	 *            El canal ya conectado
+	 */
+	void aceptado(HiloAceptar hilo, CanalTransporte canal);
+
+	/**
+	 * La tarea dejo de escuchar, porque no hubo lugar, fallo el servidor o se
+	 * cancelo. El servidor ya esta cerrado
+	 *
+	 * @param hilo
+	 *            La tarea que termino
+	 */
+	void aceptarTerminado(HiloAceptar hilo);
+}
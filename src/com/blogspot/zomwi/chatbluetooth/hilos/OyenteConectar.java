@@ -0,0 +1,30 @@
+package com.blogspot.zomwi.chatbluetooth.hilos;
+
+import java.io.IOException;
+
+import com.blogspot.zomwi.chatbluetooth.transporte.CanalTransporte;
+
+/**
+ * Recibe el resultado de un HiloConectar. Se llama una sola vez, desde el hilo
+ * de la tarea, tambien si se cancelo.
+ */
+public interface OyenteConectar {
+
+	/**
+	 * @param hilo
+	 *            La tarea que conecto
+	 * @param canal
+	 *            El canal conectado del ganador de la carrera
+	 * @param nanos
+	 *            Lo que tardo en conectar
+	 */
+	void conectado(HiloConectar hilo, CanalTransporte canal, long nanos);
+
+	/**
+	 * @param hilo
+	 *            La tarea que no conecto
+	 * @param causa
+	 *            Por que fallo, o que se cancelo
+	 */
+	void conexionFallida(HiloConectar hilo, IOException causa);
+}
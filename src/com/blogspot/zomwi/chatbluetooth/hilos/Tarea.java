@@ -0,0 +1,139 @@
+package com.blogspot.zomwi.chatbluetooth.hilos;
+
+/**
+ * Un trabajo de larga duracion que corre en un hilo del MotorHilos: escuchar,
+ * conectar, leer o escribir. El hilo no es de la tarea, al terminar vuelve al
+ * motor y puede correr otra; por eso la tarea se cancela con cancelar() y no
+ * interrumpiendo el hilo a mano.
+ *
+ * cancelar() marca la tarea, interrumpe su hilo si esta corriendo y llama a
+ * alCancelar(), donde la subclase cierra lo que la tenga bloqueada, como un
+ * socket. Una tarea cancelada antes de empezar no corre.
+ */
+public abstract class Tarea implements Runnable {
+
+	private final String nombre;
+	private volatile boolean cancelada;
+
+	// Protegidos por this
+	private Thread hilo;
+	private boolean iniciada;
+	private boolean terminada;
+
+	/**
+	 * @param nombre
+	 *            El nombre que lleva el hilo mientras corre la tarea
+	 */
+	protected Tarea(String nombre) {
+		this.nombre = nombre;
+	}
+
+	/**
+	 * El trabajo de la tarea. Debe volver pronto cuando isCancelada() es true
+	 */
+	protected abstract void ejecutar();
+
+	/**
+	 * Se llama una vez desde cancelar(), en el hilo de quien cancela, para
+	 * desbloquear ejecutar()
+	 */
+	protected void alCancelar() {
+	}
+
+	public final void run() {
+		Thread actual = Thread.currentThread();
+		synchronized (this) {
+			if (iniciada) {
+				throw new IllegalStateException("La tarea ya corrio: "
+						+ nombre);
+			}
+			iniciada = true;
+			if (cancelada) {
+				terminada = true;
+				notifyAll();
+				return;
+			}
+			hilo = actual;
+		}
+		String nombreHilo = actual.getName();
+		actual.setName(nombre);
+		try {
+			ejecutar();
+		} finally {
+			synchronized (this) {
+				hilo = null;
+				terminada = true;
+				notifyAll();
+			}
+			// Que una interrupcion para esta tarea no le llegue a la
+			// siguiente que corra en el mismo hilo
+			Thread.interrupted();
+			actual.setName(nombreHilo);
+		}
+	}
+
+	/**
+	 * Cancelar la tarea. Se puede llamar desde cualquier hilo y mas de una
+	 * vez
+	 */
+	public void cancelar() {
+		synchronized (this) {
+			if (cancelada) {
+				return;
+			}
+			cancelada = true;
+			if (hilo != null) {
+				hilo.interrupt();
+			}
+		}
+		alCancelar();
+	}
+
+	/**
+	 * @return true si se llamo a cancelar()
+	 */
+	public boolean isCancelada() {
+		return cancelada;
+	}
+
+	/**
+	 * @return true si la tarea ya corrio, o se descarto por estar cancelada
+	 */
+	public synchronized boolean isTerminada() {
+		return terminada;
+	}
+
+	/**
+	 * Esperar a que la tarea termine, como mucho el tiempo dado
+	 *
+	 * @param milisegundos
+	 *            Lo maximo que se espera
+	 * @return true si termino
+	 * @throws InterruptedException
+	 *             Si se interrumpe a quien espera
+	 */
+	public synchronized boolean esperar(long milisegundos)
+			throws InterruptedException {
+		long limite = System.currentTimeMillis() + milisegundos;
+		while (!terminada) {
+			long resto = limite - System.currentTimeMillis();
+			if (resto <= 0) {
+				return false;
+			}
+			wait(resto);
+		}
+		return true;
+	}
+
+	/**
+	 * @return El nombre de la tarea
+	 */
+	public String getNombre() {
+		return nombre;
+	}
+
+	@Override
+	public String toString() {
+		return nombre;
+	}
+}
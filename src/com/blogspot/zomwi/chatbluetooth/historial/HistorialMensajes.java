@@ -0,0 +1,246 @@
+package com.blogspot.zomwi.chatbluetooth.historial;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Historial de la conversacion en disco, solo para agregar. Los mensajes se
+ * guardan en segmentos de hasta TAMANO_SEGMENTO bytes con registros binarios
+ * compactos y un indice disperso por segmento, asi que leer los ultimos N
+ * mensajes solo toca el final del ultimo o los ultimos segmentos, que se leen
+ * mapeados en memoria.
+ *
+ * Agregar es una sola escritura posicional en el segmento activo, sin
+ * sincronizar con el disco; sincronizar() fuerza lo escrito. Si el proceso
+ * muere a mitad de un registro, al abrir se descarta lo que quedo incompleto.
+ */
+public class HistorialMensajes {
+
+	// Tamano a partir del cual se empieza un segmento nuevo
+	private static final int TAMANO_SEGMENTO = 1024 * 1024;
+
+	private static final int BANDERA_ENVIADO = 1;
+	private static final int LONGITUD_MAXIMA_REMITENTE = 255;
+
+	private final File directorio;
+	private final List<Segmento> segmentos = new ArrayList<Segmento>();
+	private Segmento activo;
+	private long cantidad;
+
+	// Buffer y suma de verificacion reutilizados al agregar
+	private ByteBuffer registro = ByteBuffer.allocate(512);
+	private final CRC32 crc = new CRC32();
+	private String ultimoRemitente;
+	private byte[] ultimoNombre = new byte[0];
+
+	/**
+	 * Abrir o crear el historial
+	 *
+	 * @param directorio
+	 *            El directorio de los segmentos, se crea si no existe
+	 * @throws IOException
+	 *             Si no se pueden abrir los archivos
+	 */
+	public HistorialMensajes(File directorio) throws IOException {
+		this.directorio = directorio;
+		if (!directorio.isDirectory() && !directorio.mkdirs()) {
+			throw new IOException("No se pudo crear " + directorio);
+		}
+		String[] nombres = directorio.list(new FilenameFilter() {
+
+			public boolean accept(File dir, String nombre) {
+				return nombre.endsWith(Segmento.EXTENSION_LOG);
+			}
+		});
+		long[] bases = new long[nombres.length];
+		for (int i = 0; i < nombres.length; i++) {
+			bases[i] = Long.parseLong(nombres[i].substring(0, nombres[i]
+					.length()
+					- Segmento.EXTENSION_LOG.length()));
+		}
+		Arrays.sort(bases);
+		for (int i = 0; i < bases.length; i++) {
+			Segmento segmento = new Segmento(directorio, bases[i]);
+			if (i < bases.length - 1) {
+				segmento.abrirCerrado((int) (bases[i + 1] - bases[i]));
+			} else {
+				segmento.abrirActivo();
+				activo = segmento;
+			}
+			segmentos.add(segmento);
+		}
+		if (activo == null) {
+			activo = new Segmento(directorio, 0);
+			activo.crear();
+			segmentos.add(activo);
+		}
+		cantidad = activo.base + activo.getCantidad();
+	}
+
+	/**
+	 * Agregar un mensaje al final del historial
+	 *
+	 * @param marcaTiempo
+	 *            Cuando se envio o recibio, en milisegundos
+	 * @param enviado
+	 *            true si lo escribimos nosotros
+	 * @param remitente
+	 *            El nombre de quien lo escribio
+	 * @param texto
+	 *            El mensaje en UTF-8
+	 * @param offset
+	 *            Donde empieza el mensaje en texto
+	 * @param longitud
+	 *            La longitud del mensaje
+	 * @return El indice del mensaje en el historial
+	 * @throws IOException
+	 *             Si falla la escritura
+	 */
+	public synchronized long agregar(long marcaTiempo, boolean enviado,
+			String remitente, byte[] texto, int offset, int longitud)
+			throws IOException {
+		// Casi siempre escribe el mismo remitente que la vez anterior
+		if (remitente != ultimoRemitente) {
+			ultimoNombre = codificar(remitente);
+			ultimoRemitente = remitente;
+		}
+		byte[] nombre = ultimoNombre;
+		int longitudCuerpo = Segmento.LONGITUD_CUERPO_MINIMA + nombre.length
+				+ longitud;
+		int longitudRegistro = Segmento.LONGITUD_CABECERA + longitudCuerpo;
+		if (registro.capacity() < longitudRegistro) {
+			registro = ByteBuffer.allocate(longitudRegistro);
+		}
+		registro.clear();
+		registro.putInt(longitudCuerpo);
+		registro.putInt(0);
+		registro.putLong(marcaTiempo);
+		registro.put((byte) (enviado ? BANDERA_ENVIADO : 0));
+		registro.put((byte) nombre.length);
+		registro.put(nombre);
+		registro.put(texto, offset, longitud);
+		crc.reset();
+		crc.update(registro.array(), Segmento.LONGITUD_CABECERA,
+				longitudCuerpo);
+		registro.putInt(4, (int) crc.getValue());
+		registro.flip();
+
+		// Empezar otro segmento si este ya esta lleno
+		if (activo.getCantidad() > 0
+				&& activo.getTamano() + longitudRegistro > TAMANO_SEGMENTO) {
+			activo.cerrar();
+			activo = new Segmento(directorio, cantidad);
+			activo.crear();
+			segmentos.add(activo);
+		}
+		activo.agregar(registro);
+		return cantidad++;
+	}
+
+	/**
+	 * @return La cantidad de mensajes guardados
+	 */
+	public synchronized long getCantidad() {
+		return cantidad;
+	}
+
+	/**
+	 * Leer un rango de mensajes
+	 *
+	 * @param desde
+	 *            El indice del primero
+	 * @param maximo
+	 *            Cuantos leer como mucho
+	 * @return Los mensajes en orden, menos si el historial termina antes
+	 * @throws IOException
+	 *             Si falla la lectura
+	 */
+	public synchronized MensajeGuardado[] leer(long desde, int maximo)
+			throws IOException {
+		if (desde < 0) {
+			throw new IllegalArgumentException("Indice invalido: " + desde);
+		}
+		long hasta = Math.min(cantidad, desde + maximo);
+		if (hasta <= desde) {
+			return new MensajeGuardado[0];
+		}
+		MensajeGuardado[] mensajes = new MensajeGuardado[(int) (hasta - desde)];
+		int i = buscarSegmento(desde);
+		long actual = desde;
+		while (actual < hasta) {
+			Segmento segmento = segmentos.get(i++);
+			long fin = Math.min(hasta, segmento.base + segmento.getCantidad());
+			segmento.leer((int) (actual - segmento.base),
+					(int) (fin - segmento.base), mensajes,
+					(int) (actual - desde));
+			actual = fin;
+		}
+		return mensajes;
+	}
+
+	/**
+	 * Leer los mensajes mas recientes
+	 *
+	 * @param maximo
+	 *            Cuantos leer como mucho
+	 * @return Los mensajes en orden, el mas reciente al final
+	 * @throws IOException
+	 *             Si falla la lectura
+	 */
+	public synchronized MensajeGuardado[] leerUltimos(int maximo)
+			throws IOException {
+		return leer(Math.max(0, cantidad - maximo), maximo);
+	}
+
+	/**
+	 * Forzar al almacenamiento lo agregado hasta ahora
+	 */
+	public synchronized void sincronizar() throws IOException {
+		activo.sincronizar();
+	}
+
+	/**
+	 * Cerrar el segmento activo. Despues de esto no se puede agregar
+	 */
+	public synchronized void cerrar() throws IOException {
+		activo.cerrar();
+	}
+
+	/**
+	 * @return La posicion del segmento que contiene el mensaje
+	 */
+	private int buscarSegmento(long indice) {
+		int bajo = 0;
+		int alto = segmentos.size() - 1;
+		while (bajo < alto) {
+			int medio = (bajo + alto + 1) >>> 1;
+			if (segmentos.get(medio).base <= indice) {
+				bajo = medio;
+			} else {
+				alto = medio - 1;
+			}
+		}
+		return bajo;
+	}
+
+	private static byte[] codificar(String remitente)
+			throws UnsupportedEncodingException {
+		if (remitente == null) {
+			return new byte[0];
+		}
+		byte[] nombre = remitente.getBytes("UTF-8");
+		if (nombre.length > LONGITUD_MAXIMA_REMITENTE) {
+			byte[] corto = new byte[LONGITUD_MAXIMA_REMITENTE];
+			System.arraycopy(nombre, 0, corto, 0, corto.length);
+			nombre = corto;
+		}
+		return nombre;
+	}
+}
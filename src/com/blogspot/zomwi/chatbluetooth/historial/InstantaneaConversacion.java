@@ -0,0 +1,57 @@
+package com.blogspot.zomwi.chatbluetooth.historial;
+
+/**
+ * Una copia inmutable de la conversacion para la interfaz: la cantidad de
+ * filas y los mensajes de la ventana que estaba en memoria. La crea el hilo
+ * que llena el ModeloConversacion y se puede leer desde cualquier hilo sin
+ * locks; las filas fuera de la ventana devuelven null hasta que se cargue una
+ * instantanea que las tenga.
+ */
+public final class InstantaneaConversacion {
+
+	public static final InstantaneaConversacion VACIA = new InstantaneaConversacion(
+			0, new MensajeGuardado[0], 0);
+
+	// La fila del primer mensaje de la ventana
+	private final long primeraFila;
+	private final MensajeGuardado[] mensajes;
+	private final int cantidad;
+
+	/**
+	 * Constructor
+	 *
+	 * @param primeraFila
+	 *            La fila del primer mensaje
+	 * @param mensajes
+	 *            Los mensajes de la ventana en orden, el arreglo no debe
+	 *            cambiar despues
+	 * @param cantidad
+	 *            La cantidad de filas de toda la conversacion
+	 */
+	InstantaneaConversacion(long primeraFila, MensajeGuardado[] mensajes,
+			int cantidad) {
+		this.primeraFila = primeraFila;
+		this.mensajes = mensajes;
+		this.cantidad = cantidad;
+	}
+
+	/**
+	 * @return La cantidad de filas de la conversacion
+	 */
+	public int getCantidad() {
+		return cantidad;
+	}
+
+	/**
+	 * @param posicion
+	 *            La fila, 0 es el mensaje mas viejo
+	 * @return El mensaje, o null si esta fuera de la ventana
+	 */
+	public MensajeGuardado getMensaje(int posicion) {
+		long i = posicion - primeraFila;
+		if (i < 0 || i >= mensajes.length) {
+			return null;
+		}
+		return mensajes[(int) i];
+	}
+}
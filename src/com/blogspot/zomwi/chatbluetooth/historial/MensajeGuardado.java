@@ -0,0 +1,24 @@
+package com.blogspot.zomwi.chatbluetooth.historial;
+
+/**
+ * Un mensaje leido del HistorialMensajes. El texto se guarda en UTF-8 tal
+ * como viajo, sin decodificar.
+ */
+public class MensajeGuardado {
+
+	// Posicion del mensaje en el historial, empezando en 0
+	public final long indice;
+	public final long marcaTiempo;
+	public final boolean enviado;
+	public final String remitente;
+	public final byte[] texto;
+
+	MensajeGuardado(long indice, long marcaTiempo, boolean enviado,
+			String remitente, byte[] texto) {
+		this.indice = indice;
+		this.marcaTiempo = marcaTiempo;
+		this.enviado = enviado;
+		this.remitente = remitente;
+		this.texto = texto;
+	}
+}
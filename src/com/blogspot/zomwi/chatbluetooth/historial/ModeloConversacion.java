@@ -0,0 +1,172 @@
+package com.blogspot.zomwi.chatbluetooth.historial;
+
+import java.io.IOException;
+
+/**
+ * Los mensajes de la conversacion para la lista. En memoria solo se guarda
+ * una ventana de hasta capacidad mensajes consecutivos, con el texto en UTF-8
+ * sin decodificar; los demas se leen del HistorialMensajes cuando la lista
+ * los pide, asi que la memoria no crece con la duracion del chat.
+ *
+ * Sin historial la ventana es todo lo que hay y los mensajes mas viejos se
+ * pierden al llenarse.
+ *
+ * El modelo lo usa un solo hilo, que hace la lectura y escritura en disco; no
+ * tiene locks. La interfaz no lo toca: lee InstantaneaConversacion inmutables
+ * creadas con crearInstantanea(), y pide las filas fuera de la ventana al hilo
+ * del modelo, que las trae con cargarAlrededor().
+ */
+public class ModeloConversacion {
+
+	private final HistorialMensajes historial;
+	private final MensajeGuardado[] ventana;
+	// Indice del primer mensaje de la ventana y cuantos hay
+	private long primero;
+	private int cantidad;
+	// Posicion del primer mensaje dentro del arreglo circular
+	private int inicio;
+	// Indice del siguiente mensaje cuando no hay historial
+	private long siguiente;
+
+	/**
+	 * Constructor. Carga en la ventana los ultimos mensajes del historial
+	 *
+	 * @param historial
+	 *            De donde se leen los mensajes fuera de la ventana, puede ser
+	 *            null
+	 * @param capacidad
+	 *            Cuantos mensajes se guardan en memoria
+	 */
+	public ModeloConversacion(HistorialMensajes historial, int capacidad) {
+		this.historial = historial;
+		ventana = new MensajeGuardado[capacidad];
+		if (historial != null) {
+			cargar(Math.max(0, historial.getCantidad() - capacidad));
+		}
+	}
+
+	/**
+	 * Agregar un mensaje al final de la conversacion, y al historial si hay
+	 *
+	 * @param enviado
+	 *            true si lo escribimos nosotros
+	 * @param remitente
+	 *            Quien lo escribio
+	 * @param texto
+	 *            El mensaje en UTF-8
+	 * @param offset
+	 *            Donde empieza el mensaje
+	 * @param longitud
+	 *            La longitud del mensaje
+	 */
+	public void agregar(boolean enviado, String remitente,
+			byte[] texto, int offset, int longitud) {
+		long marcaTiempo = System.currentTimeMillis();
+		long indice = siguiente;
+		if (historial != null) {
+			try {
+				indice = historial.agregar(marcaTiempo, enviado, remitente,
+						texto, offset, longitud);
+			} catch (IOException e) {
+				// Se muestra igual, aunque no quede guardado
+				indice = historial.getCantidad();
+			}
+		}
+		siguiente = indice + 1;
+		// Si la ventana no esta al final se cargara al desplazarse hasta aca
+		if (cantidad > 0 && primero + cantidad != indice) {
+			return;
+		}
+		byte[] copia = new byte[longitud];
+		System.arraycopy(texto, offset, copia, 0, longitud);
+		MensajeGuardado mensaje = new MensajeGuardado(indice, marcaTiempo,
+				enviado, remitente, copia);
+		if (cantidad == 0) {
+			primero = indice;
+		}
+		if (cantidad == ventana.length) {
+			// Descartar el mas viejo
+			inicio = (inicio + 1) % ventana.length;
+			primero++;
+			cantidad--;
+		}
+		ventana[(inicio + cantidad) % ventana.length] = mensaje;
+		cantidad++;
+	}
+
+	/**
+	 * @return La cantidad de filas de la conversacion
+	 */
+	public int getCantidad() {
+		if (historial == null) {
+			return cantidad;
+		}
+		return (int) Math.min(Integer.MAX_VALUE, Math.max(siguiente,
+				historial.getCantidad()));
+	}
+
+	/**
+	 * @param posicion
+	 *            La fila, 0 es el mensaje mas viejo
+	 * @return El mensaje, o null si no se pudo leer
+	 */
+	public MensajeGuardado getMensaje(int posicion) {
+		cargarAlrededor(posicion);
+		long indice = historial == null ? primero + posicion : posicion;
+		if (indice < primero || indice >= primero + cantidad) {
+			return null;
+		}
+		return ventana[(inicio + (int) (indice - primero)) % ventana.length];
+	}
+
+	/**
+	 * Traer del historial los mensajes alrededor de una fila, si no estan en
+	 * la ventana
+	 *
+	 * @param posicion
+	 *            La fila, 0 es el mensaje mas viejo
+	 * @return true si la ventana cambio y ahora tiene la fila
+	 */
+	public boolean cargarAlrededor(int posicion) {
+		if (historial == null
+				|| (posicion >= primero && posicion < primero + cantidad)) {
+			return false;
+		}
+		// Centrar la ventana en la fila pedida
+		cargar(Math.max(0, posicion - ventana.length / 2));
+		return posicion >= primero && posicion < primero + cantidad;
+	}
+
+	/**
+	 * @return Una copia de la ventana y la cantidad de filas que no cambia con
+	 *         el modelo
+	 */
+	public InstantaneaConversacion crearInstantanea() {
+		MensajeGuardado[] mensajes = new MensajeGuardado[cantidad];
+		for (int i = 0; i < cantidad; i++) {
+			mensajes[i] = ventana[(inicio + i) % ventana.length];
+		}
+		// Sin historial las filas empiezan en la ventana
+		return new InstantaneaConversacion(historial == null ? 0 : primero,
+				mensajes, getCantidad());
+	}
+
+	/**
+	 * Reemplazar la ventana con los mensajes del historial desde un indice
+	 */
+	private void cargar(long desde) {
+		MensajeGuardado[] mensajes;
+		try {
+			mensajes = historial.leer(desde, ventana.length);
+		} catch (IOException e) {
+			mensajes = new MensajeGuardado[0];
+		}
+		for (int i = 0; i < ventana.length; i++) {
+			ventana[i] = i < mensajes.length ? mensajes[i] : null;
+		}
+		primero = desde;
+		cantidad = mensajes.length;
+		inicio = 0;
+		siguiente = Math.max(siguiente, desde + cantidad);
+	}
+}
@@ -0,0 +1,293 @@
+package com.blogspot.zomwi.chatbluetooth.historial;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Un archivo del historial con los registros desde el mensaje base, y su
+ * indice disperso: la posicion de uno de cada INTERVALO_INDICE registros.
+ *
+ * Registro: longitud del cuerpo (4), CRC32 del cuerpo (4) y el cuerpo:
+ * marca de tiempo (8), banderas (1), longitud del remitente (1), remitente y
+ * texto, ambos en UTF-8.
+ */
+class Segmento {
+
+	static final int LONGITUD_CABECERA = 8;
+	static final int LONGITUD_CUERPO_MINIMA = 10;
+	static final int INTERVALO_INDICE = 64;
+
+	static final String EXTENSION_LOG = ".log";
+	static final String EXTENSION_INDICE = ".idx";
+
+	final long base;
+	private final File archivoLog;
+	private final File archivoIndice;
+
+	// Canales abiertos solo mientras el segmento es el activo
+	private FileChannel canalLog;
+	private FileChannel canalIndice;
+	private final ByteBuffer entradaIndice = ByteBuffer.allocate(4);
+
+	private int tamano;
+	private int cantidad;
+	private int[] indice = new int[16];
+	private int entradas;
+
+	private MappedByteBuffer mapa;
+
+	Segmento(File directorio, long base) {
+		this.base = base;
+		String nombre = String.format("%020d", base);
+		archivoLog = new File(directorio, nombre + EXTENSION_LOG);
+		archivoIndice = new File(directorio, nombre + EXTENSION_INDICE);
+	}
+
+	/**
+	 * Abrir un segmento ya cerrado, del que se conoce la cantidad de
+	 * registros por el segmento siguiente
+	 */
+	void abrirCerrado(int cantidad) throws IOException {
+		if (!leerIndice()) {
+			recuperar();
+			return;
+		}
+		this.cantidad = cantidad;
+		tamano = (int) archivoLog.length();
+	}
+
+	/**
+	 * Abrir el segmento activo, descartando un registro a medio escribir
+	 */
+	void abrirActivo() throws IOException {
+		leerIndice();
+		recuperar();
+		canalLog = new RandomAccessFile(archivoLog, "rw").getChannel();
+		canalIndice = new RandomAccessFile(archivoIndice, "rw").getChannel();
+		canalIndice.position(canalIndice.size());
+	}
+
+	/**
+	 * Crear un segmento activo vacio
+	 */
+	void crear() throws IOException {
+		canalLog = new RandomAccessFile(archivoLog, "rw").getChannel();
+		canalLog.truncate(0);
+		canalIndice = new RandomAccessFile(archivoIndice, "rw").getChannel();
+		canalIndice.truncate(0);
+	}
+
+	/**
+	 * Dejar de escribir en el segmento
+	 */
+	void cerrar() throws IOException {
+		if (canalLog != null) {
+			canalLog.close();
+			canalIndice.close();
+			canalLog = null;
+			canalIndice = null;
+		}
+	}
+
+	int getTamano() {
+		return tamano;
+	}
+
+	int getCantidad() {
+		return cantidad;
+	}
+
+	/**
+	 * Agregar un registro ya armado, con cabecera
+	 */
+	void agregar(ByteBuffer registro) throws IOException {
+		int posicion = tamano;
+		int longitud = registro.remaining();
+		while (registro.hasRemaining()) {
+			canalLog.write(registro, posicion + longitud - registro.remaining());
+		}
+		if (cantidad % INTERVALO_INDICE == 0) {
+			agregarEntrada(posicion);
+			entradaIndice.clear();
+			entradaIndice.putInt(posicion).flip();
+			while (entradaIndice.hasRemaining()) {
+				canalIndice.write(entradaIndice);
+			}
+		}
+		tamano += longitud;
+		cantidad++;
+	}
+
+	/**
+	 * Forzar lo escrito al almacenamiento
+	 */
+	void sincronizar() throws IOException {
+		if (canalLog != null) {
+			canalLog.force(false);
+			canalIndice.force(false);
+		}
+	}
+
+	/**
+	 * Leer registros del segmento
+	 *
+	 * @param desde
+	 *            El primer registro, relativo a la base
+	 * @param hasta
+	 *            El registro siguiente al ultimo, relativo a la base
+	 * @param destino
+	 *            Donde dejar los mensajes
+	 * @param offset
+	 *            La posicion en destino del primero
+	 */
+	void leer(int desde, int hasta, MensajeGuardado[] destino, int offset)
+			throws IOException {
+		ByteBuffer datos = mapear();
+		// Saltar desde la entrada del indice mas cercana
+		int registro = desde / INTERVALO_INDICE * INTERVALO_INDICE;
+		datos.position(indice[desde / INTERVALO_INDICE]);
+		for (; registro < desde; registro++) {
+			datos.position(datos.position() + LONGITUD_CABECERA
+					+ datos.getInt(datos.position()));
+		}
+		for (; registro < hasta; registro++) {
+			int longitud = datos.getInt();
+			datos.getInt();
+			long marcaTiempo = datos.getLong();
+			boolean enviado = (datos.get() & 1) != 0;
+			int longitudRemitente = datos.get() & 0xFF;
+			byte[] remitente = new byte[longitudRemitente];
+			datos.get(remitente);
+			byte[] texto = new byte[longitud - LONGITUD_CUERPO_MINIMA
+					- longitudRemitente];
+			datos.get(texto);
+			destino[offset++] = new MensajeGuardado(base + registro,
+					marcaTiempo, enviado, new String(remitente, "UTF-8"), texto);
+		}
+	}
+
+	/**
+	 * @return Un buffer de solo lectura con todo el segmento mapeado
+	 */
+	private ByteBuffer mapear() throws IOException {
+		if (mapa == null || mapa.capacity() < tamano) {
+			RandomAccessFile archivo = new RandomAccessFile(archivoLog, "r");
+			try {
+				mapa = archivo.getChannel().map(FileChannel.MapMode.READ_ONLY,
+						0, tamano);
+			} finally {
+				archivo.close();
+			}
+		}
+		return mapa.duplicate();
+	}
+
+	/**
+	 * @return false si no hay indice guardado
+	 */
+	private boolean leerIndice() throws IOException {
+		entradas = 0;
+		if (!archivoIndice.exists() || archivoIndice.length() < 4) {
+			return false;
+		}
+		RandomAccessFile archivo = new RandomAccessFile(archivoIndice, "r");
+		try {
+			ByteBuffer contenido = ByteBuffer
+					.allocate((int) archivo.length() / 4 * 4);
+			archivo.getChannel().read(contenido, 0);
+			contenido.flip();
+			while (contenido.hasRemaining()) {
+				agregarEntrada(contenido.getInt());
+			}
+		} finally {
+			archivo.close();
+		}
+		return true;
+	}
+
+	/**
+	 * Recorrer el archivo desde la ultima entrada valida del indice,
+	 * completando el indice y cortando lo que quede despues del ultimo
+	 * registro integro
+	 */
+	private void recuperar() throws IOException {
+		int longitudArchivo = (int) archivoLog.length();
+		while (entradas > 0 && indice[entradas - 1] >= longitudArchivo) {
+			entradas--;
+		}
+		if (entradas == 0) {
+			agregarEntrada(0);
+		}
+		tamano = longitudArchivo;
+		ByteBuffer datos = mapear();
+		int posicion = indice[entradas - 1];
+		int registro = (entradas - 1) * INTERVALO_INDICE;
+		CRC32 crc = new CRC32();
+		byte[] cuerpo = new byte[256];
+		while (posicion + LONGITUD_CABECERA <= longitudArchivo) {
+			int longitud = datos.getInt(posicion);
+			if (longitud < LONGITUD_CUERPO_MINIMA
+					|| longitud > longitudArchivo - posicion
+							- LONGITUD_CABECERA) {
+				break;
+			}
+			if (cuerpo.length < longitud) {
+				cuerpo = new byte[longitud];
+			}
+			datos.position(posicion + LONGITUD_CABECERA);
+			datos.get(cuerpo, 0, longitud);
+			crc.reset();
+			crc.update(cuerpo, 0, longitud);
+			if ((int) crc.getValue() != datos.getInt(posicion + 4)) {
+				break;
+			}
+			if (registro % INTERVALO_INDICE == 0
+					&& registro / INTERVALO_INDICE >= entradas) {
+				agregarEntrada(posicion);
+			}
+			registro++;
+			posicion += LONGITUD_CABECERA + longitud;
+		}
+		// Quitar las entradas de los registros cortados, incluida la del
+		// primero si estaba justo en una posicion indexada
+		entradas = (registro + INTERVALO_INDICE - 1) / INTERVALO_INDICE;
+		tamano = posicion;
+		cantidad = registro;
+		mapa = null;
+		if (posicion < longitudArchivo) {
+			RandomAccessFile archivo = new RandomAccessFile(archivoLog, "rw");
+			try {
+				archivo.setLength(posicion);
+			} finally {
+				archivo.close();
+			}
+		}
+		// Reescribir el indice con las entradas validas
+		RandomAccessFile archivo = new RandomAccessFile(archivoIndice, "rw");
+		try {
+			ByteBuffer contenido = ByteBuffer.allocate(entradas * 4);
+			for (int i = 0; i < entradas; i++) {
+				contenido.putInt(indice[i]);
+			}
+			contenido.flip();
+			archivo.setLength(0);
+			archivo.getChannel().write(contenido, 0);
+		} finally {
+			archivo.close();
+		}
+	}
+
+	private void agregarEntrada(int posicion) {
+		if (entradas == indice.length) {
+			int[] nuevo = new int[indice.length * 2];
+			System.arraycopy(indice, 0, nuevo, 0, entradas);
+			indice = nuevo;
+		}
+		indice[entradas++] = posicion;
+	}
+}
@@ -0,0 +1,139 @@
+package com.blogspot.zomwi.chatbluetooth.protocolo;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Codifica los mensajes salientes como tramas y les asigna un numero de
+ * secuencia creciente por conexion. Las tramas se acumulan en un buffer
+ * interno y se escriben juntas en una sola llamada a write(), para no pagar
+ * varias veces el costo fijo de cada escritura en el socket.
+ */
+public class CodificadorTramas {
+
+	private final OutputStream flujoSalida;
+	private byte[] buffer = new byte[Trama.LONGITUD_CABECERA + 1024];
+	private int pendientes;
+	private int secuencia;
+
+	public CodificadorTramas(OutputStream flujoSalida) {
+		this.flujoSalida = flujoSalida;
+	}
+
+	/**
+	 * Escribir una trama al flujo de salida
+	 *
+	 * @param tipo
+	 *            El tipo de la trama
+	 * @param carga
+	 *            Los bytes de la carga
+	 * @param offset
+	 *            La posicion inicial de la carga
+	 * @param longitud
+	 *            La longitud de la carga
+	 * @return El numero de secuencia asignado a la trama
+	 * @throws IOException
+	 *             Si falla la escritura
+	 */
+	public synchronized int escribir(int tipo, byte[] carga, int offset,
+			int longitud) throws IOException {
+		int asignada = agregar(tipo, carga, offset, longitud);
+		vaciar();
+		return asignada;
+	}
+
+	/**
+	 * Agregar una trama al buffer sin escribirla todavia
+	 *
+	 * @param tipo
+	 *            El tipo de la trama
+	 * @param carga
+	 *            Los bytes de la carga
+	 * @param offset
+	 *            La posicion inicial de la carga
+	 * @param longitud
+	 *            La longitud de la carga
+	 * @return El numero de secuencia asignado a la trama
+	 */
+	public synchronized int agregar(int tipo, byte[] carga, int offset,
+			int longitud) {
+		return agregar(tipo, 0, carga, offset, longitud);
+	}
+
+	/**
+	 * Agregar una trama con banderas al buffer sin escribirla todavia
+	 *
+	 * @param tipo
+	 *            El tipo de la trama
+	 * @param banderas
+	 *            Las banderas de la trama
+	 * @param carga
+	 *            Los bytes de la carga
+	 * @param offset
+	 *            La posicion inicial de la carga
+	 * @param longitud
+	 *            La longitud de la carga
+	 * @return El numero de secuencia asignado a la trama
+	 */
+	public synchronized int agregar(int tipo, int banderas, byte[] carga,
+			int offset, int longitud) {
+		return agregar(tipo, banderas, ++secuencia, carga, offset, longitud);
+	}
+
+	/**
+	 * Agregar una trama con un numero de secuencia elegido por quien llama,
+	 * sin avanzar la secuencia de la conexion. Se usa para los mensajes de
+	 * una sesion, que conservan su numero entre conexiones
+	 *
+	 * @param tipo
+	 *            El tipo de la trama
+	 * @param banderas
+	 *            Las banderas de la trama
+	 * @param secuencia
+	 *            El numero de secuencia de la trama
+	 * @param carga
+	 *            Los bytes de la carga
+	 * @param offset
+	 *            La posicion inicial de la carga
+	 * @param longitud
+	 *            La longitud de la carga
+	 * @return El numero de secuencia dado
+	 */
+	public synchronized int agregar(int tipo, int banderas, int secuencia,
+			byte[] carga, int offset, int longitud) {
+		int total = pendientes + Trama.LONGITUD_CABECERA + longitud;
+		if (buffer.length < total) {
+			byte[] nuevo = new byte[Math.max(total, buffer.length * 2)];
+			System.arraycopy(buffer, 0, nuevo, 0, pendientes);
+			buffer = nuevo;
+		}
+		Trama.escribirCabecera(buffer, pendientes, tipo, banderas, secuencia,
+				longitud);
+		System.arraycopy(carga, offset, buffer, pendientes
+				+ Trama.LONGITUD_CABECERA, longitud);
+		pendientes = total;
+		return secuencia;
+	}
+
+	/**
+	 * Escribir en una sola llamada todas las tramas agregadas
+	 *
+	 * @throws IOException
+	 *             Si falla la escritura. Las tramas pendientes se descartan
+	 */
+	public synchronized void vaciar() throws IOException {
+		if (pendientes == 0) {
+			return;
+		}
+		int cantidad = pendientes;
+		pendientes = 0;
+		flujoSalida.write(buffer, 0, cantidad);
+	}
+
+	/**
+	 * @return La cantidad de bytes agregados que aun no se escribieron
+	 */
+	public synchronized int getPendientes() {
+		return pendientes;
+	}
+}
@@ -0,0 +1,261 @@
+package com.blogspot.zomwi.chatbluetooth.protocolo;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresion de la carga de las tramas con deflate y un diccionario fijo de
+ * palabras frecuentes en el chat, para que hasta los mensajes cortos se
+ * compriman. Cada trama se comprime por separado (el Deflater se reinicia por
+ * trama), asi que se puede descomprimir aunque se pierdan otras.
+ *
+ * Carga comprimida: la longitud original (2 bytes, big-endian) y el flujo
+ * deflate sin cabecera zlib.
+ *
+ * Una instancia se usa por conexion: comprimir() solo desde el hilo escritor
+ * y descomprimir() solo desde el hilo lector. El Deflater y el Inflater usan
+ * memoria nativa de zlib que solo se libra con cerrar(), al cerrar la
+ * conexion; se puede llamar desde cualquier hilo.
+ */
+public class CompresionTramas {
+
+	// Cuanto ocupa la longitud original al principio de la carga
+	private static final int LONGITUD_PREFIJO = 2;
+
+	// Las cadenas mas frecuentes van al final, donde las distancias son
+	// menores. Cambiarlo rompe la compatibilidad con CODEC_DEFLATE
+	private static final byte[] DICCIONARIO = ascii("adjunto archivo foto "
+			+ "ubicacion llamada ayer manana tarde noche hoy ahora luego "
+			+ "despues antes siempre nunca tambien porque cuando donde "
+			+ "quien cual mucho poco nada todo algo mas menos muy bien mal "
+			+ "bueno buena buenos dias buenas tardes noches gracias de nada "
+			+ "por favor perdon lo siento vale claro listo ok jaja jajaja "
+			+ "hola que tal como estas estoy voy vamos puedes puedo quieres "
+			+ "quiero tengo tienes hay esta este esto eso para por con sin "
+			+ "una uno los las del que no si de la el en y a ");
+
+	private final int umbral;
+	private final Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+	private final Inflater inflater = new Inflater(true);
+	private byte[] salida = new byte[LONGITUD_PREFIJO + 256];
+	// Despues de cerrar() ya no se usan el Deflater ni el Inflater
+	private volatile boolean cerrada;
+
+	// Metricas de compresion, solo las escribe el hilo escritor
+	private volatile long tramasComprimidas;
+	private volatile long tramasSinComprimir;
+	private volatile long intentos;
+	private volatile long bytesOriginales;
+	private volatile long bytesComprimidos;
+	private volatile long nanosCompresion;
+
+	// Metricas de descompresion, solo las escribe el hilo lector
+	private volatile long tramasDescomprimidas;
+	private volatile long nanosDescompresion;
+
+	/**
+	 * Constructor
+	 *
+	 * @param umbral
+	 *            Las cargas mas cortas que esto se envian sin comprimir
+	 */
+	public CompresionTramas(int umbral) {
+		this.umbral = umbral;
+	}
+
+	/**
+	 * Comprimir una carga
+	 *
+	 * @param carga
+	 *            Los bytes de la carga
+	 * @param offset
+	 *            La posicion inicial de la carga
+	 * @param longitud
+	 *            La longitud de la carga
+	 * @return La longitud de la carga comprimida en getSalida(), o -1 si es
+	 *         mas corta que el umbral o no se achica al comprimirla
+	 */
+	public int comprimir(byte[] carga, int offset, int longitud) {
+		if (longitud < umbral || longitud > Trama.LONGITUD_MAXIMA_CARGA) {
+			tramasSinComprimir++;
+			return -1;
+		}
+		long inicio = System.nanoTime();
+		intentos++;
+		// Solo interesa si ocupa menos que la carga original
+		int espacio = longitud - LONGITUD_PREFIJO - 1;
+		if (salida.length < LONGITUD_PREFIJO + espacio) {
+			salida = new byte[LONGITUD_PREFIJO + espacio];
+		}
+		int producidos = 0;
+		boolean comprimida = false;
+		synchronized (deflater) {
+			if (!cerrada) {
+				deflater.reset();
+				deflater.setDictionary(DICCIONARIO);
+				deflater.setInput(carga, offset, longitud);
+				deflater.finish();
+				while (!deflater.finished() && producidos < espacio) {
+					int bytes = deflater.deflate(salida, LONGITUD_PREFIJO
+							+ producidos, espacio - producidos);
+					if (bytes == 0) {
+						break;
+					}
+					producidos += bytes;
+				}
+				comprimida = deflater.finished();
+			}
+		}
+		nanosCompresion += System.nanoTime() - inicio;
+		if (!comprimida) {
+			tramasSinComprimir++;
+			return -1;
+		}
+		salida[0] = (byte) (longitud >>> 8);
+		salida[1] = (byte) longitud;
+		tramasComprimidas++;
+		bytesOriginales += longitud;
+		bytesComprimidos += LONGITUD_PREFIJO + producidos;
+		return LONGITUD_PREFIJO + producidos;
+	}
+
+	/**
+	 * @return El buffer con la ultima carga comprimida, valido hasta la
+	 *         siguiente llamada a comprimir()
+	 */
+	public byte[] getSalida() {
+		return salida;
+	}
+
+	/**
+	 * @return La longitud que tendra una carga comprimida al descomprimirla
+	 */
+	public static int leerLongitudOriginal(byte[] carga, int offset,
+			int longitud) throws IOException {
+		if (longitud < LONGITUD_PREFIJO) {
+			throw new IOException("Trama comprimida invalida");
+		}
+		return ((carga[offset] & 0xFF) << 8) | (carga[offset + 1] & 0xFF);
+	}
+
+	/**
+	 * Descomprimir una carga comprimida
+	 *
+	 * @param carga
+	 *            Los bytes de la carga comprimida
+	 * @param offset
+	 *            La posicion inicial de la carga
+	 * @param longitud
+	 *            La longitud de la carga
+	 * @param destino
+	 *            Donde se escribe la carga original, con lugar para
+	 *            leerLongitudOriginal() bytes
+	 * @return La longitud de la carga original
+	 * @throws IOException
+	 *             Si la carga no es un flujo deflate valido
+	 */
+	public int descomprimir(byte[] carga, int offset, int longitud,
+			byte[] destino) throws IOException {
+		int original = leerLongitudOriginal(carga, offset, longitud);
+		long inicio = System.nanoTime();
+		int producidos = 0;
+		synchronized (inflater) {
+			if (cerrada) {
+				throw new IOException("Compresion cerrada");
+			}
+			inflater.reset();
+			inflater.setDictionary(DICCIONARIO);
+			inflater.setInput(carga, offset + LONGITUD_PREFIJO, longitud
+					- LONGITUD_PREFIJO);
+			try {
+				while (!inflater.finished() && producidos < original) {
+					int bytes = inflater.inflate(destino, producidos,
+							original - producidos);
+					if (bytes == 0
+							&& (inflater.needsInput() || inflater
+									.needsDictionary())) {
+						break;
+					}
+					producidos += bytes;
+				}
+			} catch (DataFormatException ex) {
+				throw new IOException("Trama comprimida invalida");
+			}
+		}
+		if (producidos != original) {
+			throw new IOException("Trama comprimida invalida");
+		}
+		nanosDescompresion += System.nanoTime() - inicio;
+		tramasDescomprimidas++;
+		return original;
+	}
+
+	/**
+	 * Librar la memoria nativa del Deflater y el Inflater. Despues las cargas
+	 * se envian sin comprimir y descomprimir() falla. Se puede llamar mas de
+	 * una vez
+	 */
+	public void cerrar() {
+		cerrada = true;
+		synchronized (deflater) {
+			deflater.end();
+		}
+		synchronized (inflater) {
+			inflater.end();
+		}
+	}
+
+	/**
+	 * @return Los bytes enviados sobre los originales en las tramas
+	 *         comprimidas, menos es mejor
+	 */
+	public double getRazon() {
+		long originales = bytesOriginales;
+		return originales == 0 ? 1 : (double) bytesComprimidos / originales;
+	}
+
+	public long getTramasComprimidas() {
+		return tramasComprimidas;
+	}
+
+	/**
+	 * @return Las tramas que se enviaron sin comprimir por el umbral o porque
+	 *         no se achicaban
+	 */
+	public long getTramasSinComprimir() {
+		return tramasSinComprimir;
+	}
+
+	/**
+	 * @return El tiempo promedio de CPU por trama que se intento comprimir,
+	 *         en nanosegundos
+	 */
+	public long getNanosPorCompresion() {
+		long tramas = intentos;
+		return tramas == 0 ? 0 : nanosCompresion / tramas;
+	}
+
+	public long getTramasDescomprimidas() {
+		return tramasDescomprimidas;
+	}
+
+	/**
+	 * @return El tiempo promedio de CPU por trama descomprimida, en
+	 *         nanosegundos
+	 */
+	public long getNanosPorDescompresion() {
+		long tramas = tramasDescomprimidas;
+		return tramas == 0 ? 0 : nanosDescompresion / tramas;
+	}
+
+	private static byte[] ascii(String texto) {
+		try {
+			return texto.getBytes("US-ASCII");
+		} catch (UnsupportedEncodingException ex) {
+			throw new IllegalStateException(ex.toString());
+		}
+	}
+}
@@ -0,0 +1,119 @@
+package com.blogspot.zomwi.chatbluetooth.protocolo;
+
+import java.io.IOException;
+
+/**
+ * Decodificador incremental de tramas. Recibe los bytes tal como los entrega
+ * cada read() del socket y reconstruye las tramas aunque lleguen partidas en
+ * varias lecturas o varias en una sola lectura.
+ *
+ * Cuando una trama completa esta dentro de los bytes recibidos, la carga se
+ * entrega directamente desde ese arreglo sin copiarla. Solo las tramas que
+ * cruzan lecturas se copian, una unica vez, a un buffer de ensamblado que se
+ * reutiliza.
+ *
+ * No es seguro para varios hilos; cada conexion tiene su propio decodificador.
+ */
+public class DecodificadorTramas {
+
+	private final OyenteTramas oyente;
+
+	// Cabecera parcial cuando llega partida entre lecturas
+	private final byte[] cabecera = new byte[Trama.LONGITUD_CABECERA];
+	private int cabeceraLeida;
+
+	// Campos de la trama actual, validos cuando la cabecera esta completa
+	private int tipo;
+	private int banderas;
+	private int secuencia;
+	private int longitud;
+
+	// Carga parcial cuando la trama cruza lecturas
+	private byte[] ensamblado;
+	private int cargaLeida;
+	private boolean ensamblando;
+
+	public DecodificadorTramas(OyenteTramas oyente) {
+		this.oyente = oyente;
+	}
+
+	/**
+	 * Entrega al decodificador los bytes leidos del flujo de entrada
+	 *
+	 * @param datos
+	 *            El arreglo con los bytes leidos
+	 * @param offset
+	 *            La posicion del primer byte valido
+	 * @param cantidad
+	 *            La cantidad de bytes validos
+	 * @throws IOException
+	 *             Si los bytes no forman una trama valida o el oyente falla
+	 */
+	public void alimentar(byte[] datos, int offset, int cantidad)
+			throws IOException {
+		int fin = offset + cantidad;
+		while (offset < fin) {
+			if (!ensamblando) {
+				if (cabeceraLeida == 0 && fin - offset >= Trama.LONGITUD_CABECERA) {
+					// Caso comun: la cabecera completa esta en esta lectura
+					leerCabecera(datos, offset);
+					offset += Trama.LONGITUD_CABECERA;
+				} else {
+					int faltan = Math.min(Trama.LONGITUD_CABECERA
+							- cabeceraLeida, fin - offset);
+					System.arraycopy(datos, offset, cabecera, cabeceraLeida,
+							faltan);
+					cabeceraLeida += faltan;
+					offset += faltan;
+					if (cabeceraLeida < Trama.LONGITUD_CABECERA) {
+						return;
+					}
+					leerCabecera(cabecera, 0);
+					cabeceraLeida = 0;
+				}
+				if (fin - offset >= longitud) {
+					// La carga completa esta en esta lectura, se entrega sin
+					// copiar
+					oyente.tramaRecibida(tipo, banderas, secuencia, datos,
+							offset, longitud);
+					offset += longitud;
+					continue;
+				}
+				// La carga cruza lecturas, empezamos a ensamblarla
+				if (ensamblado == null || ensamblado.length < longitud) {
+					ensamblado = new byte[Math.max(longitud, 1024)];
+				}
+				cargaLeida = 0;
+				ensamblando = true;
+			}
+			int faltan = Math.min(longitud - cargaLeida, fin - offset);
+			System.arraycopy(datos, offset, ensamblado, cargaLeida, faltan);
+			cargaLeida += faltan;
+			offset += faltan;
+			if (cargaLeida == longitud) {
+				ensamblando = false;
+				oyente.tramaRecibida(tipo, banderas, secuencia, ensamblado, 0,
+						longitud);
+			}
+		}
+	}
+
+	/**
+	 * Descarta cualquier trama parcial. Se usa al reiniciar una conexion
+	 */
+	public void reiniciar() {
+		cabeceraLeida = 0;
+		cargaLeida = 0;
+		ensamblando = false;
+	}
+
+	private void leerCabecera(byte[] origen, int offset) throws IOException {
+		tipo = Trama.leerTipo(origen, offset);
+		if (tipo == 0) {
+			throw new IOException("Trama invalida: tipo 0");
+		}
+		banderas = Trama.leerBanderas(origen, offset);
+		longitud = Trama.leerLongitud(origen, offset);
+		secuencia = Trama.leerSecuencia(origen, offset);
+	}
+}
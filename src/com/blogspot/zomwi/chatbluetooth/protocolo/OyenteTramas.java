@@ -0,0 +1,30 @@
+package com.blogspot.zomwi.chatbluetooth.protocolo;
+
+import java.io.IOException;
+
+/**
+ * Recibe las tramas completas que reconstruye el DecodificadorTramas. Se llama
+ * exactamente una vez por cada mensaje logico.
+ */
+public interface OyenteTramas {
+
+	/**
+	 * Una trama completa ha sido recibida. El arreglo de la carga solo es
+	 * valido durante esta llamada, despues el decodificador lo reutiliza.
+	 *
+	 * @param tipo
+	 *            El tipo de la trama
+	 * @param banderas
+	 *            Las banderas de la trama
+	 * @param secuencia
+	 *            El numero de secuencia de la trama
+	 * @param carga
+	 *            El arreglo que contiene la carga
+	 * @param offset
+	 *            La posicion de la carga dentro del arreglo
+	 * @param longitud
+	 *            La longitud de la carga
+	 */
+	void tramaRecibida(int tipo, int banderas, int secuencia, byte[] carga,
+			int offset, int longitud) throws IOException;
+}
@@ -0,0 +1,129 @@
+package com.blogspot.zomwi.chatbluetooth.protocolo;
+
+/**
+ * Formato de las tramas que viajan por el socket. Cada mensaje logico se envia
+ * precedido de una cabecera fija de 8 bytes:
+ *
+ * <pre>
+ * 0       1         2         4            8
+ * +-------+---------+---------+------------+----------------+
+ * | tipo  | banderas| longitud| secuencia  | carga ...      |
+ * +-------+---------+---------+------------+----------------+
+ * </pre>
+ *
+ * La longitud es un entero sin signo de 16 bits y la secuencia un entero de 32
+ * bits, ambos en orden big-endian.
+ *
+ * Al conectarse cada extremo envia una trama TIPO_CAPACIDADES cuya carga es
+ * un byte con los CODEC_* que sabe descomprimir. Un extremo solo comprime
+ * despues de saber que el otro lo soporta, y marca esas tramas con
+ * BANDERA_COMPRIMIDA. Un segundo byte opcional lleva las CAPACIDAD_*; los
+ * extremos viejos envian solo el primero.
+ *
+ * Las tramas viajan por canales logicos (conexion.Canal) segun su tipo. Si los
+ * dos extremos anuncian CAPACIDAD_CREDITOS, cada uno devuelve con tramas
+ * TIPO_CREDITO los creditos de lo que ya proceso, y el otro no envia mas
+ * tramas de un canal que las que tiene acreditadas.
+ *
+ * Si los dos anuncian CAPACIDAD_SESION, cada uno envia TIPO_SESION con el
+ * identificador de su instancia y contesta el del otro con TIPO_REANUDAR y el
+ * ultimo mensaje que recibio en esa sesion. Los mensajes no se envian hasta
+ * recibir TIPO_REANUDAR, y la secuencia de las tramas TIPO_MENSAJE pasa a ser
+ * el numero del mensaje en la sesion, que se conserva entre conexiones. Asi
+ * al reconectar se reenvia lo que el otro no recibio y se descartan los
+ * duplicados. Durante la conexion cada extremo confirma lo recibido con
+ * TIPO_CONFIRMACION y el numero del ultimo mensaje, de forma acumulativa.
+ *
+ * Un extremo que anuncia CAPACIDAD_LATIDOS contesta cada TIPO_LATIDO con un
+ * TIPO_LATIDO_RESPUESTA que lleva la misma carga. El otro los envia solo
+ * cuando la conexion esta en silencio, ver conexion.DetectorLatidos.
+ *
+ * Los archivos viajan en tramas TIPO_ARCHIVO_* intercaladas con los mensajes;
+ * el formato de sus cargas esta en transferencia.FormatoArchivo.
+ */
+public final class Trama {
+
+	// Tamano de la cabecera de cada trama
+	public static final int LONGITUD_CABECERA = 8;
+
+	// Tamano maximo de la carga de una trama
+	public static final int LONGITUD_MAXIMA_CARGA = 0xFFFF;
+
+	// Tipos de tramas
+	public static final int TIPO_MENSAJE = 1; // mensaje de chat en UTF-8
+	public static final int TIPO_CAPACIDADES = 2; // CODEC_* soportados
+	public static final int TIPO_ARCHIVO_INICIO = 3; // ver EmisorArchivo
+	public static final int TIPO_ARCHIVO_BLOQUE = 4;
+	public static final int TIPO_ARCHIVO_FIN = 5;
+	public static final int TIPO_CREDITO = 6; // canal(1) cantidad(2)
+	public static final int TIPO_SESION = 7; // instancia(8)
+	public static final int TIPO_REANUDAR = 8; // ultimo mensaje recibido(4)
+	public static final int TIPO_CONFIRMACION = 9; // ultimo recibido(4)
+	public static final int TIPO_LATIDO = 10; // marca de tiempo(8)
+	public static final int TIPO_LATIDO_RESPUESTA = 11; // la misma marca(8)
+
+	// Banderas de las tramas
+	public static final int BANDERA_COMPRIMIDA = 0x01;
+
+	// Codecs de compresion, como bits de la trama TIPO_CAPACIDADES
+	public static final int CODEC_DEFLATE = 0x01; // con CompresionTramas
+
+	// Otras capacidades, como bits del segundo byte de TIPO_CAPACIDADES
+	public static final int CAPACIDAD_CREDITOS = 0x01;
+	public static final int CAPACIDAD_SESION = 0x02;
+	public static final int CAPACIDAD_LATIDOS = 0x04;
+
+	private Trama() {
+	}
+
+	/**
+	 * Escribe la cabecera de una trama en el arreglo dado
+	 *
+	 * @param destino
+	 *            El arreglo donde se escribe la cabecera
+	 * @param offset
+	 *            La posicion inicial dentro del arreglo
+	 * @param tipo
+	 *            El tipo de la trama
+	 * @param banderas
+	 *            Las banderas de la trama
+	 * @param secuencia
+	 *            El numero de secuencia de la trama
+	 * @param longitud
+	 *            La longitud de la carga
+	 */
+	public static void escribirCabecera(byte[] destino, int offset, int tipo,
+			int banderas, int secuencia, int longitud) {
+		if (longitud < 0 || longitud > LONGITUD_MAXIMA_CARGA) {
+			throw new IllegalArgumentException("Longitud de carga invalida: "
+					+ longitud);
+		}
+		destino[offset] = (byte) tipo;
+		destino[offset + 1] = (byte) banderas;
+		destino[offset + 2] = (byte) (longitud >>> 8);
+		destino[offset + 3] = (byte) longitud;
+		destino[offset + 4] = (byte) (secuencia >>> 24);
+		destino[offset + 5] = (byte) (secuencia >>> 16);
+		destino[offset + 6] = (byte) (secuencia >>> 8);
+		destino[offset + 7] = (byte) secuencia;
+	}
+
+	static int leerTipo(byte[] origen, int offset) {
+		return origen[offset] & 0xFF;
+	}
+
+	static int leerBanderas(byte[] origen, int offset) {
+		return origen[offset + 1] & 0xFF;
+	}
+
+	static int leerLongitud(byte[] origen, int offset) {
+		return ((origen[offset + 2] & 0xFF) << 8) | (origen[offset + 3] & 0xFF);
+	}
+
+	static int leerSecuencia(byte[] origen, int offset) {
+		return ((origen[offset + 4] & 0xFF) << 24)
+				| ((origen[offset + 5] & 0xFF) << 16)
+				| ((origen[offset + 6] & 0xFF) << 8)
+				| (origen[offset + 7] & 0xFF);
+	}
+}
@@ -0,0 +1,21 @@
+package com.blogspot.zomwi.chatbluetooth.transferencia;
+
+import com.blogspot.zomwi.chatbluetooth.conexion.Envio;
+
+/**
+ * La conexion por la que una transferencia envia sus tramas.
+ */
+public interface DestinoTramas {
+
+	/**
+	 * Encolar una trama, esperando si la cola de envio esta llena
+	 *
+	 * @param tipo
+	 *            El tipo de la trama
+	 * @param carga
+	 *            La carga, que no se debe modificar hasta que termine el
+	 *            envio
+	 * @return El envio, para esperar su resultado
+	 */
+	Envio enviar(int tipo, byte[] carga);
+}
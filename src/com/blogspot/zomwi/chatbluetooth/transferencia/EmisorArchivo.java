@@ -0,0 +1,194 @@
+package com.blogspot.zomwi.chatbluetooth.transferencia;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.zip.CRC32;
+
+import com.blogspot.zomwi.chatbluetooth.conexion.Envio;
+import com.blogspot.zomwi.chatbluetooth.hilos.Tarea;
+import com.blogspot.zomwi.chatbluetooth.protocolo.Trama;
+
+/**
+ * Tarea que lee un flujo en bloques de TAMANO_BLOQUE bytes y los envia como
+ * tramas TIPO_ARCHIVO_BLOQUE, cada una con el CRC32 de sus datos.
+ *
+ * Nunca hay mas de VENTANA bloques encolados: antes de leer el siguiente se
+ * espera a que se escriba el que ocupaba su lugar, y su buffer se reutiliza.
+ * Asi la memoria usada no depende del tamano del archivo y la cola de envio
+ * sigue teniendo lugar para los mensajes del chat.
+ *
+ * Cancelar la tarea, por ejemplo al detener el MotorHilos en que corre,
+ * cancela la transferencia.
+ */
+public class EmisorArchivo extends Tarea {
+
+	// Bytes de datos por bloque
+	public static final int TAMANO_BLOQUE = 4096;
+
+	// Bloques encolados como maximo
+	private static final int VENTANA = 8;
+
+	private final Transferencia transferencia;
+	private final InputStream flujo;
+	private final DestinoTramas destino;
+	private final OyenteTransferencia oyente;
+
+	/**
+	 * Constructor
+	 *
+	 * @param id
+	 *            El identificador de la transferencia en la conexion
+	 * @param nombre
+	 *            El nombre del archivo para el otro extremo
+	 * @param tamano
+	 *            El tamano del flujo, -1 si no se conoce
+	 * @param direccion
+	 *            La direccion del otro extremo
+	 * @param flujo
+	 *            De donde se leen los datos, se cierra al terminar
+	 * @param destino
+	 *            La conexion por la que se envian las tramas
+	 * @param oyente
+	 *            Quien recibe el avance, puede ser null
+	 */
+	public EmisorArchivo(int id, String nombre, long tamano, String direccion,
+			InputStream flujo, DestinoTramas destino, OyenteTransferencia oyente) {
+		super("EmisorArchivo");
+		transferencia = new Transferencia(id, nombre, tamano, true, direccion);
+		this.flujo = flujo;
+		this.destino = destino;
+		this.oyente = oyente;
+	}
+
+	/**
+	 * @return La transferencia, para consultar su avance o cancelarla
+	 */
+	public Transferencia getTransferencia() {
+		return transferencia;
+	}
+
+	@Override
+	protected void ejecutar() {
+		Envio[] enVuelo = new Envio[VENTANA];
+		byte[][] buffers = new byte[VENTANA][];
+		CRC32 crc = new CRC32();
+		int id = transferencia.id;
+		try {
+			esperar(destino.enviar(Trama.TIPO_ARCHIVO_INICIO, FormatoArchivo
+					.inicio(id, transferencia.tamano, transferencia.nombre)));
+			if (oyente != null) {
+				oyente.progreso(transferencia);
+			}
+			long posicion = 0;
+			for (int bloque = 0; !transferencia.isCancelada(); bloque++) {
+				int lugar = bloque % VENTANA;
+				// Esperar a que se escriba el bloque que ocupaba este lugar
+				if (enVuelo[lugar] != null) {
+					completado(enVuelo[lugar]);
+					enVuelo[lugar] = null;
+				}
+				if (buffers[lugar] == null) {
+					buffers[lugar] = new byte[FormatoArchivo.LONGITUD_CABECERA_BLOQUE
+							+ TAMANO_BLOQUE];
+				}
+				byte[] carga = buffers[lugar];
+				int leidos = leer(carga, FormatoArchivo.LONGITUD_CABECERA_BLOQUE);
+				if (leidos == 0) {
+					break;
+				}
+				crc.reset();
+				crc.update(carga, FormatoArchivo.LONGITUD_CABECERA_BLOQUE, leidos);
+				FormatoArchivo.cabeceraBloque(carga, id, posicion, (int) crc
+						.getValue());
+				if (leidos < TAMANO_BLOQUE) {
+					// El ultimo bloque va en un arreglo de su tamano
+					byte[] corto = new byte[FormatoArchivo.LONGITUD_CABECERA_BLOQUE
+							+ leidos];
+					System.arraycopy(carga, 0, corto, 0, corto.length);
+					carga = corto;
+				}
+				enVuelo[lugar] = destino.enviar(Trama.TIPO_ARCHIVO_BLOQUE, carga);
+				posicion += leidos;
+			}
+			for (int i = 0; i < VENTANA; i++) {
+				if (enVuelo[i] != null) {
+					completado(enVuelo[i]);
+				}
+			}
+			boolean cancelada = transferencia.isCancelada();
+			esperar(destino.enviar(Trama.TIPO_ARCHIVO_FIN, FormatoArchivo.fin(
+					id, cancelada ? FormatoArchivo.FIN_CANCELADO
+							: FormatoArchivo.FIN_COMPLETO)));
+			transferencia.terminar();
+			if (oyente == null) {
+				return;
+			}
+			if (cancelada) {
+				oyente.transferenciaFallida(transferencia, new IOException(
+						"Transferencia cancelada"));
+			} else {
+				oyente.transferenciaCompletada(transferencia);
+			}
+		} catch (IOException ex) {
+			transferencia.terminar();
+			if (oyente != null) {
+				oyente.transferenciaFallida(transferencia, ex);
+			}
+		} finally {
+			try {
+				flujo.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	@Override
+	protected void alCancelar() {
+		transferencia.cancelar();
+	}
+
+	/**
+	 * Llenar el buffer desde el flujo
+	 *
+	 * @return Los bytes leidos, menos de TAMANO_BLOQUE solo al final
+	 */
+	private int leer(byte[] buffer, int offset) throws IOException {
+		int leidos = 0;
+		while (leidos < TAMANO_BLOQUE) {
+			int bytes = flujo.read(buffer, offset + leidos, TAMANO_BLOQUE
+					- leidos);
+			if (bytes < 0) {
+				break;
+			}
+			leidos += bytes;
+		}
+		return leidos;
+	}
+
+	/**
+	 * Esperar un bloque y contarlo en el avance
+	 */
+	private void completado(Envio envio) throws IOException {
+		esperar(envio);
+		transferencia.sumar(envio.carga.length
+				- FormatoArchivo.LONGITUD_CABECERA_BLOQUE);
+		if (oyente != null && transferencia.tocaProgreso()) {
+			oyente.progreso(transferencia);
+		}
+	}
+
+	private static void esperar(Envio envio) throws IOException {
+		try {
+			envio.get();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Transferencia interrumpida");
+		} catch (ExecutionException ex) {
+			throw envio.getError();
+		} catch (CancellationException ex) {
+			throw new IOException("Envio descartado");
+		}
+	}
+}
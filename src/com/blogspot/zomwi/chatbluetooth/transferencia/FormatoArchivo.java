@@ -0,0 +1,81 @@
+package com.blogspot.zomwi.chatbluetooth.transferencia;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Carga de las tramas de archivo, con enteros en big-endian:
+ *
+ * <pre>
+ * TIPO_ARCHIVO_INICIO: id (4) | tamano (8, -1 si no se conoce) | nombre UTF-8
+ * TIPO_ARCHIVO_BLOQUE: id (4) | posicion (8) | CRC32 de los datos (4) | datos
+ * TIPO_ARCHIVO_FIN:    id (4) | estado (1, FIN_COMPLETO o FIN_CANCELADO)
+ * </pre>
+ */
+final class FormatoArchivo {
+
+	static final int LONGITUD_INICIO = 12;
+	static final int LONGITUD_CABECERA_BLOQUE = 16;
+	static final int LONGITUD_FIN = 5;
+
+	static final int FIN_COMPLETO = 0;
+	static final int FIN_CANCELADO = 1;
+
+	private FormatoArchivo() {
+	}
+
+	static byte[] inicio(int id, long tamano, String nombre)
+			throws UnsupportedEncodingException {
+		byte[] bytesNombre = nombre.getBytes("UTF-8");
+		byte[] carga = new byte[LONGITUD_INICIO + bytesNombre.length];
+		escribirEntero(carga, 0, id);
+		escribirLargo(carga, 4, tamano);
+		System.arraycopy(bytesNombre, 0, carga, LONGITUD_INICIO,
+				bytesNombre.length);
+		return carga;
+	}
+
+	static byte[] fin(int id, int estado) {
+		byte[] carga = new byte[LONGITUD_FIN];
+		escribirEntero(carga, 0, id);
+		carga[4] = (byte) estado;
+		return carga;
+	}
+
+	static void cabeceraBloque(byte[] carga, int id, long posicion, int crc) {
+		escribirEntero(carga, 0, id);
+		escribirLargo(carga, 4, posicion);
+		escribirEntero(carga, 12, crc);
+	}
+
+	static void comprobarLongitud(int longitud, int minima)
+			throws IOException {
+		if (longitud < minima) {
+			throw new IOException("Trama de archivo invalida");
+		}
+	}
+
+	static void escribirEntero(byte[] destino, int offset, int valor) {
+		destino[offset] = (byte) (valor >>> 24);
+		destino[offset + 1] = (byte) (valor >>> 16);
+		destino[offset + 2] = (byte) (valor >>> 8);
+		destino[offset + 3] = (byte) valor;
+	}
+
+	static void escribirLargo(byte[] destino, int offset, long valor) {
+		escribirEntero(destino, offset, (int) (valor >>> 32));
+		escribirEntero(destino, offset + 4, (int) valor);
+	}
+
+	static int leerEntero(byte[] origen, int offset) {
+		return ((origen[offset] & 0xFF) << 24)
+				| ((origen[offset + 1] & 0xFF) << 16)
+				| ((origen[offset + 2] & 0xFF) << 8)
+				| (origen[offset + 3] & 0xFF);
+	}
+
+	static long leerLargo(byte[] origen, int offset) {
+		return ((long) leerEntero(origen, offset) << 32)
+				| (leerEntero(origen, offset + 4) & 0xFFFFFFFFL);
+	}
+}
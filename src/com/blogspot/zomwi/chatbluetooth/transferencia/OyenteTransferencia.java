@@ -0,0 +1,33 @@
+package com.blogspot.zomwi.chatbluetooth.transferencia;
+
+import java.io.IOException;
+
+/**
+ * Recibe el avance de las transferencias de archivos, tanto de las que se
+ * envian como de las que se reciben. Se llama desde los hilos de la conexion
+ * o de la transferencia, nunca desde el hilo de la interfaz.
+ */
+public interface OyenteTransferencia {
+
+	/**
+	 * Se llama al empezar y despues cada tanto mientras avanza
+	 *
+	 * @param transferencia
+	 *            La transferencia
+	 */
+	void progreso(Transferencia transferencia);
+
+	/**
+	 * @param transferencia
+	 *            La transferencia que termino bien
+	 */
+	void transferenciaCompletada(Transferencia transferencia);
+
+	/**
+	 * @param transferencia
+	 *            La transferencia que fallo o se cancelo
+	 * @param causa
+	 *            El motivo
+	 */
+	void transferenciaFallida(Transferencia transferencia, IOException causa);
+}
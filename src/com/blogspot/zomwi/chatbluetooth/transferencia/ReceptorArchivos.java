@@ -0,0 +1,211 @@
+package com.blogspot.zomwi.chatbluetooth.transferencia;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import com.blogspot.zomwi.chatbluetooth.protocolo.Trama;
+
+/**
+ * Recibe las transferencias de archivos de una conexion y las escribe en
+ * disco bloque a bloque, a medida que llegan. Un bloque con el CRC32 o la
+ * posicion incorrectos hace fallar esa transferencia y se borra lo recibido;
+ * la conexion sigue.
+ */
+public class ReceptorArchivos {
+
+	private final File directorio;
+	private final String direccion;
+	private final OyenteTransferencia oyente;
+	private final Map<Integer, Recepcion> recepciones = new HashMap<Integer, Recepcion>();
+	private final CRC32 crc = new CRC32();
+
+	/**
+	 * Constructor
+	 *
+	 * @param directorio
+	 *            Donde se guardan los archivos, null para rechazarlos
+	 * @param direccion
+	 *            La direccion del otro extremo
+	 * @param oyente
+	 *            Quien recibe el avance, puede ser null
+	 */
+	public ReceptorArchivos(File directorio, String direccion,
+			OyenteTransferencia oyente) {
+		this.directorio = directorio;
+		this.direccion = direccion;
+		this.oyente = oyente;
+	}
+
+	/**
+	 * Procesar una trama de archivo
+	 *
+	 * @throws IOException
+	 *             Si la trama esta mal formada
+	 */
+	public synchronized void tramaRecibida(int tipo, byte[] carga, int offset,
+			int longitud) throws IOException {
+		switch (tipo) {
+		case Trama.TIPO_ARCHIVO_INICIO:
+			FormatoArchivo.comprobarLongitud(longitud,
+					FormatoArchivo.LONGITUD_INICIO);
+			iniciar(FormatoArchivo.leerEntero(carga, offset), FormatoArchivo
+					.leerLargo(carga, offset + 4), new String(carga, offset
+					+ FormatoArchivo.LONGITUD_INICIO, longitud
+					- FormatoArchivo.LONGITUD_INICIO, "UTF-8"));
+			break;
+		case Trama.TIPO_ARCHIVO_BLOQUE:
+			FormatoArchivo.comprobarLongitud(longitud,
+					FormatoArchivo.LONGITUD_CABECERA_BLOQUE);
+			bloque(carga, offset, longitud);
+			break;
+		case Trama.TIPO_ARCHIVO_FIN:
+			FormatoArchivo.comprobarLongitud(longitud,
+					FormatoArchivo.LONGITUD_FIN);
+			terminar(FormatoArchivo.leerEntero(carga, offset),
+					carga[offset + 4]);
+			break;
+		}
+	}
+
+	/**
+	 * Hacer fallar las transferencias en curso porque se cerro la conexion
+	 *
+	 * @param causa
+	 *            El motivo
+	 */
+	public synchronized void cerrar(IOException causa) {
+		for (Recepcion recepcion : recepciones.values()) {
+			fallar(recepcion, causa);
+		}
+		recepciones.clear();
+	}
+
+	private void iniciar(int id, long tamano, String nombre) {
+		if (directorio == null || recepciones.containsKey(id)) {
+			return;
+		}
+		Transferencia transferencia = new Transferencia(id, nombre, tamano,
+				false, direccion);
+		Recepcion recepcion = new Recepcion(transferencia);
+		try {
+			recepcion.archivo = crearArchivo(nombre);
+			transferencia.setArchivo(recepcion.archivo);
+			recepcion.salida = new FileOutputStream(recepcion.archivo);
+		} catch (IOException ex) {
+			fallar(recepcion, ex);
+			return;
+		}
+		recepciones.put(id, recepcion);
+		if (oyente != null) {
+			oyente.progreso(transferencia);
+		}
+	}
+
+	private void bloque(byte[] carga, int offset, int longitud) {
+		Recepcion recepcion = recepciones.get(FormatoArchivo.leerEntero(carga,
+				offset));
+		if (recepcion == null) {
+			// Rechazada o ya fallida, se descartan sus bloques
+			return;
+		}
+		long posicion = FormatoArchivo.leerLargo(carga, offset + 4);
+		int esperado = FormatoArchivo.leerEntero(carga, offset + 12);
+		int datos = offset + FormatoArchivo.LONGITUD_CABECERA_BLOQUE;
+		int cantidad = longitud - FormatoArchivo.LONGITUD_CABECERA_BLOQUE;
+		Transferencia transferencia = recepcion.transferencia;
+		try {
+			if (posicion != transferencia.getBytes()) {
+				throw new IOException("Bloque fuera de orden");
+			}
+			crc.reset();
+			crc.update(carga, datos, cantidad);
+			if ((int) crc.getValue() != esperado) {
+				throw new IOException("Bloque corrupto");
+			}
+			recepcion.salida.write(carga, datos, cantidad);
+		} catch (IOException ex) {
+			recepciones.remove(transferencia.id);
+			fallar(recepcion, ex);
+			return;
+		}
+		transferencia.sumar(cantidad);
+		if (oyente != null && transferencia.tocaProgreso()) {
+			oyente.progreso(transferencia);
+		}
+	}
+
+	private void terminar(int id, int estado) {
+		Recepcion recepcion = recepciones.remove(id);
+		if (recepcion == null) {
+			return;
+		}
+		Transferencia transferencia = recepcion.transferencia;
+		if (estado != FormatoArchivo.FIN_COMPLETO) {
+			fallar(recepcion, new IOException("Transferencia cancelada"));
+			return;
+		}
+		if (transferencia.tamano >= 0
+				&& transferencia.getBytes() != transferencia.tamano) {
+			fallar(recepcion, new IOException("Archivo incompleto"));
+			return;
+		}
+		try {
+			recepcion.salida.close();
+		} catch (IOException ex) {
+			fallar(recepcion, ex);
+			return;
+		}
+		transferencia.terminar();
+		if (oyente != null) {
+			oyente.transferenciaCompletada(transferencia);
+		}
+	}
+
+	private void fallar(Recepcion recepcion, IOException causa) {
+		if (recepcion.salida != null) {
+			try {
+				recepcion.salida.close();
+			} catch (IOException e) {
+			}
+		}
+		if (recepcion.archivo != null) {
+			recepcion.archivo.delete();
+		}
+		recepcion.transferencia.terminar();
+		if (oyente != null) {
+			oyente.transferenciaFallida(recepcion.transferencia, causa);
+		}
+	}
+
+	/**
+	 * Crear un archivo nuevo con el nombre recibido, sin carpetas y sin
+	 * reemplazar uno existente
+	 */
+	private File crearArchivo(String nombre) throws IOException {
+		String limpio = nombre.substring(Math.max(nombre.lastIndexOf('/'),
+				nombre.lastIndexOf('\\')) + 1);
+		if (limpio.length() == 0 || limpio.equals(".") || limpio.equals("..")) {
+			limpio = "archivo";
+		}
+		File archivo = new File(directorio, limpio);
+		for (int i = 1; !archivo.createNewFile(); i++) {
+			archivo = new File(directorio, i + "-" + limpio);
+		}
+		return archivo;
+	}
+
+	private static class Recepcion {
+
+		final Transferencia transferencia;
+		File archivo;
+		FileOutputStream salida;
+
+		Recepcion(Transferencia transferencia) {
+			this.transferencia = transferencia;
+		}
+	}
+}
@@ -0,0 +1,113 @@
+package com.blogspot.zomwi.chatbluetooth.transferencia;
+
+import java.io.File;
+
+/**
+ * Un archivo que se envia o se recibe por una conexion, con su avance.
+ */
+public class Transferencia {
+
+	// Tiempo minimo entre dos avisos de progreso, en nanosegundos
+	private static final long INTERVALO_PROGRESO = 250 * 1000 * 1000L;
+
+	public final int id;
+	public final String nombre;
+	// El tamano anunciado, -1 si no se conoce
+	public final long tamano;
+	// true si la enviamos nosotros
+	public final boolean enviada;
+	// La direccion del otro extremo
+	public final String direccion;
+
+	private final long inicio = System.nanoTime();
+	private volatile long bytes;
+	private volatile long fin;
+	private volatile boolean cancelada;
+	private volatile File archivo;
+	private long ultimoProgreso;
+
+	Transferencia(int id, String nombre, long tamano, boolean enviada,
+			String direccion) {
+		this.id = id;
+		this.nombre = nombre;
+		this.tamano = tamano;
+		this.enviada = enviada;
+		this.direccion = direccion;
+	}
+
+	/**
+	 * @return Los bytes enviados o recibidos hasta ahora
+	 */
+	public long getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * @return El avance de 0 a 100, o -1 si no se conoce el tamano
+	 */
+	public int getPorcentaje() {
+		if (tamano < 0) {
+			return -1;
+		}
+		return tamano == 0 ? 100 : (int) (bytes * 100 / tamano);
+	}
+
+	/**
+	 * @return La velocidad promedio desde el inicio hasta ahora o hasta que
+	 *         termino
+	 */
+	public double getBytesPorSegundo() {
+		long hasta = fin != 0 ? fin : System.nanoTime();
+		long nanos = Math.max(hasta - inicio, 1);
+		return bytes * 1e9 / nanos;
+	}
+
+	/**
+	 * @return El archivo donde se guarda lo recibido, null si la enviamos
+	 */
+	public File getArchivo() {
+		return archivo;
+	}
+
+	/**
+	 * @return true si ya termino, bien o mal
+	 */
+	public boolean isTerminada() {
+		return fin != 0;
+	}
+
+	/**
+	 * Dejar de enviar. El otro extremo descarta lo que recibio
+	 */
+	public void cancelar() {
+		cancelada = true;
+	}
+
+	public boolean isCancelada() {
+		return cancelada;
+	}
+
+	void setArchivo(File archivo) {
+		this.archivo = archivo;
+	}
+
+	void sumar(long cantidad) {
+		bytes += cantidad;
+	}
+
+	void terminar() {
+		fin = System.nanoTime();
+	}
+
+	/**
+	 * @return true si ya paso el intervalo desde el ultimo aviso de progreso
+	 */
+	boolean tocaProgreso() {
+		long ahora = System.nanoTime();
+		if (ahora - ultimoProgreso < INTERVALO_PROGRESO) {
+			return false;
+		}
+		ultimoProgreso = ahora;
+		return true;
+	}
+}
@@ -0,0 +1,172 @@
+package com.blogspot.zomwi.chatbluetooth.transporte;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Recuerda el canal en el que escucha el servicio de cada dispositivo, para
+ * conectar sin repetir la busqueda del servicio. Cada canal vale hasta que
+ * pasa la caducidad desde que se resolvio; si el otro extremo reinicia la
+ * aplicacion puede escuchar en otro canal, y quien conecta debe invalidarlo
+ * cuando falla.
+ *
+ * Si se da un archivo los canales se guardan en el cada vez que cambian, asi
+ * siguen valiendo despues de reiniciar.
+ */
+public class CacheServicios {
+
+	private static final int VERSION_ARCHIVO = 1;
+
+	private final File archivo;
+	private final long caducidad;
+	private final Map<String, long[]> porDireccion = new HashMap<String, long[]>();
+
+	/**
+	 * Constructor
+	 *
+	 * @param archivo
+	 *            Donde se guardan los canales, null para no guardarlos
+	 * @param caducidad
+	 *            Los milisegundos que vale cada canal
+	 */
+	public CacheServicios(File archivo, long caducidad) {
+		this.archivo = archivo;
+		this.caducidad = caducidad;
+		if (archivo != null) {
+			try {
+				cargar();
+			} catch (IOException e) {
+				porDireccion.clear();
+			}
+		}
+	}
+
+	/**
+	 * @param direccion
+	 *            La direccion del dispositivo
+	 * @param ahora
+	 *            El momento actual, de System.currentTimeMillis()
+	 * @return El canal del servicio o -1 si no se conoce o caduco
+	 */
+	public synchronized int getCanal(String direccion, long ahora) {
+		long[] entrada = porDireccion.get(direccion);
+		if (entrada == null || ahora - entrada[1] >= caducidad) {
+			return -1;
+		}
+		return (int) entrada[0];
+	}
+
+	/**
+	 * @param ahora
+	 *            El momento actual, de System.currentTimeMillis()
+	 * @return Las direcciones con un canal que no caduco
+	 */
+	public synchronized List<String> getDirecciones(long ahora) {
+		List<String> direcciones = new ArrayList<String>();
+		for (Map.Entry<String, long[]> entrada : porDireccion.entrySet()) {
+			if (ahora - entrada.getValue()[1] < caducidad) {
+				direcciones.add(entrada.getKey());
+			}
+		}
+		return direcciones;
+	}
+
+	/**
+	 * Anotar el canal de un servicio recien resuelto
+	 *
+	 * @param direccion
+	 *            La direccion del dispositivo
+	 * @param canal
+	 *            El canal en el que escucha su servicio
+	 * @param ahora
+	 *            El momento actual, de System.currentTimeMillis()
+	 */
+	public synchronized void resuelto(String direccion, int canal, long ahora) {
+		porDireccion.put(direccion, new long[] { canal, ahora });
+		guardar();
+	}
+
+	/**
+	 * Olvidar el canal de un dispositivo, porque conectar con el fallo
+	 *
+	 * @param direccion
+	 *            La direccion del dispositivo
+	 */
+	public synchronized void invalidar(String direccion) {
+		if (porDireccion.remove(direccion) != null) {
+			guardar();
+		}
+	}
+
+	/**
+	 * Guardar los canales. Si falla solo se pierde la cache
+	 */
+	private void guardar() {
+		if (archivo == null) {
+			return;
+		}
+		File temporal = new File(archivo.getPath() + ".tmp");
+		try {
+			DataOutputStream salida = new DataOutputStream(
+					new BufferedOutputStream(new FileOutputStream(temporal)));
+			try {
+				salida.writeInt(VERSION_ARCHIVO);
+				salida.writeInt(porDireccion.size());
+				for (Map.Entry<String, long[]> entrada : porDireccion
+						.entrySet()) {
+					salida.writeUTF(entrada.getKey());
+					salida.writeByte((int) entrada.getValue()[0]);
+					salida.writeLong(entrada.getValue()[1]);
+				}
+			} finally {
+				salida.close();
+			}
+			if (!temporal.renameTo(archivo)) {
+				temporal.delete();
+			}
+		} catch (IOException e) {
+			temporal.delete();
+		}
+	}
+
+	private void cargar() throws IOException {
+		if (!archivo.exists()) {
+			return;
+		}
+		DataInputStream entrada = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(archivo)));
+		try {
+			if (entrada.readInt() != VERSION_ARCHIVO) {
+				return;
+			}
+			int cantidad = entrada.readInt();
+			for (int i = 0; i < cantidad; i++) {
+				String direccion = entrada.readUTF();
+				int canal = entrada.readUnsignedByte();
+				long resuelto = entrada.readLong();
+				porDireccion.put(direccion, new long[] { canal, resuelto });
+			}
+		} finally {
+			entrada.close();
+		}
+		// Los caducados no se guardan de nuevo
+		long ahora = System.currentTimeMillis();
+		for (Iterator<long[]> i = porDireccion.values().iterator(); i
+				.hasNext();) {
+			if (ahora - i.next()[1] >= caducidad) {
+				i.remove();
+			}
+		}
+	}
+}
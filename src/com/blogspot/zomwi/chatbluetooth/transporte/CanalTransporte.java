@@ -0,0 +1,49 @@
+package com.blogspot.zomwi.chatbluetooth.transporte;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Una conexion bidireccional de un Transporte
+ */
+public interface CanalTransporte {
+
+	/**
+	 * Conectar con el otro extremo. Es una llamada bloqueante que solo vuelve
+	 * con una conexion o con una excepcion. Los canales aceptados ya estan
+	 * conectados
+	 * 
+	 * @throws IOException
+	 *             Si la conexion falla o el canal se cierra
+	 */
+	void conectar() throws IOException;
+
+	InputStream getFlujoEntrada() throws IOException;
+
+	OutputStream getFlujoSalida() throws IOException;
+
+	/**
+	 * @return La direccion del otro extremo
+	 */
+	String getDireccion();
+
+	/**
+	 * @return El nombre legible del otro extremo
+	 */
+	String getNombre();
+
+	/**
+	 * Avisar que el otro extremo no contesto con el protocolo del chat: no
+	 * mando ninguna trama valida a tiempo o la conexion se perdio antes. Si
+	 * el transporte recuerda como llego a esa direccion, lo olvida, porque el
+	 * canal pudo llevar a otro servicio
+	 */
+	void protocoloDesconocido();
+
+	/**
+	 * Cerrar el canal. Un conectar() o read() en curso termina con una
+	 * excepcion
+	 */
+	void cerrar() throws IOException;
+}
@@ -0,0 +1,244 @@
+package com.blogspot.zomwi.chatbluetooth.transporte;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Conecta con el primero que conteste de varios dispositivos. Llama a varios
+ * candidatos a la vez, cada uno desde su propio hilo y con un tiempo maximo
+ * por intento; se queda con la primera conexion que se establece y cierra las
+ * demas. Los candidatos se llaman en el orden dado, como mucho paralelos a la
+ * vez, y cuando un intento termina sin exito empieza el siguiente.
+ *
+ * Un intento que no conecta a tiempo se cierra, lo que hace fallar su
+ * conectar(). Se anota el resultado y la duracion de cada intento.
+ *
+ * Los intentos corren en los hilos de un Executor, sin crear uno cada vez.
+ * Un intento que el Executor no acepta se anota como fallido.
+ */
+public class CarreraConexion {
+
+	private final Transporte transporte;
+	private final List<String> candidatos;
+	private final long espera;
+	private final int paralelos;
+	private final Executor ejecutor;
+
+	// Todo lo siguiente esta protegido por this
+	private final List<Intento> activos = new ArrayList<Intento>();
+	private final List<IntentoConexion> intentos = new ArrayList<IntentoConexion>();
+	private int siguiente;
+	private CanalTransporte ganador;
+	private boolean cancelada;
+
+	/**
+	 * Constructor
+	 *
+	 * @param transporte
+	 *            El transporte con el que se crean los canales
+	 * @param candidatos
+	 *            Las direcciones a llamar, en orden de preferencia
+	 * @param espera
+	 *            Los milisegundos que se espera cada intento
+	 * @param paralelos
+	 *            Los intentos que se hacen a la vez como mucho
+	 * @param ejecutor
+	 *            Donde corren los intentos, por ejemplo el MotorHilos del
+	 *            ServicioChat
+	 */
+	public CarreraConexion(Transporte transporte, List<String> candidatos,
+			long espera, int paralelos, Executor ejecutor) {
+		if (candidatos.isEmpty()) {
+			throw new IllegalArgumentException("No hay candidatos");
+		}
+		if (ejecutor == null) {
+			throw new IllegalArgumentException("No hay ejecutor");
+		}
+		if (espera <= 0 || paralelos < 1) {
+			throw new IllegalArgumentException("espera: " + espera
+					+ ", paralelos: " + paralelos);
+		}
+		this.transporte = transporte;
+		this.candidatos = new ArrayList<String>(candidatos);
+		this.espera = espera * 1000000;
+		this.paralelos = paralelos;
+		this.ejecutor = ejecutor;
+	}
+
+	/**
+	 * Correr la carrera. Es una llamada bloqueante que vuelve con la primera
+	 * conexion o con una excepcion cuando fallaron todos los candidatos o se
+	 * cancelo. Los demas intentos quedan cerrados al volver
+	 *
+	 * @return El canal conectado del ganador
+	 * @throws IOException
+	 *             Si ningun candidato conecto o la carrera se cancelo
+	 */
+	public synchronized CanalTransporte correr() throws IOException {
+		try {
+			while (true) {
+				if (cancelada) {
+					throw new IOException("Conexion cancelada");
+				}
+				if (ganador != null) {
+					detenerActivos(IntentoConexion.CANCELADO);
+					return ganador;
+				}
+				while (activos.size() < paralelos
+						&& siguiente < candidatos.size()) {
+					Intento intento = new Intento(candidatos.get(siguiente++));
+					activos.add(intento);
+					iniciar(intento);
+				}
+				if (activos.isEmpty()) {
+					throw new IOException(
+							"No se pudo conectar con ningun dispositivo");
+				}
+				// Cerrar los intentos vencidos y esperar hasta el proximo
+				// vencimiento o hasta que un intento termine
+				long ahora = System.nanoTime();
+				long proximo = Long.MAX_VALUE;
+				for (int i = activos.size() - 1; i >= 0; i--) {
+					Intento intento = activos.get(i);
+					long vence = intento.inicio + espera;
+					if (vence - ahora <= 0) {
+						detener(intento, IntentoConexion.VENCIDO, ahora);
+					} else {
+						proximo = Math.min(proximo, vence - ahora);
+					}
+				}
+				if (proximo != Long.MAX_VALUE) {
+					wait(Math.max(proximo / 1000000, 1));
+				}
+			}
+		} catch (InterruptedException ex) {
+			cancelada = true;
+			detenerActivos(IntentoConexion.CANCELADO);
+			throw new InterruptedIOException("Conexion interrumpida");
+		}
+	}
+
+	/**
+	 * Cancelar la carrera. Cierra los intentos en curso y correr() termina con
+	 * una excepcion, salvo que ya hubiera vuelto con un ganador
+	 */
+	public synchronized void cancelar() {
+		if (cancelada) {
+			return;
+		}
+		cancelada = true;
+		detenerActivos(IntentoConexion.CANCELADO);
+		notifyAll();
+	}
+
+	/**
+	 * @return Los intentos terminados hasta ahora, en el orden en que
+	 *         terminaron
+	 */
+	public synchronized List<IntentoConexion> getIntentos() {
+		return new ArrayList<IntentoConexion>(intentos);
+	}
+
+	/**
+	 * Se llama con el monitor tomado
+	 */
+	private void iniciar(Intento intento) {
+		try {
+			ejecutor.execute(intento);
+		} catch (RejectedExecutionException ex) {
+			// Sin hilos libres, o el ejecutor se detuvo
+			detener(intento, IntentoConexion.FALLIDO, System.nanoTime());
+		}
+	}
+
+	private void detenerActivos(int resultado) {
+		long ahora = System.nanoTime();
+		for (int i = activos.size() - 1; i >= 0; i--) {
+			detener(activos.get(i), resultado, ahora);
+		}
+	}
+
+	private void detener(Intento intento, int resultado, long ahora) {
+		activos.remove(intento);
+		intento.terminado = true;
+		intentos.add(new IntentoConexion(intento.direccion, resultado, ahora
+				- intento.inicio));
+		cerrar(intento.canal);
+	}
+
+	private static void cerrar(CanalTransporte canal) {
+		if (canal == null) {
+			return;
+		}
+		try {
+			canal.cerrar();
+		} catch (IOException e) {
+		}
+	}
+
+	/**
+	 * Un intento de conexion con un candidato
+	 */
+	private class Intento implements Runnable {
+
+		final String direccion;
+		final long inicio = System.nanoTime();
+		// Protegidos por la carrera
+		CanalTransporte canal;
+		boolean terminado;
+
+		Intento(String direccion) {
+			this.direccion = direccion;
+		}
+
+		public void run() {
+			CanalTransporte creado = null;
+			boolean conectado = false;
+			try {
+				creado = transporte.crearCanal(direccion);
+				synchronized (CarreraConexion.this) {
+					if (terminado) {
+						// Vencio o se cancelo mientras se creaba
+						cerrar(creado);
+						return;
+					}
+					canal = creado;
+				}
+				creado.conectar();
+				conectado = true;
+			} catch (IOException ex) {
+			}
+			terminar(creado, conectado);
+		}
+
+		private void terminar(CanalTransporte creado, boolean conectado) {
+			synchronized (CarreraConexion.this) {
+				if (terminado) {
+					// Ya se anoto como vencido o cancelado y se cerro
+					return;
+				}
+				int resultado;
+				if (!conectado) {
+					resultado = IntentoConexion.FALLIDO;
+					cerrar(creado);
+				} else if (ganador == null && !cancelada) {
+					resultado = IntentoConexion.GANADOR;
+					ganador = creado;
+				} else {
+					resultado = IntentoConexion.DESCARTADO;
+					cerrar(creado);
+				}
+				activos.remove(this);
+				terminado = true;
+				intentos.add(new IntentoConexion(direccion, resultado, System
+						.nanoTime()
+						- inicio));
+				CarreraConexion.this.notifyAll();
+			}
+		}
+	}
+}
@@ -0,0 +1,37 @@
+package com.blogspot.zomwi.chatbluetooth.transporte;
+
+/**
+ * El resultado de uno de los intentos de una CarreraConexion
+ */
+public class IntentoConexion {
+
+	// Conecto primero, es la conexion que se usa
+	public static final int GANADOR = 0;
+	// Conecto, pero otro intento ya habia ganado y se cerro
+	public static final int DESCARTADO = 1;
+	// La conexion fallo
+	public static final int FALLIDO = 2;
+	// No conecto a tiempo y se cerro
+	public static final int VENCIDO = 3;
+	// Se cerro porque otro gano o la carrera se cancelo
+	public static final int CANCELADO = 4;
+
+	public final String direccion;
+	public final int resultado;
+	// Desde que empezo el intento hasta su resultado
+	public final long nanos;
+
+	IntentoConexion(String direccion, int resultado, long nanos) {
+		this.direccion = direccion;
+		this.resultado = resultado;
+		this.nanos = nanos;
+	}
+
+	@Override
+	public String toString() {
+		String[] nombres = { "ganador", "descartado", "fallido", "vencido",
+				"cancelado" };
+		return direccion + " " + nombres[resultado] + " "
+				+ (nanos / 1000000) + " ms";
+	}
+}
@@ -0,0 +1,24 @@
+package com.blogspot.zomwi.chatbluetooth.transporte;
+
+import java.io.IOException;
+
+/**
+ * El lado que escucha de un Transporte
+ */
+public interface ServidorTransporte {
+
+	/**
+	 * Esperar la siguiente conexion entrante. Es una llamada bloqueante que
+	 * solo vuelve con una conexion o con una excepcion
+	 * 
+	 * @return El canal ya conectado
+	 * @throws IOException
+	 *             Si falla la espera o el servidor se cierra
+	 */
+	CanalTransporte aceptar() throws IOException;
+
+	/**
+	 * Dejar de escuchar. Un aceptar() en curso termina con una excepcion
+	 */
+	void cerrar() throws IOException;
+}
@@ -0,0 +1,32 @@
+package com.blogspot.zomwi.chatbluetooth.transporte;
+
+import java.io.IOException;
+
+/**
+ * Medio por el que ServicioChat abre conexiones. Separa el motor de
+ * conexiones de los sockets Bluetooth, para poder usarlo tambien sobre tuberias
+ * en memoria o sockets TCP locales y medirlo sin radios.
+ */
+public interface Transporte {
+
+	/**
+	 * Empezar a escuchar conexiones entrantes
+	 * 
+	 * @return El servidor del que se aceptan las conexiones
+	 * @throws IOException
+	 *             Si no se puede escuchar
+	 */
+	ServidorTransporte escuchar() throws IOException;
+
+	/**
+	 * Crear un canal hacia la direccion dada, todavia sin conectar. Se
+	 * conecta con CanalTransporte.conectar()
+	 * 
+	 * @param direccion
+	 *            La direccion del otro extremo
+	 * @return El canal sin conectar
+	 * @throws IOException
+	 *             Si no se puede crear el canal
+	 */
+	CanalTransporte crearCanal(String direccion) throws IOException;
+}
@@ -0,0 +1,154 @@
+package com.blogspot.zomwi.chatbluetooth.transporte;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Transporte dentro del mismo proceso. Cada extremo tiene una direccion en una
+ * Red compartida y las conexiones son un par de TuberiaMemoria. Sirve para
+ * probar y medir el motor de conexiones sin radios ni sockets.
+ */
+public class TransporteMemoria implements Transporte {
+
+	// Tamano del buffer de cada sentido de una conexion
+	private static final int CAPACIDAD_TUBERIA = 64 * 1024;
+
+	private final Red red;
+	private final String direccion;
+
+	/**
+	 * Constructor
+	 *
+	 * @param red
+	 *            La red compartida con los demas extremos
+	 * @param direccion
+	 *            La direccion de este extremo dentro de la red
+	 */
+	public TransporteMemoria(Red red, String direccion) {
+		this.red = red;
+		this.direccion = direccion;
+	}
+
+	public ServidorTransporte escuchar() throws IOException {
+		ServidorMemoria servidor = new ServidorMemoria();
+		if (red.servidores.putIfAbsent(direccion, servidor) != null) {
+			throw new IOException("Direccion en uso: " + direccion);
+		}
+		return servidor;
+	}
+
+	public CanalTransporte crearCanal(String destino) {
+		return new CanalMemoria(destino);
+	}
+
+	/**
+	 * El espacio de direcciones en el que se encuentran los extremos
+	 */
+	public static class Red {
+
+		private final ConcurrentHashMap<String, ServidorMemoria> servidores = new ConcurrentHashMap<String, ServidorMemoria>();
+	}
+
+	private class ServidorMemoria implements ServidorTransporte {
+
+		private final LinkedBlockingQueue<CanalMemoria> entrantes = new LinkedBlockingQueue<CanalMemoria>();
+		private volatile boolean cerrado;
+
+		public CanalTransporte aceptar() throws IOException {
+			CanalMemoria canal;
+			try {
+				canal = entrantes.take();
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Espera interrumpida");
+			}
+			if (cerrado) {
+				throw new IOException("Servidor cerrado");
+			}
+			return canal;
+		}
+
+		void entregar(CanalMemoria canal) throws IOException {
+			if (cerrado) {
+				throw new IOException("Conexion rechazada");
+			}
+			entrantes.add(canal);
+		}
+
+		public void cerrar() {
+			cerrado = true;
+			red.servidores.remove(direccion, this);
+			// Despertar un aceptar() en curso
+			entrantes.add(new CanalMemoria(null));
+		}
+	}
+
+	private class CanalMemoria implements CanalTransporte {
+
+		private final String remota;
+		private TuberiaMemoria entrada;
+		private TuberiaMemoria salida;
+		private boolean cerrado;
+
+		CanalMemoria(String remota) {
+			this.remota = remota;
+		}
+
+		CanalMemoria(String remota, TuberiaMemoria entrada,
+				TuberiaMemoria salida) {
+			this.remota = remota;
+			this.entrada = entrada;
+			this.salida = salida;
+		}
+
+		public synchronized void conectar() throws IOException {
+			if (cerrado) {
+				throw new IOException("Canal cerrado");
+			}
+			ServidorMemoria servidor = red.servidores.get(remota);
+			if (servidor == null) {
+				throw new IOException("Conexion rechazada: " + remota);
+			}
+			entrada = new TuberiaMemoria(CAPACIDAD_TUBERIA);
+			salida = new TuberiaMemoria(CAPACIDAD_TUBERIA);
+			// El otro extremo lee lo que escribimos y viceversa
+			servidor.entregar(new CanalMemoria(direccion, salida, entrada));
+		}
+
+		public synchronized InputStream getFlujoEntrada() throws IOException {
+			if (entrada == null) {
+				throw new IOException("Canal sin conectar");
+			}
+			return entrada.getFlujoEntrada();
+		}
+
+		public synchronized OutputStream getFlujoSalida() throws IOException {
+			if (salida == null) {
+				throw new IOException("Canal sin conectar");
+			}
+			return salida.getFlujoSalida();
+		}
+
+		public String getDireccion() {
+			return remota;
+		}
+
+		public String getNombre() {
+			return remota;
+		}
+
+		public void protocoloDesconocido() {
+		}
+
+		public synchronized void cerrar() {
+			cerrado = true;
+			if (entrada != null) {
+				entrada.cerrar();
+				salida.cerrar();
+			}
+		}
+	}
+}
@@ -0,0 +1,472 @@
+package com.blogspot.zomwi.chatbluetooth.transporte;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.RejectedExecutionException;
+
+import com.blogspot.zomwi.chatbluetooth.conexion.HistogramaLatencia;
+import com.blogspot.zomwi.chatbluetooth.hilos.MotorHilos;
+import com.blogspot.zomwi.chatbluetooth.hilos.Tarea;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothServerSocket;
+import android.bluetooth.BluetoothSocket;
+
+/**
+ * Transporte sobre sockets Bluetooth RFCOMM. Las direcciones son las
+ * direcciones MAC de los dispositivos.
+ *
+ * Un socket creado con createRfcommSocketToServiceRecord() busca el canal del
+ * servicio por SDP en cada connect(), lo que suele costar tanto como la
+ * conexion. Despues de conectar se anota el canal en una CacheServicios y las
+ * conexiones siguientes con ese dispositivo lo llaman directamente; si el
+ * canal ya no vale se vuelve a buscar. Tambien se olvida si lo que contesta
+ * en ese canal no habla el protocolo del chat (protocoloDesconocido()), ya
+ * que al reiniciarse el otro extremo el canal pudo quedar para otro servicio.
+ * Ademas, con precalentar() los sockets de los dispositivos con canal
+ * conocido se crean de antemano en una tarea del MotorHilos dado con
+ * setMotor(), asi que detener el motor tambien la espera.
+ *
+ * Conectar por canal usa metodos ocultos de BluetoothDevice y BluetoothSocket;
+ * si no existen se busca el servicio siempre, como antes.
+ */
+public class TransporteRfcomm implements Transporte {
+
+	// Nombre para el registro SDP cuando creamos el socket servidor
+	private static final String NOMBRE = "ChatBluetooth";
+
+	// Unico UUID para esta aplicacion
+	private static final UUID MI_UUID = UUID
+			.fromString("fa87c0d0-afac-11de-8a39-0800200c9a66");
+
+	// Lo que vale un canal resuelto y un socket creado de antemano, en
+	// milisegundos
+	private static final long CADUCIDAD_SERVICIO = 24 * 60 * 60 * 1000;
+	private static final long CADUCIDAD_PRECALENTADO = 5 * 60 * 1000;
+
+	// Los metodos ocultos para conectar por canal, null si no existen
+	private static final Method CREAR_POR_CANAL = buscarCrearPorCanal();
+	private static final Field PUERTO = buscarPuerto();
+
+	private final BluetoothAdapter bluetoothAdapter;
+	private final CacheServicios servicios;
+
+	// Sockets creados de antemano por direccion, con su canal y cuando se
+	// crearon
+	private final Map<String, Precalentado> precalentados = new HashMap<String, Precalentado>();
+	// Los que se vuelven a preparar despues de usarlos
+	private final Set<String> frecuentes = new HashSet<String>();
+	// Donde corre la tarea que los prepara, null para no prepararlos
+	private volatile MotorHilos motor;
+
+	// Tiempos de conexion, desde que se crea el socket hasta que conecta:
+	// buscando el servicio, con el canal conocido y con el socket creado de
+	// antemano
+	private final HistogramaLatencia conexionesFrias = new HistogramaLatencia();
+	private final HistogramaLatencia conexionesTibias = new HistogramaLatencia();
+	private final HistogramaLatencia conexionesPrecalentadas = new HistogramaLatencia();
+
+	public TransporteRfcomm(BluetoothAdapter bluetoothAdapter) {
+		this(bluetoothAdapter, null);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param bluetoothAdapter
+	 *            El adaptador local
+	 * @param archivoServicios
+	 *            Donde se guardan los canales resueltos entre ejecuciones, null
+	 *            para recordarlos solo en memoria
+	 */
+	public TransporteRfcomm(BluetoothAdapter bluetoothAdapter,
+			File archivoServicios) {
+		this.bluetoothAdapter = bluetoothAdapter;
+		servicios = new CacheServicios(archivoServicios, CADUCIDAD_SERVICIO);
+	}
+
+	public ServidorTransporte escuchar() throws IOException {
+		return new ServidorRfcomm(
+				bluetoothAdapter.listenUsingRfcommWithServiceRecord(NOMBRE,
+						MI_UUID));
+	}
+
+	public CanalTransporte crearCanal(String direccion) throws IOException {
+		long inicio = System.nanoTime();
+		BluetoothDevice dispositivo = bluetoothAdapter
+				.getRemoteDevice(direccion);
+		Precalentado precalentado = tomarPrecalentado(direccion);
+		if (precalentado != null) {
+			return new CanalRfcomm(precalentado.socket, dispositivo,
+					precalentado.canal, inicio, conexionesPrecalentadas);
+		}
+		int canal = servicios.getCanal(direccion, System.currentTimeMillis());
+		BluetoothSocket socket = canal > 0 ? crearPorCanal(dispositivo, canal)
+				: null;
+		if (socket == null) {
+			// Obtener un BluetoothSocket para una conexion con el
+			// BluetoothDevice dado.
+			return new CanalRfcomm(dispositivo
+					.createRfcommSocketToServiceRecord(MI_UUID), dispositivo,
+					-1, inicio, conexionesFrias);
+		}
+		return new CanalRfcomm(socket, dispositivo, canal, inicio,
+				conexionesTibias);
+	}
+
+	/**
+	 * @param motor
+	 *            El motor en el que se preparan los sockets de precalentar(),
+	 *            normalmente el del ServicioChat que usa este transporte
+	 */
+	public void setMotor(MotorHilos motor) {
+		this.motor = motor;
+	}
+
+	/**
+	 * Crear en segundo plano los sockets de los dispositivos dados cuyo canal
+	 * se conoce, para que la proxima conexion con ellos no espere ni la
+	 * busqueda del servicio ni la creacion del socket. Cada socket se vuelve a
+	 * preparar despues de usarlo. Sin motor, o con el motor detenido, no se
+	 * prepara nada
+	 *
+	 * @param direcciones
+	 *            Los dispositivos con los que se habla seguido, por ejemplo
+	 *            los vinculados
+	 */
+	public void precalentar(Collection<String> direcciones) {
+		synchronized (precalentados) {
+			frecuentes.addAll(direcciones);
+		}
+		final List<String> conocidas = servicios.getDirecciones(System
+				.currentTimeMillis());
+		conocidas.retainAll(direcciones);
+		MotorHilos motor = this.motor;
+		if (conocidas.isEmpty() || CREAR_POR_CANAL == null || motor == null) {
+			return;
+		}
+		try {
+			motor.ejecutar(new Tarea("Precalentar") {
+
+				@Override
+				protected void ejecutar() {
+					for (String direccion : conocidas) {
+						if (isCancelada()) {
+							return;
+						}
+						preparar(direccion);
+					}
+				}
+			});
+		} catch (RejectedExecutionException ex) {
+			// Es solo una optimizacion, la conexion buscara el servicio
+		}
+	}
+
+	/**
+	 * Cerrar los sockets creados de antemano
+	 */
+	public void liberar() {
+		synchronized (precalentados) {
+			for (Precalentado precalentado : precalentados.values()) {
+				cerrarSocket(precalentado.socket);
+			}
+			precalentados.clear();
+			frecuentes.clear();
+		}
+	}
+
+	/**
+	 * @return El tiempo de conexion cuando hubo que buscar el servicio
+	 */
+	public HistogramaLatencia.Resumen getConexionesFrias() {
+		return conexionesFrias.resumir();
+	}
+
+	/**
+	 * @return El tiempo de conexion con el canal del servicio ya conocido
+	 */
+	public HistogramaLatencia.Resumen getConexionesTibias() {
+		return conexionesTibias.resumir();
+	}
+
+	/**
+	 * @return El tiempo de conexion con un socket creado de antemano
+	 */
+	public HistogramaLatencia.Resumen getConexionesPrecalentadas() {
+		return conexionesPrecalentadas.resumir();
+	}
+
+	private void preparar(String direccion) {
+		long ahora = System.currentTimeMillis();
+		int canal = servicios.getCanal(direccion, ahora);
+		if (canal <= 0) {
+			return;
+		}
+		synchronized (precalentados) {
+			Precalentado anterior = precalentados.get(direccion);
+			if (anterior != null && anterior.canal == canal
+					&& ahora - anterior.creado < CADUCIDAD_PRECALENTADO) {
+				return;
+			}
+		}
+		BluetoothSocket socket = crearPorCanal(bluetoothAdapter
+				.getRemoteDevice(direccion), canal);
+		if (socket == null) {
+			return;
+		}
+		Precalentado anterior;
+		synchronized (precalentados) {
+			// Pudo liberarse mientras se creaba
+			if (!frecuentes.contains(direccion)) {
+				cerrarSocket(socket);
+				return;
+			}
+			anterior = precalentados.put(direccion, new Precalentado(socket,
+					canal, ahora));
+		}
+		if (anterior != null) {
+			cerrarSocket(anterior.socket);
+		}
+	}
+
+	/**
+	 * @return El socket creado de antemano para la direccion, null si no hay
+	 *         o caduco
+	 */
+	private Precalentado tomarPrecalentado(String direccion) {
+		Precalentado precalentado;
+		synchronized (precalentados) {
+			precalentado = precalentados.remove(direccion);
+		}
+		if (precalentado == null) {
+			return null;
+		}
+		long ahora = System.currentTimeMillis();
+		if (ahora - precalentado.creado >= CADUCIDAD_PRECALENTADO
+				|| servicios.getCanal(direccion, ahora) != precalentado.canal) {
+			cerrarSocket(precalentado.socket);
+			return null;
+		}
+		return precalentado;
+	}
+
+	private void conectado(String direccion) {
+		boolean frecuente;
+		synchronized (precalentados) {
+			frecuente = frecuentes.contains(direccion);
+		}
+		if (frecuente) {
+			precalentar(Collections.singleton(direccion));
+		}
+	}
+
+	private static BluetoothSocket crearPorCanal(BluetoothDevice dispositivo,
+			int canal) {
+		if (CREAR_POR_CANAL == null) {
+			return null;
+		}
+		try {
+			return (BluetoothSocket) CREAR_POR_CANAL.invoke(dispositivo,
+					Integer.valueOf(canal));
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return El canal al que se conecto el socket, -1 si no se puede saber
+	 */
+	private static int leerCanal(BluetoothSocket socket) {
+		if (PUERTO == null) {
+			return -1;
+		}
+		try {
+			return PUERTO.getInt(socket);
+		} catch (Exception e) {
+			return -1;
+		}
+	}
+
+	private static Method buscarCrearPorCanal() {
+		try {
+			return BluetoothDevice.class.getMethod("createRfcommSocket",
+					int.class);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	private static Field buscarPuerto() {
+		try {
+			Field campo = BluetoothSocket.class.getDeclaredField("mPort");
+			campo.setAccessible(true);
+			return campo;
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	private static void cerrarSocket(BluetoothSocket socket) {
+		try {
+			socket.close();
+		} catch (IOException e) {
+		}
+	}
+
+	private static class Precalentado {
+
+		final BluetoothSocket socket;
+		final int canal;
+		final long creado;
+
+		Precalentado(BluetoothSocket socket, int canal, long creado) {
+			this.socket = socket;
+			this.canal = canal;
+			this.creado = creado;
+		}
+	}
+
+	private class ServidorRfcomm implements ServidorTransporte {
+
+		private final BluetoothServerSocket serverSocket;
+
+		ServidorRfcomm(BluetoothServerSocket serverSocket) {
+			this.serverSocket = serverSocket;
+		}
+
+		public CanalTransporte aceptar() throws IOException {
+			BluetoothSocket socket = serverSocket.accept();
+			return new CanalRfcomm(socket, socket.getRemoteDevice(), -1, 0,
+					null);
+		}
+
+		public void cerrar() throws IOException {
+			serverSocket.close();
+		}
+	}
+
+	private class CanalRfcomm implements CanalTransporte {
+
+		private final BluetoothDevice dispositivo;
+		// Se reemplaza si el canal conocido ya no vale
+		private BluetoothSocket socket;
+		// El canal con el que se creo, -1 si busca el servicio
+		private int canal;
+		private boolean cerrado;
+		// Cuando se empezo a crear y donde se registra lo que tardo en
+		// conectar
+		private final long inicio;
+		private HistogramaLatencia tiempos;
+
+		CanalRfcomm(BluetoothSocket socket, BluetoothDevice dispositivo,
+				int canal, long inicio, HistogramaLatencia tiempos) {
+			this.socket = socket;
+			this.dispositivo = dispositivo;
+			this.canal = canal;
+			this.inicio = inicio;
+			this.tiempos = tiempos;
+		}
+
+		public void conectar() throws IOException {
+			// Cancelar el descubrimiento, ya que ralentiza la conexion
+			if (bluetoothAdapter.isDiscovering()) {
+				bluetoothAdapter.cancelDiscovery();
+			}
+			String direccion = dispositivo.getAddress();
+			BluetoothSocket actual = getSocket();
+			if (canal > 0) {
+				try {
+					actual.connect();
+					tiempos.registrar(System.nanoTime() - inicio);
+					conectado(direccion);
+					return;
+				} catch (IOException ex) {
+					// El otro extremo pudo cambiar de canal, buscarlo de nuevo
+					servicios.invalidar(direccion);
+					actual = reemplazar(dispositivo
+							.createRfcommSocketToServiceRecord(MI_UUID), ex);
+					tiempos = conexionesFrias;
+				}
+			}
+			actual.connect();
+			tiempos.registrar(System.nanoTime() - inicio);
+			int resuelto = leerCanal(actual);
+			if (resuelto > 0) {
+				servicios.resuelto(direccion, resuelto, System
+						.currentTimeMillis());
+			}
+			conectado(direccion);
+		}
+
+		private synchronized BluetoothSocket getSocket() {
+			return socket;
+		}
+
+		/**
+		 * Reemplazar el socket por uno que busca el servicio, salvo que el
+		 * canal se haya cerrado mientras tanto
+		 */
+		private BluetoothSocket reemplazar(BluetoothSocket nuevo,
+				IOException causa) throws IOException {
+			synchronized (this) {
+				if (!cerrado) {
+					cerrarSocket(socket);
+					socket = nuevo;
+					canal = -1;
+					return nuevo;
+				}
+			}
+			cerrarSocket(nuevo);
+			throw causa;
+		}
+
+		public InputStream getFlujoEntrada() throws IOException {
+			return getSocket().getInputStream();
+		}
+
+		public OutputStream getFlujoSalida() throws IOException {
+			return getSocket().getOutputStream();
+		}
+
+		public String getDireccion() {
+			return dispositivo.getAddress();
+		}
+
+		public String getNombre() {
+			return dispositivo.getName();
+		}
+
+		public void protocoloDesconocido() {
+			synchronized (this) {
+				// Solo importa si se conecto con el canal recordado
+				if (canal <= 0) {
+					return;
+				}
+			}
+			servicios.invalidar(dispositivo.getAddress());
+		}
+
+		public void cerrar() throws IOException {
+			BluetoothSocket actual;
+			synchronized (this) {
+				cerrado = true;
+				actual = socket;
+			}
+			actual.close();
+		}
+	}
+}
@@ -0,0 +1,120 @@
+package com.blogspot.zomwi.chatbluetooth.transporte;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * Transporte sobre sockets TCP en la interfaz de loopback. Las direcciones
+ * son numeros de puerto locales. Sirve para medir el motor de conexiones con
+ * la pila de red real en una maquina sin Bluetooth.
+ */
+public class TransporteTcp implements Transporte {
+
+	// Tiempo maximo para establecer una conexion
+	private static final int ESPERA_CONEXION = 5000;
+
+	private final int puerto;
+
+	/**
+	 * Constructor
+	 *
+	 * @param puerto
+	 *            El puerto local en el que escucha este extremo, 0 para uno
+	 *            libre
+	 */
+	public TransporteTcp(int puerto) {
+		this.puerto = puerto;
+	}
+
+	public ServidorTransporte escuchar() throws IOException {
+		ServerSocket serverSocket = new ServerSocket(puerto, 8,
+				InetAddress.getByName("127.0.0.1"));
+		return new ServidorTcp(serverSocket);
+	}
+
+	public CanalTransporte crearCanal(String direccion) throws IOException {
+		int remoto;
+		try {
+			remoto = Integer.parseInt(direccion);
+		} catch (NumberFormatException ex) {
+			throw new IOException("Direccion invalida: " + direccion);
+		}
+		return new CanalTcp(new Socket(), remoto);
+	}
+
+	/**
+	 * El servidor de este transporte. Permite conocer el puerto cuando se
+	 * escucha en uno libre
+	 */
+	public static class ServidorTcp implements ServidorTransporte {
+
+		private final ServerSocket serverSocket;
+
+		ServidorTcp(ServerSocket serverSocket) {
+			this.serverSocket = serverSocket;
+		}
+
+		/**
+		 * @return El puerto en el que escucha el servidor
+		 */
+		public int getPuerto() {
+			return serverSocket.getLocalPort();
+		}
+
+		public CanalTransporte aceptar() throws IOException {
+			Socket socket = serverSocket.accept();
+			return new CanalTcp(socket, socket.getPort());
+		}
+
+		public void cerrar() throws IOException {
+			serverSocket.close();
+		}
+	}
+
+	private static class CanalTcp implements CanalTransporte {
+
+		private final Socket socket;
+		private final int remoto;
+
+		CanalTcp(Socket socket, int remoto) throws IOException {
+			this.socket = socket;
+			this.remoto = remoto;
+			// Los mensajes de chat son pequenos, no esperar a juntar mas
+			socket.setTcpNoDelay(true);
+		}
+
+		public void conectar() throws IOException {
+			socket.connect(new InetSocketAddress(
+					InetAddress.getByName("127.0.0.1"), remoto),
+					ESPERA_CONEXION);
+		}
+
+		public InputStream getFlujoEntrada() throws IOException {
+			return socket.getInputStream();
+		}
+
+		public OutputStream getFlujoSalida() throws IOException {
+			return socket.getOutputStream();
+		}
+
+		public String getDireccion() {
+			return String.valueOf(remoto);
+		}
+
+		public String getNombre() {
+			return "127.0.0.1:" + remoto;
+		}
+
+		public void protocoloDesconocido() {
+		}
+
+		public void cerrar() throws IOException {
+			socket.close();
+		}
+	}
+}
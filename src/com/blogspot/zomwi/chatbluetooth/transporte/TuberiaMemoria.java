@@ -0,0 +1,150 @@
+package com.blogspot.zomwi.chatbluetooth.transporte;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+/**
+ * Tuberia de bytes en memoria con un buffer circular acotado. Un hilo escribe
+ * por el flujo de salida y otro lee por el flujo de entrada, como en un
+ * socket. A diferencia de PipedInputStream no depende de que hilo escribio por
+ * ultima vez, asi que sirve con los hilos del motor de conexiones.
+ */
+public class TuberiaMemoria {
+
+	private final byte[] buffer;
+	private int inicio;
+	private int cantidad;
+	private boolean cerrada;
+
+	private final InputStream flujoEntrada = new InputStream() {
+
+		@Override
+		public int read() throws IOException {
+			byte[] uno = new byte[1];
+			return read(uno, 0, 1) < 0 ? -1 : uno[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] datos, int offset, int longitud)
+				throws IOException {
+			return leer(datos, offset, longitud);
+		}
+
+		@Override
+		public int available() throws IOException {
+			return disponibles();
+		}
+
+		@Override
+		public void close() {
+			cerrar();
+		}
+	};
+
+	private final OutputStream flujoSalida = new OutputStream() {
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] datos, int offset, int longitud)
+				throws IOException {
+			escribir(datos, offset, longitud);
+		}
+
+		@Override
+		public void close() {
+			cerrar();
+		}
+	};
+
+	/**
+	 * Constructor
+	 *
+	 * @param capacidad
+	 *            El tamano del buffer circular en bytes
+	 */
+	public TuberiaMemoria(int capacidad) {
+		buffer = new byte[capacidad];
+	}
+
+	public InputStream getFlujoEntrada() {
+		return flujoEntrada;
+	}
+
+	public OutputStream getFlujoSalida() {
+		return flujoSalida;
+	}
+
+	/**
+	 * Cerrar la tuberia. Las lecturas devuelven lo que quedaba y despues -1,
+	 * available() falla como en un socket cerrado; las escrituras fallan
+	 */
+	public synchronized void cerrar() {
+		cerrada = true;
+		notifyAll();
+	}
+
+	private synchronized int disponibles() throws IOException {
+		if (cantidad == 0 && cerrada) {
+			throw new IOException("Tuberia cerrada");
+		}
+		return cantidad;
+	}
+
+	private synchronized int leer(byte[] datos, int offset, int longitud)
+			throws IOException {
+		if (longitud == 0) {
+			return 0;
+		}
+		while (cantidad == 0) {
+			if (cerrada) {
+				return -1;
+			}
+			esperar();
+		}
+		int leidos = Math.min(longitud, cantidad);
+		int primero = Math.min(leidos, buffer.length - inicio);
+		System.arraycopy(buffer, inicio, datos, offset, primero);
+		System.arraycopy(buffer, 0, datos, offset + primero, leidos - primero);
+		inicio = (inicio + leidos) % buffer.length;
+		cantidad -= leidos;
+		notifyAll();
+		return leidos;
+	}
+
+	private synchronized void escribir(byte[] datos, int offset, int longitud)
+			throws IOException {
+		while (longitud > 0) {
+			while (cantidad == buffer.length && !cerrada) {
+				esperar();
+			}
+			if (cerrada) {
+				throw new IOException("Tuberia cerrada");
+			}
+			int fin = (inicio + cantidad) % buffer.length;
+			int escritos = Math.min(longitud, buffer.length - cantidad);
+			int primero = Math.min(escritos, buffer.length - fin);
+			System.arraycopy(datos, offset, buffer, fin, primero);
+			System.arraycopy(datos, offset + primero, buffer, 0, escritos
+					- primero);
+			cantidad += escritos;
+			offset += escritos;
+			longitud -= escritos;
+			notifyAll();
+		}
+	}
+
+	private void esperar() throws InterruptedIOException {
+		try {
+			wait();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+	}
+}